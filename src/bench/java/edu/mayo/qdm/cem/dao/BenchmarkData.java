@@ -0,0 +1,100 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Realistic CEM documents and view rows for the benchmarks, shaped as
+ * the views listed at the bottom of {@link CemdbCouchDbDao} and
+ * {@link ClinicalRowQuery} emit them.
+ */
+public final class BenchmarkData {
+	
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	
+	private BenchmarkData() {
+		super();
+	}
+	
+	/**
+	 * Gets a patient id that sorts in numeric order.
+	 */
+	public static String getPatientId(int patient) {
+		return String.format("p%07d", patient);
+	}
+	
+	public static String getPatientRow(String patientId) {
+		return "{\"key\":\"" + patientId + "\",\"value\":{\"id\":\"" + patientId + "\"," +
+				"\"race\":\"White\",\"gender\":{\"code\":\"F\",\"codeSystem\":\"2.16.840.1.113883.5.1\"}," +
+				"\"birthDate\":\"19580214\"}}";
+	}
+	
+	public static String getLabRow(String patientId, int i) {
+		return "{\"id\":\"lab-" + patientId + "-" + i + "\",\"key\":\"" + patientId + "\",\"value\":{" +
+				"\"patientId\":\"" + patientId + "\",\"labResultCode\":\"" + (i % 2 == 0 ? "2345-7" : "4548-4") + "\"," +
+				"\"collectionDate\":\"2010" + twoDigits(1 + i % 12) + twoDigits(1 + i % 28) + "0830\"," +
+				"\"unit\":\"mg/dL\",\"value\":" + (80 + i % 60) + ".5}}";
+	}
+	
+	public static String getDrugRow(String patientId, int i) {
+		return "{\"id\":\"drug-" + patientId + "-" + i + "\",\"key\":\"" + patientId + "\",\"value\":{" +
+				"\"patientId\":\"" + patientId + "\"," +
+				"\"clinicalDrug\":{\"code\":\"" + (860975 + i % 7) + "\",\"codeSystem\":\"2.16.840.1.113883.6.88\"}," +
+				"\"startTime\":\"2009" + twoDigits(1 + i % 12) + "011200\"," +
+				"\"endTime\":" + (i % 3 == 0 ? "null" : "\"2011" + twoDigits(1 + i % 12) + "011200\"") + "}}";
+	}
+	
+	public static String getDiagnosisRow(String patientId, int i) {
+		return "{\"id\":\"diagnosis-" + patientId + "-" + i + "\",\"key\":\"" + patientId + "\",\"value\":{" +
+				"\"patientId\":\"" + patientId + "\",\"code\":\"" + (44054006 + i) + "\"}}";
+	}
+	
+	/**
+	 * Gets a view result of 'rows' rows for one patient.
+	 */
+	public static byte[] getViewResult(String category, int rows) {
+		StringBuilder sb = new StringBuilder("{\"total_rows\":" + rows + ",\"offset\":0,\"rows\":[");
+		for(int i=0;i<rows;i++){
+			if(i > 0){
+				sb.append(',');
+			}
+			if("lab".equals(category)){
+				sb.append(getLabRow(getPatientId(1), i));
+			} else if("drug".equals(category)){
+				sb.append(getDrugRow(getPatientId(1), i));
+			} else {
+				sb.append(getDiagnosisRow(getPatientId(1), i));
+			}
+		}
+		
+		return sb.append("]}").toString().getBytes();
+	}
+	
+	/**
+	 * Gets a SecondaryUseNotedDrug CEM document, as read by the changes feed.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String,Object> getDrugDocument() {
+		String json = 
+			"{\"_id\":\"d1\",\"_rev\":\"1-a\",\"SecondaryUseNotedDrug\":{" +
+				"\"patientExternalId\":[{\"ii\":{\"root\":{\"value\":\"1.2.3\"},\"extension\":{\"value\":\"p0000001\"}}}]," +
+				"\"clinicalDrug\":{\"cd\":{" +
+					"\"code\":{\"value\":{\"value\":\"860975\"}}," +
+					"\"codeSystem\":{\"value\":{\"value\":\"2.16.840.1.113883.6.88\"}}," +
+					"\"originalText\":{\"value\":\"metformin 500 MG\"}}}," +
+				"\"startTime\":{\"ts\":{\"originalText\":{\"value\":\"200901011200\"}}}," +
+				"\"endTime\":{\"ts\":{\"originalText\":{\"value\":\"201101011200\"}}}}}";
+		try {
+			return OBJECT_MAPPER.readValue(json, Map.class);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static String twoDigits(int i) {
+		return i < 10 ? "0" + i : Integer.toString(i);
+	}
+
+}
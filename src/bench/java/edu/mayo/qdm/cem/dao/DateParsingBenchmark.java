@@ -0,0 +1,50 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing CEMDB dates with the shared parser, against a SimpleDateFormat
+ * per thread (the cheapest safe use of the deprecated formats).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DateParsingBenchmark {
+	
+	private String date = "19580214";
+	private String dateTime = "201006150830";
+	
+	private DateFormat dateTimeFormat = new SimpleDateFormat("yyyyMMddhhmm");
+	
+	@Benchmark
+	public long parseDateMillis() {
+		return CemDbUtils.CEMDB_DATE_PARSER.parseDateMillis(this.date);
+	}
+	
+	@Benchmark
+	public long parseDateTimeMillis() {
+		return CemDbUtils.CEMDB_DATE_PARSER.parseDateTimeMillis(this.dateTime);
+	}
+	
+	@Benchmark
+	public Date parseDateTime() {
+		return CemDbUtils.CEMDB_DATE_PARSER.parseDateTime(this.dateTime);
+	}
+	
+	@Benchmark
+	public Date simpleDateFormat() throws ParseException {
+		return this.dateTimeFormat.parse(this.dateTime);
+	}
+
+}
@@ -0,0 +1,580 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for CouchDB, serving the views the DAO uses --
+ * 'all_patients', the *_by_patient_id, *_by_code_and_patient_id and date keyed
+ * views, and 'patient_timeline' -- over a {@link SyntheticCemData} set, so
+ * extraction can be load tested on one box.
+ *
+ * Views may be queried by GET or by POSTing 'keys', with 'limit', 'skip',
+ * 'startkey', 'startkey_docid', 'endkey', 'inclusive_end', 'group' and
+ * 'reduce'. Rows are generated as they are written, so memory does not grow
+ * with the number of patients. Keys collate as in CouchDB, except that strings
+ * compare by code point rather than by ICU rules -- the same for the ids
+ * generated here. Some simplifications:
+ * <ul>
+ * <li>'group' only drops the document ids; 'all_patients' is the only reduced view.</li>
+ * <li>No 'offset' is returned, and the *_by_code_and_patient_id views may only be queried by 'keys'.</li>
+ * <li>The changes feeds are always empty, as the data never changes.</li>
+ * </ul>
+ */
+public class EmbeddedCouchDbServer implements Closeable {
+
+	private static final String VIEW_SEPARATOR = "/_view/";
+	private static final String CHANGES_PATH = "/_changes";
+
+	//in the order of the second element of the 'patient_timeline' keys
+	private static final DataCategory[] TIMELINE_CATEGORIES = {
+		DataCategory.LABS, DataCategory.MEDICATIONS, DataCategory.DIAGNOSES
+	};
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final SyntheticCemData data;
+
+	private final Map<String,View> views = new HashMap<String,View>();
+
+	private final HttpServer server;
+	private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+	/**
+	 * A row of a view.
+	 */
+	private static final class Row {
+
+		private final Object key;
+		private final String docId;
+		private final String value;
+
+		private Row(Object key, String docId, String value) {
+			super();
+			this.key = key;
+			this.docId = docId;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A view, whose rows are generated a patient at a time.
+	 */
+	private abstract class View {
+
+		/**
+		 * Checks if the keys start with the patient id -- so that the rows of
+		 * the patients, in id order, are in key order -- rather than with a code.
+		 */
+		boolean isPatientKeyed() {
+			return true;
+		}
+
+		/**
+		 * Checks if each patient has exactly one row, so that 'skip' can be
+		 * applied without generating the rows skipped.
+		 */
+		boolean isOneRowPerPatient() {
+			return false;
+		}
+
+		/**
+		 * Gets the id of the patient in a key.
+		 */
+		String getPatientId(Object key) {
+			Object id = key instanceof List ? this.getElement((List<?>) key, this.isPatientKeyed() ? 0 : 1) : key;
+			return id instanceof String ? (String) id : null;
+		}
+
+		/**
+		 * Gets the rows of a patient, in key order.
+		 */
+		abstract List<Row> getRows(SyntheticCemData.SyntheticPatient patient);
+
+		/**
+		 * Gets the total number of rows.
+		 */
+		abstract long getTotalRows();
+
+		private Object getElement(List<?> key, int i) {
+			return key.size() > i ? key.get(i) : null;
+		}
+	}
+
+	/**
+	 * Starts a server on a free local port.
+	 *
+	 * @param data the data to serve
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public EmbeddedCouchDbServer(SyntheticCemData data) throws IOException {
+		this(data, 0);
+	}
+
+	/**
+	 * Starts a server on a local port.
+	 *
+	 * @param data the data to serve
+	 * @param port the port, or zero for any free port
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public EmbeddedCouchDbServer(SyntheticCemData data, int port) throws IOException {
+		super();
+		this.data = data;
+
+		this.addViews();
+
+		this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		this.server.createContext("/", new HttpHandler(){
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					EmbeddedCouchDbServer.this.handle(exchange);
+				} catch (IllegalArgumentException e) {
+					sendError(exchange, 400, "bad_request", e.getMessage());
+				} finally {
+					exchange.close();
+				}
+			}
+
+		});
+		this.server.setExecutor(this.executorService);
+		this.server.start();
+	}
+
+	/**
+	 * Gets the url to give the DAO.
+	 */
+	public String getUrl() {
+		return "http://localhost:" + this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Gets the data served.
+	 */
+	public SyntheticCemData getData() {
+		return data;
+	}
+
+	private void addViews() {
+		this.views.put("secondaryusepatient2/_design/all_patients/_view/all_patients", new View(){
+
+			@Override
+			boolean isOneRowPerPatient() {
+				return true;
+			}
+
+			@Override
+			List<Row> getRows(SyntheticCemData.SyntheticPatient patient) {
+				return Collections.singletonList(new Row(patient.getPatientId(), patient.getPatientId(), patient.getValue()));
+			}
+
+			@Override
+			long getTotalRows() {
+				return data.getPatientCount();
+			}
+
+		});
+
+		this.addClinicalViews("secondaryusestandardlab", "lab", "lab_by_patient_id_and_date", DataCategory.LABS);
+		this.addClinicalViews("secondaryusenoteddrug", "drug", "drug_by_patient_id_and_start", DataCategory.MEDICATIONS);
+		this.addClinicalViews("administrativediagnosis", "diagnosis", null, DataCategory.DIAGNOSES);
+
+		this.views.put("patienttimeline/_design/patient_timeline/_view/patient_timeline", new View(){
+
+			@Override
+			List<Row> getRows(SyntheticCemData.SyntheticPatient patient) {
+				String patientId = patient.getPatientId();
+
+				List<Row> rows = new ArrayList<Row>();
+				rows.add(new Row(Arrays.asList(patientId, 0), patientId, patient.getValue()));
+				for(int i=0;i<TIMELINE_CATEGORIES.length;i++){
+					for(SyntheticCemData.Entry entry : patient.getEntries(TIMELINE_CATEGORIES[i])){
+						rows.add(new Row(Arrays.asList(patientId, i + 1), entry.getDocId(), entry.getValue()));
+					}
+				}
+
+				return rows;
+			}
+
+			@Override
+			long getTotalRows() {
+				long rows = data.getPatientCount();
+				for(DataCategory category : DataCategory.values()){
+					rows += data.getRowCount(category);
+				}
+
+				return rows;
+			}
+
+		});
+	}
+
+	private void addClinicalViews(String database, String name, String dateView, final DataCategory category) {
+		this.views.put(this.getViewPath(database, name + "_by_patient_id"), new View(){
+
+			@Override
+			List<Row> getRows(SyntheticCemData.SyntheticPatient patient) {
+				List<Row> rows = new ArrayList<Row>();
+				for(SyntheticCemData.Entry entry : patient.getEntries(category)){
+					rows.add(new Row(patient.getPatientId(), entry.getDocId(), entry.getValue()));
+				}
+
+				return rows;
+			}
+
+			@Override
+			long getTotalRows() {
+				return data.getRowCount(category);
+			}
+
+		});
+
+		this.views.put(this.getViewPath(database, name + "_by_code_and_patient_id"), new View(){
+
+			@Override
+			boolean isPatientKeyed() {
+				return false;
+			}
+
+			@Override
+			List<Row> getRows(SyntheticCemData.SyntheticPatient patient) {
+				List<Row> rows = new ArrayList<Row>();
+				for(SyntheticCemData.Entry entry : patient.getEntries(category)){
+					rows.add(new Row(Arrays.asList(entry.getCode(), patient.getPatientId()), entry.getDocId(), entry.getValue()));
+				}
+
+				return sort(rows);
+			}
+
+			@Override
+			long getTotalRows() {
+				return data.getRowCount(category);
+			}
+
+		});
+
+		if(dateView != null){
+			this.views.put(this.getViewPath(database, dateView), new View(){
+
+				@Override
+				List<Row> getRows(SyntheticCemData.SyntheticPatient patient) {
+					List<Row> rows = new ArrayList<Row>();
+					for(SyntheticCemData.Entry entry : patient.getEntries(category)){
+						rows.add(new Row(Arrays.asList(patient.getPatientId(), entry.getDate()), entry.getDocId(), entry.getValue()));
+					}
+
+					return sort(rows);
+				}
+
+				@Override
+				long getTotalRows() {
+					return data.getRowCount(category);
+				}
+
+			});
+		}
+	}
+
+	private String getViewPath(String database, String view) {
+		return database + "/_design/" + view + VIEW_SEPARATOR + view;
+	}
+
+	private static List<Row> sort(List<Row> rows) {
+		Collections.sort(rows, new Comparator<Row>(){
+
+			@Override
+			public int compare(Row row1, Row row2) {
+				int c = Collation.INSTANCE.compare(row1.key, row2.key);
+				return c != 0 ? c : row1.docId.compareTo(row2.docId);
+			}
+
+		});
+
+		return rows;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath().substring(1);
+		Map<String,String> params = this.getParams(exchange.getRequestURI().getRawQuery());
+
+		if(path.endsWith(CHANGES_PATH)){
+			this.sendJson(exchange, "{\"results\":[],\"last_seq\":\"0\"}");
+			return;
+		}
+
+		View view = this.views.get(path);
+		if(view == null){
+			sendError(exchange, 404, "not_found", "missing");
+			return;
+		}
+
+		List<Object> keys = null;
+		if("POST".equals(exchange.getRequestMethod())){
+			InputStream in = exchange.getRequestBody();
+			if("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))){
+				in = new GZIPInputStream(in);
+			}
+			keys = (List<Object>) this.objectMapper.readValue(in, Map.class).get("keys");
+		} else if(params.containsKey("keys")){
+			keys = this.objectMapper.readValue(params.get("keys"), List.class);
+		}
+
+		Object startKey = null;
+		Object endKey = null;
+		if(keys == null){
+			if(! view.isPatientKeyed()){
+				throw new IllegalArgumentException("This view can only be queried by keys.");
+			}
+			startKey = params.containsKey("startkey") ? this.objectMapper.readValue(params.get("startkey"), Object.class) : null;
+			endKey = params.containsKey("endkey") ? this.objectMapper.readValue(params.get("endkey"), Object.class) : null;
+		}
+
+		boolean isGrouped = Boolean.parseBoolean(params.get("group"));
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+		int skip = params.containsKey("skip") ? Integer.parseInt(params.get("skip")) : 0;
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, 0);
+
+		JsonGenerator generator = this.objectMapper.getJsonFactory().createJsonGenerator(
+				new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024));
+		generator.writeStartObject();
+		if(! isGrouped){
+			generator.writeNumberField("total_rows", view.getTotalRows());
+		}
+		generator.writeArrayFieldStart("rows");
+
+		RowWriter writer = new RowWriter(generator, isGrouped, skip, limit);
+		if(keys != null){
+			this.writeKeys(view, keys, writer);
+		} else {
+			this.writeRange(view, startKey, params.get("startkey_docid"), endKey,
+					! "false".equals(params.get("inclusive_end")), writer);
+		}
+
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.close();
+	}
+
+	private void writeKeys(View view, List<Object> keys, RowWriter writer) throws IOException {
+		for(Object key : keys){
+			int index = this.data.getIndex(view.getPatientId(key));
+			if(index < 0){
+				continue;
+			}
+
+			for(Row row : view.getRows(this.data.getPatient(index))){
+				if(Collation.INSTANCE.compare(row.key, key) == 0 && ! writer.write(row)){
+					return;
+				}
+			}
+		}
+	}
+
+	private void writeRange(View view, Object startKey, String startDocId, Object endKey, boolean isInclusiveEnd, 
+			RowWriter writer) throws IOException {
+		int index = 0;
+		if(startKey != null){
+			String patientId = view.getPatientId(startKey);
+			index = patientId != null ? this.data.getFirstIndex(patientId) : this.data.getPatientCount();
+		}
+		if(view.isOneRowPerPatient() && startDocId == null){
+			index += writer.skipAll();
+		}
+
+		for(;index<this.data.getPatientCount();index++){
+			for(Row row : view.getRows(this.data.getPatient(index))){
+				if(startKey != null){
+					int c = Collation.INSTANCE.compare(row.key, startKey);
+					if(c < 0 || (c == 0 && startDocId != null && row.docId.compareTo(startDocId) < 0)){
+						continue;
+					}
+				}
+				if(endKey != null){
+					int c = Collation.INSTANCE.compare(row.key, endKey);
+					if(c > 0 || (c == 0 && ! isInclusiveEnd)){
+						return;
+					}
+				}
+				if(! writer.write(row)){
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the rows of a response, applying 'skip' and 'limit'.
+	 */
+	private static final class RowWriter {
+
+		private final JsonGenerator generator;
+		private final boolean isGrouped;
+		private int skip;
+		private int limit;
+
+		private RowWriter(JsonGenerator generator, boolean isGrouped, int skip, int limit) {
+			super();
+			this.generator = generator;
+			this.isGrouped = isGrouped;
+			this.skip = skip;
+			this.limit = limit;
+		}
+
+		/**
+		 * Takes the whole 'skip', for the caller to apply.
+		 */
+		private int skipAll() {
+			int skip = this.skip;
+			this.skip = 0;
+
+			return skip;
+		}
+
+		/**
+		 * Writes a row, unless skipped.
+		 *
+		 * @return false, if the limit has been reached
+		 */
+		private boolean write(Row row) throws IOException {
+			if(this.limit <= 0){
+				return false;
+			}
+			if(this.skip > 0){
+				this.skip--;
+				return true;
+			}
+
+			this.generator.writeStartObject();
+			if(! this.isGrouped){
+				this.generator.writeStringField("id", row.docId);
+			}
+			this.generator.writeObjectField("key", row.key);
+			this.generator.writeFieldName("value");
+			this.generator.writeRawValue(row.value);
+			this.generator.writeEndObject();
+
+			return --this.limit > 0;
+		}
+	}
+
+	/**
+	 * Orders JSON keys as CouchDB views do: null, false, true, numbers,
+	 * strings, arrays (element by element), then objects.
+	 */
+	static final class Collation implements Comparator<Object> {
+
+		static final Collation INSTANCE = new Collation();
+
+		@Override
+		public int compare(Object o1, Object o2) {
+			int c = this.getRank(o1) - this.getRank(o2);
+			if(c != 0){
+				return c;
+			}
+
+			if(o1 instanceof Number){
+				return Double.compare(((Number) o1).doubleValue(), ((Number) o2).doubleValue());
+			} else if(o1 instanceof String){
+				return ((String) o1).compareTo((String) o2);
+			} else if(o1 instanceof List){
+				List<?> l1 = (List<?>) o1;
+				List<?> l2 = (List<?>) o2;
+				for(int i=0;i<l1.size() && i<l2.size();i++){
+					c = this.compare(l1.get(i), l2.get(i));
+					if(c != 0){
+						return c;
+					}
+				}
+				return l1.size() - l2.size();
+			} else {
+				return 0;
+			}
+		}
+
+		private int getRank(Object o) {
+			if(o == null){
+				return 0;
+			} else if(Boolean.FALSE.equals(o)){
+				return 1;
+			} else if(Boolean.TRUE.equals(o)){
+				return 2;
+			} else if(o instanceof Number){
+				return 3;
+			} else if(o instanceof String){
+				return 4;
+			} else if(o instanceof List){
+				return 5;
+			} else {
+				return 6;
+			}
+		}
+	}
+
+	private void sendJson(HttpExchange exchange, String json) throws IOException {
+		byte[] bytes = json.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String error, String reason) throws IOException {
+		byte[] bytes = ("{\"error\":\"" + error + "\",\"reason\":\"" + reason + "\"}").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private Map<String,String> getParams(String query) throws IOException {
+		Map<String,String> params = new HashMap<String,String>();
+		if(query != null){
+			for(String param : query.split("&")){
+				int i = param.indexOf('=');
+				if(i > 0){
+					params.put(param.substring(0, i), URLDecoder.decode(param.substring(i + 1), "UTF-8"));
+				}
+			}
+		}
+
+		return params;
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executorService.shutdown();
+	}
+
+}
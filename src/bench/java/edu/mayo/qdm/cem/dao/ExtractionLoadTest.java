@@ -0,0 +1,136 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.mayo.qdm.cem.CemdbPatientDataSource;
+import edu.mayo.qdm.patient.Patient;
+
+/**
+ * Measures the end-to-end throughput of {@link CemdbPatientDataSource} against
+ * an {@link EmbeddedCouchDbServer}, for each of the patient counts given
+ * (by default 10k, 100k and 1M):
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar edu.mayo.qdm.cem.dao.ExtractionLoadTest 10000 100000 1000000
+ * </pre>
+ *
+ * The system properties 'seed' (default 1) and 'mode' -- 'serial' for
+ * getPatients, 'parallel' for processPatients, or both (the default) --
+ * vary the run. Labs have the heavy tailed default of {@link SyntheticCemData}.
+ * If 'pageMillis' or 'pageBytes' is set, an {@link AdaptivePageSize} of 100
+ * to 5000 patients aims at that time or estimated heap per page. If
+ * 'pageMemoryBudget' is set, pages over it are spilled to temp files.
+ * After each run the {@link JmxExtractionMetrics} of every stage are printed;
+ * they may also be watched in a JMX console as it runs.
+ */
+public class ExtractionLoadTest {
+
+	private static final int[] DEFAULT_PATIENT_COUNTS = {10000, 100000, 1000000};
+
+	public static void main(String[] args) throws Exception {
+		int[] patientCounts = DEFAULT_PATIENT_COUNTS;
+		if(args.length > 0){
+			patientCounts = new int[args.length];
+			for(int i=0;i<args.length;i++){
+				patientCounts[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		long seed = Long.getLong("seed", 1);
+		String mode = System.getProperty("mode", "both");
+		long pageMillis = Long.getLong("pageMillis", 0);
+		long pageBytes = Long.getLong("pageBytes", 0);
+		long pageMemoryBudget = Long.getLong("pageMemoryBudget", 0);
+
+		for(int patientCount : patientCounts){
+			SyntheticCemData data = new SyntheticCemData(seed, patientCount);
+
+			long rows = 0;
+			for(DataCategory category : DataCategory.values()){
+				rows += data.getRowCount(category);
+			}
+			System.out.println(String.format("%,d patients with %,d labs, %,d drugs and %,d diagnoses",
+					patientCount,
+					data.getRowCount(DataCategory.LABS),
+					data.getRowCount(DataCategory.MEDICATIONS),
+					data.getRowCount(DataCategory.DIAGNOSES)));
+
+			EmbeddedCouchDbServer server = new EmbeddedCouchDbServer(data);
+			try {
+				CemdbPatientDataSource dataSource = new CemdbPatientDataSource(server.getUrl());
+				
+				JmxExtractionMetrics metrics = new JmxExtractionMetrics();
+				dataSource.setExtractionMetrics(metrics);
+				
+				dataSource.setPageMemoryBudget(pageMemoryBudget);
+				
+				AdaptivePageSize sizing = null;
+				if(pageMillis > 0 || pageBytes > 0){
+					sizing = new AdaptivePageSize(100, 5000, pageMillis, pageBytes);
+					dataSource.setAdaptivePageSize(sizing);
+				}
+
+				if(! "parallel".equals(mode)){
+					long start = System.nanoTime();
+
+					int count = 0;
+					for(Patient patient : dataSource.getPatients()){
+						if(patient != null){
+							count++;
+						}
+					}
+
+					report("serial", count, rows, System.nanoTime() - start);
+					report(sizing);
+					report(metrics);
+				}
+
+				if(! "serial".equals(mode)){
+					long start = System.nanoTime();
+
+					final AtomicInteger count = new AtomicInteger();
+					dataSource.processPatients(new ParallelPageProcessor.ItemHandler<Patient>(){
+
+						@Override
+						public void handle(Patient patient) {
+							count.incrementAndGet();
+						}
+
+					});
+
+					report("parallel", count.get(), rows, System.nanoTime() - start);
+					report(sizing);
+					report(metrics);
+				}
+				
+				metrics.unregister();
+				dataSource.close();
+			} finally {
+				server.close();
+			}
+		}
+	}
+
+	private static void report(AdaptivePageSize sizing) {
+		if(sizing != null){
+			System.out.println("    " + sizing);
+		}
+	}
+
+	private static void report(JmxExtractionMetrics metrics) {
+		for(StageMetrics stage : metrics.getStages()){
+			System.out.println("    " + stage);
+		}
+		metrics.reset();
+	}
+
+	private static void report(String mode, int patients, long rows, long nanos) {
+		double seconds = nanos / 1e9;
+		Runtime runtime = Runtime.getRuntime();
+
+		System.out.println(String.format("  %-8s %,d patients in %.1fs: %,.0f patients/s, %,.0f rows/s, %,d MB heap used",
+				mode, patients, seconds, patients / seconds, rows / seconds,
+				(runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)));
+	}
+
+}
@@ -0,0 +1,55 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Path lookups in a CEM document: the cached path behind MapUtils.get, a
+ * path compiled up front, and the split-and-match lookup it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MapUtilsBenchmark {
+	
+	private static final String PATH = "SecondaryUseNotedDrug.patientExternalId[0].ii.extension.value";
+	
+	private Map<String,Object> document;
+	
+	private MapUtils.Path compiled;
+	
+	@Setup
+	public void setUp() {
+		this.document = BenchmarkData.getDrugDocument();
+		this.compiled = MapUtils.compile(PATH);
+	}
+	
+	@Benchmark
+	public Object get() {
+		return MapUtils.get(PATH, this.document);
+	}
+	
+	@Benchmark
+	public Object compiledGet() {
+		return this.compiled.get(this.document);
+	}
+	
+	@Benchmark
+	public Object splitGet() {
+		Object value = this.document;
+		for(String key : PATH.split("\\.")){
+			value = MapUtils.getFromMap(key, (Map<?,?>) value);
+		}
+		
+		return value;
+	}
+
+}
@@ -0,0 +1,78 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.mayo.qdm.patient.Patient;
+
+/**
+ * The full getPatients cycle -- paging 'all_patients', querying the clinical
+ * data views for each page and binding the rows -- against an embedded
+ * server. The cost per patient is the score divided by 'patients'.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PageCycleBenchmark {
+	
+	@Param({"2000"})
+	private int patients;
+	
+	@Param({"20"})
+	private int labs;
+	
+	@Param({"0", "4"})
+	private int prefetchDepth;
+	
+	private EmbeddedCouchDbServer server;
+	
+	private CemdbCouchDbDao dao;
+	
+	@Setup
+	public void setUp() throws IOException {
+		SyntheticCemData data = new SyntheticCemData(1, this.patients);
+		data.setLabs(SyntheticCemData.fixed(this.labs));
+		data.setDrugs(SyntheticCemData.fixed(this.labs / 2));
+		data.setDiagnoses(SyntheticCemData.fixed(this.labs / 4));
+		
+		this.server = new EmbeddedCouchDbServer(data);
+		
+		this.dao = new CemdbCouchDbDao(this.server.getUrl());
+		this.dao.setPrefetchDepth(this.prefetchDepth);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		this.dao.close();
+		this.server.close();
+	}
+	
+	@Benchmark
+	public int getPatients(Blackhole blackhole) {
+		int count = 0;
+		for(Patient patient : this.dao.getPatients()){
+			blackhole.consume(patient);
+			count++;
+		}
+		
+		return count;
+	}
+
+}
@@ -0,0 +1,31 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import edu.mayo.qdm.patient.Patient;
+
+/**
+ * Binding an 'all_patients' row to a Patient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PatientTransformerBenchmark {
+	
+	private PatientTransformer transformer = new PatientTransformer();
+	
+	private PatientRow row = new PatientRow(BenchmarkData.getPatientId(1), "19580214", "F", "White");
+	
+	@Benchmark
+	public Patient transform() {
+		return this.transformer.transform(this.row);
+	}
+
+}
@@ -0,0 +1,421 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A seeded, synthetic set of CEM patients with their labs, drugs and
+ * diagnoses. Nothing is held in memory: each patient is generated on demand
+ * from the seed and its index, so the same patient always comes out the same,
+ * and a million patients cost no more than ten thousand.
+ *
+ * The number of labs, drugs and diagnoses of each patient is drawn from a
+ * {@link Distribution}; by default the labs have a heavy tail (a few patients
+ * with thousands), as in the real CEM databases.
+ */
+public class SyntheticCemData {
+
+	/**
+	 * The number of rows of one category a patient has.
+	 */
+	public interface Distribution {
+
+		/**
+		 * Draws a count.
+		 *
+		 * @param random the random
+		 * @return the count, zero or more
+		 */
+		int sample(Random random);
+	}
+
+	/**
+	 * A lab, drug or diagnosis of a patient: the id of its document,
+	 * its code and date (the collection date of a lab, the start time of a
+	 * drug, null for a diagnosis), and the JSON value the views emit for it.
+	 */
+	public static final class Entry {
+
+		private final String docId;
+		private final String code;
+		private final String date;
+		private final String value;
+
+		private Entry(String docId, String code, String date, String value) {
+			super();
+			this.docId = docId;
+			this.code = code;
+			this.date = date;
+			this.value = value;
+		}
+
+		public String getDocId() {
+			return docId;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		public String getDate() {
+			return date;
+		}
+
+		public String getValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * A generated patient: its demographics, as the JSON value 'all_patients'
+	 * emits, and its labs, drugs and diagnoses in document id order.
+	 */
+	public static final class SyntheticPatient {
+
+		private final String patientId;
+		private final String value;
+		private final List<Entry> labs;
+		private final List<Entry> drugs;
+		private final List<Entry> diagnoses;
+
+		private SyntheticPatient(String patientId, String value, List<Entry> labs, List<Entry> drugs, List<Entry> diagnoses) {
+			super();
+			this.patientId = patientId;
+			this.value = value;
+			this.labs = labs;
+			this.drugs = drugs;
+			this.diagnoses = diagnoses;
+		}
+
+		public String getPatientId() {
+			return patientId;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		public List<Entry> getLabs() {
+			return labs;
+		}
+
+		public List<Entry> getDrugs() {
+			return drugs;
+		}
+
+		public List<Entry> getDiagnoses() {
+			return diagnoses;
+		}
+
+		/**
+		 * Gets the entries of a category.
+		 */
+		public List<Entry> getEntries(DataCategory category) {
+			switch(category){
+				case LABS: return labs;
+				case MEDICATIONS: return drugs;
+				case DIAGNOSES: return diagnoses;
+				default: throw new IllegalStateException(category.toString());
+			}
+		}
+	}
+
+	//patient ids sort in index order, as all_patients returns them
+	private static final String PATIENT_ID_FORMAT = "p%08d";
+	private static final String PATIENT_ID_PREFIX = "p";
+	private static final int PATIENT_ID_DIGITS = 8;
+
+	private static final String[] LAB_CODES = {
+		"2345-7", "4548-4", "2093-3", "2085-9", "13457-7", "2571-8", "2160-0", "718-7", "789-8", "1742-6"
+	};
+	private static final String[] LAB_UNITS = {
+		"mg/dL", "%", "mg/dL", "mg/dL", "mg/dL", "mg/dL", "mg/dL", "g/dL", "10*6/uL", "U/L"
+	};
+	private static final String[] DRUG_CODES = {
+		"860975", "860981", "617314", "617318", "197361", "308136", "314076", "310798", "197884", "312961"
+	};
+	private static final String[] DIAGNOSIS_CODES = {
+		"44054006", "38341003", "55822004", "195967001", "13645005", "73211009", "49436004", "22298006"
+	};
+	private static final String[] RACES = {"White", "Black or African American", "Asian", "Asian Indian", "Other", "Unknown"};
+	private static final String[] GENDERS = {"F", "M"};
+
+	private static final String RXNORM_OID = "2.16.840.1.113883.6.88";
+	private static final String GENDER_OID = "2.16.840.1.113883.5.1";
+
+	private static final int FIRST_YEAR = 2003;
+	private static final int YEARS = 9;
+
+	private final long seed;
+	private final int patientCount;
+
+	private Distribution labs = pareto(5, 1.1, 5000);
+	private Distribution drugs = uniform(0, 15);
+	private Distribution diagnoses = uniform(1, 10);
+
+	private final long[] rowCounts = new long[DataCategory.values().length];
+	private boolean isRowCounted;
+
+	/**
+	 * Instantiates a new data set.
+	 *
+	 * @param seed the seed
+	 * @param patientCount the number of patients
+	 */
+	public SyntheticCemData(long seed, int patientCount) {
+		super();
+		if(patientCount < 0 || Integer.toString(patientCount).length() > PATIENT_ID_DIGITS){
+			throw new IllegalArgumentException("Unsupported patient count: " + patientCount);
+		}
+		this.seed = seed;
+		this.patientCount = patientCount;
+	}
+
+	/**
+	 * A count that is always n.
+	 */
+	public static Distribution fixed(final int n) {
+		return new Distribution(){
+
+			@Override
+			public int sample(Random random) {
+				return n;
+			}
+
+		};
+	}
+
+	/**
+	 * A count drawn evenly from min to max, both inclusive.
+	 */
+	public static Distribution uniform(final int min, final int max) {
+		return new Distribution(){
+
+			@Override
+			public int sample(Random random) {
+				return min + random.nextInt(max - min + 1);
+			}
+
+		};
+	}
+
+	/**
+	 * A heavy tailed count: Pareto distributed from min with the given shape
+	 * (the smaller, the heavier the tail -- below 2 most rows belong to a few
+	 * patients), and capped at max.
+	 */
+	public static Distribution pareto(final int min, final double alpha, final int max) {
+		return new Distribution(){
+
+			@Override
+			public int sample(Random random) {
+				double u = 1 - random.nextDouble();
+				return (int) Math.min(max, Math.floor(min / Math.pow(u, 1 / alpha)));
+			}
+
+		};
+	}
+
+	/**
+	 * Gets the number of patients.
+	 */
+	public int getPatientCount() {
+		return patientCount;
+	}
+
+	/**
+	 * Gets the id of the patient at an index.
+	 */
+	public String getPatientId(int index) {
+		return String.format(PATIENT_ID_FORMAT, index);
+	}
+
+	/**
+	 * Gets the index of the first patient whose id is not before the given id
+	 * -- the patient count if there is none.
+	 */
+	public int getFirstIndex(String patientId) {
+		int low = 0;
+		int high = this.patientCount;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(this.getPatientId(mid).compareTo(patientId) < 0){
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Gets the index of a patient, or -1 if there is no such patient.
+	 */
+	public int getIndex(String patientId) {
+		if(patientId == null ||
+				patientId.length() != PATIENT_ID_PREFIX.length() + PATIENT_ID_DIGITS ||
+				! patientId.startsWith(PATIENT_ID_PREFIX)){
+			return -1;
+		}
+
+		int index = 0;
+		for(int i=PATIENT_ID_PREFIX.length();i<patientId.length();i++){
+			char c = patientId.charAt(i);
+			if(c < '0' || c > '9'){
+				return -1;
+			}
+			index = index * 10 + (c - '0');
+		}
+
+		return index < this.patientCount ? index : -1;
+	}
+
+	/**
+	 * Gets the total number of rows of a category, over every patient. The
+	 * first call draws the counts of every patient.
+	 */
+	public synchronized long getRowCount(DataCategory category) {
+		if(! this.isRowCounted){
+			for(int i=0;i<this.patientCount;i++){
+				Random random = this.getRandom(i);
+				this.rowCounts[DataCategory.LABS.ordinal()] += this.labs.sample(random);
+				this.rowCounts[DataCategory.MEDICATIONS.ordinal()] += this.drugs.sample(random);
+				this.rowCounts[DataCategory.DIAGNOSES.ordinal()] += this.diagnoses.sample(random);
+			}
+			this.isRowCounted = true;
+		}
+
+		return this.rowCounts[category.ordinal()];
+	}
+
+	/**
+	 * Generates the patient at an index.
+	 */
+	public SyntheticPatient getPatient(int index) {
+		Random random = this.getRandom(index);
+
+		//the counts come first, as getRowCount draws them alone
+		int labCount = this.labs.sample(random);
+		int drugCount = this.drugs.sample(random);
+		int diagnosisCount = this.diagnoses.sample(random);
+
+		String patientId = this.getPatientId(index);
+		String value = "{\"id\":\"" + patientId + "\"," +
+				"\"race\":\"" + RACES[random.nextInt(RACES.length)] + "\"," +
+				"\"gender\":{\"code\":\"" + GENDERS[random.nextInt(GENDERS.length)] + "\",\"codeSystem\":\"" + GENDER_OID + "\"}," +
+				"\"birthDate\":\"" + (1920 + random.nextInt(85)) + this.getMonthAndDay(random) + "\"}";
+
+		List<Entry> labs = new ArrayList<Entry>(labCount);
+		for(int i=0;i<labCount;i++){
+			int code = this.getSkewedIndex(random, LAB_CODES.length);
+			String date = this.getDateTime(random);
+			labs.add(new Entry(this.getDocId(patientId, "lab", i), LAB_CODES[code], date,
+					"{\"patientId\":\"" + patientId + "\",\"labResultCode\":\"" + LAB_CODES[code] + "\"," +
+					"\"collectionDate\":\"" + date + "\",\"unit\":\"" + LAB_UNITS[code] + "\"," +
+					"\"value\":" + (random.nextInt(20000) / 100.0) + "}"));
+		}
+
+		List<Entry> drugs = new ArrayList<Entry>(drugCount);
+		for(int i=0;i<drugCount;i++){
+			String code = DRUG_CODES[this.getSkewedIndex(random, DRUG_CODES.length)];
+			String start = this.getDateTime(random);
+			String end = random.nextInt(3) == 0 ? null : this.getDateTime(random);
+			if(end != null && end.compareTo(start) < 0){
+				String swap = start;
+				start = end;
+				end = swap;
+			}
+			drugs.add(new Entry(this.getDocId(patientId, "drug", i), code, start,
+					"{\"patientId\":\"" + patientId + "\"," +
+					"\"clinicalDrug\":{\"code\":\"" + code + "\",\"codeSystem\":\"" + RXNORM_OID + "\"}," +
+					"\"startTime\":\"" + start + "\"," +
+					"\"endTime\":" + (end == null ? "null" : "\"" + end + "\"") + "}"));
+		}
+
+		List<Entry> diagnoses = new ArrayList<Entry>(diagnosisCount);
+		for(int i=0;i<diagnosisCount;i++){
+			String code = DIAGNOSIS_CODES[this.getSkewedIndex(random, DIAGNOSIS_CODES.length)];
+			diagnoses.add(new Entry(this.getDocId(patientId, "diagnosis", i), code, null,
+					"{\"patientId\":\"" + patientId + "\",\"code\":\"" + code + "\"}"));
+		}
+
+		return new SyntheticPatient(patientId, value,
+				Collections.unmodifiableList(labs),
+				Collections.unmodifiableList(drugs),
+				Collections.unmodifiableList(diagnoses));
+	}
+
+	private void resetRowCounts() {
+		this.isRowCounted = false;
+		Arrays.fill(this.rowCounts, 0);
+	}
+
+	private Random getRandom(int index) {
+		//spread neighbouring indexes over the seed space
+		return new Random(this.seed ^ (index * 0x9E3779B97F4A7C15L));
+	}
+
+	//a few codes are common and most are rare, as with real value sets
+	private int getSkewedIndex(Random random, int n) {
+		double u = random.nextDouble();
+		return (int) (u * u * n);
+	}
+
+	private String getDocId(String patientId, String category, int i) {
+		return patientId + "-" + category + "-" + String.format("%05d", i);
+	}
+
+	private String getDateTime(Random random) {
+		return (FIRST_YEAR + random.nextInt(YEARS)) + this.getMonthAndDay(random) +
+				twoDigits(random.nextInt(24)) + twoDigits(random.nextInt(60));
+	}
+
+	private String getMonthAndDay(Random random) {
+		return twoDigits(1 + random.nextInt(12)) + twoDigits(1 + random.nextInt(28));
+	}
+
+	private static String twoDigits(int i) {
+		return i < 10 ? "0" + i : Integer.toString(i);
+	}
+
+	public Distribution getLabs() {
+		return labs;
+	}
+
+	/**
+	 * Sets the distribution of the number of labs of a patient.
+	 */
+	public synchronized void setLabs(Distribution labs) {
+		this.labs = labs;
+		this.resetRowCounts();
+	}
+
+	public Distribution getDrugs() {
+		return drugs;
+	}
+
+	/**
+	 * Sets the distribution of the number of drugs of a patient.
+	 */
+	public synchronized void setDrugs(Distribution drugs) {
+		this.drugs = drugs;
+		this.resetRowCounts();
+	}
+
+	public Distribution getDiagnoses() {
+		return diagnoses;
+	}
+
+	/**
+	 * Sets the distribution of the number of diagnoses of a patient.
+	 */
+	public synchronized void setDiagnoses(Distribution diagnoses) {
+		this.diagnoses = diagnoses;
+		this.resetRowCounts();
+	}
+
+}
@@ -0,0 +1,122 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding view results by the CouchDbClient, from memory so that only the
+ * JSON streaming and row binding are measured. The map rows of the
+ * RowCallback API are decoded for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ViewDecodingBenchmark {
+	
+	@Param({"1000"})
+	private int rows;
+	
+	private CouchDbClient labClient;
+	private CouchDbClient drugClient;
+	private CouchDbClient diagnosisClient;
+	
+	@Setup
+	public void setUp() {
+		this.labClient = this.getClient(BenchmarkData.getViewResult("lab", this.rows));
+		this.drugClient = this.getClient(BenchmarkData.getViewResult("drug", this.rows));
+		this.diagnosisClient = this.getClient(BenchmarkData.getViewResult("diagnosis", this.rows));
+	}
+	
+	private CouchDbClient getClient(final byte[] result) {
+		CouchDbClient client = new CouchDbClient("http://localhost:5984");
+		client.setTransport(new CouchDbTransport(){
+
+			@Override
+			public Response execute(String url, Map<String, String> headers, byte[] body) {
+				return new Response(){
+
+					@Override
+					public int getStatus() {
+						return 200;
+					}
+
+					@Override
+					public String getHeader(String name) {
+						return null;
+					}
+
+					@Override
+					public InputStream getBody() {
+						return new ByteArrayInputStream(result);
+					}
+
+					@Override
+					public void close() {
+						//
+					}
+					
+				};
+			}
+
+			@Override
+			public void close() throws IOException {
+				//
+			}
+			
+		});
+		
+		return client;
+	}
+	
+	private <R> void decode(CouchDbClient client, CouchDbClient.RowReader<R> reader, final Blackhole blackhole) {
+		client.queryView("view", null, null, reader, new CouchDbClient.RowHandler<R>(){
+
+			@Override
+			public void row(R row) {
+				blackhole.consume(row);
+			}
+			
+		});
+	}
+	
+	@Benchmark
+	public void labs(Blackhole blackhole) {
+		this.decode(this.labClient, LabRow.READER, blackhole);
+	}
+	
+	@Benchmark
+	public void drugs(Blackhole blackhole) {
+		this.decode(this.drugClient, DrugRow.READER, blackhole);
+	}
+	
+	@Benchmark
+	public void diagnoses(Blackhole blackhole) {
+		this.decode(this.diagnosisClient, DiagnosisRow.READER, blackhole);
+	}
+	
+	@Benchmark
+	public void labMaps(final Blackhole blackhole) {
+		this.labClient.queryView("view", null, null, new CouchDbClient.RowCallback(){
+
+			@Override
+			public void row(Map<String, Object> row) {
+				blackhole.consume(row);
+			}
+			
+		});
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits a Java Flight Recorder event for each view request and page of an
+ * extraction, so that they can be lined up with the GC, thread and I/O
+ * activity of a recording. Events are only built while a recording is
+ * running with them enabled (they are by default), so otherwise this costs
+ * a flag check per request or page.
+ * 
+ * Each event is begun by the start hook of its request or page, and
+ * committed with its measurement, so the event's own start time and
+ * duration cover the work.
+ * 
+ * This class needs JDK 11 or later and is built from src/jfr/java by the
+ * 'jfr' profile; it is loaded, if present, by {@link FlightRecorderMetrics}.
+ */
+public class JfrExtractionMetrics implements ExtractionMetrics {
+	
+	@Name("edu.mayo.qdm.cem.ViewQuery")
+	@Label("CouchDB View Query")
+	@Category({"QDM", "CEMDB"})
+	@Description("A single request to a CouchDB view -- one per key chunk or range.")
+	@StackTrace(false)
+	static class ViewQueryEvent extends Event {
+		
+		@Label("View")
+		String view;
+		
+		@Label("Keys")
+		@Description("The number of keys POSTed, zero for a GET")
+		int keys;
+		
+		@Label("Status")
+		@Description("The HTTP status, or -1 if no response was received")
+		int status;
+		
+		@Label("Response Size")
+		@DataAmount
+		long bytes;
+		
+		@Label("Rows")
+		int rows;
+	}
+	
+	@Name("edu.mayo.qdm.cem.PageFetch")
+	@Label("Page Fetch")
+	@Category({"QDM", "CEMDB"})
+	@Description("A page of untransformed items fetched by a pageable iterator.")
+	@StackTrace(false)
+	static class PageFetchEvent extends Event {
+		
+		@Label("Position")
+		int position;
+		
+		@Label("Page Size")
+		int size;
+	}
+	
+	@Name("edu.mayo.qdm.cem.PageAssembly")
+	@Label("Page Assembly")
+	@Category({"QDM", "CEMDB"})
+	@Description("A fetched page transformed and decorated -- for patients, their clinical data queried and bound.")
+	@StackTrace(false)
+	static class PageAssemblyEvent extends Event {
+		
+		@Label("Position")
+		int position;
+		
+		@Label("Page Size")
+		int size;
+		
+		@Label("Items Assembled")
+		int items;
+		
+		@Label("Transform Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long transform;
+		
+		@Label("Decorate Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long decorate;
+	}
+
+	/**
+	 * Begins an event, if it is enabled.
+	 *
+	 * @param event the event
+	 * @return the event, or null if it is not enabled
+	 */
+	private static Event begin(Event event) {
+		if(event.isEnabled()){
+			event.begin();
+			return event;
+		}
+		return null;
+	}
+
+	@Override
+	public Object viewStarted(String view) {
+		return begin(new ViewQueryEvent());
+	}
+
+	@Override
+	public void viewQueried(Object token, String view, int keys, int status, long bytes, int rows, long nanos) {
+		if(token instanceof ViewQueryEvent){
+			ViewQueryEvent event = (ViewQueryEvent) token;
+			event.view = view;
+			event.keys = keys;
+			event.status = status;
+			event.bytes = bytes;
+			event.rows = rows;
+			event.commit();
+		}
+	}
+
+	@Override
+	public Object pageFetchStarted(int position) {
+		return begin(new PageFetchEvent());
+	}
+
+	@Override
+	public void pageFetched(Object token, int position, int size, long nanos) {
+		if(token instanceof PageFetchEvent){
+			PageFetchEvent event = (PageFetchEvent) token;
+			event.position = position;
+			event.size = size;
+			event.commit();
+		}
+	}
+
+	@Override
+	public Object pageProcessStarted(int position) {
+		return begin(new PageAssemblyEvent());
+	}
+
+	@Override
+	public void pageProcessed(Object token, int position, int size, int items, long transformNanos, long decorateNanos) {
+		if(token instanceof PageAssemblyEvent){
+			PageAssemblyEvent event = (PageAssemblyEvent) token;
+			event.position = position;
+			event.size = size;
+			event.items = items;
+			event.transform = transformNanos;
+			event.decorate = decorateNanos;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void rowsBound(DataCategory category, int patients, int rows, long nanos) {
+		//counted by the other metrics; not worth an event
+	}
+
+}
@@ -24,7 +24,25 @@
 package edu.mayo.qdm.cem;
 
 
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.mayo.qdm.cem.dao.AdaptivePageSize;
 import edu.mayo.qdm.cem.dao.CemdbCouchDbDao;
+import edu.mayo.qdm.cem.dao.CheckpointStore;
+import edu.mayo.qdm.cem.dao.CloseableIterable;
+import edu.mayo.qdm.cem.dao.ClinicalDataCache;
+import edu.mayo.qdm.cem.dao.CodeFilter;
+import edu.mayo.qdm.cem.dao.DataCategory;
+import edu.mayo.qdm.cem.dao.DateWindow;
+import edu.mayo.qdm.cem.dao.ExtractionMetrics;
+import edu.mayo.qdm.cem.dao.KeyRange;
+import edu.mayo.qdm.cem.dao.ParallelPageProcessor;
+import edu.mayo.qdm.cem.dao.PatientChanges;
 import edu.mayo.qdm.patient.Patient;
 
 /**
@@ -32,13 +50,233 @@ import edu.mayo.qdm.patient.Patient;
  *
  * @author <a href="mailto:kevin.peterson@mayo.edu">Kevin Peterson</a>
  */
-public class CemdbPatientDataSource {
+public class CemdbPatientDataSource implements Closeable {
+	
+	private CemdbCouchDbDao cemdbCouchDbDao;
+	
+	/**
+	 * Instantiates a new data source, for the CouchDB given by the COUCHDB_URL
+	 * system property or environment variable -- or the default CouchDB.
+	 */
+	public CemdbPatientDataSource() {
+		this.cemdbCouchDbDao = new CemdbCouchDbDao();
+	}
 	
-	private CemdbCouchDbDao cemdbCouchDbDao = new CemdbCouchDbDao();
+	/**
+	 * Instantiates a new data source for the CouchDB at the given url.
+	 *
+	 * @param couchDbUrl the couch db url
+	 */
+	public CemdbPatientDataSource(String couchDbUrl) {
+		this.cemdbCouchDbDao = new CemdbCouchDbDao(couchDbUrl);
+	}
 
-	public Iterable<Patient> getPatients() {
-		Iterable<Patient> iterPatient = this.cemdbCouchDbDao.getPatients();
-		return iterPatient;
+	/**
+	 * Gets the patients. Close the result to stop any read-ahead early.
+	 *
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> getPatients() {
+		return this.cemdbCouchDbDao.getPatients();
+	}
+	
+	/**
+	 * Gets the patients with only the given categories of clinical data --
+	 * those a measure needs, for example. The views of the other categories
+	 * are not queried.
+	 *
+	 * @param categories the categories of clinical data to load
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> getPatients(Set<DataCategory> categories) {
+		return this.cemdbCouchDbDao.getPatients(KeyRange.ALL, categories);
+	}
+	
+	/**
+	 * Gets the patients of one partition, with only the given categories
+	 * of clinical data.
+	 *
+	 * @param range the range
+	 * @param categories the categories of clinical data to load
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> getPatients(KeyRange range, Set<DataCategory> categories) {
+		return this.cemdbCouchDbDao.getPatients(range, categories);
+	}
+	
+	/**
+	 * Gets the patients of one partition.
+	 *
+	 * @param range the range
+	 * @return the patients
+	 * @see #getPartitions(int)
+	 */
+	public CloseableIterable<Patient> getPatients(KeyRange range) {
+		return this.cemdbCouchDbDao.getPatients(range);
+	}
+	
+	/**
+	 * Gets the given patients.
+	 *
+	 * @param patientIds the patient ids
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> getPatients(Collection<String> patientIds) {
+		return this.cemdbCouchDbDao.getPatients(patientIds);
+	}
+	
+	/**
+	 * Gets the patients changed since the last checkpoint, for an incremental
+	 * extraction: re-extract them with {@link #getPatients(Collection)} (or
+	 * every patient, if a full extraction is required), then checkpoint.
+	 *
+	 * @param checkpointStore the checkpoint store
+	 * @return the patient changes
+	 */
+	public PatientChanges getChangedPatients(CheckpointStore checkpointStore) {
+		return this.cemdbCouchDbDao.getChangedPatients(checkpointStore);
+	}
+	
+	/**
+	 * Writes every patient to a local snapshot file.
+	 *
+	 * @param file the snapshot file
+	 * @return the number of patients written
+	 */
+	public int writeSnapshot(File file) {
+		return this.cemdbCouchDbDao.writeSnapshot(file);
+	}
+	
+	/**
+	 * Gets the patients of a snapshot written by {@link #writeSnapshot(File)},
+	 * without querying CouchDB.
+	 *
+	 * @param file the snapshot file
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> readSnapshot(File file) {
+		return this.cemdbCouchDbDao.readSnapshot(file);
+	}
+	
+	/**
+	 * Splits the patients into disjoint ranges, so that separate processes
+	 * can each extract one of them.
+	 *
+	 * @param partitions the number of partitions wanted
+	 * @return the ranges
+	 */
+	public List<KeyRange> getPartitions(int partitions) {
+		return this.cemdbCouchDbDao.getPartitions(partitions);
+	}
+	
+	/**
+	 * Hands every patient to the handler from a fork/join pool with one
+	 * thread per available processor. Patients are extracted a page at a
+	 * time on each thread, and handled in no particular order.
+	 *
+	 * @param handler the handler, called concurrently
+	 */
+	public void processPatients(ParallelPageProcessor.ItemHandler<Patient> handler) {
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			this.processPatients(pool, handler);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Hands every patient to the handler from the given fork/join pool.
+	 *
+	 * @param pool the pool
+	 * @param handler the handler, called concurrently
+	 */
+	public void processPatients(ForkJoinPool pool, ParallelPageProcessor.ItemHandler<Patient> handler) {
+		this.cemdbCouchDbDao.processPatients(pool, handler);
+	}
+	
+	/**
+	 * Sets a cache for the lab, drug and diagnosis rows of patients, kept
+	 * between extractions.
+	 *
+	 * @param clinicalDataCache the clinical data cache, or null for none
+	 * @see CemdbCouchDbDao#setClinicalDataCache(ClinicalDataCache)
+	 */
+	public void setClinicalDataCache(ClinicalDataCache clinicalDataCache) {
+		this.cemdbCouchDbDao.setClinicalDataCache(clinicalDataCache);
+	}
+	
+	/**
+	 * Sets a filter restricting the clinical data of patients to the codes
+	 * of a measure's value sets.
+	 *
+	 * @param codeFilter the code filter, or null for none
+	 * @see CemdbCouchDbDao#setCodeFilter(CodeFilter)
+	 */
+	public void setCodeFilter(CodeFilter codeFilter) {
+		this.cemdbCouchDbDao.setCodeFilter(codeFilter);
+	}
+	
+	/**
+	 * Sets a window of days -- a measurement period, say -- restricting
+	 * the labs and drugs of patients.
+	 *
+	 * @param dateWindow the date window, or null for none
+	 * @see CemdbCouchDbDao#setDateWindow(DateWindow)
+	 */
+	public void setDateWindow(DateWindow dateWindow) {
+		this.cemdbCouchDbDao.setDateWindow(dateWindow);
+	}
+	
+	/**
+	 * Sets the metrics that the view requests, pages and row binding of
+	 * extractions are reported to.
+	 *
+	 * @param extractionMetrics the extraction metrics, or null for none
+	 * @see CemdbCouchDbDao#setExtractionMetrics(ExtractionMetrics)
+	 */
+	public void setExtractionMetrics(ExtractionMetrics extractionMetrics) {
+		this.cemdbCouchDbDao.setExtractionMetrics(extractionMetrics);
+	}
+	
+	/**
+	 * Sets an adaptive page size, so that pages of patients aim at a time
+	 * or byte budget rather than a fixed size.
+	 *
+	 * @param adaptivePageSize the adaptive page size, or null for a fixed page size
+	 * @see CemdbCouchDbDao#setAdaptivePageSize(AdaptivePageSize)
+	 */
+	public void setAdaptivePageSize(AdaptivePageSize adaptivePageSize) {
+		this.cemdbCouchDbDao.setAdaptivePageSize(adaptivePageSize);
+	}
+	
+	/**
+	 * Sets a memory budget for assembling each page of patients. Pages over
+	 * it are spilled to temp files, and bound as they are consumed.
+	 *
+	 * @param pageMemoryBudget the page memory budget, in bytes, or zero for none
+	 * @see CemdbCouchDbDao#setPageMemoryBudget(long)
+	 */
+	public void setPageMemoryBudget(long pageMemoryBudget) {
+		this.cemdbCouchDbDao.setPageMemoryBudget(pageMemoryBudget);
+	}
+	
+	/**
+	 * Sets the directory that pages over the memory budget are spilled to.
+	 *
+	 * @param spillDirectory the spill directory, or null for the default temp directory
+	 * @see CemdbCouchDbDao#setSpillDirectory(File)
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.cemdbCouchDbDao.setSpillDirectory(spillDirectory);
+	}
+	
+	/**
+	 * Releases the connections and threads used to talk to CouchDB.
+	 */
+	@Override
+	public void close() {
+		this.cemdbCouchDbDao.close();
 	}
 
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An {@link AbstractPageableIterator} that pages by key instead of by offset.
+ * 
+ * Each page is requested starting at the key of the first item not yet seen,
+ * and one item more than the page size is fetched. That extra item is not
+ * returned -- its key becomes the start key of the next page. Because no
+ * offset is ever sent, every page costs the same no matter how deep into
+ * the results it is.
+ *
+ * @param <T> the generic type
+ * @param <I> the generic type
+ * @param <K> the key type
+ */
+public abstract class AbstractKeysetPageableIterator<T,I,K> extends AbstractPageableIterator<T,I> {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 4417720916553094618L;
+
+	/** The key of the first item of the next page, or null for the first page. */
+	private transient K startKey;
+	
+	private boolean isLastPage = false;
+	
+	/**
+	 * Instantiates a new abstract keyset pageable iterator.
+	 */
+	protected AbstractKeysetPageableIterator(){
+		super();
+	}
+	
+	/**
+	 * Instantiates a new abstract keyset pageable iterator.
+	 *
+	 * @param pageSize the page size
+	 */
+	protected AbstractKeysetPageableIterator(int pageSize){
+		super(pageSize);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.AbstractPageableIterator#doPage(int, int)
+	 */
+	@Override
+	protected final List<? extends I> doPage(int currentPosition, int pageSize) {
+		if(this.isLastPage){
+			return Collections.emptyList();
+		}
+		
+		List<? extends I> items = this.doKeysetPage(this.startKey, pageSize + 1);
+		
+		if(items == null || items.size() <= pageSize){
+			this.isLastPage = true;
+			
+			return items;
+		}
+		
+		this.startKey = this.getKey(items.get(pageSize));
+		
+		return items.subList(0, pageSize);
+	}
+	
+	/**
+	 * Returns at most 'limit' items, beginning with (and including) the item
+	 * at 'startKey'. A null 'startKey' requests the first page.
+	 *
+	 * @param startKey the start key
+	 * @param limit the limit
+	 * @return the list<? extends i>
+	 */
+	protected abstract List<? extends I> doKeysetPage(K startKey, int limit);
+	
+	/**
+	 * Gets the key of an item. This is used as the start key of the next page.
+	 *
+	 * @param item the item
+	 * @return the key
+	 */
+	protected abstract K getKey(I item);
+	
+}
@@ -24,10 +24,17 @@
 package edu.mayo.qdm.cem.dao;
 
 
+import java.io.Closeable;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Class AbstractPageableIterator.
@@ -36,7 +43,7 @@ import java.util.List;
  * @param <I> the generic type
  * @author <a href="mailto:kevin.peterson@mayo.edu">Kevin Peterson</a>
  */
-public abstract class AbstractPageableIterator<T,I> implements Iterator<T>, Iterable<T>, Serializable{
+public abstract class AbstractPageableIterator<T,I> implements Iterator<T>, Iterable<T>, Closeable, Serializable{
 
 	/** The Constant serialVersionUID. */
 	private static final long serialVersionUID = -5398591025205732109L;
@@ -44,8 +51,11 @@ public abstract class AbstractPageableIterator<T,I> implements Iterator<T>, Iter
 	/** The DEFAUL t_ pag e_ size. */
 	private static int DEFAULT_PAGE_SIZE = 1000;
 	
-	/** The cache. */
-	private List<? extends T> cache = new ArrayList<T>();
+	/** The cache -- the current page, a List or a {@link StreamedPage}. */
+	private Iterable<T> cache = new ArrayList<T>();
+	
+	/** The items of the cache not yet returned. */
+	private transient Iterator<T> cacheItems;
 	
 	/** The page size. */
 	private int pageSize;
@@ -56,11 +66,32 @@ public abstract class AbstractPageableIterator<T,I> implements Iterator<T>, Iter
 	/** The in cache position. */
 	private int inCachePosition = 0;
 	
+	/** The position of the first item of the next page to be fetched. */
+	private int fetchPosition = 0;
+	
+	/** The number of pages to read ahead of the consumer. Zero disables prefetching. */
+	private int prefetchDepth = 0;
+	
+	/** Pages fetched ahead of the consumer, bounded by 'prefetchDepth'. */
+	private transient BlockingQueue<PrefetchedPage<T>> prefetched;
+	
+	private transient Thread prefetchThread;
+	
+	private transient volatile boolean isClosed = false;
+	
+	private boolean isPrefetchExhausted = false;
+	
 	/** The pager. */
 	private Pager<T,I> pager;
 
 	private boolean isExhausted = false;
 	
+	/** Where the time of each page goes. */
+	private transient ExtractionMetrics extractionMetrics;
+	
+	/** Sizes the pages by their cost, if set. */
+	private AdaptivePageSize adaptivePageSize;
+	
 	/**
 	 * Instantiates a new abstract pageable iterator.
 	 */
@@ -98,14 +129,7 @@ public abstract class AbstractPageableIterator<T,I> implements Iterator<T>, Iter
 		
 		pageIfNecessary();
 		
-		if(cache == null || cache.size() == 0) {
-			isExhausted = true;
-			return false;
-		}
-		
-		int cacheSize = cache.size();
-		
-		boolean hasNext = inCachePosition < cacheSize;
+		boolean hasNext = cacheItems.hasNext();
 		
 		isExhausted = !hasNext;
 		
@@ -120,7 +144,7 @@ public abstract class AbstractPageableIterator<T,I> implements Iterator<T>, Iter
 	public T next() {
 		pageIfNecessary();
 		
-		T returnItem = cache.get( inCachePosition );
+		T returnItem = cacheItems.next();
 		
 		globalPosition++;
 		inCachePosition++;
@@ -161,50 +185,484 @@ public abstract class AbstractPageableIterator<T,I> implements Iterator<T>, Iter
 	 * @return true, if is page needed
 	 */
 	protected boolean isPageNeeded() {
-		boolean page = inCachePosition > ( cache.size() - 1 );
+		boolean page = cacheItems == null || ! cacheItems.hasNext();
 		return page;
 	}
 	
 	/**
-	 * Page.
+	 * Page. A Closeable page moved on from is closed.
 	 */
 	protected final void page() {
-		cache = doExecutePage();
+		closePage(cache);
+		
+		if(this.prefetchDepth > 0){
+			cache = this.takePrefetchedPage();
+		} else {
+			cache = doExecutePage();
+		}
 
+		cacheItems = cache.iterator();
 		inCachePosition = 0;
 	}
 	
 	/**
-	 * Do execute page.
+	 * Do execute page. Pages the decorator drops every item of are skipped,
+	 * so an empty page is only returned once the fetch itself is empty.
 	 * 
-	 * @return the list<? extends t>
+	 * @return the page, a List or a {@link StreamedPage}
 	 */
-	protected List<T> doExecutePage(){
+	protected Iterable<T> doExecutePage(){
+		while(true){
+			int position = fetchPosition;
+			long start = System.nanoTime();
+			
+			List<? extends I> fetched = this.fetchPage();
+			
+			Iterable<T> page = this.processPage(position, fetched, System.nanoTime() - start);
+			
+			if(sizeOf(page) > 0 || fetched == null || fetched.isEmpty()){
+				return page;
+			}
+			
+			closePage(page);
+		}
+	}
+	
+	/**
+	 * Fetches the next page of untransformed items.
+	 *
+	 * @return the page, or null if the results are exhausted
+	 */
+	private List<? extends I> fetchPage(){
+		Object token = this.getExtractionMetrics().pageFetchStarted(fetchPosition);
+		long start = System.nanoTime();
+		
 		List<? extends I> page;
 		try {
-			page = this.pager.doPage(this, globalPosition, pageSize);
+			page = this.pager.doPage(this, fetchPosition, this.getNextPageSize());
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 		
-		List<T> transformedList = new ArrayList<T>();
+		int size = page == null ? 0 : page.size();
+		this.getExtractionMetrics().pageFetched(token, fetchPosition, size, System.nanoTime() - start);
+		
+		fetchPosition += size;
+		
+		return page;
+	}
+	
+	/**
+	 * Transforms and decorates a fetched page.
+	 *
+	 * @param position the position of the first item of the page
+	 * @param page the page
+	 * @param fetchNanos the time taken to fetch the page
+	 * @return the page, a List or a {@link StreamedPage}
+	 */
+	private Iterable<T> processPage(int position, List<? extends I> page, long fetchNanos){
+		if(page == null){
+			return Collections.emptyList();
+		}
+		
+		Object token = this.getExtractionMetrics().pageProcessStarted(position);
+		long start = System.nanoTime();
+		
+		List<T> transformedList = new ArrayList<T>(page.size());
 		for(I item : page){
 			transformedList.add(this.transform(item));
 		}
+		
+		long transformed = System.nanoTime();
 
-		return this.decoratePage(transformedList);
+		Iterable<T> decorated = this.decoratePage(transformedList);
+		
+		long end = System.nanoTime();
+		
+		this.getExtractionMetrics().pageProcessed(token, position, page.size(), sizeOf(decorated), 
+				transformed - start, end - transformed);
+		
+		AdaptivePageSize sizing = this.adaptivePageSize;
+		if(sizing != null){
+			sizing.recordTime(page.size(), fetchNanos + end - start);
+		}
+		
+		return decorated;
+	}
+	
+	/**
+	 * Claims the next whole page of items, for consumers that split the work
+	 * across threads. Any items of the current page not yet returned by
+	 * {@link #next()} come first.
+	 * 
+	 * This is the only method that may be called concurrently. Only the fetch
+	 * is serialized -- the page is transformed and decorated on the calling
+	 * thread, so several callers decorate their pages at the same time. With
+	 * prefetching, the pages are instead taken one at a time from the
+	 * prefetch thread, so concurrent callers should set a depth of zero.
+	 * 
+	 * The page is a List, or a {@link StreamedPage} to be read once, in
+	 * order. A page that is Closeable -- one spilled to disk, say -- is the
+	 * caller's to close once handled.
+	 *
+	 * @return the page, or an empty list if the results are exhausted
+	 */
+	public Iterable<T> nextPage() {
+		while(true){
+			List<? extends I> fetched;
+			int position;
+			long fetchNanos;
+			
+			synchronized(this){
+				if(cacheItems != null && cacheItems.hasNext()){
+					Iterable<T> remaining = this.handOverCache();
+					
+					globalPosition += sizeOf(remaining);
+					
+					return remaining;
+				}
+				
+				if(isExhausted){
+					return Collections.emptyList();
+				}
+				
+				if(this.prefetchDepth > 0){
+					//only empty once the fetch was -- see doExecutePage
+					Iterable<T> page = this.takePrefetchedPage();
+					
+					globalPosition += sizeOf(page);
+					isExhausted = sizeOf(page) == 0;
+					
+					return page;
+				}
+				
+				position = fetchPosition;
+				long start = System.nanoTime();
+				fetched = this.fetchPage();
+				fetchNanos = System.nanoTime() - start;
+				
+				if(fetched == null || fetched.isEmpty()){
+					isExhausted = true;
+					
+					return Collections.emptyList();
+				}
+			}
+			
+			Iterable<T> page = this.processPage(position, fetched, fetchNanos);
+			
+			//a decorator may drop every item of a page -- that is not the end
+			if(sizeOf(page) > 0){
+				synchronized(this){
+					globalPosition += sizeOf(page);
+				}
+				
+				return page;
+			}
+			
+			closePage(page);
+		}
+	}
+	
+	/**
+	 * Hands the items of the current page not yet returned by {@link #next()}
+	 * over to the caller, without copying them. A streamed page, or a
+	 * Closeable one partly read, is handed over as a {@link StreamedPage}
+	 * that closes it.
+	 *
+	 * @return the remaining items
+	 */
+	private Iterable<T> handOverCache() {
+		Iterable<T> remaining;
+		if(cache instanceof List && inCachePosition == 0){
+			remaining = cache;
+		} else if(cache instanceof List && ! (cache instanceof Closeable)){
+			List<T> list = (List<T>) cache;
+			remaining = list.subList(inCachePosition, list.size());
+		} else {
+			//a streamed page has already handed out its one iterator
+			remaining = new RemainingPage<T>(cache, cacheItems, sizeOf(cache) - inCachePosition);
+		}
+		
+		cache = new ArrayList<T>();
+		cacheItems = cache.iterator();
+		inCachePosition = 0;
+		
+		return remaining;
+	}
+	
+	/**
+	 * Takes the next page from the read-ahead queue, starting the
+	 * prefetch thread on first use.
+	 *
+	 * @return the page, a List or a {@link StreamedPage}
+	 */
+	private Iterable<T> takePrefetchedPage() {
+		if(this.isPrefetchExhausted){
+			return Collections.emptyList();
+		}
+		
+		if(this.prefetchThread == null){
+			this.prefetched = new ArrayBlockingQueue<PrefetchedPage<T>>(this.prefetchDepth);
+			this.prefetchThread = new Thread(new PrefetchTask<T>(this, this.prefetched), getClass().getName() + "-prefetch");
+			this.prefetchThread.setDaemon(true);
+			this.prefetchThread.start();
+		}
+		
+		PrefetchedPage<T> page;
+		try {
+			page = this.prefetched.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		
+		if(page.error != null){
+			this.isPrefetchExhausted = true;
+			if(page.error instanceof RuntimeException){
+				throw (RuntimeException) page.error;
+			}
+			throw new RuntimeException(page.error);
+		}
+		
+		if(sizeOf(page.items) == 0){
+			this.isPrefetchExhausted = true;
+		}
+		
+		return page.items;
+	}
+	
+	/**
+	 * Stops any read-ahead in progress, and closes the current page and the
+	 * pages read ahead, if Closeable. Iterating after a close is not supported.
+	 */
+	@Override
+	public void close() {
+		this.isClosed = true;
+		
+		if(this.prefetchThread != null){
+			this.prefetchThread.interrupt();
+		}
+		
+		closePage(this.cache);
+		if(this.prefetched != null){
+			closePages(this.prefetched);
+		}
+	}
+	
+	/**
+	 * Gets the number of items of a page.
+	 *
+	 * @param page the page, a Collection or a {@link StreamedPage}
+	 * @return the size
+	 */
+	static int sizeOf(Iterable<?> page) {
+		if(page instanceof Collection){
+			return ((Collection<?>) page).size();
+		}
+		if(page instanceof StreamedPage){
+			return ((StreamedPage<?>) page).size();
+		}
+		throw new IllegalArgumentException("A page must be a Collection or a StreamedPage: " + page.getClass());
+	}
+	
+	/**
+	 * Closes a page, if it is Closeable.
+	 *
+	 * @param page the page
+	 */
+	private static void closePage(Iterable<?> page) {
+		if(page instanceof Closeable){
+			CouchDbClient.closeQuietly((Closeable) page);
+		}
+	}
+	
+	/**
+	 * Removes the pages read ahead from the queue, closing them.
+	 *
+	 * @param prefetched the queue
+	 */
+	private static void closePages(BlockingQueue<? extends PrefetchedPage<?>> prefetched) {
+		PrefetchedPage<?> page;
+		while((page = prefetched.poll()) != null){
+			closePage(page.items);
+		}
+	}
+	
+	/**
+	 * A page produced by the prefetch thread -- either the items, or the
+	 * error that stopped the thread.
+	 *
+	 * @param <T> the generic type
+	 */
+	private static class PrefetchedPage<T> {
+		
+		private Iterable<T> items;
+		private Throwable error;
+		
+		private PrefetchedPage(Iterable<T> items, Throwable error) {
+			super();
+			this.items = items;
+			this.error = error;
+		}
+	}
+	
+	/**
+	 * Fetches, transforms and decorates pages ahead of the consumer until the
+	 * results are exhausted, an error occurs, or the iterator is closed. The
+	 * bounded queue blocks the thread once 'prefetchDepth' pages are waiting.
+	 * 
+	 * The iterator is only weakly held between pages, so a consumer that
+	 * stops iterating without closing it does not keep it (or the thread)
+	 * alive: once it is collected, the thread stops and its pages go too.
+	 * The pages left unread when the thread stops are closed, if Closeable.
+	 *
+	 * @param <T> the generic type
+	 */
+	private static class PrefetchTask<T> implements Runnable {
+		
+		private final WeakReference<AbstractPageableIterator<T,?>> iterator;
+		private final BlockingQueue<PrefetchedPage<T>> prefetched;
+		
+		private PrefetchTask(AbstractPageableIterator<T,?> iterator, BlockingQueue<PrefetchedPage<T>> prefetched) {
+			super();
+			this.iterator = new WeakReference<AbstractPageableIterator<T,?>>(iterator);
+			this.prefetched = prefetched;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Iterable<T> page;
+				do {
+					AbstractPageableIterator<T,?> itr = this.iterator.get();
+					if(itr == null || itr.isClosed){
+						return;
+					}
+					
+					try {
+						page = itr.doExecutePage();
+					} catch (Throwable e) {
+						itr = null;
+						this.put(new PrefetchedPage<T>(null, e));
+						return;
+					}
+					itr = null;
+					
+					if(! this.put(new PrefetchedPage<T>(page, null))){
+						closePage(page);
+						return;
+					}
+				} while(sizeOf(page) > 0);
+			} finally {
+				//a close may have drained the queue before the last put
+				if(! this.isConsumed()){
+					closePages(this.prefetched);
+				}
+			}
+		}
+		
+		private boolean put(PrefetchedPage<T> page) {
+			try {
+				while(this.isConsumed()){
+					if(this.prefetched.offer(page, 100, TimeUnit.MILLISECONDS)){
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				//closed
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Checks if anyone is still reading the pages.
+		 *
+		 * @return true, if the iterator is neither closed nor collected
+		 */
+		private boolean isConsumed() {
+			AbstractPageableIterator<T,?> itr = this.iterator.get();
+			
+			return itr != null && !itr.isClosed;
+		}
 	}
 	
 	/**
 	 * Allow subclasses to decorate an entire page at at time.
 	 *
 	 * @param page the page
-	 * @return the list<? extends i>
+	 * @return the page, a List or a {@link StreamedPage}
 	 */
-	protected List<T> decoratePage(List<T> page) {
+	protected Iterable<T> decoratePage(List<T> page) {
 		return page;
 	}
 	
+	/**
+	 * A page that is not held in memory -- one spilled to disk, say -- and
+	 * so is read once, in order, by a single call to iterator(). It is
+	 * closed once read, or abandoned.
+	 *
+	 * @param <T> the generic type
+	 */
+	public interface StreamedPage<T> extends Iterable<T>, Closeable {
+		
+		/**
+		 * Gets the number of items on the page.
+		 *
+		 * @return the size
+		 */
+		public int size();
+		
+		/**
+		 * Releases the page. The items not yet reached can no longer be read.
+		 */
+		@Override
+		public void close();
+		
+	}
+	
+	/**
+	 * The items of a page not yet read, handed over by {@link #nextPage()}.
+	 * Closing it closes the page.
+	 *
+	 * @param <T> the generic type
+	 */
+	private static class RemainingPage<T> implements StreamedPage<T> {
+		
+		private final Iterable<T> page;
+		private Iterator<T> items;
+		private final int size;
+		
+		private RemainingPage(Iterable<T> page, Iterator<T> items, int size) {
+			super();
+			this.page = page;
+			this.items = items;
+			this.size = size;
+		}
+
+		@Override
+		public synchronized Iterator<T> iterator() {
+			if(this.items == null){
+				throw new IllegalStateException("The rest of a page is read once.");
+			}
+			Iterator<T> itr = this.items;
+			this.items = null;
+			
+			return itr;
+		}
+
+		@Override
+		public int size() {
+			return this.size;
+		}
+
+		@Override
+		public void close() {
+			closePage(this.page);
+		}
+		
+	}
+	
 	/**
 	 * Returns a page of results.
 	 * 
@@ -267,6 +725,80 @@ public abstract class AbstractPageableIterator<T,I> implements Iterator<T>, Iter
 		return pageSize;
 	}
 
+	/**
+	 * Gets the size of the next page to fetch -- from the adaptive page size,
+	 * if one is set.
+	 *
+	 * @return the page size
+	 */
+	private int getNextPageSize() {
+		AdaptivePageSize sizing = this.adaptivePageSize;
+		
+		return sizing == null ? pageSize : sizing.getPageSize();
+	}
+
+	/**
+	 * Sets the adaptive page size, which then replaces the fixed page size
+	 * and is told the time taken by each page. Null reverts to the fixed size.
+	 *
+	 * @param adaptivePageSize the adaptive page size, or null
+	 */
+	public void setAdaptivePageSize(AdaptivePageSize adaptivePageSize) {
+		this.adaptivePageSize = adaptivePageSize;
+	}
+
+	/**
+	 * Gets the adaptive page size.
+	 *
+	 * @return the adaptive page size, or null if the page size is fixed
+	 */
+	public AdaptivePageSize getAdaptivePageSize() {
+		return adaptivePageSize;
+	}
+
+	/**
+	 * Sets the number of pages to fetch ahead of the consumer on a background
+	 * thread. Each prefetched page is fetched, transformed and decorated while
+	 * the current page is being consumed, so at most 'prefetchDepth' + 2 pages
+	 * are held in memory. Must be set before iteration begins.
+	 *
+	 * @param prefetchDepth the prefetch depth, or zero to page synchronously
+	 */
+	public void setPrefetchDepth(int prefetchDepth) {
+		if(this.prefetchThread != null){
+			throw new IllegalStateException("Prefetching has already started.");
+		}
+		this.prefetchDepth = prefetchDepth;
+	}
+
+	/**
+	 * Gets the prefetch depth.
+	 *
+	 * @return the prefetch depth
+	 */
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	/**
+	 * Sets the metrics that the fetch, transform and decorate time of
+	 * each page is reported to.
+	 *
+	 * @param extractionMetrics the extraction metrics, or null for none
+	 */
+	public void setExtractionMetrics(ExtractionMetrics extractionMetrics) {
+		this.extractionMetrics = extractionMetrics;
+	}
+
+	/**
+	 * Gets the extraction metrics.
+	 *
+	 * @return the extraction metrics, never null
+	 */
+	public ExtractionMetrics getExtractionMetrics() {
+		return extractionMetrics == null ? ExtractionMetrics.NONE : extractionMetrics;
+	}
+
 	/**
 	 * Gets the global position.
 	 * 
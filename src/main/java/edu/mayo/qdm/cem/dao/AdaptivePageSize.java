@@ -0,0 +1,203 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.Serializable;
+
+/**
+ * Sizes pages by what recent pages cost, rather than a fixed number of
+ * items. A page of patients with few clinical events is cheap, while one
+ * with a few very large patients can take minutes and hold hundreds of
+ * megabytes -- so the page size is chosen to fit a time budget, a byte
+ * budget, or both, between a minimum and maximum page size.
+ * <p>
+ * The time and bytes per item are moving averages over the recent pages,
+ * weighted towards the latest. The time of a page is the time to fetch,
+ * transform and decorate it, reported by {@link AbstractPageableIterator};
+ * its bytes are the estimated heap of the clinical rows queried for it,
+ * reported by the decorators of {@link CemdbCouchDbDao}. Paging starts at
+ * the minimum page size. The next page may at most double the size of the
+ * last one measured, but shrinks at once when a page goes over budget.
+ * <p>
+ * An instance learns from every iterator it is set on, and may be shared
+ * by concurrent iterators over the same data. With prefetching, the pages
+ * already read ahead are sized before the latest page is measured.
+ */
+public class AdaptivePageSize implements Serializable {
+
+	private static final long serialVersionUID = -2203871196472415563L;
+
+	//the weight of the latest page in the averages
+	private static final double WEIGHT = 0.3;
+
+	private static final int MAX_GROWTH = 2;
+
+	private final int minPageSize;
+	private final int maxPageSize;
+
+	private final long targetNanos;
+	private final long targetBytes;
+
+	private double nanosPerItem = -1;
+	private double bytesPerItem = -1;
+
+	private int pageSize;
+
+	/**
+	 * Instantiates a new adaptive page size.
+	 *
+	 * @param minPageSize the smallest page size
+	 * @param maxPageSize the largest page size
+	 * @param targetMillis the time to aim for per page, or zero for none
+	 * @param targetBytes the estimated heap to aim for per page, or zero for none
+	 */
+	public AdaptivePageSize(int minPageSize, int maxPageSize, long targetMillis, long targetBytes) {
+		super();
+		if(minPageSize < 1 || maxPageSize < minPageSize){
+			throw new IllegalArgumentException("Invalid page size bounds: " + minPageSize + " - " + maxPageSize);
+		}
+		if(targetMillis < 0 || targetBytes < 0 || (targetMillis == 0 && targetBytes == 0)){
+			throw new IllegalArgumentException("A time or byte target is required.");
+		}
+
+		this.minPageSize = minPageSize;
+		this.maxPageSize = maxPageSize;
+		this.targetNanos = targetMillis * 1000000L;
+		this.targetBytes = targetBytes;
+		this.pageSize = minPageSize;
+	}
+
+	/**
+	 * Gets the size of the next page.
+	 *
+	 * @return the page size
+	 */
+	public synchronized int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Records the time taken by a page.
+	 *
+	 * @param items the items of the page
+	 * @param nanos the time to fetch, transform and decorate it
+	 */
+	public synchronized void recordTime(int items, long nanos) {
+		if(items > 0 && this.targetNanos > 0){
+			this.nanosPerItem = average(this.nanosPerItem, (double) nanos / items);
+			this.pageSize = this.computePageSize(items);
+		}
+	}
+
+	/**
+	 * Records the estimated heap taken by a page.
+	 *
+	 * @param items the items of the page
+	 * @param bytes the estimated size, in bytes
+	 */
+	public synchronized void recordBytes(int items, long bytes) {
+		if(items > 0 && this.targetBytes > 0){
+			this.bytesPerItem = average(this.bytesPerItem, (double) bytes / items);
+			this.pageSize = this.computePageSize(items);
+		}
+	}
+
+	/**
+	 * Computes the page size that fits the targets, given the current averages.
+	 *
+	 * @param lastPageSize the size of the page just measured
+	 * @return the page size
+	 */
+	private int computePageSize(int lastPageSize) {
+		double size = Math.min(this.maxPageSize, (double) lastPageSize * MAX_GROWTH);
+
+		if(this.nanosPerItem > 0){
+			size = Math.min(size, this.targetNanos / this.nanosPerItem);
+		}
+		if(this.bytesPerItem > 0){
+			size = Math.min(size, this.targetBytes / this.bytesPerItem);
+		}
+
+		return Math.max(this.minPageSize, (int) size);
+	}
+
+	private static double average(double average, double value) {
+		return average < 0 ? value : average + WEIGHT * (value - average);
+	}
+
+	/**
+	 * Checks if the estimated heap of each page is to be recorded.
+	 *
+	 * @return true, if there is a byte target
+	 */
+	public boolean isByteTargeted() {
+		return targetBytes > 0;
+	}
+
+	/**
+	 * Gets the smallest page size.
+	 *
+	 * @return the min page size
+	 */
+	public int getMinPageSize() {
+		return minPageSize;
+	}
+
+	/**
+	 * Gets the largest page size.
+	 *
+	 * @return the max page size
+	 */
+	public int getMaxPageSize() {
+		return maxPageSize;
+	}
+
+	/**
+	 * Gets the average time per item, or -1 if none has been recorded.
+	 *
+	 * @return the nanos per item
+	 */
+	public synchronized double getNanosPerItem() {
+		return nanosPerItem;
+	}
+
+	/**
+	 * Gets the average estimated heap per item, or -1 if none has been recorded.
+	 *
+	 * @return the bytes per item
+	 */
+	public synchronized double getBytesPerItem() {
+		return bytesPerItem;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return "AdaptivePageSize [pageSize=" + pageSize + ", nanosPerItem=" + (long) nanosPerItem +
+				", bytesPerItem=" + (long) bytesPerItem + "]";
+	}
+
+}
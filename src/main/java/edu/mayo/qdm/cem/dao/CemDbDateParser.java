@@ -0,0 +1,284 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * A thread-safe parser for the fixed-width CEMDB date formats -- 'yyyyMMdd'
+ * and 'yyyyMMddhhmm' (any trailing characters, such as seconds, are ignored).
+ * 
+ * Digits are converted arithmetically and the time zone offset of each day is
+ * cached, so parsing does not allocate beyond the resulting {@link Date}. For
+ * input of exactly the pattern's width, results match a lenient
+ * {@link java.text.SimpleDateFormat} using the same patterns, including the
+ * 12-hour 'hh' field, where an hour of 12 means midnight. Unlike
+ * SimpleDateFormat, the last field never absorbs trailing digits -- the minutes
+ * of '20110224111900' are 19, not 1900.
+ * 
+ * Malformed input does not throw: the millis methods return {@link #INVALID}
+ * and the Date methods return null.
+ */
+public final class CemDbDateParser {
+	
+	/** Returned by the millis methods for malformed input. */
+	public final static long INVALID = Long.MIN_VALUE;
+	
+	private final static int DATE_LENGTH = 8;
+	private final static int DATE_TIME_LENGTH = 12;
+	
+	private final static long MILLIS_PER_MINUTE = 60 * 1000L;
+	private final static long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+	private final static long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+	
+	/** Offsets are cached for days from 1900-01-01 through 2099-12-31. */
+	private final static int FIRST_CACHED_DAY = (int) epochDay(1900, 1, 1);
+	private final static int LAST_CACHED_DAY = (int) epochDay(2100, 1, 1) - 1;
+	
+	/** Marks a day not yet cached, or whose offset changes during the day. */
+	private final static int NO_OFFSET = Integer.MIN_VALUE;
+	
+	private final TimeZone timeZone;
+	
+	/** 
+	 * The zone offset of each day, when constant throughout the day. Races
+	 * between threads are benign -- each writes the same value.
+	 */
+	private final int[] dayOffsets = new int[LAST_CACHED_DAY - FIRST_CACHED_DAY + 1];
+	
+	private final ThreadLocal<Calendar> calendar = new ThreadLocal<Calendar>(){
+		@Override
+		protected Calendar initialValue() {
+			Calendar calendar = new GregorianCalendar(timeZone);
+			calendar.setLenient(true);
+			
+			return calendar;
+		}
+	};
+	
+	/**
+	 * Instantiates a new parser for the default time zone.
+	 */
+	public CemDbDateParser() {
+		this(TimeZone.getDefault());
+	}
+	
+	/**
+	 * Instantiates a new parser.
+	 *
+	 * @param timeZone the time zone dates are local to
+	 */
+	public CemDbDateParser(TimeZone timeZone) {
+		super();
+		this.timeZone = (TimeZone) timeZone.clone();
+		
+		for(int i=0;i<this.dayOffsets.length;i++){
+			this.dayOffsets[i] = NO_OFFSET;
+		}
+	}
+	
+	/**
+	 * Parses a 'yyyyMMdd' date.
+	 *
+	 * @param text the text
+	 * @return the date, or null if malformed
+	 */
+	public Date parseDate(CharSequence text) {
+		return toDate(this.parseDateMillis(text));
+	}
+	
+	/**
+	 * Parses a 'yyyyMMddhhmm' date.
+	 *
+	 * @param text the text
+	 * @return the date, or null if malformed
+	 */
+	public Date parseDateTime(CharSequence text) {
+		return toDate(this.parseDateTimeMillis(text));
+	}
+	
+	/**
+	 * Parses a 'yyyyMMdd' date.
+	 *
+	 * @param text the text
+	 * @return the millis, or {@link #INVALID} if malformed
+	 */
+	public long parseDateMillis(CharSequence text) {
+		if(text == null || text.length() < DATE_LENGTH){
+			return INVALID;
+		}
+		
+		int year = digits(text, 0, 4);
+		int month = digits(text, 4, 2);
+		int day = digits(text, 6, 2);
+		
+		if(year < 0 || month < 0 || day < 0){
+			return INVALID;
+		}
+		
+		return this.toMillis(year, month, day, 0, 0);
+	}
+	
+	/**
+	 * Parses a 'yyyyMMddhhmm' date.
+	 *
+	 * @param text the text
+	 * @return the millis, or {@link #INVALID} if malformed
+	 */
+	public long parseDateTimeMillis(CharSequence text) {
+		if(text == null || text.length() < DATE_TIME_LENGTH){
+			return INVALID;
+		}
+		
+		int year = digits(text, 0, 4);
+		int month = digits(text, 4, 2);
+		int day = digits(text, 6, 2);
+		int hour = digits(text, 8, 2);
+		int minute = digits(text, 10, 2);
+		
+		if(year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0){
+			return INVALID;
+		}
+		
+		// 'hh' is the 1-12 hour of the (AM) half day, so 12 is midnight
+		if(hour == 12){
+			hour = 0;
+		}
+		
+		return this.toMillis(year, month, day, hour, minute);
+	}
+	
+	/**
+	 * Converts local date fields to millis. Out of range fields roll over,
+	 * as they would in a lenient calendar.
+	 */
+	private long toMillis(int year, int month, int day, int hour, int minute) {
+		year += floorDiv(month - 1, 12);
+		month = floorMod(month - 1, 12) + 1;
+		
+		long epochDay = epochDay(year, month, 1) + day - 1;
+		long localMillis = epochDay * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR + minute * MILLIS_PER_MINUTE;
+		
+		// the day the time actually falls on, after any rollover of the hour
+		long actualDay = floorDiv(localMillis, MILLIS_PER_DAY);
+		
+		if(actualDay >= FIRST_CACHED_DAY && actualDay <= LAST_CACHED_DAY){
+			int index = (int) (actualDay - FIRST_CACHED_DAY);
+			
+			int offset = this.dayOffsets[index];
+			if(offset == NO_OFFSET){
+				offset = this.getDayOffset(actualDay);
+				this.dayOffsets[index] = offset;
+			}
+			if(offset != NO_OFFSET){
+				return localMillis - offset;
+			}
+		}
+		
+		return this.calendarMillis(year, month, day, hour, minute);
+	}
+	
+	/**
+	 * Gets the zone offset of a day if it is the same throughout the day.
+	 *
+	 * @param epochDay the epoch day
+	 * @return the offset, or {@link #NO_OFFSET} if it changes during the day
+	 */
+	private int getDayOffset(long epochDay) {
+		long localStart = epochDay * MILLIS_PER_DAY;
+		
+		int startOffset = this.timeZone.getOffset(localStart - this.timeZone.getRawOffset());
+		int verified = this.timeZone.getOffset(localStart - startOffset);
+		int endOffset = this.timeZone.getOffset(localStart + MILLIS_PER_DAY - 1 - startOffset);
+		
+		if(startOffset == verified && startOffset == endOffset){
+			return startOffset;
+		}
+		
+		return NO_OFFSET;
+	}
+	
+	/**
+	 * Resolves a local time with a calendar. Only used for days on which
+	 * the zone offset changes, or outside of the cached range.
+	 */
+	private long calendarMillis(int year, int month, int day, int hour, int minute) {
+		Calendar calendar = this.calendar.get();
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute);
+		
+		return calendar.getTimeInMillis();
+	}
+	
+	/**
+	 * Parses a run of ASCII digits.
+	 *
+	 * @return the value, or -1 if a character is not a digit
+	 */
+	private static int digits(CharSequence text, int start, int length) {
+		int value = 0;
+		for(int i=start;i<start + length;i++){
+			int digit = text.charAt(i) - '0';
+			if(digit < 0 || digit > 9){
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		
+		return value;
+	}
+	
+	/**
+	 * Days since 1970-01-01 of a proleptic Gregorian date.
+	 */
+	private static long epochDay(long year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		
+		return era * 146097 + dayOfEra - 719468;
+	}
+	
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if((x % y != 0) && ((x ^ y) < 0)){
+			q--;
+		}
+		return q;
+	}
+	
+	private static int floorMod(int x, int y) {
+		return (int) (x - floorDiv(x, y) * y);
+	}
+	
+	private static Date toDate(long millis) {
+		return millis == INVALID ? null : new Date(millis);
+	}
+
+}
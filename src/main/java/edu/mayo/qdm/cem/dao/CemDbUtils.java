@@ -33,9 +33,16 @@ import java.text.SimpleDateFormat;
  */
 public final class CemDbUtils {
 	//20110224111900
+	/** @deprecated not thread-safe -- use {@link #CEMDB_DATE_PARSER}. */
+	@Deprecated
 	public final static DateFormat CEMDB_DATE_FORMAT1 = new SimpleDateFormat("yyyyMMdd");
+	/** @deprecated not thread-safe -- use {@link #CEMDB_DATE_PARSER}. */
+	@Deprecated
 	public final static DateFormat CEMDB_DATE_FORMAT2 = new SimpleDateFormat("yyyyMMddhhmm");
 	
+	/** Parses both CEMDB date formats, and may be shared between threads. */
+	public final static CemDbDateParser CEMDB_DATE_PARSER = new CemDbDateParser();
+	
 	public final static String LOINC = "LOINC";
 	public final static String RXNORM = "RxNorm";
 	public final static String ICD10CM = "ICD-10-CM";
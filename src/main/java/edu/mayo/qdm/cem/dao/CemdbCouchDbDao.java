@@ -27,9 +27,12 @@ import edu.mayo.qdm.patient.*;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.log4j.Logger;
 
-import java.text.ParseException;
+import java.io.Closeable;
+import java.io.File;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The main CouchDB client to the CEM DB.
@@ -37,37 +40,126 @@ import java.util.Map.Entry;
  * @author <a href="mailto:kevin.peterson@mayo.edu">Kevin Peterson</a>
  */
 @SuppressWarnings("unchecked")
-public class CemdbCouchDbDao {
+public class CemdbCouchDbDao implements Closeable {
 	
 	protected final Logger log = Logger.getLogger(getClass());
 	
 	private CouchDbClient couchDbClient;
+	
+	private final ClinicalRowQuery rowQuery;
+	
+	private final PatientChangesReader changesReader;
+	
+	private final PatientSnapshots snapshots = new PatientSnapshots(this);
 
-    private final static String DRUG_BY_PATIENT_ID_VIEW = 
-    		"secondaryusenoteddrug/_design/drug_by_patient_id/_view/drug_by_patient_id";
+    private final static String ALL_PATIENTS_VIEW = 
+    		"secondaryusepatient2/_design/all_patients/_view/all_patients";
     
-    private final static String LAB_BY_PATIENT_ID_VIEW = 
-    		"secondaryusestandardlab/_design/lab_by_patient_id/_view/lab_by_patient_id";
+    private final static String PATIENT_TIMELINE_VIEW = 
+    		"patienttimeline/_design/patient_timeline/_view/patient_timeline";
     
-    private final static String DIAGNOSIS_BY_PATIENT_ID_VIEW = 
-    		"administrativediagnosis/_design/diagnosis_by_patient_id/_view/diagnosis_by_patient_id";
+    //diagnoses have no dates in the view, so a fixed range is used
+    private final static long DIAGNOSIS_STARTING_DATE = 
+    		CemDbUtils.CEMDB_DATE_PARSER.parseDateTimeMillis("20030224111900");
+    private final static long DIAGNOSIS_ENDING_DATE = 
+    		CemDbUtils.CEMDB_DATE_PARSER.parseDateTimeMillis("20110224111900");
     
-    private final static String ALL_PATIENTS_VIEW = 
-    		"secondaryusepatient2/_design/all_patients/_view/all_patients";
+    private final CouchDbIterator.Transformer<Patient,PatientRow> patientTransformer = new PatientTransformer();
+    
+    private int prefetchDepth = 0;
+    
+    private ExtractionMode extractionMode = ExtractionMode.VIEW_PER_CATEGORY;
+    
+    private String patientTimelineView = PATIENT_TIMELINE_VIEW;
+    
+    private int timelineRowsPerRequest = PatientTimelineIterator.DEFAULT_ROWS_PER_REQUEST;
+    
+    private volatile CodeFilter codeFilter;
+    
+    private volatile DateWindow dateWindow;
+    
+    private volatile ExtractionMetrics extractionMetrics = ExtractionMetrics.NONE;
+    
+    private volatile AdaptivePageSize adaptivePageSize;
     
-    private final CouchDbIterator.Transformer<Patient> patientTransformer = new PatientTransformer();
+    private volatile long pageMemoryBudget = 0;
+    
+    //shrinks the pages to the memory budget, if no adaptive page size is set
+    private volatile AdaptivePageSize budgetPageSize;
+    
+    private volatile File spillDirectory;
+    
+    private final static int MIN_BUDGETED_PAGE_SIZE = 10;
+    private final static int MAX_BUDGETED_PAGE_SIZE = 1000;
+    
+    //what is actually reported to: the metrics set, plus JFR events where available
+    private volatile ExtractionMetrics reportedMetrics = FlightRecorderMetrics.getInstance();
+    
+    private final static String REDUCE_PARAM = "reduce";
+    private final static String LIMIT_PARAM = "limit";
+    private final static String SKIP_PARAM = "skip";
+    private final static String STARTKEY_PARAM = "startkey";
+    private final static String ENDKEY_PARAM = "endkey";
+    private final static String INCLUSIVE_END_PARAM = "inclusive_end";
+    
+    //the databases holding the CEM documents, whose changes are followed
+    private final static String[] CEM_DATABASES = {
+    	getDatabase(ALL_PATIENTS_VIEW),
+    	getDatabase(ClinicalRowQuery.LAB_BY_PATIENT_ID_VIEW),
+    	getDatabase(ClinicalRowQuery.DRUG_BY_PATIENT_ID_VIEW),
+    	getDatabase(ClinicalRowQuery.DIAGNOSIS_BY_PATIENT_ID_VIEW)
+    };
+    
+    private final static MapUtils.Path TOTAL_ROWS_PATH = MapUtils.compile("total_rows");
+    private final static MapUtils.Path FIRST_ROW_KEY_PATH = MapUtils.compile("rows[0].key");
     
     private static final Map<String,String> GROUP_PARAM = new HashMap<String,String>();
     static {
     	GROUP_PARAM.put("group", "true");
     }
     
+    /**
+     * How patients and their clinical data are read from CouchDB.
+     */
+    public enum ExtractionMode {
+    	
+    	/** 
+    	 * Page through 'all_patients', then query the lab, drug and diagnosis
+    	 * views for each page -- four requests per page.
+    	 */
+    	VIEW_PER_CATEGORY,
+    	
+    	/** 
+    	 * Scan the collated 'patient_timeline' view, which returns each patient's
+    	 * demographics followed by their labs, drugs and diagnoses. This requires
+    	 * the CEM databases to be replicated into a single timeline database
+    	 * carrying the view listed at the bottom of this class.
+    	 */
+    	PATIENT_TIMELINE
+    }
+    
     /**
      * Instantiates a new cemdb couch db dao.
      */
     public CemdbCouchDbDao(){
     	super();
     	this.couchDbClient = new CouchDbClient();
+    	this.couchDbClient.setExtractionMetrics(this.reportedMetrics);
+    	this.rowQuery = new ClinicalRowQuery(this.couchDbClient);
+    	this.changesReader = new PatientChangesReader(this.couchDbClient, CEM_DATABASES);
+    }
+    
+    /**
+     * Instantiates a new cemdb couch db dao for the CouchDB at the given url.
+     *
+     * @param couchDbUrl the couch db url
+     */
+    public CemdbCouchDbDao(String couchDbUrl){
+    	super();
+    	this.couchDbClient = new CouchDbClient(couchDbUrl);
+    	this.couchDbClient.setExtractionMetrics(this.reportedMetrics);
+    	this.rowQuery = new ClinicalRowQuery(this.couchDbClient);
+    	this.changesReader = new PatientChangesReader(this.couchDbClient, CEM_DATABASES);
     }
     
 	/**
@@ -75,67 +167,646 @@ public class CemdbCouchDbDao {
 	 *
 	 * @return the patients
 	 */
-	public Iterable<Patient> getPatients() {
+	public CloseableIterable<Patient> getPatients() {
+		return this.getPatients(KeyRange.ALL);
+	}
+	
+	/**
+	 * Gets the patients whose ids fall in the range, for example one of
+	 * those returned by {@link #getPartitions(int)}.
+	 *
+	 * @param range the range
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> getPatients(KeyRange range) {
+		return this.getPatients(range, DataCategory.ALL);
+	}
+	
+	/**
+	 * Gets the patients whose ids fall in the range, with only the given
+	 * categories of clinical data. The views of the other categories are
+	 * not queried at all; in PATIENT_TIMELINE mode their rows are still
+	 * scanned, but skipped.
+	 *
+	 * @param range the range
+	 * @param categories the categories of clinical data to load
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> getPatients(KeyRange range, Set<DataCategory> categories) {
+		if(this.extractionMode == ExtractionMode.PATIENT_TIMELINE){
+			return new CloseableIterable<Patient>(this.getPatientsFromTimeline(range, categories));
+		} else {
+			return new CloseableIterable<Patient>(this.getPatientsByCategory(range, categories));
+		}
+	}
+	
+	/**
+	 * Splits the patients into at most 'partitions' disjoint key ranges of
+	 * roughly equal size, so that each may be extracted by a separate process
+	 * with {@link #getPatients(KeyRange)}. The split keys are sampled from
+	 * the unreduced 'all_patients' view by position -- one small request per
+	 * split -- so the ranges are only as even as the patients' row counts in
+	 * that view. Either extraction mode may be used with the ranges.
+	 *
+	 * @param partitions the number of partitions wanted
+	 * @return the ranges, in key order
+	 */
+	public List<KeyRange> getPartitions(int partitions) {
+		if(partitions < 1){
+			throw new IllegalArgumentException("At least one partition is required.");
+		}
+		
+		Map<String,String> params = new HashMap<String,String>();
+		params.put(REDUCE_PARAM, "false");
+		params.put(LIMIT_PARAM, "0");
+		
+		Map<String,Object> result = this.couchDbClient.queryView(ALL_PATIENTS_VIEW, null, params);
+		long totalRows = ((Number) TOTAL_ROWS_PATH.get(result)).longValue();
 		
-		CouchDbIterator<Patient> itr = new CouchDbIterator<Patient>(
+		List<String> splitKeys = new ArrayList<String>();
+		for(int i=1;i<partitions;i++){
+			params.put(LIMIT_PARAM, "1");
+			params.put(SKIP_PARAM, Long.toString(totalRows * i / partitions));
+			
+			Map<String,Object> sample = this.couchDbClient.queryView(ALL_PATIENTS_VIEW, null, params);
+			if(FIRST_ROW_KEY_PATH.exists(sample)){
+				splitKeys.add(FIRST_ROW_KEY_PATH.get(sample).toString());
+			}
+		}
+		
+		List<KeyRange> ranges = KeyRange.split(splitKeys);
+		log.info("Split " + totalRows + " patient rows into: " + ranges);
+		
+		return ranges;
+	}
+	
+	/**
+	 * Gets the given patients, with their clinical data. Ids with no
+	 * patient are skipped. The per-category views are used in either
+	 * extraction mode. The ids are paged on the client -- each request
+	 * POSTs a page of them -- so any number of ids may be given.
+	 *
+	 * @param patientIds the patient ids
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> getPatients(Collection<String> patientIds) {
+		return this.getPatients(patientIds, DataCategory.ALL);
+	}
+	
+	/**
+	 * Gets the given patients, with only the given categories of clinical data.
+	 *
+	 * @param patientIds the patient ids
+	 * @param categories the categories of clinical data to load
+	 * @return the patients
+	 * @see #getPatients(Collection)
+	 */
+	public CloseableIterable<Patient> getPatients(Collection<String> patientIds, Set<DataCategory> categories) {
+		if(patientIds.isEmpty()){
+			return new CloseableIterable<Patient>(Collections.<Patient>emptyList());
+		}
+		
+		CouchDbIterator<Patient,PatientRow> itr = new CouchDbIterator<Patient,PatientRow>(
 				ALL_PATIENTS_VIEW, 
-				null,
+				new ArrayList<String>(patientIds),
 				GROUP_PARAM,
+				PatientRow.READER,
+				this.patientTransformer, 
+				this.newClinicalDataDecorator(categories),
+				this.couchDbClient,
+				CouchDbIterator.PagingMode.KEYS);
+		
+		itr.setPrefetchDepth(this.prefetchDepth);
+		itr.setExtractionMetrics(this.reportedMetrics);
+		itr.setAdaptivePageSize(this.getPageSizing());
+	
+		return new CloseableIterable<Patient>(itr);
+	}
+	
+	/**
+	 * Reads the changes feed of each CEM database since its checkpoint, and
+	 * collects the ids of the patients whose patient, lab, drug or diagnosis
+	 * documents changed. Re-extract them with {@link #getPatients(Collection)},
+	 * then call {@link PatientChanges#checkpoint()}.
+	 * 
+	 * If any database has no checkpoint yet, no changes are read. Instead the
+	 * current sequences are captured and a full extraction is requested --
+	 * checkpointing after it makes the next run incremental.
+	 * 
+	 * Deleted documents carry no patient id, so their patients cannot be
+	 * found. If any database reports a deletion, a full extraction is
+	 * requested as well, so the sequences are never checkpointed past a
+	 * deletion whose patient was not re-extracted.
+	 * 
+	 * The changed patients are removed from the clinical data cache, if one
+	 * is set -- or everything, if a full extraction is required.
+	 *
+	 * @param checkpointStore the checkpoint store
+	 * @return the patient changes
+	 */
+	public PatientChanges getChangedPatients(CheckpointStore checkpointStore) {
+		PatientChanges changes = this.changesReader.read(checkpointStore);
+		
+		ClinicalDataCache cache = this.rowQuery.getClinicalDataCache();
+		if(cache != null){
+			if(changes.isFullExtractionRequired()){
+				cache.invalidateAll();
+			} else {
+				cache.invalidate(changes.getPatientIds());
+			}
+		}
+		
+		return changes;
+	}
+	
+	/**
+	 * Processes every patient on the workers of a fork/join pool. Whole pages
+	 * of patients are claimed by each worker, which queries their clinical
+	 * data and then hands them to the handler, so both the extraction and
+	 * the handler run on all threads of the pool. Patients are handled in no
+	 * particular order. Blocks until every patient has been handled.
+	 *
+	 * @param pool the pool
+	 * @param handler the handler, called concurrently
+	 */
+	public void processPatients(ForkJoinPool pool, ParallelPageProcessor.ItemHandler<Patient> handler) {
+		this.processPatients(pool, DataCategory.ALL, handler);
+	}
+	
+	/**
+	 * Processes every patient on the workers of a fork/join pool, with only
+	 * the given categories of clinical data.
+	 *
+	 * @param pool the pool
+	 * @param categories the categories of clinical data to load
+	 * @param handler the handler, called concurrently
+	 * @see #processPatients(ForkJoinPool, ParallelPageProcessor.ItemHandler)
+	 */
+	public void processPatients(ForkJoinPool pool, Set<DataCategory> categories, ParallelPageProcessor.ItemHandler<Patient> handler) {
+		AbstractPageableIterator<Patient,?> pages;
+		if(this.extractionMode == ExtractionMode.PATIENT_TIMELINE){
+			pages = this.newTimelineIterator(KeyRange.ALL, categories);
+		} else {
+			pages = this.getPatientsByCategory(KeyRange.ALL, categories).iterator();
+		}
+		
+		new ParallelPageProcessor<Patient>(pages, handler).process(pool);
+	}
+	
+	/**
+	 * Gets the patients from 'all_patients', querying the clinical data views for each page.
+	 *
+	 * @param range the range
+	 * @param categories the categories of clinical data to load
+	 * @return the patients
+	 */
+	private CouchDbIterator<Patient,PatientRow> getPatientsByCategory(KeyRange range, Set<DataCategory> categories) {
+		CouchDbIterator<Patient,PatientRow> itr = new CouchDbIterator<Patient,PatientRow>(
+				ALL_PATIENTS_VIEW, 
+				null,
+				this.getRangeParams(range),
+				PatientRow.READER,
 				this.patientTransformer, 
-				new CouchDbIterator.PageDecorator<Patient>(){
+				this.newClinicalDataDecorator(categories),
+				this.couchDbClient,
+				CouchDbIterator.PagingMode.KEYSET);
+		
+		itr.setPrefetchDepth(this.prefetchDepth);
+		itr.setExtractionMetrics(this.reportedMetrics);
+		itr.setAdaptivePageSize(this.getPageSizing());
+	
+		return itr;
+	}
+	
+	/**
+	 * Creates the decorator that queries the views of the given categories
+	 * for a page of patients and adds the results to them.
+	 *
+	 * @param categories the categories of clinical data to load
+	 * @return the page decorator
+	 */
+	private CouchDbIterator.PageDecorator<Patient> newClinicalDataDecorator(Collection<DataCategory> categories) {
+		final Set<DataCategory> projection = DataCategory.copyOf(categories);
+		final CodeFilter filter = this.codeFilter;
+		final DateWindow window = this.dateWindow;
+		final ExtractionMetrics metrics = this.reportedMetrics;
+		final AdaptivePageSize sizing = this.getPageSizing();
+		final AdaptivePageSize budgetSizing = this.budgetPageSize;
+		final long budget = budgetSizing == null ? 0 : this.pageMemoryBudget;
+		final File directory = this.spillDirectory;
+		
+		return new CouchDbIterator.PageDecorator<Patient>(){
+
+			@Override
+			public Iterable<Patient> decorate(List<Patient> patients) {
+				if(CollectionUtils.isEmpty(patients)){
+					return patients;
+				}
+				
+				Map<String,Patient> patientIds = new HashMap<String,Patient>();
+				for (Patient patient : patients) {
+					patientIds.put(patient.getSourcePid(), patient);
+				}
+
+				if(projection.isEmpty()){
+					return patients;
+				}
+				
+				if(budget > 0){
+					return decorateWithinBudget(patients, patientIds, projection, filter, window, 
+							metrics, sizing, budgetSizing, budget, directory);
+				}
+				
+				ClinicalRows rows = rowQuery.getClinicalRows(patientIds.keySet(), projection, filter, window);
+				
+				if(sizing != null && sizing.isByteTargeted()){
+					sizing.recordBytes(patients.size(), rows.getEstimatedSize());
+				}
+				
+				bindRows(patientIds, rows, projection, metrics);
+
+				return patients;
+			}
+	
+		};
+	}
+	
+	/**
+	 * Queries the clinical rows of a page in sub-batches of patients, each
+	 * sized from the average bytes per patient to half the memory budget, so
+	 * that the rows held never go much over the budget. While they fit, the
+	 * rows are kept and bound as usual. Once the next sub-batch is expected
+	 * to, or does, go over, the rows held so far are written to a spill file,
+	 * as is every later sub-batch -- and the page is replayed from the file.
+	 * A single patient over the budget is still read whole.
+	 *
+	 * @param patients the patients of the page
+	 * @param patientIds the patients, by id
+	 * @param projection the categories to query
+	 * @param filter the code filter, or null
+	 * @param window the date window, or null
+	 * @param metrics the metrics the binding is reported to
+	 * @param sizing the page sizing in effect, or null
+	 * @param budgetSizing the page sizing that learns the bytes per patient
+	 * @param budget the page memory budget, in bytes
+	 * @param directory the spill directory, or null for the default
+	 * @return the page, or a {@link SpilledPatientPage} if it was spilled
+	 */
+	private Iterable<Patient> decorateWithinBudget(List<Patient> patients, Map<String,Patient> patientIds,
+			Set<DataCategory> projection, CodeFilter filter, DateWindow window, ExtractionMetrics metrics,
+			AdaptivePageSize sizing, AdaptivePageSize budgetSizing, long budget, File directory) {
+		double bytesPerPatient = budgetSizing.getBytesPerItem();
+		int batchSize = bytesPerPatient > 0 ? 
+				(int) Math.max(1, Math.min(patients.size(), budget / 2 / bytesPerPatient)) : 
+				MIN_BUDGETED_PAGE_SIZE;
+		
+		ClinicalRows held = new ClinicalRows();
+		long heldSize = 0;
+		long totalSize = 0;
+		
+		PatientSnapshots.Spill spill = null;
+		try {
+			for(int from=0;from<patients.size();from+=batchSize){
+				List<Patient> batch = patients.subList(from, Math.min(from + batchSize, patients.size()));
+				
+				if(spill == null && heldSize + batch.size() * Math.max(0, bytesPerPatient) > budget){
+					spill = snapshots.spill(directory);
+					spill.write(patients.subList(0, from), held, heldSize);
+					held = null;
+				}
+				
+				Set<String> ids = new HashSet<String>();
+				for(Patient patient : batch){
+					ids.add(patient.getSourcePid());
+				}
+				
+				ClinicalRows rows = rowQuery.getClinicalRows(ids, projection, filter, window);
+				long size = rows.getEstimatedSize();
+				totalSize += size;
+				
+				if(spill == null && heldSize + size > budget){
+					spill = snapshots.spill(directory);
+					spill.write(patients.subList(0, from), held, heldSize);
+					held = null;
+				}
+				
+				if(spill != null){
+					spill.write(batch, rows, size);
+				} else {
+					held.addAll(rows);
+					heldSize += size;
+				}
+			}
+			
+			if(sizing != null && sizing.isByteTargeted()){
+				sizing.recordBytes(patients.size(), totalSize);
+			}
+			if(budgetSizing != sizing){
+				budgetSizing.recordBytes(patients.size(), totalSize);
+			}
+			
+			if(spill == null){
+				bindRows(patientIds, held, projection, metrics);
+				
+				return patients;
+			}
+			
+			SpilledPatientPage page = spill.replay(patients);
+			spill = null;
+			
+			return page;
+		} finally {
+			if(spill != null){
+				CouchDbClient.closeQuietly(spill);
+			}
+		}
+	}
+	
+	/**
+	 * Binds the clinical rows of a page, adding them to its patients.
+	 *
+	 * @param patientIds the patients of the page, by id
+	 * @param rows the rows
+	 * @param projection the categories queried
+	 * @param metrics the metrics the binding is reported to
+	 */
+	private void bindRows(Map<String,Patient> patientIds, ClinicalRows rows, 
+			Set<DataCategory> projection, ExtractionMetrics metrics) {
+		//counted per category and page, rather than logged per patient
+		long start = System.nanoTime();
+		int count = 0;
+		for(Entry<String, List<LabRow>> entry : rows.labs.entrySet()){
+			Patient p = patientIds.get(entry.getKey());
+			for(LabRow lab : entry.getValue()){
+				p.addLab(toLab(lab));
+			}
+			count += entry.getValue().size();
+		}
+		if(projection.contains(DataCategory.LABS)){
+			metrics.rowsBound(DataCategory.LABS, rows.labs.size(), count, System.nanoTime() - start);
+		}
+		
+		start = System.nanoTime();
+		count = 0;
+		for(Entry<String, List<DrugRow>> entry : rows.drugs.entrySet()){
+			Patient p = patientIds.get(entry.getKey());			
+			for(DrugRow drug : entry.getValue()){
+				Medication medication = toMedication(drug);
+				if(medication != null){
+					p.addMedication(medication);
+				}
+			}
+			count += entry.getValue().size();
+		}
+		if(projection.contains(DataCategory.MEDICATIONS)){
+			metrics.rowsBound(DataCategory.MEDICATIONS, rows.drugs.size(), count, System.nanoTime() - start);
+		}
+		
+		start = System.nanoTime();
+		count = 0;
+		for(Entry<String, List<DiagnosisRow>> entry : rows.diagnoses.entrySet()){
+			Patient p = patientIds.get(entry.getKey());
+			for(DiagnosisRow diagnosis : entry.getValue()){
+				Diagnosis problem = toDiagnosis(diagnosis);
+				if(problem != null){
+					p.addDiagnosis(problem);
+				}
+			}
+			count += entry.getValue().size();
+		}
+		if(projection.contains(DataCategory.DIAGNOSES)){
+			metrics.rowsBound(DataCategory.DIAGNOSES, rows.diagnoses.size(), count, System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Creates the decorator that queries the lab, drug and diagnosis views
+	 * for a page of patient records and adds the rows to them, unbound.
+	 *
+	 * @return the page decorator
+	 */
+	private CouchDbIterator.PageDecorator<PatientRecord> newClinicalRecordDecorator() {
+		final AdaptivePageSize sizing = this.getPageSizing();
+		
+		return new CouchDbIterator.PageDecorator<PatientRecord>(){
+
+			@Override
+			public List<PatientRecord> decorate(List<PatientRecord> records) {
+				if(CollectionUtils.isEmpty(records)){
+					return records;
+				}
+				
+				Map<String,PatientRecord> patientIds = new HashMap<String,PatientRecord>();
+				for (PatientRecord record : records) {
+					patientIds.put(record.getPatient().getPatientId(), record);
+				}
+
+				ClinicalRows rows = rowQuery.getClinicalRows(patientIds.keySet(), DataCategory.ALL, null, null);
+				
+				if(sizing != null && sizing.isByteTargeted()){
+					sizing.recordBytes(records.size(), rows.getEstimatedSize());
+				}
+				
+				for(Entry<String, List<LabRow>> entry : rows.labs.entrySet()){
+					patientIds.get(entry.getKey()).getLabs().addAll(entry.getValue());
+				}
+				for(Entry<String, List<DrugRow>> entry : rows.drugs.entrySet()){
+					patientIds.get(entry.getKey()).getDrugs().addAll(entry.getValue());
+				}
+				for(Entry<String, List<DiagnosisRow>> entry : rows.diagnoses.entrySet()){
+					patientIds.get(entry.getKey()).getDiagnoses().addAll(entry.getValue());
+				}
+
+				return records;
+			}
+	
+		};
+	}
+	
+	/**
+	 * Binds a patient record to a Patient.
+	 *
+	 * @param record the record
+	 * @return the patient
+	 */
+	Patient toPatient(PatientRecord record) {
+		Patient patient = this.patientTransformer.transform(record.getPatient());
+		
+		this.addClinicalData(patient, record);
+		
+		return patient;
+	}
+	
+	/**
+	 * Binds the clinical rows of a patient record, adding them to a Patient.
+	 *
+	 * @param patient the patient
+	 * @param record the record
+	 */
+	void addClinicalData(Patient patient, PatientRecord record) {
+		for(LabRow lab : record.getLabs()){
+			patient.addLab(this.toLab(lab));
+		}
+		for(DrugRow drug : record.getDrugs()){
+			Medication medication = this.toMedication(drug);
+			if(medication != null){
+				patient.addMedication(medication);
+			}
+		}
+		for(DiagnosisRow diagnosis : record.getDiagnoses()){
+			Diagnosis problem = this.toDiagnosis(diagnosis);
+			if(problem != null){
+				patient.addDiagnosis(problem);
+			}
+		}
+	}
+	
+	/**
+	 * Writes every patient to a snapshot file, which {@link #readSnapshot(File)}
+	 * can then iterate without going back to CouchDB. The rows are read from
+	 * the per-category views in either extraction mode. If the extraction
+	 * fails, the partial file is deleted.
+	 *
+	 * @param file the snapshot file
+	 * @return the number of patients written
+	 */
+	public int writeSnapshot(File file) {
+		return this.snapshots.write(this.getPatientRecords(KeyRange.ALL).iterator(), file);
+	}
+	
+	/**
+	 * Gets the patients of a snapshot written by {@link #writeSnapshot(File)}.
+	 *
+	 * @param file the snapshot file
+	 * @return the patients
+	 */
+	public CloseableIterable<Patient> readSnapshot(final File file) {
+		return new CloseableIterable<Patient>(new Iterable<Patient>(){
+
+			@Override
+			public Iterator<Patient> iterator() {
+				PatientSnapshotIterator itr = new PatientSnapshotIterator(file, CemdbCouchDbDao.this);
+				itr.setPrefetchDepth(prefetchDepth);
+				itr.setExtractionMetrics(reportedMetrics);
+				
+				return itr;
+			}
+			
+		});
+	}
+	
+	/**
+	 * Gets the unbound patient records from 'all_patients' and the clinical data views.
+	 *
+	 * @param range the range
+	 * @return the patient records
+	 */
+	private CouchDbIterator<PatientRecord,PatientRow> getPatientRecords(KeyRange range) {
+		CouchDbIterator<PatientRecord,PatientRow> itr = new CouchDbIterator<PatientRecord,PatientRow>(
+				ALL_PATIENTS_VIEW, 
+				null,
+				this.getRangeParams(range),
+				PatientRow.READER,
+				new CouchDbIterator.Transformer<PatientRecord,PatientRow>(){
 
 					@Override
-					public List<Patient> decorate(List<Patient> patients) {
-						if(CollectionUtils.isEmpty(patients)){
-							return patients;
-						}
-						
-						Map<String,Patient> patientIds = new HashMap<String,Patient>();
-						for (Patient patient : patients) {
-							patientIds.put(patient.getSourcePid(), patient);
-						}
-
-						
-						Map<String, List<Lab>> labEntrySet = getLabs(patientIds.keySet());
-						for(Entry<String, List<Lab>> entry : labEntrySet.entrySet()){
-							log.info("Labs count for patient " + entry.getKey() + " " + entry.getValue().size());
-							
-							Patient p = patientIds.get(entry.getKey());
-							for(Lab lab : entry.getValue()){
-								p.addLab(lab);
-							}
-						}
-						
-						Map<String, List<Medication>> medicationEntrySet = getDrugs(patientIds.keySet());
-						for(Entry<String, List<Medication>> entry : medicationEntrySet.entrySet()){
-							log.info("Drug count for patient " + entry.getKey() + " " + entry.getValue().size());
-							
-							Patient p = patientIds.get(entry.getKey());			
-							for(Medication medication : entry.getValue()){
-								p.addMedication(medication);
-							}
-						}
-						
-						Map<String, List<Diagnosis>> diagnosisEntrySet = getDiagnosises(patientIds.keySet());
-						for(Entry<String, List<Diagnosis>> entry : diagnosisEntrySet.entrySet()){
-							log.info("Problem count for patient " + entry.getKey() + " " + entry.getValue().size());
-							
-							Patient p = patientIds.get(entry.getKey());
-							for(Diagnosis diagnosis : entry.getValue()){
-								p.addDiagnosis(diagnosis);
-							}
-						}
-
-						return patients;
+					public PatientRecord transform(PatientRow row) {
+						return new PatientRecord(row);
 					}
-			
-				},
-				this.couchDbClient);
+					
+				}, 
+				this.newClinicalRecordDecorator(),
+				this.couchDbClient,
+				CouchDbIterator.PagingMode.KEYSET);
+		
+		itr.setPrefetchDepth(this.prefetchDepth);
+		itr.setExtractionMetrics(this.reportedMetrics);
+		itr.setAdaptivePageSize(this.getPageSizing());
 	
 		return itr;
 	}
 	
+	/**
+	 * Gets the patients with a range scan of the collated timeline view.
+	 *
+	 * @param range the range
+	 * @param categories the categories of clinical data to load
+	 * @return the patients
+	 */
+	private Iterable<Patient> getPatientsFromTimeline(final KeyRange range, final Set<DataCategory> categories) {
+		return new Iterable<Patient>(){
 
+			@Override
+			public Iterator<Patient> iterator() {
+				return newTimelineIterator(range, categories);
+			}
+			
+		};
+	}
+	
+	/**
+	 * Creates an iterator over the collated timeline view.
+	 *
+	 * @param range the range
+	 * @param categories the categories of clinical data to load
+	 * @return the patient timeline iterator
+	 */
+	private PatientTimelineIterator newTimelineIterator(KeyRange range, Set<DataCategory> categories) {
+		PatientTimelineIterator itr = new PatientTimelineIterator(
+				this.patientTimelineView, 
+				this.timelineRowsPerRequest, 
+				this.patientTransformer, 
+				this, 
+				this.couchDbClient,
+				range,
+				categories,
+				this.codeFilter,
+				this.dateWindow);
+		
+		itr.setPrefetchDepth(this.prefetchDepth);
+		itr.setExtractionMetrics(this.reportedMetrics);
+		
+		return itr;
+	}
+	
+	/**
+	 * Gets the params for a grouped scan of 'all_patients' over a range.
+	 *
+	 * @param range the range
+	 * @return the params
+	 */
+	private Map<String,String> getRangeParams(KeyRange range) {
+		Map<String,String> params = new HashMap<String,String>(GROUP_PARAM);
+		if(range.getStartKey() != null){
+			params.put(STARTKEY_PARAM, this.toJson(range.getStartKey()));
+		}
+		if(range.getEndKey() != null){
+			params.put(ENDKEY_PARAM, this.toJson(range.getEndKey()));
+			params.put(INCLUSIVE_END_PARAM, "false");
+		}
+		
+		return params;
+	}
+	
+	/**
+	 * Gets the database of a view path.
+	 *
+	 * @param view the view
+	 * @return the database
+	 */
+	private static String getDatabase(String view) {
+		return view.substring(0, view.indexOf('/'));
+	}
+	
+	/**
+	 * Encodes a key as JSON, as CouchDB expects for 'startkey' and 'endkey'.
+	 *
+	 * @param key the key
+	 * @return the JSON
+	 */
+	String toJson(Object key) {
+		return this.couchDbClient.toJson(key);
+	}
 	
 	/**
 	 * Gets the labs.
@@ -144,35 +815,14 @@ public class CemdbCouchDbDao {
 	 * @return the labs
 	 */
 	public Map<String,List<Lab>> getLabs(Collection<String> patientIds) {
-		Map<String, Object> results = this.queryView(LAB_BY_PATIENT_ID_VIEW, patientIds, null);
-
 		Map<String,List<Lab>> labs = new HashMap<String,List<Lab>>();
-
-		for (Map<String, Object> row : (List<Map<String,Object>>)MapUtils.get("rows", results)){
-			String patientId = MapUtils.get("value.patientId", row).toString();
-			String code = MapUtils.get("value.labResultCode", row).toString();
-
-			String date = MapUtils.get("value.collectionDate", row).toString();
-			String unit = MapUtils.get("value.unit", row).toString();
-			if(!unit.equals("mg/dL")){
-				unit = "mg/dL";
-			}
-			double value = Double.parseDouble(MapUtils.get("value.value", row).toString());
-
-			Lab lab;
-			try {
-				lab = new Lab(
-                        new Concept(code, CemDbUtils.LOINC, null),
-                        new Value(Double.toString(value), unit),
-                        CemDbUtils.CEMDB_DATE_FORMAT2.parse(date));
-			} catch (ParseException e) {
-				throw new IllegalStateException(e);
-			}
-			
-			if(!labs.containsKey(patientId)){
-				labs.put(patientId, new ArrayList<Lab>());
+		
+		for(Entry<String,List<LabRow>> entry : this.getLabRows(patientIds).entrySet()){
+			List<Lab> patientLabs = new ArrayList<Lab>(entry.getValue().size());
+			for(LabRow row : entry.getValue()){
+				patientLabs.add(this.toLab(row));
 			}
-			labs.get(patientId).add(lab);
+			labs.put(entry.getKey(), patientLabs);
 		}
 		
 		return labs;
@@ -185,31 +835,19 @@ public class CemdbCouchDbDao {
 	 * @return the diagnosises
 	 */
 	public Map<String,List<Diagnosis>> getDiagnosises(Collection<String> patientIds) {
-		Map<String, Object> results = this.queryView(DIAGNOSIS_BY_PATIENT_ID_VIEW, patientIds, null);
-		
 		Map<String,List<Diagnosis>> problems = new HashMap<String,List<Diagnosis>>();
-
-		for (Map<String, Object> row : (List<Map<String,Object>>)MapUtils.get("rows", results)){
-			String patientId = MapUtils.get("value.patientId", row).toString();
-			String startingDate = "20030224111900";
-			String endingDate = "20110224111900";
-			String code = MapUtils.get("value.code", row).toString();
-
-            Diagnosis problem = null;
-			try {
-				problem = new Diagnosis(
-                        new Concept(code, CemDbUtils.SNOMEDCT, null),
-						CemDbUtils.CEMDB_DATE_FORMAT2.parse(startingDate),
-						CemDbUtils.CEMDB_DATE_FORMAT2.parse(endingDate));
-			} catch (ParseException e) {
-				log.warn(e);
-                continue;
+		
+		for(Entry<String,List<DiagnosisRow>> entry : this.getDiagnosisRows(patientIds).entrySet()){
+			List<Diagnosis> patientProblems = new ArrayList<Diagnosis>(entry.getValue().size());
+			for(DiagnosisRow row : entry.getValue()){
+				Diagnosis problem = this.toDiagnosis(row);
+				if(problem != null){
+					patientProblems.add(problem);
+				}
 			}
-			
-			if(!problems.containsKey(patientId)){
-				problems.put(patientId, new ArrayList<Diagnosis>());
+			if(! patientProblems.isEmpty()){
+				problems.put(entry.getKey(), patientProblems);
 			}
-			problems.get(patientId).add(problem);
 		}
 		
 		return problems;
@@ -222,68 +860,430 @@ public class CemdbCouchDbDao {
 	 * @return the drugs
 	 */
 	public Map<String,List<Medication>> getDrugs(Collection<String> patientIds) {
-		Map<String, Object> results = this.queryView(DRUG_BY_PATIENT_ID_VIEW, patientIds, null);
-
 		Map<String,List<Medication>> medications = new HashMap<String,List<Medication>>();
-
-		for (Map<String, Object> row : (List<Map<String,Object>>)MapUtils.get("rows", results)){
-			String patientId = MapUtils.get("value.patientId", row).toString();
-			String code = MapUtils.get("value.clinicalDrug.code", row).toString();
-
-			String startDate = null;
-			if(MapUtils.keyExists("value.startTime", row)){
-				startDate = MapUtils.get("value.startTime", row).toString();
-			}
-			String endDate = null;
-			if(MapUtils.keyExists("value.endTime", row)){
-				Object dateFromCouchDb = MapUtils.get("value.endTime", row);
-				if(dateFromCouchDb != null){
-					endDate = dateFromCouchDb.toString();
-				}	
-			}
-			
-			Medication medication;
-
-				if(startDate==null){
-					throw new RuntimeException("StartDate should never be null.");
-				}
-				if(endDate==null){
-					//if the returning date is null, we just generate a temporary date
-					endDate = "20110224111900";
+		
+		for(Entry<String,List<DrugRow>> entry : this.getDrugRows(patientIds).entrySet()){
+			List<Medication> patientMedications = new ArrayList<Medication>(entry.getValue().size());
+			for(DrugRow row : entry.getValue()){
+				Medication medication = this.toMedication(row);
+				if(medication != null){
+					patientMedications.add(medication);
 				}
-            try {
-				medication = new Medication(
-						new Concept(code, CemDbUtils.RXNORM, null),
-                        MedicationStatus.ACTIVE,
-						CemDbUtils.CEMDB_DATE_FORMAT2.parse(startDate),
-						CemDbUtils.CEMDB_DATE_FORMAT2.parse(endDate));
-			} catch (ParseException e) {
-                log.warn(e);
-                continue;
 			}
-
-			if(!medications.containsKey(patientId)){
-				medications.put(patientId, new ArrayList<Medication>());
+			if(! patientMedications.isEmpty()){
+				medications.put(entry.getKey(), patientMedications);
 			}
-			medications.get(patientId).add(medication);
-
-		}	
+		}
+		
 		return medications;
 	}
 	
 	/**
-	 * Query view.
+	 * Gets the lab rows, unbound. Rows outside the code filter or date
+	 * window, if set, are dropped.
+	 *
+	 * @param patientIds the patient ids
+	 * @return the lab rows by patient id
+	 */
+	public Map<String,List<LabRow>> getLabRows(Collection<String> patientIds) {
+		return this.rowQuery.getLabRows(patientIds, this.codeFilter, this.dateWindow);
+	}
+	
+	/**
+	 * Gets the diagnosis rows, unbound. Rows outside the code filter, if
+	 * set, are dropped.
 	 *
-	 * @param viewName the view name
-	 * @param keys the keys
-	 * @param params the params
-	 * @return the map
+	 * @param patientIds the patient ids
+	 * @return the diagnosis rows by patient id
+	 */
+	public Map<String,List<DiagnosisRow>> getDiagnosisRows(Collection<String> patientIds) {
+		return this.rowQuery.getDiagnosisRows(patientIds, this.codeFilter, this.dateWindow);
+	}
+	
+	/**
+	 * Gets the drug rows, unbound. Rows outside the code filter or date
+	 * window, if set, are dropped.
+	 *
+	 * @param patientIds the patient ids
+	 * @return the drug rows by patient id
 	 */
-	private Map<String, Object> queryView(String viewName,  Collection<String> keys, Map<String,String> params) {
-		return this.couchDbClient.queryView(viewName, keys, params);
+	public Map<String,List<DrugRow>> getDrugRows(Collection<String> patientIds) {
+		return this.rowQuery.getDrugRows(patientIds, this.codeFilter, this.dateWindow);
 	}
+	
+	/**
+	 * Transform a lab row.
+	 *
+	 * @param row the row
+	 * @return the lab
+	 */
+	Lab toLab(LabRow row) {
+		String code = row.getCode();
 
+		String date = row.getCollectionDate();
+		//lab values are always reported in mg/dL
+		String unit = "mg/dL";
+		double value = row.getValue();
+
+		Date collectionDate = CemDbUtils.CEMDB_DATE_PARSER.parseDateTime(date);
+		if(collectionDate == null){
+			throw new IllegalStateException("Unparseable lab collection date: " + date);
+		}
+		
+		return new Lab(
+                new Concept(code, CemDbUtils.LOINC, null),
+                new Value(Double.toString(value), unit),
+                collectionDate);
+	}
 	
+	/**
+	 * Transform a diagnosis row.
+	 *
+	 * @param row the row
+	 * @return the diagnosis
+	 */
+	Diagnosis toDiagnosis(DiagnosisRow row) {
+		String code = row.getCode();
+
+		return new Diagnosis(
+                new Concept(code, CemDbUtils.SNOMEDCT, null),
+				new Date(DIAGNOSIS_STARTING_DATE),
+				new Date(DIAGNOSIS_ENDING_DATE));
+	}
+	
+	/**
+	 * Transform a drug row.
+	 *
+	 * @param row the row
+	 * @return the medication, or null if it could not be parsed
+	 */
+	Medication toMedication(DrugRow row) {
+		String code = row.getCode();
+
+		String startDate = row.getStartTime();
+		String endDate = row.getEndTime();
+		
+		if(startDate==null){
+			throw new RuntimeException("StartDate should never be null.");
+		}
+		if(endDate==null){
+			//if the returning date is null, we just generate a temporary date
+			endDate = DrugRow.DEFAULT_END_TIME;
+		}
+		
+		long start = CemDbUtils.CEMDB_DATE_PARSER.parseDateTimeMillis(startDate);
+		long end = CemDbUtils.CEMDB_DATE_PARSER.parseDateTimeMillis(endDate);
+		if(start == CemDbDateParser.INVALID || end == CemDbDateParser.INVALID){
+			log.warn("Unparseable drug dates: " + startDate + " - " + endDate);
+			return null;
+		}
+		
+		return new Medication(
+				new Concept(code, CemDbUtils.RXNORM, null),
+                MedicationStatus.ACTIVE,
+				new Date(start),
+				new Date(end));
+	}
+	
+	/**
+	 * Closes the CouchDB client, releasing its connections and threads.
+	 * The executor service, if one was set, is left to its owner.
+	 */
+	@Override
+	public void close() {
+		this.couchDbClient.close();
+	}
+
+	/**
+	 * Gets the couch db client, for configuring how CouchDB is accessed.
+	 *
+	 * @return the couch db client
+	 */
+	public CouchDbClient getCouchDbClient() {
+		return couchDbClient;
+	}
+
+	/**
+	 * Gets the number of patient pages read ahead of the consumer.
+	 *
+	 * @return the prefetch depth
+	 */
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	/**
+	 * Sets the number of patient pages to fetch and decorate on a background
+	 * thread while the current page is being consumed. Zero (the default)
+	 * pages synchronously.
+	 *
+	 * @param prefetchDepth the prefetch depth
+	 */
+	public void setPrefetchDepth(int prefetchDepth) {
+		this.prefetchDepth = prefetchDepth;
+	}
+
+	/**
+	 * Gets the adaptive page size.
+	 *
+	 * @return the adaptive page size, or null if pages are of a fixed size
+	 */
+	public AdaptivePageSize getAdaptivePageSize() {
+		return adaptivePageSize;
+	}
+
+	/**
+	 * Sets an adaptive page size for the pages of 'all_patients', so that
+	 * each page of patients aims at a time or byte budget rather than a fixed
+	 * 1000 patients. The bytes of a page are the estimated heap of its lab,
+	 * drug and diagnosis rows. It applies to the extractions started after it
+	 * is set, and learns across them; the PATIENT_TIMELINE mode, which pages
+	 * by rows, and snapshots are not affected. If null (the default), the
+	 * page size is fixed.
+	 *
+	 * @param adaptivePageSize the adaptive page size, or null
+	 */
+	public void setAdaptivePageSize(AdaptivePageSize adaptivePageSize) {
+		this.adaptivePageSize = adaptivePageSize;
+	}
+
+	/**
+	 * Gets the adaptive page size in effect -- the one set, or else the one
+	 * shrinking the pages to the memory budget.
+	 *
+	 * @return the page sizing, or null if pages are of a fixed size
+	 */
+	private AdaptivePageSize getPageSizing() {
+		AdaptivePageSize sizing = this.adaptivePageSize;
+		
+		return sizing != null ? sizing : this.budgetPageSize;
+	}
+
+	/**
+	 * Gets the memory budget of each page.
+	 *
+	 * @return the page memory budget, in bytes, or zero for none
+	 */
+	public long getPageMemoryBudget() {
+		return pageMemoryBudget;
+	}
+
+	/**
+	 * Sets a memory budget for assembling each page of patients, against the
+	 * estimated heap of its lab, drug and diagnosis rows. The rows are queried
+	 * in sub-batches of patients sized to half the budget, and a page whose
+	 * rows go over it is spilled as they come in: the rows of each patient
+	 * are written to a temp file in the {@link PatientSnapshotWriter} encoding
+	 * and released, and each patient is bound to them only as the page is
+	 * consumed. Pages waiting to be consumed then hold little more than a
+	 * file, which is deleted once the page is read or its iterator closed.
+	 * <p>
+	 * So that most pages fit, the pages themselves are also shrunk: unless an
+	 * adaptive page size is set, pages of 10 to 1000 patients aim at the
+	 * budget. It applies to the
+	 * getPatients extractions of 'all_patients' started after it is set, and
+	 * not to the PATIENT_TIMELINE mode. Zero (the default) sets no budget.
+	 *
+	 * @param pageMemoryBudget the page memory budget, in bytes, or zero for none
+	 * @see #setAdaptivePageSize(AdaptivePageSize)
+	 */
+	public void setPageMemoryBudget(long pageMemoryBudget) {
+		if(pageMemoryBudget < 0){
+			throw new IllegalArgumentException("Negative page memory budget: " + pageMemoryBudget);
+		}
+		
+		this.budgetPageSize = pageMemoryBudget == 0 ? null : 
+			new AdaptivePageSize(MIN_BUDGETED_PAGE_SIZE, MAX_BUDGETED_PAGE_SIZE, 0, pageMemoryBudget);
+		this.pageMemoryBudget = pageMemoryBudget;
+	}
+
+	/**
+	 * Gets the directory that pages over the memory budget are spilled to.
+	 *
+	 * @return the spill directory, or null for the default temp directory
+	 */
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Sets the directory that pages over the memory budget are spilled to.
+	 *
+	 * @param spillDirectory the spill directory, or null for the default temp directory
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Gets the executor used to query the clinical data views concurrently.
+	 *
+	 * @return the executor service, or null if queried sequentially
+	 */
+	public ExecutorService getExecutorService() {
+		return this.rowQuery.getExecutorService();
+	}
+
+	/**
+	 * Sets an executor used to run the lab, drug and diagnosis queries of
+	 * each patient page in parallel, so a page costs roughly the slowest of
+	 * the three rather than their sum. The results are merged into the
+	 * patients on the paging thread. If null (the default), the queries are
+	 * run one after another.
+	 *
+	 * @param executorService the executor service
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		this.rowQuery.setExecutorService(executorService);
+	}
+
+	/**
+	 * Gets the extraction metrics.
+	 *
+	 * @return the extraction metrics
+	 */
+	public ExtractionMetrics getExtractionMetrics() {
+		return extractionMetrics;
+	}
+
+	/**
+	 * Sets the metrics that the view requests, pages and row binding of
+	 * extractions are reported to -- a {@link JmxExtractionMetrics}, for
+	 * example. Like the code filter, it applies to the extractions started
+	 * after it is set. In PATIENT_TIMELINE mode rows are bound as they are
+	 * read, so no binding is reported.
+	 * 
+	 * Whatever is set, JFR events are also emitted where they are available
+	 * (see {@link FlightRecorderMetrics}); they cost next to nothing unless a
+	 * flight recording is running.
+	 *
+	 * @param extractionMetrics the extraction metrics, or null for none
+	 */
+	public void setExtractionMetrics(ExtractionMetrics extractionMetrics) {
+		this.extractionMetrics = extractionMetrics == null ? ExtractionMetrics.NONE : extractionMetrics;
+		this.reportedMetrics = CompositeExtractionMetrics.of(this.extractionMetrics, FlightRecorderMetrics.getInstance());
+		this.couchDbClient.setExtractionMetrics(this.reportedMetrics);
+	}
+
+	/**
+	 * Gets the extraction mode.
+	 *
+	 * @return the extraction mode
+	 */
+	public ExtractionMode getExtractionMode() {
+		return extractionMode;
+	}
+
+	/**
+	 * Sets how getPatients reads from CouchDB. Defaults to
+	 * {@link ExtractionMode#VIEW_PER_CATEGORY}.
+	 *
+	 * @param extractionMode the extraction mode
+	 */
+	public void setExtractionMode(ExtractionMode extractionMode) {
+		this.extractionMode = extractionMode;
+	}
+
+	/**
+	 * Gets the path of the patient timeline view.
+	 *
+	 * @return the patient timeline view
+	 */
+	public String getPatientTimelineView() {
+		return patientTimelineView;
+	}
+
+	/**
+	 * Sets the path of the patient timeline view, relative to the
+	 * CouchDB url, for when the timeline database is named differently.
+	 *
+	 * @param patientTimelineView the patient timeline view
+	 */
+	public void setPatientTimelineView(String patientTimelineView) {
+		this.patientTimelineView = patientTimelineView;
+	}
+
+	/**
+	 * Gets the number of timeline rows requested at a time.
+	 *
+	 * @return the timeline rows per request
+	 */
+	public int getTimelineRowsPerRequest() {
+		return timelineRowsPerRequest;
+	}
+
+	/**
+	 * Sets the number of timeline rows requested at a time.
+	 *
+	 * @param timelineRowsPerRequest the timeline rows per request
+	 */
+	public void setTimelineRowsPerRequest(int timelineRowsPerRequest) {
+		this.timelineRowsPerRequest = timelineRowsPerRequest;
+	}
+
+	/**
+	 * Gets the clinical data cache.
+	 *
+	 * @return the cache, or null if none
+	 */
+	public ClinicalDataCache getClinicalDataCache() {
+		return this.rowQuery.getClinicalDataCache();
+	}
+
+	/**
+	 * Sets a cache for the lab, drug and diagnosis rows of patients, so
+	 * that patients extracted again are not queried again. If null (the
+	 * default), every extraction queries CouchDB.
+	 *
+	 * @param clinicalDataCache the clinical data cache
+	 */
+	public void setClinicalDataCache(ClinicalDataCache clinicalDataCache) {
+		this.rowQuery.setClinicalDataCache(clinicalDataCache);
+	}
+
+	/**
+	 * Gets the code filter.
+	 *
+	 * @return the code filter, or null if none
+	 */
+	public CodeFilter getCodeFilter() {
+		return codeFilter;
+	}
+
+	/**
+	 * Sets a filter restricting the labs, drugs and diagnoses of patients to
+	 * the codes of a measure's value sets. It applies to the extractions
+	 * started after it is set, in either extraction mode -- though it can only
+	 * be pushed down to CouchDB in VIEW_PER_CATEGORY mode. Snapshots are
+	 * never filtered. If null (the default), every row is kept.
+	 *
+	 * @param codeFilter the code filter
+	 */
+	public void setCodeFilter(CodeFilter codeFilter) {
+		this.codeFilter = codeFilter;
+	}
+
+	/**
+	 * Gets the date window.
+	 *
+	 * @return the date window, or null if none
+	 */
+	public DateWindow getDateWindow() {
+		return dateWindow;
+	}
+
+	/**
+	 * Sets a window of days -- a measurement period, say -- restricting the
+	 * labs and drugs of patients. Like the code filter, it applies to the
+	 * extractions started after it is set, and can only be pushed down to
+	 * CouchDB in VIEW_PER_CATEGORY mode. If null (the default), every row is kept.
+	 *
+	 * @param dateWindow the date window
+	 */
+	public void setDateWindow(DateWindow dateWindow) {
+		this.dateWindow = dateWindow;
+	}
+
 	/*
 	 * Below are the CouchDB views. These are currently loaded into CouchDB,
 	 * but are listed here for reference.
@@ -322,5 +1322,64 @@ public class CemdbCouchDbDao {
 		  emit(id, drug);
 		}
 	 */
+	
+	/*
+	 * The 'patient_timeline' view, for ExtractionMode.PATIENT_TIMELINE. It must
+	 * live in a database holding the patient, lab, drug and diagnosis documents
+	 * together (for example one the four CEM databases are replicated into), as
+	 * view collation only joins documents of a single database. The values have
+	 * the same shape as the rows of the all_patients and *_by_patient_id views.
+	 */
+	/*
+	 function(doc) {
+		  function patientId(cem) {
+			  return cem.patientExternalId[0].ii.extension.value;
+		  }
+		
+		  if(doc.SecondaryUsePatient) {
+			  var patient = doc.SecondaryUsePatient;
+			  var id = patientId(patient);
+			
+			  emit([id, 0], {
+				  id: id,
+				  race: patient.administrativeRace.cd.originalText.value,
+				  gender: { code: patient.administrativeGender.cd.code.value.value },
+				  birthDate: patient.birthDate.ts.originalText.value
+			  });
+		  } else if(doc.SecondaryUseStandardLab) {
+			  var lab = doc.SecondaryUseStandardLab;
+			  var id = patientId(lab);
+			
+			  emit([id, 1], {
+				  patientId: id,
+				  labResultCode: lab.key.cd.code.value.value,
+				  collectionDate: lab.collectionDate.ts.originalText.value,
+				  unit: lab.data.pq.unit.value,
+				  value: lab.data.pq.value.value
+			  });
+		  } else if(doc.SecondaryUseNotedDrug) {
+			  var drug = doc.SecondaryUseNotedDrug;
+			  var id = patientId(drug);
+			
+			  emit([id, 2], {
+				  patientId: id,
+				  clinicalDrug: {
+					  code: drug.clinicalDrug.cd.code.value.value,
+					  codeSystem: drug.clinicalDrug.cd.codeSystem.value.value
+				  },
+				  startTime: drug.startTime ? drug.startTime.ts.originalText.value : null,
+				  endTime: drug.endTime ? drug.endTime.ts.originalText.value : null
+			  });
+		  } else if(doc.AdministrativeDiagnosis) {
+			  var diagnosis = doc.AdministrativeDiagnosis;
+			  var id = patientId(diagnosis);
+			
+			  emit([id, 3], {
+				  patientId: id,
+				  code: diagnosis.key.cd.code.value.value
+			  });
+		  }
+	 }
+	 */
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * A read-through cache of the lab, drug and diagnosis rows of patients,
+ * keyed by view and patient id, so that patients extracted again in the
+ * same JVM -- when several measures are evaluated in turn, for example --
+ * are not queried again. Patients with no rows in a view are cached too,
+ * as empty lists.
+ * <p>
+ * The cache is bounded by the estimated heap size of the rows it holds,
+ * and evicts the least recently used patients first.
+ */
+public class ClinicalDataCache {
+	
+	public static final long DEFAULT_MAXIMUM_SIZE = 64L * 1024 * 1024;
+	
+	//a guess at the overhead of one entry: key, map entry and list
+	private static final int ENTRY_SIZE = 128;
+	
+	private final long maximumSize;
+	
+	private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+	
+	private long size;
+	
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * Instantiates a new clinical data cache of the default size.
+	 */
+	public ClinicalDataCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+	
+	/**
+	 * Instantiates a new clinical data cache.
+	 *
+	 * @param maximumSize the maximum estimated size, in bytes
+	 */
+	public ClinicalDataCache(long maximumSize) {
+		super();
+		if(maximumSize < 0){
+			throw new IllegalArgumentException("Maximum size must not be negative.");
+		}
+		this.maximumSize = maximumSize;
+	}
+	
+	/**
+	 * Gets the cached rows of a patient.
+	 *
+	 * @param <R> the row type of the view
+	 * @param view the view
+	 * @param patientId the patient id
+	 * @return the rows -- empty if the patient has none -- or null if not cached
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <R extends ViewRow> List<R> get(String view, String patientId) {
+		Entry entry = this.entries.get(new Key(view, patientId));
+		if(entry == null){
+			this.missCount++;
+			return null;
+		} else {
+			this.hitCount++;
+			return (List<R>) entry.rows;
+		}
+	}
+	
+	/**
+	 * Caches the rows of a patient, evicting others if the cache is full. Rows
+	 * larger than the whole cache are not kept.
+	 *
+	 * @param view the view
+	 * @param patientId the patient id
+	 * @param rows the rows, or an empty list if the patient has none
+	 */
+	public synchronized void put(String view, String patientId, List<? extends ViewRow> rows) {
+		Key key = new Key(view, patientId);
+		
+		int entrySize = ENTRY_SIZE + ViewRow.estimateSize(patientId);
+		for(ViewRow row : rows){
+			entrySize += row.getEstimatedSize();
+		}
+		
+		Entry previous = this.entries.remove(key);
+		if(previous != null){
+			this.size -= previous.size;
+		}
+		
+		if(entrySize > this.maximumSize){
+			return;
+		}
+		
+		this.entries.put(key, new Entry(Collections.unmodifiableList(new ArrayList<ViewRow>(rows)), entrySize));
+		this.size += entrySize;
+		
+		Iterator<Entry> itr = this.entries.values().iterator();
+		while(this.size > this.maximumSize && itr.hasNext()){
+			this.size -= itr.next().size;
+			itr.remove();
+			this.evictionCount++;
+		}
+	}
+	
+	/**
+	 * Removes the rows of the given patients from every view, for example
+	 * those found changed by {@link CemdbCouchDbDao#getChangedPatients(CheckpointStore)}.
+	 *
+	 * @param patientIds the patient ids
+	 */
+	public synchronized void invalidate(Collection<String> patientIds) {
+		Iterator<Map.Entry<Key,Entry>> itr = this.entries.entrySet().iterator();
+		while(itr.hasNext()){
+			Map.Entry<Key,Entry> entry = itr.next();
+			if(patientIds.contains(entry.getKey().patientId)){
+				this.size -= entry.getValue().size;
+				itr.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Removes everything. The statistics are kept.
+	 */
+	public synchronized void invalidateAll() {
+		this.entries.clear();
+		this.size = 0;
+	}
+
+	/**
+	 * Gets the maximum estimated size of the cached rows.
+	 *
+	 * @return the maximum size, in bytes
+	 */
+	public long getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * Gets the estimated size of the cached rows.
+	 *
+	 * @return the size, in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of (view, patient) entries cached.
+	 *
+	 * @return the entry count
+	 */
+	public synchronized int getEntryCount() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Gets the number of lookups that found cached rows.
+	 *
+	 * @return the hit count
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Gets the number of lookups that found no cached rows.
+	 *
+	 * @return the miss count
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Gets the number of entries evicted to stay within the maximum size.
+	 *
+	 * @return the eviction count
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+	
+	/**
+	 * Gets the fraction of lookups that were hits.
+	 *
+	 * @return the hit rate, or 0 before any lookup
+	 */
+	public synchronized double getHitRate() {
+		long lookups = this.hitCount + this.missCount;
+		return lookups == 0 ? 0 : (double) this.hitCount / lookups;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return "ClinicalDataCache [entries=" + this.entries.size() + 
+				", size=" + this.size + "/" + this.maximumSize + 
+				", hits=" + this.hitCount + 
+				", misses=" + this.missCount + 
+				", evictions=" + this.evictionCount + "]";
+	}
+	
+	/**
+	 * A view and patient id.
+	 */
+	private static final class Key {
+		
+		private final String view;
+		private final String patientId;
+		
+		private Key(String view, String patientId) {
+			super();
+			this.view = view;
+			this.patientId = patientId;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * ObjectUtils.hashCode(this.view) + ObjectUtils.hashCode(this.patientId);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj){
+				return true;
+			}
+			if(!(obj instanceof Key)){
+				return false;
+			}
+			Key other = (Key) obj;
+			return ObjectUtils.equals(this.view, other.view) && 
+					ObjectUtils.equals(this.patientId, other.patientId);
+		}
+		
+	}
+	
+	/**
+	 * The cached rows and their estimated size.
+	 */
+	private static final class Entry {
+		
+		private final List<? extends ViewRow> rows;
+		private final int size;
+		
+		private Entry(List<? extends ViewRow> rows, int size) {
+			super();
+			this.rows = rows;
+			this.size = size;
+		}
+		
+	}
+
+}
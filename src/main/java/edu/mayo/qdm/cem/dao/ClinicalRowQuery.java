@@ -0,0 +1,573 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Queries the lab, drug and diagnosis views of {@link CemdbCouchDbDao} for
+ * pages of patients, grouping the rows by patient id. The code filter and
+ * date window are applied as the rows stream in -- or pushed down to the
+ * [code, patientId] and [patientId, date] keyed views listed below -- and
+ * the clinical data cache, if set, is consulted before CouchDB.
+ */
+class ClinicalRowQuery {
+	
+	final static String DRUG_BY_PATIENT_ID_VIEW = 
+			"secondaryusenoteddrug/_design/drug_by_patient_id/_view/drug_by_patient_id";
+	
+	final static String LAB_BY_PATIENT_ID_VIEW = 
+			"secondaryusestandardlab/_design/lab_by_patient_id/_view/lab_by_patient_id";
+	
+	final static String DIAGNOSIS_BY_PATIENT_ID_VIEW = 
+			"administrativediagnosis/_design/diagnosis_by_patient_id/_view/diagnosis_by_patient_id";
+	
+	//[code, patientId] keyed views, for a pushed down CodeFilter
+	private final static String DRUG_BY_CODE_VIEW = 
+			"secondaryusenoteddrug/_design/drug_by_code_and_patient_id/_view/drug_by_code_and_patient_id";
+	
+	private final static String LAB_BY_CODE_VIEW = 
+			"secondaryusestandardlab/_design/lab_by_code_and_patient_id/_view/lab_by_code_and_patient_id";
+	
+	private final static String DIAGNOSIS_BY_CODE_VIEW = 
+			"administrativediagnosis/_design/diagnosis_by_code_and_patient_id/_view/diagnosis_by_code_and_patient_id";
+	
+	//[patientId, date] keyed views, for a pushed down DateWindow
+	private final static String DRUG_BY_DATE_VIEW = 
+			"secondaryusenoteddrug/_design/drug_by_patient_id_and_start/_view/drug_by_patient_id_and_start";
+	
+	private final static String LAB_BY_DATE_VIEW = 
+			"secondaryusestandardlab/_design/lab_by_patient_id_and_date/_view/lab_by_patient_id_and_date";
+	
+	private final static ClinicalViews<LabRow> LAB_VIEWS = new ClinicalViews<LabRow>(
+			LAB_BY_PATIENT_ID_VIEW, LAB_BY_CODE_VIEW, LAB_BY_DATE_VIEW, true, CemDbUtils.LOINC, LabRow.READER);
+	
+	private final static ClinicalViews<DrugRow> DRUG_VIEWS = new ClinicalViews<DrugRow>(
+			DRUG_BY_PATIENT_ID_VIEW, DRUG_BY_CODE_VIEW, DRUG_BY_DATE_VIEW, false, CemDbUtils.RXNORM, DrugRow.READER);
+	
+	private final static ClinicalViews<DiagnosisRow> DIAGNOSIS_VIEWS = new ClinicalViews<DiagnosisRow>(
+			DIAGNOSIS_BY_PATIENT_ID_VIEW, DIAGNOSIS_BY_CODE_VIEW, null, true, CemDbUtils.SNOMEDCT, DiagnosisRow.READER);
+	
+	private final static String STARTKEY_PARAM = "startkey";
+	private final static String ENDKEY_PARAM = "endkey";
+	
+	//collates after any other character of a key string
+	private final static String LAST_CHARACTER = "\ufff0";
+	
+	private final CouchDbClient couchDbClient;
+	
+	private volatile ExecutorService executorService;
+	
+	private volatile ClinicalDataCache clinicalDataCache;
+	
+	/**
+	 * Instantiates a new clinical row query.
+	 *
+	 * @param couchDbClient the couch db client
+	 */
+	ClinicalRowQuery(CouchDbClient couchDbClient) {
+		super();
+		this.couchDbClient = couchDbClient;
+	}
+	
+	/**
+	 * Queries the views of the given categories for the given patients --
+	 * concurrently, if an executor has been set.
+	 *
+	 * @param ids the patient ids
+	 * @param categories the categories of clinical data to load
+	 * @param filter the code filter, or null
+	 * @param window the date window, or null
+	 * @return the clinical rows
+	 */
+	ClinicalRows getClinicalRows(final Set<String> ids, Set<DataCategory> categories, 
+			final CodeFilter filter, final DateWindow window) {
+		ClinicalRows rows = new ClinicalRows();
+		
+		ExecutorService executor = this.executorService;
+		if(executor != null){
+			Future<Map<String, List<LabRow>>> labs = null;
+			Future<Map<String, List<DrugRow>>> drugs = null;
+			Future<Map<String, List<DiagnosisRow>>> diagnoses = null;
+			
+			try {
+				if(categories.contains(DataCategory.LABS)){
+					labs = executor.submit(
+						new Callable<Map<String, List<LabRow>>>(){
+							@Override
+							public Map<String, List<LabRow>> call() {
+								return getRowsByPatient(LAB_VIEWS, ids, filter, window);
+							}
+						});
+				}
+				if(categories.contains(DataCategory.MEDICATIONS)){
+					drugs = executor.submit(
+						new Callable<Map<String, List<DrugRow>>>(){
+							@Override
+							public Map<String, List<DrugRow>> call() {
+								return getRowsByPatient(DRUG_VIEWS, ids, filter, window);
+							}
+						});
+				}
+				if(categories.contains(DataCategory.DIAGNOSES)){
+					diagnoses = executor.submit(
+						new Callable<Map<String, List<DiagnosisRow>>>(){
+							@Override
+							public Map<String, List<DiagnosisRow>> call() {
+								return getRowsByPatient(DIAGNOSIS_VIEWS, ids, filter, window);
+							}
+						});
+				}
+			
+				if(labs != null){
+					rows.labs = getResult(labs);
+				}
+				if(drugs != null){
+					rows.drugs = getResult(drugs);
+				}
+				if(diagnoses != null){
+					rows.diagnoses = getResult(diagnoses);
+				}
+			} finally {
+				cancel(labs);
+				cancel(drugs);
+				cancel(diagnoses);
+			}
+		} else {
+			if(categories.contains(DataCategory.LABS)){
+				rows.labs = this.getRowsByPatient(LAB_VIEWS, ids, filter, window);
+			}
+			if(categories.contains(DataCategory.MEDICATIONS)){
+				rows.drugs = this.getRowsByPatient(DRUG_VIEWS, ids, filter, window);
+			}
+			if(categories.contains(DataCategory.DIAGNOSES)){
+				rows.diagnoses = this.getRowsByPatient(DIAGNOSIS_VIEWS, ids, filter, window);
+			}
+		}
+		
+		return rows;
+	}
+	
+	/**
+	 * Cancels a future, if one was submitted.
+	 *
+	 * @param future the future, or null
+	 */
+	private static void cancel(Future<?> future) {
+		if(future != null){
+			future.cancel(true);
+		}
+	}
+	
+	/**
+	 * Waits for the result of a concurrent view query, rethrowing any failure.
+	 *
+	 * @param <R> the result type
+	 * @param future the future
+	 * @return the result
+	 */
+	private static <R> R getResult(Future<R> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Gets the lab rows of the given patients.
+	 *
+	 * @param patientIds the patient ids
+	 * @param filter the code filter, or null
+	 * @param window the date window, or null
+	 * @return the lab rows by patient id
+	 */
+	Map<String,List<LabRow>> getLabRows(Collection<String> patientIds, CodeFilter filter, DateWindow window) {
+		return this.getRowsByPatient(LAB_VIEWS, patientIds, filter, window);
+	}
+	
+	/**
+	 * Gets the diagnosis rows of the given patients.
+	 *
+	 * @param patientIds the patient ids
+	 * @param filter the code filter, or null
+	 * @param window the date window, or null
+	 * @return the diagnosis rows by patient id
+	 */
+	Map<String,List<DiagnosisRow>> getDiagnosisRows(Collection<String> patientIds, CodeFilter filter, DateWindow window) {
+		return this.getRowsByPatient(DIAGNOSIS_VIEWS, patientIds, filter, window);
+	}
+	
+	/**
+	 * Gets the drug rows of the given patients.
+	 *
+	 * @param patientIds the patient ids
+	 * @param filter the code filter, or null
+	 * @param window the date window, or null
+	 * @return the drug rows by patient id
+	 */
+	Map<String,List<DrugRow>> getDrugRows(Collection<String> patientIds, CodeFilter filter, DateWindow window) {
+		return this.getRowsByPatient(DRUG_VIEWS, patientIds, filter, window);
+	}
+	
+	/**
+	 * Gets the rows of the given patients for a category of clinical data,
+	 * keeping only those within the filter and window. A pushed down window
+	 * queries the [patientId, date] keyed view with a range per patient (if
+	 * the page is within the window's patient limit), and a pushed down filter
+	 * the [code, patientId] keyed view (if the window is not pushed down as
+	 * well, and the page is within the filter's key limit); either bypasses
+	 * the cache.
+	 *
+	 * @param <R> the row type
+	 * @param views the views of the category
+	 * @param patientIds the patient ids
+	 * @param filter the code filter, or null
+	 * @param window the date window, or null
+	 * @return the rows by patient id
+	 */
+	private <R extends ViewRow & ClinicalRow> Map<String,List<R>> getRowsByPatient(
+			ClinicalViews<R> views, 
+			Collection<String> patientIds, 
+			CodeFilter filter,
+			DateWindow window) {
+		Set<String> codes = filter == null ? null : filter.getCodes(views.codeSystem);
+		if((codes != null && codes.isEmpty()) || patientIds.isEmpty()){
+			return new HashMap<String,List<R>>();
+		}
+		
+		if(window != null && window.isPushdown(patientIds.size()) && views.dateView != null){
+			List<Map<String,String>> ranges = new ArrayList<Map<String,String>>(patientIds.size());
+			for(String patientId : patientIds){
+				ranges.add(this.getDateRangeParams(views, patientId, window));
+			}
+			
+			final Map<String,List<R>> rows = new HashMap<String,List<R>>();
+			this.couchDbClient.queryViewRanges(views.dateView, ranges, views.reader, 
+					new RowGrouper<R>(rows, codes, window));
+			
+			return rows;
+		}
+		
+		if(codes != null && filter.isPushdown(codes.size(), patientIds.size())){
+			List<List<String>> keys = new ArrayList<List<String>>(codes.size() * patientIds.size());
+			for(String code : codes){
+				for(String patientId : patientIds){
+					keys.add(Arrays.asList(code, patientId));
+				}
+			}
+			
+			return this.queryRowsByPatient(views.codeView, keys, views.reader, null, window);
+		}
+		
+		return this.getRowsByPatient(views.view, patientIds, views.reader, codes, window);
+	}
+	
+	/**
+	 * Gets the params of the range of a patient's rows in a [patientId, date]
+	 * keyed view that may fall within a window. Rows of drugs started before
+	 * the window may still overlap it, so only their end is bounded.
+	 *
+	 * @param views the views of the category
+	 * @param patientId the patient id
+	 * @param window the date window
+	 * @return the params
+	 */
+	private Map<String,String> getDateRangeParams(ClinicalViews<?> views, String patientId, DateWindow window) {
+		Map<String,String> params = new HashMap<String,String>();
+		
+		//[id] collates before, and [id, {}] after, every [id, date] key
+		if(views.isDateOfEvent && window.getFirstDay() != null){
+			params.put(STARTKEY_PARAM, this.couchDbClient.toJson(Arrays.asList(patientId, window.getFirstDay())));
+		} else {
+			params.put(STARTKEY_PARAM, this.couchDbClient.toJson(Arrays.asList(patientId)));
+		}
+		if(window.getLastDay() != null){
+			//any time of the last day collates before the day followed by LAST_CHARACTER
+			params.put(ENDKEY_PARAM, this.couchDbClient.toJson(Arrays.asList(patientId, window.getLastDay() + LAST_CHARACTER)));
+		} else {
+			params.put(ENDKEY_PARAM, this.couchDbClient.toJson(Arrays.asList(patientId, Collections.emptyMap())));
+		}
+		
+		return params;
+	}
+	
+	/**
+	 * Query a *_by_patient_id view, grouping the rows by patient id.
+	 * If a cache is set, only the patients not already cached are queried.
+	 *
+	 * @param <R> the row type
+	 * @param view the view
+	 * @param patientIds the patient ids
+	 * @param reader the row reader
+	 * @param codes the codes to keep, or null for all
+	 * @param window the date window, or null
+	 * @return the rows by patient id
+	 */
+	private <R extends ViewRow & ClinicalRow> Map<String,List<R>> getRowsByPatient(
+			String view, 
+			Collection<String> patientIds, 
+			CouchDbClient.RowReader<R> reader,
+			Set<String> codes,
+			DateWindow window) {
+		ClinicalDataCache cache = this.clinicalDataCache;
+		if(cache == null){
+			return this.queryRowsByPatient(view, patientIds, reader, codes, window);
+		}
+		
+		Map<String,List<R>> rows = new HashMap<String,List<R>>();
+		RowGrouper<R> grouper = new RowGrouper<R>(rows, codes, window);
+		
+		Set<String> missedIds = new LinkedHashSet<String>();
+		for(String patientId : patientIds){
+			List<R> cached = cache.get(view, patientId);
+			if(cached == null){
+				missedIds.add(patientId);
+			} else {
+				for(R row : cached){
+					grouper.row(row);
+				}
+			}
+		}
+		
+		if(! missedIds.isEmpty()){
+			//the cache holds every row, so that any filter may be applied to it
+			Map<String,List<R>> queried = this.queryRowsByPatient(view, missedIds, reader, null, null);
+			for(String patientId : missedIds){
+				List<R> patientRows = queried.get(patientId);
+				if(patientRows == null){
+					cache.put(view, patientId, Collections.<R>emptyList());
+				} else {
+					cache.put(view, patientId, patientRows);
+					for(R row : patientRows){
+						grouper.row(row);
+					}
+				}
+			}
+		}
+		
+		return rows;
+	}
+	
+	/**
+	 * Query a view of clinical data, grouping the rows by patient id and
+	 * dropping those outside the codes and window as they are read.
+	 *
+	 * @param <R> the row type
+	 * @param view the view
+	 * @param keys the keys
+	 * @param reader the row reader
+	 * @param codes the codes to keep, or null for all
+	 * @param window the date window, or null
+	 * @return the rows by patient id
+	 */
+	private <R extends ViewRow & ClinicalRow> Map<String,List<R>> queryRowsByPatient(
+			String view, 
+			Collection<?> keys, 
+			CouchDbClient.RowReader<R> reader, 
+			Set<String> codes,
+			DateWindow window) {
+		Map<String,List<R>> rows = new HashMap<String,List<R>>();
+
+		this.couchDbClient.queryView(view, keys, null, reader, new RowGrouper<R>(rows, codes, window));
+		
+		return rows;
+	}
+	
+	/**
+	 * Groups rows of clinical data by patient id, dropping those
+	 * outside the codes and window.
+	 *
+	 * @param <R> the row type
+	 */
+	private static class RowGrouper<R extends ClinicalRow> implements CouchDbClient.RowHandler<R> {
+		
+		private final Map<String,List<R>> rows;
+		private final Set<String> codes;
+		private final DateWindow window;
+		
+		private RowGrouper(Map<String,List<R>> rows, Set<String> codes, DateWindow window) {
+			super();
+			this.rows = rows;
+			this.codes = codes;
+			this.window = window;
+		}
+
+		@Override
+		public void row(R row) {
+			if(this.codes != null && ! this.codes.contains(row.getCode())){
+				return;
+			}
+			if(this.window != null && ! row.isWithin(this.window)){
+				return;
+			}
+			
+			List<R> patientRows = this.rows.get(row.getPatientId());
+			if(patientRows == null){
+				patientRows = new ArrayList<R>();
+				this.rows.put(row.getPatientId(), patientRows);
+			}
+			patientRows.add(row);
+		}
+		
+	}
+	
+	/**
+	 * The views of one category of clinical data.
+	 *
+	 * @param <R> the row type
+	 */
+	private static final class ClinicalViews<R extends ViewRow & ClinicalRow> {
+		
+		private final String view;
+		private final String codeView;
+		private final String dateView;
+		private final boolean isDateOfEvent;
+		private final String codeSystem;
+		private final CouchDbClient.RowReader<R> reader;
+		
+		/**
+		 * Instantiates the views of a category.
+		 *
+		 * @param view the *_by_patient_id view
+		 * @param codeView the [code, patientId] keyed view
+		 * @param dateView the [patientId, date] keyed view, or null if undated
+		 * @param isDateOfEvent whether the date is of the whole event, rather than its start
+		 * @param codeSystem the code system of the rows
+		 * @param reader the row reader
+		 */
+		private ClinicalViews(String view, String codeView, String dateView, boolean isDateOfEvent, 
+				String codeSystem, CouchDbClient.RowReader<R> reader) {
+			super();
+			this.view = view;
+			this.codeView = codeView;
+			this.dateView = dateView;
+			this.isDateOfEvent = isDateOfEvent;
+			this.codeSystem = codeSystem;
+			this.reader = reader;
+		}
+		
+	}
+	
+	/**
+	 * Gets the executor used to query the views concurrently.
+	 *
+	 * @return the executor service, or null if queried sequentially
+	 */
+	ExecutorService getExecutorService() {
+		return executorService;
+	}
+
+	/**
+	 * Sets the executor used to query the views concurrently.
+	 *
+	 * @param executorService the executor service, or null to query sequentially
+	 */
+	void setExecutorService(ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	/**
+	 * Gets the clinical data cache.
+	 *
+	 * @return the cache, or null if none
+	 */
+	ClinicalDataCache getClinicalDataCache() {
+		return clinicalDataCache;
+	}
+
+	/**
+	 * Sets the clinical data cache.
+	 *
+	 * @param clinicalDataCache the cache, or null for none
+	 */
+	void setClinicalDataCache(ClinicalDataCache clinicalDataCache) {
+		this.clinicalDataCache = clinicalDataCache;
+	}
+	
+	/*
+	 * The [code, patientId] keyed views, for a pushed down CodeFilter. Each
+	 * lives in the database of its *_by_patient_id view, and emits the same
+	 * values; 'lab_by_code_and_patient_id' is shown, and the drug and diagnosis
+	 * views key on 'clinicalDrug.cd' and 'key.cd' in the same way.
+	 */
+	/*
+	 function(doc) {
+		  var lab = doc.SecondaryUseStandardLab;
+		  var patientId = lab.patientExternalId[0].ii.extension.value;
+		  var code = lab.key.cd.code.value.value;
+		
+		  emit([code, patientId], {
+			  patientId: patientId,
+			  labResultCode: code,
+			  collectionDate: lab.collectionDate.ts.originalText.value,
+			  unit: lab.data.pq.unit.value,
+			  value: lab.data.pq.value.value
+		  });
+	 }
+	 */
+	
+	/*
+	 * The [patientId, date] keyed views, for a pushed down DateWindow. Like
+	 * the [code, patientId] views, they live beside the *_by_patient_id views
+	 * and emit the same values. 'lab_by_patient_id_and_date' is keyed on the
+	 * collection date, and 'drug_by_patient_id_and_start' on the start time:
+	 */
+	/*
+	 function(doc) {
+		  var drug = doc.SecondaryUseNotedDrug;
+		  var patientId = drug.patientExternalId[0].ii.extension.value;
+		  var startTime = drug.startTime ? drug.startTime.ts.originalText.value : null;
+		
+		  emit([patientId, startTime], {
+			  patientId: patientId,
+			  clinicalDrug: {
+				  code: drug.clinicalDrug.cd.code.value.value,
+				  codeSystem: drug.clinicalDrug.cd.codeSystem.value.value
+			  },
+			  startTime: startTime,
+			  endTime: drug.endTime ? drug.endTime.ts.originalText.value : null
+		  });
+	 }
+	 */
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lab, drug and diagnosis rows of a page of patients, by patient id,
+ * as queried by {@link ClinicalRowQuery}. Categories not queried are left empty.
+ */
+class ClinicalRows {
+	
+	Map<String, List<LabRow>> labs = Collections.emptyMap();
+	Map<String, List<DrugRow>> drugs = Collections.emptyMap();
+	Map<String, List<DiagnosisRow>> diagnoses = Collections.emptyMap();
+	
+	/**
+	 * Adds the rows of other patients.
+	 *
+	 * @param rows the rows, which are taken over, of patients not already here
+	 */
+	void addAll(ClinicalRows rows) {
+		this.labs = merge(this.labs, rows.labs);
+		this.drugs = merge(this.drugs, rows.drugs);
+		this.diagnoses = merge(this.diagnoses, rows.diagnoses);
+	}
+	
+	private static <R> Map<String, List<R>> merge(Map<String, List<R>> rowsByPatient, Map<String, List<R>> more) {
+		if(rowsByPatient.isEmpty()){
+			return more;
+		}
+		
+		//not empty, so as queried and mutable
+		rowsByPatient.putAll(more);
+		
+		return rowsByPatient;
+	}
+	
+	/**
+	 * Gets a rough estimate of the heap held by the rows.
+	 *
+	 * @return the estimated size, in bytes
+	 */
+	long getEstimatedSize() {
+		return estimateSize(this.labs) + estimateSize(this.drugs) + estimateSize(this.diagnoses);
+	}
+	
+	private static long estimateSize(Map<String, ? extends List<? extends ViewRow>> rowsByPatient) {
+		long size = 0;
+		for(List<? extends ViewRow> rows : rowsByPatient.values()){
+			for(ViewRow row : rows){
+				size += row.getEstimatedSize();
+			}
+		}
+		
+		return size;
+	}
+
+}
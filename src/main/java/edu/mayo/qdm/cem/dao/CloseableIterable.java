@@ -0,0 +1,102 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * An Iterable of pages read ahead on background threads, which can be
+ * closed. Closing it closes every iterator it has returned, stopping their
+ * prefetch threads -- for consumers that stop iterating early:
+ *
+ * <pre>
+ * CloseableIterable&lt;Patient&gt; patients = dao.getPatients();
+ * try {
+ *     for(Patient patient : patients){ ... }
+ * } finally {
+ *     patients.close();
+ * }
+ * </pre>
+ *
+ * An iterator that is abandoned without being closed stops its thread once
+ * it is garbage collected, so closing is not required -- but it releases
+ * the pages read ahead at once.
+ *
+ * @param <T> the generic type
+ */
+public class CloseableIterable<T> implements Iterable<T>, Closeable {
+
+	private final Iterable<T> iterable;
+
+	private final Set<Closeable> iterators = Collections.newSetFromMap(new WeakHashMap<Closeable,Boolean>());
+
+	/**
+	 * Instantiates a new closeable iterable.
+	 *
+	 * @param iterable the iterable, whose Closeable iterators are closed with it
+	 */
+	public CloseableIterable(Iterable<T> iterable) {
+		super();
+		this.iterable = iterable;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		Iterator<T> itr = this.iterable.iterator();
+
+		if(itr instanceof Closeable){
+			synchronized(this.iterators){
+				this.iterators.add((Closeable) itr);
+			}
+		}
+
+		return itr;
+	}
+
+	/**
+	 * Closes every iterator returned so far. Iterating them further is not supported.
+	 */
+	@Override
+	public void close() {
+		List<Closeable> open;
+		synchronized(this.iterators){
+			open = new ArrayList<Closeable>(this.iterators);
+			this.iterators.clear();
+		}
+
+		for(Closeable itr : open){
+			CouchDbClient.closeQuietly(itr);
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Restricts the clinical data of patients to the codes of a measure's value
+ * sets, by code system -- {@link CemDbUtils#LOINC} for labs,
+ * {@link CemDbUtils#RXNORM} for drugs and {@link CemDbUtils#SNOMEDCT} for
+ * diagnoses. Rows with other codes are dropped as they are read, before
+ * they are bound. A code system with no codes given is not restricted; to
+ * skip a category entirely, leave it out of the {@link DataCategory}
+ * projection instead.
+ * <p>
+ * If 'pushdown' is set, the filter is applied by CouchDB instead, by querying
+ * the [code, patientId] keyed views listed at the bottom of
+ * {@link ClinicalRowQuery} with every code of a page's patients. Those views
+ * must be loaded first. As that is one key per code and patient, a page is
+ * only pushed down while its keys stay within 'maxPushdownKeys'; larger
+ * pages fall back to filtering the rows as they are read.
+ */
+public class CodeFilter {
+	
+	private final Map<String,Set<String>> codes = new HashMap<String,Set<String>>();
+	
+	private final boolean isPushdown;
+	
+	private final int maxPushdownKeys;
+	
+	/** The default limit on the keys of a pushed down page -- 40 requests of 250 keys. */
+	public static final int DEFAULT_MAX_PUSHDOWN_KEYS = 10000;
+	
+	/**
+	 * Instantiates a new code filter, applied as the rows are read.
+	 *
+	 * @param codes the codes to keep, by code system
+	 */
+	public CodeFilter(Map<String,? extends Collection<String>> codes) {
+		this(codes, false);
+	}
+
+	/**
+	 * Instantiates a new code filter.
+	 *
+	 * @param codes the codes to keep, by code system
+	 * @param isPushdown whether to push the filter down to CouchDB
+	 */
+	public CodeFilter(Map<String,? extends Collection<String>> codes, boolean isPushdown) {
+		this(codes, isPushdown, DEFAULT_MAX_PUSHDOWN_KEYS);
+	}
+
+	/**
+	 * Instantiates a new code filter, pushed down to CouchDB for pages of
+	 * up to 'maxPushdownKeys' codes times patients.
+	 *
+	 * @param codes the codes to keep, by code system
+	 * @param isPushdown whether to push the filter down to CouchDB
+	 * @param maxPushdownKeys the most [code, patientId] keys to query for a page
+	 */
+	public CodeFilter(Map<String,? extends Collection<String>> codes, boolean isPushdown, int maxPushdownKeys) {
+		super();
+		for(Entry<String, ? extends Collection<String>> entry : codes.entrySet()){
+			this.codes.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<String>(entry.getValue())));
+		}
+		this.isPushdown = isPushdown;
+		this.maxPushdownKeys = maxPushdownKeys;
+	}
+	
+	/**
+	 * Checks if a code system is restricted.
+	 *
+	 * @param codeSystem the code system
+	 * @return true, if only some of its codes are kept
+	 */
+	public boolean isRestricted(String codeSystem) {
+		return this.codes.containsKey(codeSystem);
+	}
+	
+	/**
+	 * Gets the codes kept of a code system.
+	 *
+	 * @param codeSystem the code system
+	 * @return the codes, or null if the code system is not restricted
+	 */
+	public Set<String> getCodes(String codeSystem) {
+		return this.codes.get(codeSystem);
+	}
+	
+	/**
+	 * Checks if a code is kept.
+	 *
+	 * @param codeSystem the code system
+	 * @param code the code
+	 * @return true, if the code is kept
+	 */
+	public boolean accepts(String codeSystem, String code) {
+		Set<String> kept = this.codes.get(codeSystem);
+		
+		return kept == null || kept.contains(code);
+	}
+
+	/**
+	 * Checks if the filter is pushed down to CouchDB.
+	 *
+	 * @return true, if pushed down
+	 */
+	public boolean isPushdown() {
+		return isPushdown;
+	}
+
+	/**
+	 * Checks if the filter is pushed down for a page: only while its keys,
+	 * one per code and patient, stay within the limit.
+	 *
+	 * @param codeCount the codes kept of the page's code system
+	 * @param patientCount the patients of the page
+	 * @return true, if the page is to be filtered by CouchDB
+	 */
+	public boolean isPushdown(int codeCount, int patientCount) {
+		return this.isPushdown && (long) codeCount * patientCount <= this.maxPushdownKeys;
+	}
+
+	/**
+	 * Gets the most [code, patientId] keys queried for a pushed down page.
+	 *
+	 * @return the max pushdown keys
+	 */
+	public int getMaxPushdownKeys() {
+		return maxPushdownKeys;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("CodeFilter [");
+		for(Entry<String, Set<String>> entry : this.codes.entrySet()){
+			if(sb.length() > "CodeFilter [".length()){
+				sb.append(", ");
+			}
+			sb.append(entry.getKey()).append("=").append(entry.getValue().size()).append(" codes");
+		}
+		
+		return sb.append(this.isPushdown ? ", pushdown]" : "]").toString();
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports each measurement to several {@link ExtractionMetrics}, in order --
+ * JMX and JFR, for example. The token of a start hook holds the token of
+ * each of them.
+ */
+public class CompositeExtractionMetrics implements ExtractionMetrics {
+	
+	private final ExtractionMetrics[] metrics;
+	
+	/**
+	 * Instantiates a new composite extraction metrics.
+	 *
+	 * @param metrics the metrics to report to
+	 */
+	public CompositeExtractionMetrics(ExtractionMetrics... metrics) {
+		super();
+		this.metrics = metrics.clone();
+	}
+	
+	/**
+	 * Combines metrics, leaving out nulls and {@link ExtractionMetrics#NONE}.
+	 *
+	 * @param metrics the metrics
+	 * @return the combined metrics -- NONE if there are none, or the one there is
+	 */
+	public static ExtractionMetrics of(ExtractionMetrics... metrics) {
+		List<ExtractionMetrics> list = new ArrayList<ExtractionMetrics>();
+		for(ExtractionMetrics m : metrics){
+			if(m != null && m != NONE){
+				list.add(m);
+			}
+		}
+		
+		switch(list.size()){
+			case 0: return NONE;
+			case 1: return list.get(0);
+			default: return new CompositeExtractionMetrics(list.toArray(new ExtractionMetrics[list.size()]));
+		}
+	}
+
+	@Override
+	public Object viewStarted(String view) {
+		Object[] tokens = new Object[this.metrics.length];
+		for(int i=0;i<this.metrics.length;i++){
+			tokens[i] = this.metrics[i].viewStarted(view);
+		}
+		return tokens;
+	}
+
+	@Override
+	public void viewQueried(Object token, String view, int keys, int status, long bytes, int rows, long nanos) {
+		for(int i=0;i<this.metrics.length;i++){
+			this.metrics[i].viewQueried(getToken(token, i), view, keys, status, bytes, rows, nanos);
+		}
+	}
+
+	@Override
+	public Object pageFetchStarted(int position) {
+		Object[] tokens = new Object[this.metrics.length];
+		for(int i=0;i<this.metrics.length;i++){
+			tokens[i] = this.metrics[i].pageFetchStarted(position);
+		}
+		return tokens;
+	}
+
+	@Override
+	public void pageFetched(Object token, int position, int size, long nanos) {
+		for(int i=0;i<this.metrics.length;i++){
+			this.metrics[i].pageFetched(getToken(token, i), position, size, nanos);
+		}
+	}
+
+	@Override
+	public Object pageProcessStarted(int position) {
+		Object[] tokens = new Object[this.metrics.length];
+		for(int i=0;i<this.metrics.length;i++){
+			tokens[i] = this.metrics[i].pageProcessStarted(position);
+		}
+		return tokens;
+	}
+
+	@Override
+	public void pageProcessed(Object token, int position, int size, int items, long transformNanos, long decorateNanos) {
+		for(int i=0;i<this.metrics.length;i++){
+			this.metrics[i].pageProcessed(getToken(token, i), position, size, items, transformNanos, decorateNanos);
+		}
+	}
+	
+	/**
+	 * Gets the token of one of the metrics from a composite token.
+	 *
+	 * @param token the composite token, or null if the start was not announced
+	 * @param index the index of the metrics
+	 * @return the token
+	 */
+	private static Object getToken(Object token, int index) {
+		return token instanceof Object[] ? ((Object[]) token)[index] : null;
+	}
+
+	@Override
+	public void rowsBound(DataCategory category, int patients, int rows, long nanos) {
+		for(ExtractionMetrics m : this.metrics){
+			m.rowsBound(category, patients, rows, nanos);
+		}
+	}
+
+}
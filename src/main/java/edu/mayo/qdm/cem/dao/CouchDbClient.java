@@ -23,49 +23,127 @@
  */
 package edu.mayo.qdm.cem.dao;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
 import java.io.StringWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * The main CouchDb REST Client.
  *
  * @author <a href="mailto:kevin.peterson@mayo.edu">Kevin Peterson</a>
  */
-public class CouchDbClient {
+public class CouchDbClient implements Closeable {
 	
 	protected final Logger log = Logger.getLogger(getClass());
 
 	private final ObjectMapper objectMapper = new ObjectMapper();
+	
+	private final RowReader<Map<String,Object>> mapReader = new RowReader<Map<String,Object>>(){
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Map<String, Object> read(JsonParser parser) throws IOException {
+			return objectMapper.readValue(parser, HashMap.class);
+		}
+		
+	};
 
 	private String couchDbUrl;
 	
 	private static final String DEFAULT_URL = "http://10.148.2.153:5984";
 	
+	private static final String COUCH_DB_URL_ENV = "COUCHDB_URL";
+	
 	private static final String COUCH_DB_PASSWORD_ENV = "COUCHDB_PASSWORD";
 	
     private final static String KEYS_PARAM = "keys";
+    private final static String LIMIT_PARAM = "limit";
+    private final static String SKIP_PARAM = "skip";
+    
+    public final static int DEFAULT_KEY_CHUNK_SIZE = 250;
+    public final static int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    
+    private final static String ROWS_FIELD = "rows";
+    private final static String RESULTS_FIELD = "results";
+    private final static String LAST_SEQ_FIELD = "last_seq";
+    
+    private final static String CHANGES_PATH = "/_changes";
+    private final static String SINCE_PARAM = "since";
+    private final static String INCLUDE_DOCS_PARAM = "include_docs";
+    
+    private final static String CHARSET = "UTF-8";
     
     private final static String USERNAME = "htpuser";
     private String password;
     
+    private final static String AUTHORIZATION_HEADER = "Authorization";
+    private final static String CONTENT_TYPE_HEADER = "Content-Type";
+    private final static String JSON_CONTENT_TYPE = "application/json";
+    private final static String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private final static String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    private final static String GZIP_ENCODING = "gzip";
+    private final static String DEFLATE_ENCODING = "deflate";
+    private final static String ACCEPTED_ENCODINGS = GZIP_ENCODING + ", " + DEFLATE_ENCODING;
+    
+    private final Map<String,String> headers = new HashMap<String,String>();
+    
+    private CouchDbTransport transport = new PooledHttpTransport();
+    
+    //whether the transport and executor were created here, and so are closed here
+    private boolean isOwnTransport = true;
+    private boolean isOwnExecutorService = false;
+    
+    private boolean compressResponses = true;
+    
+    private boolean compressRequests = false;
+    
+    private int keyChunkSize = DEFAULT_KEY_CHUNK_SIZE;
+    
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    
+    private ExecutorService executorService;
+    
+    private volatile ExtractionMetrics extractionMetrics = ExtractionMetrics.NONE;
+    
 	/**
-	 * Instantiates a new couch db client.
+	 * Instantiates a new couch db client, for the url given by the COUCHDB_URL
+	 * system property or environment variable -- or the default CouchDB.
 	 */
 	protected CouchDbClient() {
-		this(DEFAULT_URL);
+		this(getDefaultUrl());
 	}
 
 	/**
@@ -84,6 +162,79 @@ public class CouchDbClient {
 		}
 		
 		this.password = StringUtils.trim(password);
+		
+		if(this.password != null){
+			String userPassword = USERNAME + ":" + this.password;
+			this.headers.put(AUTHORIZATION_HEADER, 
+					"Basic " + Base64.encodeBase64String(userPassword.getBytes()));
+		}
+	}
+	
+	/**
+	 * Gets the url of the CouchDB to use when none is given.
+	 *
+	 * @return the url
+	 */
+	private static String getDefaultUrl() {
+		String url = System.getProperty(COUCH_DB_URL_ENV);
+		
+		if(StringUtils.isBlank(url)){
+			url = System.getenv(COUCH_DB_URL_ENV);
+		}
+		
+		return StringUtils.isBlank(url) ? DEFAULT_URL : StringUtils.trim(url);
+	}
+
+	/**
+	 * Receives the rows of a view result one at a time, as they are
+	 * read off of the wire. Each row is only referenced for the duration
+	 * of the call, so memory use is bounded by the size of a single row.
+	 */
+	protected interface RowCallback {
+		
+		/**
+		 * Called once per view row, in the order returned by CouchDB.
+		 *
+		 * @param row the row
+		 */
+		public void row(Map<String, Object> row);
+		
+	}
+	
+	/**
+	 * Binds a single view row off of the JSON token stream. Implementations
+	 * are stateless, and may be shared between threads.
+	 *
+	 * @param <R> the row type
+	 */
+	protected interface RowReader<R> {
+		
+		/**
+		 * Reads a row. The parser is positioned on the START_OBJECT of the row,
+		 * and must be left on its END_OBJECT.
+		 *
+		 * @param parser the parser
+		 * @return the row
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public R read(JsonParser parser) throws IOException;
+		
+	}
+	
+	/**
+	 * Receives rows bound by a {@link RowReader}, as they are read off of the wire.
+	 *
+	 * @param <R> the row type
+	 */
+	protected interface RowHandler<R> {
+		
+		/**
+		 * Called once per view row, in the order returned by CouchDB.
+		 *
+		 * @param row the row
+		 */
+		public void row(R row);
+		
 	}
 
 	/**
@@ -95,69 +246,664 @@ public class CouchDbClient {
 	 * @return the map
 	 */
 	@SuppressWarnings("unchecked")
-	protected Map<String, Object> queryView(String view, Collection<String> keys, Map<String,String> params) {
-
+	protected Map<String, Object> queryView(String view, Collection<?> keys, Map<String,String> params) {
+		ViewMeasurement measurement = new ViewMeasurement(view, keys, this.extractionMetrics);
+		CouchDbTransport.Response response = null;
 		try {
-			URL url = new URL(this.couchDbUrl + "/" + view + this.paramsToString(params));
-			log.debug("Calling: " + url.toString() + " Keys: " + keys);
+			response = this.openView(view, keys, params, measurement);
+
+			Map<String, Object> returnMap =  (Map<String, Object>) this.objectMapper.readValue(this.getBody(response), HashMap.class);
 			
-			InputStream in;
-			HttpURLConnection conn = (HttpURLConnection) this.getURLConnection(url, USERNAME, password);
-			if(keys != null && keys.size() > 0){
-				conn.setDoOutput(true);
-				conn.setRequestMethod("POST");
-				conn.setRequestProperty("Content-Type", "application/json");
-		 
-				Map<String,Collection<String>> map = new HashMap<String,Collection<String>>();
-				map.put(KEYS_PARAM, keys);
-				
-				StringWriter sw = new StringWriter();
-				this.objectMapper.writeValue(sw, map);
-				
-				OutputStream os = conn.getOutputStream();
-				os.write(sw.toString().getBytes());
-				os.flush();
-				
-				in = conn.getInputStream();
-			} else {
-				in = conn.getInputStream();
+			Object rows = returnMap.get(ROWS_FIELD);
+			if(rows instanceof Collection){
+				measurement.rows = ((Collection<?>) rows).size();
 			}
-
-			Map<String, Object> returnMap =  (Map<String, Object>) this.objectMapper.readValue(in, HashMap.class);
 		
 			return returnMap;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
+		} finally {
+			closeQuietly(response);
+			measurement.report();
 		}
 	}
+	
+	/**
+	 * Query view, streaming the 'rows' of the result to the callback as they
+	 * are parsed instead of materializing the whole response.
+	 * 
+	 * Large key sets are split into chunks of at most 'keyChunkSize' keys
+	 * which are queried concurrently, up to 'maxConcurrentRequests' at a time.
+	 * Either way, rows are delivered on the calling thread in key order.
+	 *
+	 * @param view the view
+	 * @param keys the keys: Strings, or Lists for compound keys
+	 * @param params the params
+	 * @param callback the row callback
+	 */
+	protected void queryView(String view, Collection<?> keys, Map<String,String> params, final RowCallback callback) {
+		this.queryView(view, keys, params, this.mapReader, new RowHandler<Map<String,Object>>(){
 
-	private URLConnection getURLConnection(
-			URL url, 
-			String username,
-			String password) {
-		String userPassword = username + ":" + password;
-		String encoding = new sun.misc.BASE64Encoder().encode(userPassword.getBytes());
-		URLConnection uc;
+			@Override
+			public void row(Map<String, Object> row) {
+				callback.row(row);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Query view, binding each row with the given reader and streaming it
+	 * to the handler. Chunking and ordering are as for
+	 * {@link #queryView(String, Collection, Map, RowCallback)}.
+	 *
+	 * @param <R> the row type
+	 * @param view the view
+	 * @param keys the keys
+	 * @param params the params
+	 * @param reader the row reader
+	 * @param handler the row handler
+	 */
+	protected <R> void queryView(String view, Collection<?> keys, Map<String,String> params, RowReader<R> reader, RowHandler<R> handler) {
+		if(this.isChunked(keys, params)){
+			this.queryViewInChunks(view, keys, params, reader, handler);
+		} else {
+			this.queryViewOnce(view, keys, params, reader, handler);
+		}
+	}
+	
+	/**
+	 * Reads a page of the changes feed of a database since the given update
+	 * sequence, streaming each entry of its 'results' (with the changed document
+	 * included) to the handler. The feed is read to its end when fewer than
+	 * 'limit' changes are returned.
+	 *
+	 * @param <R> the change type
+	 * @param database the database
+	 * @param since the update sequence to start after, or "now" to read no changes
+	 * @param limit the most changes to read
+	 * @param reader the change reader
+	 * @param handler the change handler
+	 * @return the 'last_seq' of the page, to pass as 'since' for the next one
+	 */
+	protected <R> String queryChanges(String database, String since, int limit, RowReader<R> reader, RowHandler<R> handler) {
+		Map<String,String> params = new HashMap<String,String>();
+		params.put(SINCE_PARAM, since);
+		params.put(LIMIT_PARAM, Integer.toString(limit));
+		params.put(INCLUDE_DOCS_PARAM, "true");
+		
+		CouchDbTransport.Response response = null;
 		try {
-			uc = url.openConnection();
+			response = this.openView(database + CHANGES_PATH, null, params, null);
+			
+			Object lastSeq = this.readResult(this.getBody(response), RESULTS_FIELD, reader, handler).get(LAST_SEQ_FIELD);
+			if(lastSeq == null){
+				throw new IllegalStateException("No last_seq in the changes feed of: " + database);
+			}
+			
+			return lastSeq.toString();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			closeQuietly(response);
+		}
+	}
+	
+	/**
+	 * Gets a document -- or, with a 'rev' param, one revision of it, which
+	 * CouchDB keeps for deleted documents until the database is compacted.
+	 *
+	 * @param database the database
+	 * @param docId the document id
+	 * @param params the params
+	 * @return the document
+	 */
+	protected Map<String,Object> getDocument(String database, String docId, Map<String,String> params) {
+		try {
+			return this.queryView(database + "/" + URLEncoder.encode(docId, CHARSET), null, params);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Checks if a key set should be split. Paged queries are never split,
+	 * as 'limit' and 'skip' apply to the whole key set.
+	 *
+	 * @param keys the keys
+	 * @param params the params
+	 * @return true, if chunked
+	 */
+	private boolean isChunked(Collection<?> keys, Map<String,String> params) {
+		return this.keyChunkSize > 0 &&
+				keys != null && 
+				keys.size() > this.keyChunkSize &&
+				(params == null || 
+					(! params.containsKey(LIMIT_PARAM) && ! params.containsKey(SKIP_PARAM)));
+	}
+	
+	/**
+	 * Query view with one range request per set of params -- for example a
+	 * 'startkey'/'endkey' pair per patient. The requests are made as for key
+	 * chunks (see {@link #queryViewInChunks(String, Collection, Map, RowReader, RowHandler)}),
+	 * and rows are delivered on the calling thread in the order of the ranges.
+	 *
+	 * @param <R> the row type
+	 * @param view the view
+	 * @param ranges the params of each request
+	 * @param reader the row reader
+	 * @param handler the row handler
+	 */
+	protected <R> void queryViewRanges(String view, List<Map<String,String>> ranges, RowReader<R> reader, RowHandler<R> handler) {
+		List<ViewRequest> requests = new ArrayList<ViewRequest>(ranges.size());
+		for(Map<String,String> params : ranges){
+			requests.add(new ViewRequest(null, params));
+		}
+		
+		this.queryAll(view, requests, reader, handler);
+	}
+	
+	/**
+	 * Query view in chunks of keys. Up to 'maxConcurrentRequests' chunks are
+	 * in flight at once; the rows of each are buffered until all preceding
+	 * chunks have been delivered, so at most that many chunks are held in memory.
+	 *
+	 * @param <R> the row type
+	 * @param view the view
+	 * @param keys the keys
+	 * @param params the params
+	 * @param reader the row reader
+	 * @param handler the row handler
+	 */
+	private <R> void queryViewInChunks(String view, Collection<?> keys, Map<String,String> params, RowReader<R> reader, RowHandler<R> handler) {
+		List<ViewRequest> requests = new ArrayList<ViewRequest>();
+		
+		List<Object> chunk = new ArrayList<Object>(this.keyChunkSize);
+		for(Object key : keys){
+			chunk.add(key);
+			if(chunk.size() == this.keyChunkSize){
+				requests.add(new ViewRequest(chunk, params));
+				chunk = new ArrayList<Object>(this.keyChunkSize);
+			}
+		}
+		if(! chunk.isEmpty()){
+			requests.add(new ViewRequest(chunk, params));
+		}
+		
+		this.queryAll(view, requests, reader, handler);
+	}
+	
+	/**
+	 * Makes a number of requests to a view, up to 'maxConcurrentRequests' at
+	 * a time, delivering the rows of each in turn.
+	 *
+	 * @param <R> the row type
+	 * @param view the view
+	 * @param requests the requests
+	 * @param reader the row reader
+	 * @param handler the row handler
+	 */
+	private <R> void queryAll(final String view, List<ViewRequest> requests, final RowReader<R> reader, RowHandler<R> handler) {
+		if(this.maxConcurrentRequests <= 1){
+			for(ViewRequest request : requests){
+				this.queryViewOnce(view, request.keys, request.params, reader, handler);
+			}
+			
+			return;
+		}
+		
+		ExecutorService executor = this.getExecutorService();
+		Deque<Future<List<R>>> inFlight = new ArrayDeque<Future<List<R>>>();
+		try {
+			for(final ViewRequest request : requests){
+				if(inFlight.size() >= this.maxConcurrentRequests){
+					deliver(inFlight.removeFirst(), handler);
+				}
+				
+				inFlight.addLast(executor.submit(new Callable<List<R>>(){
+
+					@Override
+					public List<R> call() {
+						final List<R> rows = new ArrayList<R>();
+						
+						queryViewOnce(view, request.keys, request.params, reader, new RowHandler<R>(){
+							@Override
+							public void row(R row) {
+								rows.add(row);
+							}
+						});
+						
+						return rows;
+					}
+					
+				}));
+			}
+			
+			while(! inFlight.isEmpty()){
+				deliver(inFlight.removeFirst(), handler);
+			}
+		} finally {
+			for(Future<?> future : inFlight){
+				future.cancel(true);
+			}
+		}
+	}
+	
+	/**
+	 * The keys and params of one request to a view.
+	 */
+	private static class ViewRequest {
+		
+		private final Collection<?> keys;
+		private final Map<String,String> params;
+		
+		private ViewRequest(Collection<?> keys, Map<String,String> params) {
+			super();
+			this.keys = keys;
+			this.params = params;
+		}
+		
+	}
+	
+	/**
+	 * Waits for a chunk and hands its rows to the handler.
+	 *
+	 * @param <R> the row type
+	 * @param future the chunk
+	 * @param handler the handler
+	 */
+	private static <R> void deliver(Future<List<R>> future, RowHandler<R> handler) {
+		List<R> rows;
+		try {
+			rows = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		
+		for(R row : rows){
+			handler.row(row);
+		}
+	}
+	
+	/**
+	 * Query view with a single request.
+	 *
+	 * @param <R> the row type
+	 * @param view the view
+	 * @param keys the keys
+	 * @param params the params
+	 * @param reader the row reader
+	 * @param handler the row handler
+	 */
+	private <R> void queryViewOnce(String view, Collection<?> keys, Map<String,String> params, RowReader<R> reader, RowHandler<R> handler) {
+		ViewMeasurement measurement = new ViewMeasurement(view, keys, this.extractionMetrics);
+		CouchDbTransport.Response response = null;
+		try {
+			response = this.openView(view, keys, params, measurement);
+			
+			this.readRows(this.getBody(response), reader, measurement.count(handler));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			closeQuietly(response);
+			measurement.report();
+		}
+	}
+	
+	/**
+	 * The measurement of a single view request, reported to the
+	 * {@link ExtractionMetrics} once the response has been read.
+	 */
+	private static class ViewMeasurement {
+		
+		private final String view;
+		private final ExtractionMetrics metrics;
+		private final Object token;
+		private final long start;
+		private final int keys;
+		private int status = -1;
+		private int rows;
+		private CountingInputStream body;
+		
+		private ViewMeasurement(String view, Collection<?> keys, ExtractionMetrics metrics) {
+			super();
+			this.view = view;
+			this.metrics = metrics;
+			this.keys = keys == null ? 0 : keys.size();
+			this.token = metrics.viewStarted(view);
+			this.start = System.nanoTime();
+		}
+		
+		/**
+		 * Wraps a response, counting the bytes of its body.
+		 *
+		 * @param response the response
+		 * @return the wrapped response
+		 */
+		private CouchDbTransport.Response count(final CouchDbTransport.Response response) {
+			this.status = response.getStatus();
+			
+			return new CouchDbTransport.Response(){
+
+				@Override
+				public int getStatus() {
+					return response.getStatus();
+				}
+
+				@Override
+				public String getHeader(String name) {
+					return response.getHeader(name);
+				}
+
+				@Override
+				public InputStream getBody() throws IOException {
+					if(body == null){
+						body = new CountingInputStream(response.getBody());
+					}
+					return body;
+				}
+
+				@Override
+				public void close() throws IOException {
+					response.close();
+				}
+				
+			};
+		}
+		
+		/**
+		 * Wraps a handler, counting the rows it is given.
+		 *
+		 * @param <R> the row type
+		 * @param handler the handler
+		 * @return the wrapped handler
+		 */
+		private <R> RowHandler<R> count(final RowHandler<R> handler) {
+			return new RowHandler<R>(){
+
+				@Override
+				public void row(R row) {
+					rows++;
+					handler.row(row);
+				}
+				
+			};
+		}
+		
+		private void report() {
+			this.metrics.viewQueried(this.token, this.view, this.keys, this.status, 
+					this.body == null ? 0 : this.body.count, this.rows, System.nanoTime() - this.start);
+		}
+	}
+	
+	/**
+	 * Counts the bytes read through it.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		
+		private long count;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
 		}
 
-        if(password != null){
-		    uc.setRequestProperty("Authorization", "Basic " + encoding);
-        }
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1){
+				this.count++;
+			}
+			return b;
+		}
 
-		return uc;
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0){
+				this.count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			this.count += skipped;
+			return skipped;
+		}
+	}
+	
+	/**
+	 * Walks the JSON token stream of a view result, handing each element of
+	 * the 'rows' array to the reader and skipping everything else.
+	 *
+	 * @param <R> the row type
+	 * @param in the response stream
+	 * @param reader the row reader
+	 * @param handler the row handler
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private <R> void readRows(InputStream in, RowReader<R> reader, RowHandler<R> handler) throws IOException {
+		this.readResult(in, ROWS_FIELD, reader, handler);
+	}
+	
+	/**
+	 * Walks the JSON token stream of a result, handing each element of the
+	 * named array to the reader. The other top level fields are returned if
+	 * they are scalars, and skipped otherwise.
+	 *
+	 * @param <R> the row type
+	 * @param in the response stream
+	 * @param arrayField the name of the array of rows
+	 * @param reader the row reader
+	 * @param handler the row handler
+	 * @return the top level scalar fields
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private <R> Map<String,Object> readResult(InputStream in, String arrayField, RowReader<R> reader, RowHandler<R> handler) throws IOException {
+		Map<String,Object> fields = new HashMap<String,Object>();
+		
+		JsonParser parser = this.objectMapper.getJsonFactory().createJsonParser(in);
+		try {
+			if(parser.nextToken() != JsonToken.START_OBJECT){
+				throw new IllegalStateException("Expected a JSON Object, found: " + parser.getCurrentToken());
+			}
+			
+			while(parser.nextToken() == JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				
+				if(arrayField.equals(field) && token == JsonToken.START_ARRAY){
+					while(parser.nextToken() == JsonToken.START_OBJECT){
+						handler.row(reader.read(parser));
+					}
+				} else if(token.isNumeric()){
+					fields.put(field, parser.getNumberValue());
+				} else if(token.isScalarValue()){
+					fields.put(field, parser.getText());
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		
+		return fields;
+	}
+	
+	/**
+	 * Opens the response for a view query. If keys are given they are
+	 * POSTed, otherwise a GET is issued.
+	 *
+	 * @param view the view
+	 * @param keys the keys
+	 * @param params the params
+	 * @param measurement the measurement of the request, or null
+	 * @return the response
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private CouchDbTransport.Response openView(String view, Collection<?> keys, Map<String,String> params, 
+			ViewMeasurement measurement) throws IOException {
+		String url = this.couchDbUrl + "/" + view + this.paramsToString(params);
+		log.debug("Calling: " + url + " Keys: " + keys);
+		
+		Map<String,String> requestHeaders = new HashMap<String,String>(this.headers);
+		if(this.compressResponses){
+			requestHeaders.put(ACCEPT_ENCODING_HEADER, ACCEPTED_ENCODINGS);
+		}
+		
+		byte[] body = null;
+		if(keys != null && keys.size() > 0){
+			requestHeaders.put(CONTENT_TYPE_HEADER, JSON_CONTENT_TYPE);
+	 
+			Map<String,Collection<?>> map = new HashMap<String,Collection<?>>();
+			map.put(KEYS_PARAM, keys);
+			
+			body = this.objectMapper.writeValueAsBytes(map);
+			
+			if(this.compressRequests){
+				requestHeaders.put(CONTENT_ENCODING_HEADER, GZIP_ENCODING);
+				body = gzip(body);
+			}
+		}
+		
+		CouchDbTransport.Response response = this.transport.execute(url, requestHeaders, body);
+		if(measurement != null){
+			response = measurement.count(response);
+		}
+		
+		int status = response.getStatus();
+		if(status >= 300){
+			try {
+				throw new IOException("CouchDB returned HTTP " + status + " for: " + url + 
+						" " + readError(this.getBody(response)));
+			} finally {
+				closeQuietly(response);
+			}
+		}
+		
+		return response;
+	}
+	
+	/**
+	 * Gets the body of a response, decompressing it if the server
+	 * used one of the encodings we asked for.
+	 *
+	 * @param response the response
+	 * @return the (uncompressed) body
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private InputStream getBody(CouchDbTransport.Response response) throws IOException {
+		InputStream in = response.getBody();
+		
+		String encoding = response.getHeader(CONTENT_ENCODING_HEADER);
+		if(encoding == null){
+			return in;
+		}
+		
+		encoding = encoding.trim();
+		if(GZIP_ENCODING.equalsIgnoreCase(encoding)){
+			return new GZIPInputStream(in);
+		} else if(DEFLATE_ENCODING.equalsIgnoreCase(encoding)){
+			return inflate(in);
+		} else {
+			return in;
+		}
+	}
+	
+	/**
+	 * Wraps a 'deflate' encoded stream. Per the HTTP spec this is zlib wrapped,
+	 * but some servers send raw deflate data, so check for a zlib header.
+	 *
+	 * @param in the in
+	 * @return the input stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static InputStream inflate(InputStream in) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		
+		int cmf = pushback.read();
+		int flg = pushback.read();
+		if(flg != -1){
+			pushback.unread(flg);
+		}
+		if(cmf != -1){
+			pushback.unread(cmf);
+		}
+		
+		boolean isZlib = (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+		
+		return new InflaterInputStream(pushback, new Inflater(!isZlib));
+	}
+	
+	/**
+	 * Gzip a request body.
+	 *
+	 * @param body the body
+	 * @return the compressed body
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+		
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		gzip.write(body);
+		gzip.close();
+		
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Reads the body of an error response, which CouchDB sends as a small
+	 * JSON object with the 'error' and 'reason'.
+	 *
+	 * @param in the response body
+	 * @return the error text
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static String readError(InputStream in) throws IOException {
+		Reader reader = new InputStreamReader(in, CHARSET);
+		StringWriter sw = new StringWriter();
+		
+		char[] buffer = new char[1024];
+		int read;
+		while((read = reader.read(buffer)) != -1){
+			sw.write(buffer, 0, read);
+		}
+		
+		return sw.toString();
+	}
+	
+	/**
+	 * Close a stream or response, ignoring any errors.
+	 *
+	 * @param closeable the closeable
+	 */
+	static void closeQuietly(Closeable closeable) {
+		if(closeable != null){
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
 	}
 	
 	/**
-	 * Params to string.
+	 * Params to string. Values are URL encoded.
 	 *
 	 * @param params the params
 	 * @return the string
+	 * @throws UnsupportedEncodingException the unsupported encoding exception
 	 */
-	private String paramsToString(Map<String, String> params) {
+	private String paramsToString(Map<String, String> params) throws UnsupportedEncodingException {
 		String queryString = "";
 
 		if (params != null) {
@@ -166,7 +912,7 @@ public class CouchDbClient {
 
 			while (itr.hasNext()) {
 				String key = itr.next();
-				queryString += key + "=" + params.get(key);
+				queryString += key + "=" + URLEncoder.encode(params.get(key), CHARSET);
 				if (itr.hasNext()) {
 					queryString += "&";
 				}
@@ -194,6 +940,203 @@ public class CouchDbClient {
 		this.couchDbUrl = couchDbUrl;
 	}
 
+	/**
+	 * Gets the transport.
+	 *
+	 * @return the transport
+	 */
+	public CouchDbTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets the transport used to execute requests. Defaults to a
+	 * {@link PooledHttpTransport}, which is closed when replaced.
+	 *
+	 * @param transport the new transport
+	 */
+	public void setTransport(CouchDbTransport transport) {
+		if(this.isOwnTransport){
+			closeQuietly(this.transport);
+			this.isOwnTransport = false;
+		}
+		this.transport = transport;
+	}
+
+	/**
+	 * Checks if compressed (gzip or deflate) responses are requested.
+	 *
+	 * @return true, if compressed responses are requested
+	 */
+	public boolean isCompressResponses() {
+		return compressResponses;
+	}
+
+	/**
+	 * Sets whether to ask the server for compressed (gzip or deflate)
+	 * responses with 'Accept-Encoding'. Responses are decompressed
+	 * transparently as they are parsed. Defaults to true; a server that
+	 * does not compress simply answers uncompressed.
+	 *
+	 * @param compressResponses whether to request compressed responses
+	 */
+	public void setCompressResponses(boolean compressResponses) {
+		this.compressResponses = compressResponses;
+	}
+
+	/**
+	 * Checks if POSTed request bodies are gzipped.
+	 *
+	 * @return true, if request bodies are gzipped
+	 */
+	public boolean isCompressRequests() {
+		return compressRequests;
+	}
+
+	/**
+	 * Sets whether to gzip POSTed request bodies (the view 'keys'), sent
+	 * with 'Content-Encoding: gzip'. The server (or a proxy in front of it)
+	 * must accept compressed requests, so this defaults to false.
+	 *
+	 * @param compressRequests whether to gzip request bodies
+	 */
+	public void setCompressRequests(boolean compressRequests) {
+		this.compressRequests = compressRequests;
+	}
+
+	/**
+	 * Gets the maximum number of keys POSTed in one request.
+	 *
+	 * @return the key chunk size
+	 */
+	public int getKeyChunkSize() {
+		return keyChunkSize;
+	}
+
+	/**
+	 * Sets the maximum number of keys POSTed in one request. Larger key sets
+	 * are split, so request and response size no longer grow with the
+	 * number of keys. Zero or less disables splitting.
+	 *
+	 * @param keyChunkSize the key chunk size
+	 */
+	public void setKeyChunkSize(int keyChunkSize) {
+		this.keyChunkSize = keyChunkSize;
+	}
+
+	/**
+	 * Gets the maximum number of chunk requests in flight for one query.
+	 *
+	 * @return the max concurrent requests
+	 */
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	/**
+	 * Sets the maximum number of chunk requests in flight for one query.
+	 * One sends the chunks sequentially.
+	 *
+	 * @param maxConcurrentRequests the max concurrent requests
+	 */
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * Gets the executor that chunk requests are sent on, creating a
+	 * cached pool of daemon threads if none has been set.
+	 *
+	 * @return the executor service
+	 */
+	protected synchronized ExecutorService getExecutorService() {
+		if(this.executorService == null){
+			this.isOwnExecutorService = true;
+			this.executorService = Executors.newCachedThreadPool(new ThreadFactory(){
+				
+				private int count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "CouchDbClient-" + (++count));
+					thread.setDaemon(true);
+					
+					return thread;
+				}
+				
+			});
+		}
+		
+		return this.executorService;
+	}
+
+	/**
+	 * Sets the executor that chunk requests are sent on. Callers of
+	 * queryView must not run on a bounded pool shared with this executor,
+	 * or they may wait on chunks that can never be scheduled.
+	 *
+	 * @param executorService the executor service
+	 */
+	public synchronized void setExecutorService(ExecutorService executorService) {
+		if(this.isOwnExecutorService){
+			this.executorService.shutdown();
+			this.isOwnExecutorService = false;
+		}
+		this.executorService = executorService;
+	}
+	
+	/**
+	 * Closes the transport, releasing its pooled connections, and shuts down
+	 * the executor of chunk requests if it was created by this client. An
+	 * executor that was set is left to its owner.
+	 */
+	@Override
+	public synchronized void close() {
+		try {
+			this.transport.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if(this.isOwnExecutorService){
+				this.executorService.shutdown();
+				this.executorService = null;
+				this.isOwnExecutorService = false;
+			}
+		}
+	}
+
+	/**
+	 * Gets the extraction metrics.
+	 *
+	 * @return the extraction metrics
+	 */
+	public ExtractionMetrics getExtractionMetrics() {
+		return extractionMetrics;
+	}
+
+	/**
+	 * Sets the metrics that each view request is reported to.
+	 *
+	 * @param extractionMetrics the extraction metrics, or null for none
+	 */
+	public void setExtractionMetrics(ExtractionMetrics extractionMetrics) {
+		this.extractionMetrics = extractionMetrics == null ? ExtractionMetrics.NONE : extractionMetrics;
+	}
+
+	/**
+	 * Encodes a key as JSON, as CouchDB expects for 'startkey' and 'endkey'.
+	 *
+	 * @param key the key
+	 * @return the JSON
+	 */
+	String toJson(Object key) {
+		try {
+			return this.objectMapper.writeValueAsString(key);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Gets the object mapper.
 	 *
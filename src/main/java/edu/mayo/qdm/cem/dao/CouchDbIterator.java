@@ -23,8 +23,9 @@
  */
 package edu.mayo.qdm.cem.dao;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -32,19 +33,48 @@ import java.util.Map;
  * An Iterator for paginating CouchDB output.
  *
  * @param <T> the generic type
+ * @param <R> the view row type
  * @author <a href="mailto:kevin.peterson@mayo.edu">Kevin Peterson</a>
  */
-public class CouchDbIterator<T> implements Iterable<T> {
+public class CouchDbIterator<T,R extends ViewRow> implements Iterable<T> {
 
     private final static String LIMIT_PARAM = "limit";
     private final static String SKIP_PARAM = "skip";
+    private final static String STARTKEY_PARAM = "startkey";
+    private final static String STARTKEY_DOCID_PARAM = "startkey_docid";
 	
 	private CouchDbClient couchDbClient;
-	private Transformer<T> transformer;
+	private CouchDbClient.RowReader<R> rowReader;
+	private Transformer<T,R> transformer;
 	private PageDecorator<T> pageDecorator;
 	private List<String> keys;
 	private String view;
 	private Map<String,String> parameters;
+	private PagingMode pagingMode;
+	private int prefetchDepth = 0;
+	
+	private ExtractionMetrics extractionMetrics;
+	
+	private AdaptivePageSize adaptivePageSize;
+	
+	/**
+	 * How successive pages of a view are requested.
+	 */
+	public enum PagingMode {
+		
+		/** Page with 'limit' and 'skip'. CouchDB walks the index from the start on every skip. */
+		LIMIT_SKIP,
+		
+		/** Page by carrying the last seen key (and docid) forward as 'startkey'. */
+		KEYSET,
+		
+		/** 
+		 * Page the keys instead, on the client: each page POSTs only the next page
+		 * sized slice of the keys, with no 'limit' or 'skip'. For views with a
+		 * row per key, such as the grouped 'all_patients'.
+		 */
+		KEYS
+	}
 	
 	/**
 	 * Instantiates a new couch db iterator.
@@ -52,6 +82,7 @@ public class CouchDbIterator<T> implements Iterable<T> {
 	 * @param view the view
 	 * @param keys the keys
 	 * @param parameters the parameters
+	 * @param rowReader the row reader
 	 * @param transformer the transformer
 	 * @param pageDecorator the page decorator
 	 * @param couchDbClient the couch db client
@@ -60,25 +91,53 @@ public class CouchDbIterator<T> implements Iterable<T> {
 			String view, 
 			List<String> keys,
 			Map<String,String> parameters,
-			Transformer<T> transformer, 
+			CouchDbClient.RowReader<R> rowReader,
+			Transformer<T,R> transformer, 
 			PageDecorator<T> pageDecorator,
 			CouchDbClient couchDbClient){
+		this(view, keys, parameters, rowReader, transformer, pageDecorator, couchDbClient, PagingMode.LIMIT_SKIP);
+	}
+	
+	/**
+	 * Instantiates a new couch db iterator.
+	 *
+	 * @param view the view
+	 * @param keys the keys
+	 * @param parameters the parameters
+	 * @param rowReader the row reader
+	 * @param transformer the transformer
+	 * @param pageDecorator the page decorator
+	 * @param couchDbClient the couch db client
+	 * @param pagingMode the paging mode
+	 */
+	protected CouchDbIterator(
+			String view, 
+			List<String> keys,
+			Map<String,String> parameters,
+			CouchDbClient.RowReader<R> rowReader,
+			Transformer<T,R> transformer, 
+			PageDecorator<T> pageDecorator,
+			CouchDbClient couchDbClient,
+			PagingMode pagingMode){
 		super();
 		this.view = view;
 		this.keys = keys;
 		this.couchDbClient = couchDbClient;
+		this.rowReader = rowReader;
 		this.transformer = transformer;
 		this.pageDecorator = pageDecorator;
 		this.parameters = parameters;
+		this.pagingMode = pagingMode;
 	}
 	
 	/**
 	 * The Interface Transformer.
 	 *
 	 * @param <T> the generic type
+	 * @param <R> the view row type
 	 * @author <a href="mailto:kevin.peterson@mayo.edu">Kevin Peterson</a>
 	 */
-	protected interface Transformer<T>{
+	protected interface Transformer<T,R>{
 		
 		/**
 		 * Transform.
@@ -86,7 +145,7 @@ public class CouchDbIterator<T> implements Iterable<T> {
 		 * @param row the row
 		 * @return the t
 		 */
-		public T transform(Map<String, Object> row);
+		public T transform(R row);
 		
 	}
 	
@@ -102,56 +161,259 @@ public class CouchDbIterator<T> implements Iterable<T> {
 		 * Decorate.
 		 *
 		 * @param page the page
-		 * @return the list
+		 * @return the page, a List or an {@link AbstractPageableIterator.StreamedPage}
+		 */
+		public Iterable<T> decorate(List<T> page);
+		
+	}
+	
+	/**
+	 * The position of a row in a view -- its key, plus its document id
+	 * to break ties between rows with equal keys.
+	 */
+	protected static class RowKey {
+		
+		private Object key;
+		private String docId;
+		
+		/**
+		 * Instantiates a new row key.
+		 *
+		 * @param key the key
+		 * @param docId the doc id, or null for reduced rows
+		 */
+		protected RowKey(Object key, String docId) {
+			super();
+			this.key = key;
+			this.docId = docId;
+		}
+
+		/**
+		 * Gets the key.
+		 *
+		 * @return the key
+		 */
+		protected Object getKey() {
+			return key;
+		}
+
+		/**
+		 * Gets the doc id.
+		 *
+		 * @return the doc id, or null for reduced rows
 		 */
-		public List<T> decorate(List<T> page);
+		protected String getDocId() {
+			return docId;
+		}
+	}
+	
+	/**
+	 * Returns a new iterator over the view. Its pages may also be claimed
+	 * concurrently with {@link AbstractPageableIterator#nextPage()}.
+	 *
+	 * @return the iterator
+	 */
+	public AbstractPageableIterator<T,R> iterator() {
+		AbstractPageableIterator<T,R> itr;
+		if(this.pagingMode == PagingMode.KEYSET){
+			itr = this.keysetIterator();
+		} else if(this.pagingMode == PagingMode.KEYS){
+			itr = this.keysIterator();
+		} else {
+			itr = this.limitSkipIterator();
+		}
+		
+		itr.setPrefetchDepth(this.prefetchDepth);
+		itr.setExtractionMetrics(this.extractionMetrics);
+		itr.setAdaptivePageSize(this.adaptivePageSize);
 		
+		return itr;
 	}
 	
-	/* (non-Javadoc)
-	 * @see java.lang.Iterable#iterator()
+	/**
+	 * An iterator using {@link PagingMode#LIMIT_SKIP} paging.
+	 *
+	 * @return the iterator
 	 */
-	public Iterator<T> iterator() {
+	private AbstractPageableIterator<T,R> limitSkipIterator() {
 		
-		return new AbstractPageableIterator<T,Map<String,Object>>(){
+		return new AbstractPageableIterator<T,R>(){
 			
 			private static final long serialVersionUID = -5398591025205734109L;
 
-			@SuppressWarnings("unchecked")
 			@Override
-			protected List<? extends Map<String,Object>> doPage(int currentPosition, int pageSize) {
-				Map<String,String> params = getLimitSkipMap(pageSize, currentPosition);
+			protected List<? extends R> doPage(int currentPosition, int pageSize) {
+				return queryRows(keys, getLimitSkipMap(pageSize, currentPosition), pageSize);
+			}
+
+			@Override
+			protected T transform(R inputItem) {
+				return transformer.transform(inputItem);
+			}
+			
+			@Override
+			protected Iterable<T> decoratePage(List<T> page) {
+				return decorate(page);
+			}
+	
+		};
+	}
+	
+	/**
+	 * An iterator using {@link PagingMode#KEYSET} paging.
+	 *
+	 * @return the iterator
+	 */
+	private AbstractPageableIterator<T,R> keysetIterator() {
+		
+		return new AbstractKeysetPageableIterator<T,R,RowKey>(){
+			
+			private static final long serialVersionUID = -2581442310745924721L;
+
+			@Override
+			protected List<? extends R> doKeysetPage(RowKey startKey, int limit) {
+				return queryRows(keys, getStartKeyMap(limit, startKey), limit);
+			}
+			
+			@Override
+			protected RowKey getKey(R item) {
+				return new RowKey(item.getKey(), item.getId());
+			}
+
+			@Override
+			protected T transform(R inputItem) {
+				return transformer.transform(inputItem);
+			}
+			
+			@Override
+			protected Iterable<T> decoratePage(List<T> page) {
+				return decorate(page);
+			}
+	
+		};
+	}
+	
+	/**
+	 * An iterator using {@link PagingMode#KEYS} paging. A slice of keys with
+	 * no rows is passed over, as an empty page would end the iteration.
+	 *
+	 * @return the iterator
+	 */
+	private AbstractPageableIterator<T,R> keysIterator() {
+		
+		return new AbstractPageableIterator<T,R>(){
+			
+			private static final long serialVersionUID = 4404216343137394587L;
+			
+			//the position of the next slice -- rows need not match keys one to one
+			private int keyPosition = 0;
+
+			@Override
+			protected List<? extends R> doPage(int currentPosition, int pageSize) {
+				List<R> rows = new ArrayList<R>();
 				
-				if(parameters != null){
-					params.putAll(parameters);
+				while(rows.isEmpty() && keyPosition < keys.size()){
+					List<String> slice = keys.subList(keyPosition, Math.min(keys.size(), keyPosition + pageSize));
+					keyPosition += slice.size();
+					
+					rows = queryRows(slice, new HashMap<String,String>(), slice.size());
 				}
 				
-				Object rows = MapUtils.get("rows", 
-						couchDbClient.queryView(
-								view, 
-								keys,
-								params));
-				
-				return (List<? extends Map<String, Object>>) rows;
+				return rows;
 			}
 
 			@Override
-			protected T transform(Map<String,Object> inputItem) {
+			protected T transform(R inputItem) {
 				return transformer.transform(inputItem);
 			}
 			
 			@Override
-			protected List<T> decoratePage(List<T> page) {
-				if(pageDecorator != null){
-					return pageDecorator.decorate(page);
-				} else {
-					return super.decoratePage(page);
-				}
+			protected Iterable<T> decoratePage(List<T> page) {
+				return decorate(page);
 			}
 	
 		};
 	}
 	
+	/**
+	 * Query the view, collecting the rows.
+	 *
+	 * @param keys the keys to POST, or null
+	 * @param pagingParams the paging params
+	 * @param expectedSize the expected number of rows
+	 * @return the rows
+	 */
+	private List<R> queryRows(List<String> keys, Map<String,String> pagingParams, int expectedSize) {
+		Map<String,String> params = new HashMap<String,String>();
+		
+		if(parameters != null){
+			params.putAll(parameters);
+		}
+		//paging wins over a 'startkey' given in the parameters (the start of a range)
+		params.putAll(pagingParams);
+		
+		final List<R> rows = new ArrayList<R>(expectedSize);
+		this.couchDbClient.queryView(
+				view, 
+				keys,
+				params,
+				this.rowReader,
+				new CouchDbClient.RowHandler<R>(){
+
+					@Override
+					public void row(R row) {
+						rows.add(row);
+					}
+					
+				});
+		
+		return rows;
+	}
+	
+	/**
+	 * Decorate a page, if a decorator has been set.
+	 *
+	 * @param page the page
+	 * @return the page, a List or an {@link AbstractPageableIterator.StreamedPage}
+	 */
+	private Iterable<T> decorate(List<T> page) {
+		if(this.pageDecorator != null){
+			return this.pageDecorator.decorate(page);
+		} else {
+			return page;
+		}
+	}
+	
+	/**
+	 * Sets the number of pages to read ahead of the consumer.
+	 *
+	 * @param prefetchDepth the prefetch depth, or zero to page synchronously
+	 * @see AbstractPageableIterator#setPrefetchDepth(int)
+	 */
+	protected void setPrefetchDepth(int prefetchDepth) {
+		this.prefetchDepth = prefetchDepth;
+	}
+	
+	/**
+	 * Sets the metrics that the pages of each iterator are reported to.
+	 *
+	 * @param extractionMetrics the extraction metrics, or null for none
+	 * @see AbstractPageableIterator#setExtractionMetrics(ExtractionMetrics)
+	 */
+	protected void setExtractionMetrics(ExtractionMetrics extractionMetrics) {
+		this.extractionMetrics = extractionMetrics;
+	}
+	
+	/**
+	 * Sets the adaptive page size of each iterator.
+	 *
+	 * @param adaptivePageSize the adaptive page size, or null for a fixed page size
+	 * @see AbstractPageableIterator#setAdaptivePageSize(AdaptivePageSize)
+	 */
+	protected void setAdaptivePageSize(AdaptivePageSize adaptivePageSize) {
+		this.adaptivePageSize = adaptivePageSize;
+	}
+	
 	/**
 	 * Gets the limit skip map.
 	 *
@@ -166,5 +428,32 @@ public class CouchDbIterator<T> implements Iterable<T> {
 		
 		return map;
 	}
+	
+	/**
+	 * Gets the start key map. Keys are JSON encoded, as CouchDB expects.
+	 *
+	 * @param limit the limit
+	 * @param startKey the start key, or null for the first page
+	 * @return the start key map
+	 */
+	private Map<String,String> getStartKeyMap(int limit, RowKey startKey){
+		Map<String,String> map = new HashMap<String,String>();
+		map.put(LIMIT_PARAM, Integer.toString(limit));
+		
+		if(startKey != null){
+			try {
+				map.put(STARTKEY_PARAM, 
+						this.couchDbClient.getObjectMapper().writeValueAsString(startKey.getKey()));
+				
+				if(startKey.getDocId() != null){
+					map.put(STARTKEY_DOCID_PARAM, startKey.getDocId());
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		return map;
+	}
 
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * The HTTP transport used by the {@link CouchDbClient} to talk to CouchDB.
+ */
+public interface CouchDbTransport extends Closeable {
+	
+	/**
+	 * Executes a request. The caller must close the returned response,
+	 * which allows the underlying connection to be reused.
+	 *
+	 * @param url the url
+	 * @param headers the request headers
+	 * @param body the request body to POST, or null to GET
+	 * @return the response
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Response execute(String url, Map<String,String> headers, byte[] body) throws IOException;
+	
+	/**
+	 * An HTTP response.
+	 */
+	public interface Response extends Closeable {
+		
+		/**
+		 * Gets the HTTP status code.
+		 *
+		 * @return the status
+		 */
+		public int getStatus();
+		
+		/**
+		 * Gets a response header.
+		 *
+		 * @param name the header name
+		 * @return the header value, or null if not present
+		 */
+		public String getHeader(String name);
+		
+		/**
+		 * Gets the response body.
+		 *
+		 * @return the body
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public InputStream getBody() throws IOException;
+		
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The categories of clinical data that may be loaded with each patient.
+ * A set of them is a projection -- the data a measure actually needs.
+ */
+public enum DataCategory {
+	
+	/** Lab results, from 'lab_by_patient_id'. */
+	LABS,
+	
+	/** Medications, from 'drug_by_patient_id'. */
+	MEDICATIONS,
+	
+	/** Diagnoses, from 'diagnosis_by_patient_id'. */
+	DIAGNOSES;
+	
+	/** Every category. */
+	public static final Set<DataCategory> ALL = Collections.unmodifiableSet(EnumSet.allOf(DataCategory.class));
+	
+	/** No clinical data -- demographics only. */
+	public static final Set<DataCategory> NONE = Collections.unmodifiableSet(EnumSet.noneOf(DataCategory.class));
+	
+	/**
+	 * Copies a projection, which may be empty.
+	 *
+	 * @param categories the categories
+	 * @return the copy
+	 */
+	static Set<DataCategory> copyOf(Collection<DataCategory> categories) {
+		Set<DataCategory> copy = EnumSet.noneOf(DataCategory.class);
+		copy.addAll(categories);
+		
+		return copy;
+	}
+
+}
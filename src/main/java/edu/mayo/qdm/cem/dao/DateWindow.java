@@ -0,0 +1,242 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.Serializable;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A window of days -- a measure's measurement period, for example -- that
+ * restricts the labs and drugs of patients. Labs are kept if collected on a
+ * day of the window, and drugs if taken on any day of it: started on or
+ * before its last day, and not ended before its first. A drug with no end
+ * time is taken to end on {@link DrugRow#DEFAULT_END_TIME}, as it is bound.
+ * Diagnoses carry no dates, and are never restricted.
+ * <p>
+ * The raw CEMDB dates of the rows are compared digit by digit with the
+ * window, before any {@link Date} is created. Only the 'yyyyMMdd' day is
+ * compared, so the 12-hour clock of the 'yyyyMMddhhmm' format does not matter.
+ * Rows whose dates are not digits are kept, and fail when bound as before.
+ * <p>
+ * If 'pushdown' is set, each patient's labs and drugs are instead read with
+ * a range request to the [patientId, date] keyed views listed at the bottom
+ * of {@link ClinicalRowQuery}, so labs outside the window and drugs started
+ * after it are never transferred. The drug view is keyed on the start time,
+ * so a drug range is bounded by the last day only: drugs that ended before
+ * the window are still transferred, and dropped as they are read. As that
+ * is one request per patient, a page is only pushed down while its patients
+ * stay within 'maxPushdownPatients'; larger pages are read with one keyed
+ * request, and filtered as they are read.
+ */
+public class DateWindow implements Serializable {
+
+	private static final long serialVersionUID = 8049171359244727143L;
+	
+	private static final int DAY_LENGTH = 8;
+	
+	private final String firstDay;
+	private final String lastDay;
+	
+	private final boolean isPushdown;
+	
+	private final int maxPushdownPatients;
+	
+	/** The default limit on the patients of a pushed down page -- as many range requests. */
+	public static final int DEFAULT_MAX_PUSHDOWN_PATIENTS = 100;
+	
+	/**
+	 * Instantiates a new date window, applied as the rows are read.
+	 *
+	 * @param start the first day of the window, or null for none
+	 * @param end the last day of the window (inclusive), or null for none
+	 */
+	public DateWindow(Date start, Date end) {
+		this(start, end, false);
+	}
+	
+	/**
+	 * Instantiates a new date window. The time of day of the dates is ignored.
+	 *
+	 * @param start the first day of the window, or null for none
+	 * @param end the last day of the window (inclusive), or null for none
+	 * @param isPushdown whether to push the window down to CouchDB
+	 */
+	public DateWindow(Date start, Date end, boolean isPushdown) {
+		this(start, end, isPushdown, DEFAULT_MAX_PUSHDOWN_PATIENTS);
+	}
+	
+	/**
+	 * Instantiates a new date window, pushed down to CouchDB for pages of
+	 * up to 'maxPushdownPatients' patients.
+	 *
+	 * @param start the first day of the window, or null for none
+	 * @param end the last day of the window (inclusive), or null for none
+	 * @param isPushdown whether to push the window down to CouchDB
+	 * @param maxPushdownPatients the most patients to make range requests for in a page
+	 */
+	public DateWindow(Date start, Date end, boolean isPushdown, int maxPushdownPatients) {
+		super();
+		if(start != null && end != null && start.after(end)){
+			throw new IllegalArgumentException("The window starts after it ends: " + start + " - " + end);
+		}
+		
+		//a new format for each window, as DateFormats are not thread-safe
+		DateFormat format = new SimpleDateFormat("yyyyMMdd");
+		this.firstDay = start == null ? null : format.format(start);
+		this.lastDay = end == null ? null : format.format(end);
+		this.isPushdown = isPushdown;
+		this.maxPushdownPatients = maxPushdownPatients;
+	}
+	
+	/**
+	 * Checks if a date falls on a day of the window.
+	 *
+	 * @param date the raw CEMDB date
+	 * @return true, if within the window (or not a CEMDB date)
+	 */
+	public boolean contains(String date) {
+		if(! isDay(date)){
+			return true;
+		}
+		
+		return (this.firstDay == null || compareDay(date, this.firstDay) >= 0) &&
+				(this.lastDay == null || compareDay(date, this.lastDay) <= 0);
+	}
+	
+	/**
+	 * Checks if an interval overlaps a day of the window.
+	 *
+	 * @param start the raw CEMDB start date
+	 * @param end the raw CEMDB end date, or null if open
+	 * @return true, if the interval overlaps the window (or either is not a CEMDB date)
+	 */
+	public boolean overlaps(String start, String end) {
+		if(this.lastDay != null && isDay(start) && compareDay(start, this.lastDay) > 0){
+			return false;
+		}
+		if(this.firstDay != null && isDay(end) && compareDay(end, this.firstDay) < 0){
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Checks if a raw date starts with a 'yyyyMMdd' day.
+	 *
+	 * @param date the date
+	 * @return true, if so
+	 */
+	private static boolean isDay(String date) {
+		if(date == null || date.length() < DAY_LENGTH){
+			return false;
+		}
+		for(int i=0;i<DAY_LENGTH;i++){
+			char c = date.charAt(i);
+			if(c < '0' || c > '9'){
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Compares the day of a raw date with a 'yyyyMMdd' day.
+	 *
+	 * @param date the date
+	 * @param day the day
+	 * @return negative, zero or positive as the date is before, on or after the day
+	 */
+	private static int compareDay(String date, String day) {
+		for(int i=0;i<DAY_LENGTH;i++){
+			int diff = date.charAt(i) - day.charAt(i);
+			if(diff != 0){
+				return diff;
+			}
+		}
+		
+		return 0;
+	}
+
+	/**
+	 * Gets the first day, as 'yyyyMMdd'.
+	 *
+	 * @return the first day, or null if none
+	 */
+	public String getFirstDay() {
+		return firstDay;
+	}
+
+	/**
+	 * Gets the last day, as 'yyyyMMdd'.
+	 *
+	 * @return the last day, or null if none
+	 */
+	public String getLastDay() {
+		return lastDay;
+	}
+
+	/**
+	 * Checks if the window is pushed down to CouchDB.
+	 *
+	 * @return true, if pushed down
+	 */
+	public boolean isPushdown() {
+		return isPushdown;
+	}
+
+	/**
+	 * Checks if the window is pushed down for a page: only while its patients,
+	 * one range request each, stay within the limit.
+	 *
+	 * @param patientCount the patients of the page
+	 * @return true, if the page is to be read by date range
+	 */
+	public boolean isPushdown(int patientCount) {
+		return this.isPushdown && patientCount <= this.maxPushdownPatients;
+	}
+
+	/**
+	 * Gets the most patients of a page read by date range.
+	 *
+	 * @return the max pushdown patients
+	 */
+	public int getMaxPushdownPatients() {
+		return maxPushdownPatients;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "[" + (this.firstDay == null ? "" : this.firstDay) + 
+				" - " + (this.lastDay == null ? "" : this.lastDay) + "]" +
+				(this.isPushdown ? " pushdown" : "");
+	}
+
+}
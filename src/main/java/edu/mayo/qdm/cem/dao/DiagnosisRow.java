@@ -0,0 +1,114 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * A row of the 'diagnosis_by_patient_id' view.
+ */
+public class DiagnosisRow extends ViewRow implements ClinicalRow {
+	
+	private String patientId;
+	private String code;
+	
+	/** Reads the value fields 'patientId' and 'code'. */
+	static final ViewRowReader<DiagnosisRow> READER = new ViewRowReader<DiagnosisRow>(){
+
+		@Override
+		protected DiagnosisRow readValue(JsonParser parser, Object key) throws IOException {
+			DiagnosisRow row = new DiagnosisRow();
+			
+			while(parser.nextToken() == JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				
+				if("patientId".equals(field)){
+					row.patientId = getText(parser, token);
+				} else if("code".equals(field)){
+					row.code = getText(parser, token);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			
+			required(row.patientId, "value.patientId");
+			required(row.code, "value.code");
+			
+			return row;
+		}
+		
+	};
+
+	/**
+	 * Instantiates a new, empty diagnosis row, to be filled by the reader.
+	 */
+	DiagnosisRow() {
+		super();
+	}
+	
+	/**
+	 * Instantiates a new diagnosis row.
+	 *
+	 * @param patientId the patient id
+	 * @param code the code
+	 */
+	DiagnosisRow(String patientId, String code) {
+		super();
+		this.patientId = patientId;
+		this.code = code;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	/**
+	 * Diagnoses have no dates, so are always within a window.
+	 *
+	 * @see edu.mayo.qdm.cem.dao.ClinicalRow#isWithin(edu.mayo.qdm.cem.dao.DateWindow)
+	 */
+	@Override
+	public boolean isWithin(DateWindow window) {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.ViewRow#getEstimatedSize()
+	 */
+	@Override
+	int getEstimatedSize() {
+		return super.getEstimatedSize() +
+				estimateSize(this.patientId) +
+				estimateSize(this.code);
+	}
+	
+}
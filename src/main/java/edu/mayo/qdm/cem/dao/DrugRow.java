@@ -0,0 +1,148 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * A row of the 'drug_by_patient_id' view.
+ */
+public class DrugRow extends ViewRow implements ClinicalRow {
+	
+	private String patientId;
+	private String code;
+	private String startTime;
+	private String endTime;
+	
+	/** The end time of a drug with none -- a placeholder carried over from the original binding. */
+	static final String DEFAULT_END_TIME = "20110224111900";
+	
+	/** Reads the value fields 'patientId', 'clinicalDrug.code', 'startTime' and 'endTime'. */
+	static final ViewRowReader<DrugRow> READER = new ViewRowReader<DrugRow>(){
+
+		@Override
+		protected DrugRow readValue(JsonParser parser, Object key) throws IOException {
+			DrugRow row = new DrugRow();
+			
+			while(parser.nextToken() == JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				
+				if("patientId".equals(field)){
+					row.patientId = getText(parser, token);
+				} else if("clinicalDrug".equals(field)){
+					row.code = getCode(parser, token);
+				} else if("startTime".equals(field)){
+					row.startTime = getText(parser, token);
+				} else if("endTime".equals(field)){
+					row.endTime = getText(parser, token);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			
+			required(row.patientId, "value.patientId");
+			required(row.code, "value.clinicalDrug.code");
+			
+			return row;
+		}
+		
+	};
+
+	/**
+	 * Instantiates a new, empty drug row, to be filled by the reader.
+	 */
+	DrugRow() {
+		super();
+	}
+	
+	/**
+	 * Instantiates a new drug row.
+	 *
+	 * @param patientId the patient id
+	 * @param code the code
+	 * @param startTime the start time
+	 * @param endTime the end time
+	 */
+	DrugRow(String patientId, String code, String startTime, String endTime) {
+		super();
+		this.patientId = patientId;
+		this.code = code;
+		this.startTime = startTime;
+		this.endTime = endTime;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	/**
+	 * Gets the start time, or null if the drug has none.
+	 *
+	 * @return the start time
+	 */
+	public String getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Gets the end time, or null if the drug has none.
+	 *
+	 * @return the end time
+	 */
+	public String getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Drugs are within a window if taken on any of its days. A drug with no
+	 * end time is taken to end on the day it is bound with.
+	 *
+	 * @see edu.mayo.qdm.cem.dao.ClinicalRow#isWithin(edu.mayo.qdm.cem.dao.DateWindow)
+	 */
+	@Override
+	public boolean isWithin(DateWindow window) {
+		return window.overlaps(this.startTime, this.endTime == null ? DEFAULT_END_TIME : this.endTime);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.ViewRow#getEstimatedSize()
+	 */
+	@Override
+	int getEstimatedSize() {
+		return super.getEstimatedSize() +
+				estimateSize(this.patientId) +
+				estimateSize(this.code) +
+				estimateSize(this.startTime) +
+				estimateSize(this.endTime);
+	}
+	
+}
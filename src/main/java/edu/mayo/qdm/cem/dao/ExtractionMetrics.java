@@ -0,0 +1,152 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+/**
+ * Receives measurements of each stage of an extraction: the view requests
+ * made to CouchDB, the pages fetched, transformed and decorated, and the rows
+ * of each category bound to patients. Implementations aggregate them -- see
+ * {@link JmxExtractionMetrics} -- and must be thread-safe, as requests, pages
+ * and bindings are measured on whichever thread runs them.
+ * 
+ * Times are in nanoseconds, from {@link System#nanoTime()}. Each view
+ * request, page fetch and page assembly is announced before it runs by a
+ * start hook, whose token is handed back with its measurement -- so an
+ * implementation may time the work itself, as JFR events do.
+ */
+public interface ExtractionMetrics {
+	
+	/** Discards every measurement; the default. */
+	public static final ExtractionMetrics NONE = new ExtractionMetrics(){
+
+		@Override
+		public Object viewStarted(String view) {
+			return null;
+		}
+
+		@Override
+		public void viewQueried(Object token, String view, int keys, int status, long bytes, int rows, long nanos) {
+			//no-op
+		}
+
+		@Override
+		public Object pageFetchStarted(int position) {
+			return null;
+		}
+
+		@Override
+		public void pageFetched(Object token, int position, int size, long nanos) {
+			//no-op
+		}
+
+		@Override
+		public Object pageProcessStarted(int position) {
+			return null;
+		}
+
+		@Override
+		public void pageProcessed(Object token, int position, int size, int items, long transformNanos, long decorateNanos) {
+			//no-op
+		}
+
+		@Override
+		public void rowsBound(DataCategory category, int patients, int rows, long nanos) {
+			//no-op
+		}
+		
+	};
+	
+	/**
+	 * A single view request is about to be made.
+	 *
+	 * @param view the view path
+	 * @return the token passed to {@link #viewQueried}, or null
+	 */
+	public Object viewStarted(String view);
+	
+	/**
+	 * A single view request was made -- one per key chunk or range, if a
+	 * query is split. The time runs from sending the request to reading the
+	 * last row, so it includes binding the rows but not handling them.
+	 *
+	 * @param token the token returned by {@link #viewStarted(String)}
+	 * @param view the view path
+	 * @param keys the number of keys POSTed, zero for a GET
+	 * @param status the HTTP status, or -1 if no response was received
+	 * @param bytes the bytes of the response body, as sent (so compressed, if it was)
+	 * @param rows the rows read
+	 * @param nanos the time taken
+	 */
+	public void viewQueried(Object token, String view, int keys, int status, long bytes, int rows, long nanos);
+	
+	/**
+	 * A page of untransformed items is about to be fetched.
+	 *
+	 * @param position the position of the first item of the page
+	 * @return the token passed to {@link #pageFetched}, or null
+	 */
+	public Object pageFetchStarted(int position);
+	
+	/**
+	 * A page of untransformed items was fetched.
+	 *
+	 * @param token the token returned by {@link #pageFetchStarted(int)}
+	 * @param position the position of the first item of the page
+	 * @param size the number of items fetched
+	 * @param nanos the time taken
+	 */
+	public void pageFetched(Object token, int position, int size, long nanos);
+	
+	/**
+	 * A fetched page is about to be transformed and decorated.
+	 *
+	 * @param position the position of the first item of the page
+	 * @return the token passed to {@link #pageProcessed}, or null
+	 */
+	public Object pageProcessStarted(int position);
+	
+	/**
+	 * A fetched page was transformed and decorated -- for patients, the
+	 * decoration is the querying and binding of their clinical data.
+	 *
+	 * @param token the token returned by {@link #pageProcessStarted(int)}
+	 * @param position the position of the first item of the page
+	 * @param size the number of items fetched
+	 * @param items the number of items left after decoration
+	 * @param transformNanos the time taken to transform the items
+	 * @param decorateNanos the time taken to decorate the page
+	 */
+	public void pageProcessed(Object token, int position, int size, int items, long transformNanos, long decorateNanos);
+	
+	/**
+	 * The rows of one category were bound to a page of patients.
+	 *
+	 * @param category the category
+	 * @param patients the number of patients with rows
+	 * @param rows the number of rows
+	 * @param nanos the time taken
+	 */
+	public void rowsBound(DataCategory category, int patients, int rows, long nanos);
+
+}
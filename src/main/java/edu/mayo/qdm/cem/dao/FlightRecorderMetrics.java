@@ -0,0 +1,81 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Loads the Java Flight Recorder metrics, {@link ExtractionMetrics} that
+ * emit JFR events. They are built separately, for JDK 11 or later, so they
+ * are looked up by name; where they are missing, or the JVM has no JFR,
+ * {@link ExtractionMetrics#NONE} is used instead.
+ */
+public final class FlightRecorderMetrics {
+	
+	private static final Logger log = Logger.getLogger(FlightRecorderMetrics.class);
+	
+	private static final String JFR_EVENT_CLASS = "jdk.jfr.Event";
+	private static final String METRICS_CLASS = "edu.mayo.qdm.cem.dao.JfrExtractionMetrics";
+	
+	private static final ExtractionMetrics INSTANCE = load();
+	
+	private FlightRecorderMetrics() {
+		super();
+	}
+	
+	/**
+	 * Gets the JFR metrics.
+	 *
+	 * @return the metrics, or {@link ExtractionMetrics#NONE} if JFR events are not available
+	 */
+	public static ExtractionMetrics getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Checks if JFR events are available.
+	 *
+	 * @return true, if available
+	 */
+	public static boolean isAvailable() {
+		return INSTANCE != ExtractionMetrics.NONE;
+	}
+	
+	private static ExtractionMetrics load() {
+		try {
+			Class.forName(JFR_EVENT_CLASS);
+			
+			return (ExtractionMetrics) Class.forName(METRICS_CLASS).newInstance();
+		} catch (ClassNotFoundException e) {
+			log.debug("No JFR events: " + e.getMessage() + " not found.");
+		} catch (Exception e) {
+			log.warn("Could not load the JFR metrics.", e);
+		} catch (LinkageError e) {
+			log.warn("Could not load the JFR metrics.", e);
+		}
+		
+		return ExtractionMetrics.NONE;
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, such as durations. Values
+ * are counted in buckets of a quarter of a power of two, so percentiles are
+ * within 25% of the true value while the histogram stays a fixed, small size
+ * whatever the range of values. The count, sum and maximum are exact.
+ */
+public class Histogram {
+	
+	//each power of two is split into 2^SUB_BUCKET_BITS buckets
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS * (Long.SIZE - SUB_BUCKET_BITS + 1);
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records a value. Negative values are counted as zero.
+	 *
+	 * @param value the value
+	 */
+	public void record(long value) {
+		if(value < 0){
+			value = 0;
+		}
+		
+		this.counts.incrementAndGet(getBucket(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		
+		long current;
+		while(value > (current = this.max.get())){
+			if(this.max.compareAndSet(current, value)){
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of values recorded.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+	
+	/**
+	 * Gets the sum of the values recorded.
+	 *
+	 * @return the sum
+	 */
+	public long getSum() {
+		return this.sum.get();
+	}
+	
+	/**
+	 * Gets the largest value recorded.
+	 *
+	 * @return the max, or zero if none
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+	
+	/**
+	 * Gets the mean of the values recorded.
+	 *
+	 * @return the mean, or zero if none
+	 */
+	public double getMean() {
+		long count = this.count.get();
+		return count == 0 ? 0 : (double) this.sum.get() / count;
+	}
+	
+	/**
+	 * Gets an upper bound of the given percentile of the values recorded:
+	 * the largest value of the bucket it falls in, but no more than the max.
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the percentile, or zero if none
+	 */
+	public long getPercentile(double percentile) {
+		if(percentile < 0 || percentile > 100){
+			throw new IllegalArgumentException("Not a percentile: " + percentile);
+		}
+		
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for(int i=0;i<BUCKETS;i++){
+			counts[i] = this.counts.get(i);
+			total += counts[i];
+		}
+		if(total == 0){
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++){
+			seen += counts[i];
+			if(seen >= rank){
+				return Math.min(getUpperBound(i), this.max.get());
+			}
+		}
+		
+		return this.max.get();
+	}
+	
+	/**
+	 * Discards every value recorded.
+	 */
+	public void reset() {
+		for(int i=0;i<BUCKETS;i++){
+			this.counts.set(i, 0);
+		}
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+	}
+	
+	/**
+	 * Gets the bucket of a value. Values below SUB_BUCKETS have one each;
+	 * above that, the bucket is the power of two and the next SUB_BUCKET_BITS
+	 * bits below the highest one.
+	 *
+	 * @param value the value
+	 * @return the bucket
+	 */
+	static int getBucket(long value) {
+		if(value < SUB_BUCKETS){
+			return (int) value;
+		}
+		
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		
+		return SUB_BUCKETS * (exponent - SUB_BUCKET_BITS + 1) + subBucket;
+	}
+	
+	/**
+	 * Gets the largest value of a bucket.
+	 *
+	 * @param bucket the bucket
+	 * @return the upper bound
+	 */
+	static long getUpperBound(int bucket) {
+		if(bucket < SUB_BUCKETS){
+			return bucket;
+		}
+		
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long lowerBound = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+		
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+}
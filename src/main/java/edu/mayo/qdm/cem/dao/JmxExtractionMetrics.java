@@ -0,0 +1,252 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Aggregates the measurements of extractions into a {@link StageMetrics}
+ * per stage, each registered as an MBean named
+ * <code>edu.mayo.qdm.cem:type=&lt;type&gt;,name=&lt;name&gt;</code>:
+ * <ul>
+ * <li>type=View, one per view queried (by view name, for example 'lab_by_patient_id'):
+ * the requests, rows read, response bytes, failures and request times.</li>
+ * <li>type=Page, name=fetch, transform and decorate: the pages, items and times of each step.</li>
+ * <li>type=Binding, one per category (for example 'labs'): the rows bound to patients and the time taken.</li>
+ * </ul>
+ * Stages are registered as they are first measured. Set an instance with
+ * {@link CemdbCouchDbDao#setExtractionMetrics(ExtractionMetrics)}, and
+ * {@link #unregister()} it when done.
+ */
+public class JmxExtractionMetrics implements ExtractionMetrics {
+	
+	protected final Logger log = Logger.getLogger(getClass());
+	
+	public static final String DEFAULT_DOMAIN = "edu.mayo.qdm.cem";
+	
+	public static final String VIEW_TYPE = "View";
+	public static final String PAGE_TYPE = "Page";
+	public static final String BINDING_TYPE = "Binding";
+	
+	private static final String VIEW_SEPARATOR = "/_view/";
+	
+	private final String domain;
+	
+	private final MBeanServer mBeanServer;
+	
+	private final ConcurrentMap<String,StageMetrics> stages = new ConcurrentHashMap<String,StageMetrics>();
+	
+	private final StageMetrics fetch;
+	private final StageMetrics transform;
+	private final StageMetrics decorate;
+	
+	/**
+	 * Instantiates metrics registered with the platform MBean server,
+	 * in the default domain.
+	 */
+	public JmxExtractionMetrics() {
+		this(DEFAULT_DOMAIN);
+	}
+	
+	/**
+	 * Instantiates metrics registered with the platform MBean server, in
+	 * the given domain -- to tell the metrics of several DAOs apart.
+	 *
+	 * @param domain the domain
+	 */
+	public JmxExtractionMetrics(String domain) {
+		this(domain, ManagementFactory.getPlatformMBeanServer());
+	}
+	
+	/**
+	 * Instantiates metrics registered with the given MBean server.
+	 *
+	 * @param domain the domain
+	 * @param mBeanServer the MBean server
+	 */
+	JmxExtractionMetrics(String domain, MBeanServer mBeanServer) {
+		super();
+		this.domain = domain;
+		this.mBeanServer = mBeanServer;
+		
+		this.fetch = this.getStage(PAGE_TYPE, "fetch");
+		this.transform = this.getStage(PAGE_TYPE, "transform");
+		this.decorate = this.getStage(PAGE_TYPE, "decorate");
+	}
+
+	@Override
+	public Object viewStarted(String view) {
+		return null;
+	}
+
+	@Override
+	public void viewQueried(Object token, String view, int keys, int status, long bytes, int rows, long nanos) {
+		this.getStage(VIEW_TYPE, getViewName(view)).record(rows, bytes, nanos, status < 200 || status >= 300);
+	}
+
+	@Override
+	public Object pageFetchStarted(int position) {
+		return null;
+	}
+
+	@Override
+	public void pageFetched(Object token, int position, int size, long nanos) {
+		this.fetch.record(size, 0, nanos, false);
+	}
+
+	@Override
+	public Object pageProcessStarted(int position) {
+		return null;
+	}
+
+	@Override
+	public void pageProcessed(Object token, int position, int size, int items, long transformNanos, long decorateNanos) {
+		this.transform.record(size, 0, transformNanos, false);
+		this.decorate.record(items, 0, decorateNanos, false);
+	}
+
+	@Override
+	public void rowsBound(DataCategory category, int patients, int rows, long nanos) {
+		this.getStage(BINDING_TYPE, category.name().toLowerCase()).record(rows, 0, nanos, false);
+	}
+	
+	/**
+	 * Gets the metrics of a stage, registering them if this is the first time.
+	 *
+	 * @param type the type
+	 * @param name the name
+	 * @return the stage metrics
+	 */
+	public StageMetrics getStage(String type, String name) {
+		String key = type + "/" + name;
+		
+		StageMetrics stage = this.stages.get(key);
+		if(stage == null){
+			StageMetrics created = new StageMetrics(type, name);
+			stage = this.stages.putIfAbsent(key, created);
+			if(stage == null){
+				stage = created;
+				this.register(stage);
+			}
+		}
+		
+		return stage;
+	}
+	
+	/**
+	 * Gets the metrics of every stage measured so far, by type and name.
+	 *
+	 * @return the stages
+	 */
+	public List<StageMetrics> getStages() {
+		List<StageMetrics> stages = new ArrayList<StageMetrics>(this.stages.values());
+		Collections.sort(stages, new Comparator<StageMetrics>(){
+
+			@Override
+			public int compare(StageMetrics stage1, StageMetrics stage2) {
+				int c = stage1.getType().compareTo(stage2.getType());
+				return c != 0 ? c : stage1.getName().compareTo(stage2.getName());
+			}
+			
+		});
+		
+		return stages;
+	}
+	
+	/**
+	 * Resets every stage.
+	 */
+	public void reset() {
+		for(StageMetrics stage : this.stages.values()){
+			stage.reset();
+		}
+	}
+	
+	/**
+	 * Unregisters every stage from the MBean server. The metrics are still
+	 * collected, but new stages are no longer registered.
+	 */
+	public void unregister() {
+		for(StageMetrics stage : this.stages.values()){
+			try {
+				ObjectName name = this.getObjectName(stage);
+				if(this.mBeanServer.isRegistered(name)){
+					this.mBeanServer.unregisterMBean(name);
+				}
+			} catch (JMException e) {
+				log.warn("Could not unregister: " + stage.getType() + " " + stage.getName(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Registers a stage. A failure -- such as another instance already being
+	 * registered in the same domain -- is logged, not thrown, as it should not
+	 * stop an extraction.
+	 *
+	 * @param stage the stage
+	 */
+	private void register(StageMetrics stage) {
+		try {
+			this.mBeanServer.registerMBean(stage, this.getObjectName(stage));
+		} catch (JMException e) {
+			log.warn("Could not register: " + stage.getType() + " " + stage.getName() + " -- " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Gets the name of the MBean of a stage.
+	 *
+	 * @param stage the stage
+	 * @return the object name
+	 * @throws JMException the JM exception
+	 */
+	ObjectName getObjectName(StageMetrics stage) throws JMException {
+		return new ObjectName(this.domain + ":type=" + stage.getType() + ",name=" + stage.getName());
+	}
+	
+	/**
+	 * Gets the name of a view from its path: what follows '_view/'.
+	 *
+	 * @param view the view path
+	 * @return the view name
+	 */
+	private static String getViewName(String view) {
+		int i = view.lastIndexOf(VIEW_SEPARATOR);
+		return i < 0 ? view : view.substring(i + VIEW_SEPARATOR.length());
+	}
+
+}
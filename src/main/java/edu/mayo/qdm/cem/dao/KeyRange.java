@@ -0,0 +1,124 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * A contiguous range of patient ids, in CouchDB collation order. The start
+ * is inclusive and the end exclusive; a null start or end leaves that side
+ * of the range open. Ranges are Serializable, so they can be handed out
+ * to separate worker processes.
+ */
+public class KeyRange implements Serializable {
+
+	private static final long serialVersionUID = -2236290567203815127L;
+
+	/** Every patient. */
+	public static final KeyRange ALL = new KeyRange(null, null);
+	
+	private String startKey;
+	private String endKey;
+
+	/**
+	 * Instantiates a new key range.
+	 *
+	 * @param startKey the inclusive start key, or null to start at the first patient
+	 * @param endKey the exclusive end key, or null to end at the last patient
+	 */
+	public KeyRange(String startKey, String endKey) {
+		super();
+		this.startKey = startKey;
+		this.endKey = endKey;
+	}
+	
+	/**
+	 * Splits the key space at the given keys, which must be in collation order.
+	 * Repeated keys are ignored, so fewer than splitKeys.size() + 1 ranges may
+	 * be returned. The ranges are disjoint and together cover every key.
+	 *
+	 * @param splitKeys the split keys
+	 * @return the ranges
+	 */
+	public static List<KeyRange> split(List<String> splitKeys) {
+		List<KeyRange> ranges = new ArrayList<KeyRange>(splitKeys.size() + 1);
+		
+		String start = null;
+		for(String key : splitKeys){
+			if(key == null || key.equals(start)){
+				continue;
+			}
+			ranges.add(new KeyRange(start, key));
+			start = key;
+		}
+		ranges.add(new KeyRange(start, null));
+		
+		return ranges;
+	}
+
+	/**
+	 * Gets the inclusive start key.
+	 *
+	 * @return the start key, or null if open
+	 */
+	public String getStartKey() {
+		return startKey;
+	}
+
+	/**
+	 * Gets the exclusive end key.
+	 *
+	 * @return the end key, or null if open
+	 */
+	public String getEndKey() {
+		return endKey;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(! (obj instanceof KeyRange)){
+			return false;
+		}
+		KeyRange other = (KeyRange) obj;
+		
+		return ObjectUtils.equals(this.startKey, other.startKey) && 
+				ObjectUtils.equals(this.endKey, other.endKey);
+	}
+
+	@Override
+	public int hashCode() {
+		return ObjectUtils.hashCode(this.startKey) * 31 + ObjectUtils.hashCode(this.endKey);
+	}
+
+	@Override
+	public String toString() {
+		return "[" + (this.startKey != null ? this.startKey : "") + 
+				", " + (this.endKey != null ? this.endKey : "") + ")";
+	}
+	
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * A row of the 'lab_by_patient_id' view.
+ */
+public class LabRow extends ViewRow implements ClinicalRow {
+	
+	private String patientId;
+	private String code;
+	private String collectionDate;
+	private String unit;
+	private double value;
+	
+	/** Reads the value fields 'patientId', 'labResultCode', 'collectionDate', 'unit' and 'value'. */
+	static final ViewRowReader<LabRow> READER = new ViewRowReader<LabRow>(){
+
+		@Override
+		protected LabRow readValue(JsonParser parser, Object key) throws IOException {
+			LabRow row = new LabRow();
+			boolean hasValue = false;
+			
+			while(parser.nextToken() == JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				
+				if("patientId".equals(field)){
+					row.patientId = getText(parser, token);
+				} else if("labResultCode".equals(field)){
+					row.code = getText(parser, token);
+				} else if("collectionDate".equals(field)){
+					row.collectionDate = getText(parser, token);
+				} else if("unit".equals(field)){
+					row.unit = getText(parser, token);
+				} else if("value".equals(field)){
+					row.value = getDouble(parser, token, "value.value");
+					hasValue = true;
+				} else {
+					parser.skipChildren();
+				}
+			}
+			
+			required(row.patientId, "value.patientId");
+			required(row.code, "value.labResultCode");
+			required(row.collectionDate, "value.collectionDate");
+			if(! hasValue){
+				required(null, "value.value");
+			}
+			
+			return row;
+		}
+		
+	};
+
+	/**
+	 * Instantiates a new, empty lab row, to be filled by the reader.
+	 */
+	LabRow() {
+		super();
+	}
+	
+	/**
+	 * Instantiates a new lab row.
+	 *
+	 * @param patientId the patient id
+	 * @param code the code
+	 * @param collectionDate the collection date
+	 * @param unit the unit
+	 * @param value the value
+	 */
+	LabRow(String patientId, String code, String collectionDate, String unit, double value) {
+		super();
+		this.patientId = patientId;
+		this.code = code;
+		this.collectionDate = collectionDate;
+		this.unit = unit;
+		this.value = value;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	public String getCollectionDate() {
+		return collectionDate;
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	/**
+	 * Labs are within a window if collected on one of its days.
+	 *
+	 * @see edu.mayo.qdm.cem.dao.ClinicalRow#isWithin(edu.mayo.qdm.cem.dao.DateWindow)
+	 */
+	@Override
+	public boolean isWithin(DateWindow window) {
+		return window.contains(this.collectionDate);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.ViewRow#getEstimatedSize()
+	 */
+	@Override
+	int getEstimatedSize() {
+		return super.getEstimatedSize() +
+				estimateSize(this.patientId) +
+				estimateSize(this.code) +
+				estimateSize(this.collectionDate) +
+				estimateSize(this.unit);
+	}
+	
+}
@@ -23,9 +23,10 @@
  */
 package edu.mayo.qdm.cem.dao;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,6 +40,8 @@ import org.apache.commons.lang.StringUtils;
 public class MapUtils {
 	
 	protected static Pattern BRACKETS_MATCHER = Pattern.compile("(.*)\\[([0-9]*)\\]");
+	
+	private static final ConcurrentMap<String,Path> PATHS = new ConcurrentHashMap<String,Path>();
 
 	/**
 	 *
@@ -47,24 +50,130 @@ public class MapUtils {
 	 * @return the object
 	 */
 	static Object get(String keyString, Map<?,?> map){
+		return getPath(keyString).get(map);
+	}
+	
+	static boolean keyExists(String keyString, Map<?,?> map){
+		return getPath(keyString).exists(map);
+	}
+	
+	/**
+	 * Compiles a dotted key string, such as "value.clinicalDrug.code" or
+	 * "rows[0].value", into a {@link Path} that can be evaluated repeatedly
+	 * without re-parsing it.
+	 *
+	 * @param keyString the key string
+	 * @return the path
+	 */
+	static Path compile(String keyString){
 		String[] tokens = StringUtils.split(keyString, '.');
-		if(tokens.length == 1){
-			return getFromMap(tokens[0], map);
-		} else {
-			String dotPath = StringUtils.join(
-					Arrays.copyOfRange(tokens, 1, tokens.length), ".");
-			return get(dotPath, (Map<?,?>) getFromMap(tokens[0], map));	
+		
+		String[] keys = new String[tokens.length];
+		int[] indexes = new int[tokens.length];
+		for(int i=0;i<tokens.length;i++){
+			Matcher matcher = BRACKETS_MATCHER.matcher(tokens[i]);
+			
+			if(matcher.find()){
+				keys[i] = matcher.group(1);
+				indexes[i] = Integer.parseInt(matcher.group(2));
+			} else {
+				keys[i] = tokens[i];
+				indexes[i] = Path.NO_INDEX;
+			}
 		}
+		
+		return new Path(keys, indexes);
 	}
 	
-	static boolean keyExists(String keyString, Map<?,?> map){
-		try {
-			get(keyString, map);
-		} catch (KeyNotFoundException e) {
-			return false;
+	/**
+	 * Gets a compiled path, compiling it on first use.
+	 *
+	 * @param keyString the key string
+	 * @return the path
+	 */
+	private static Path getPath(String keyString){
+		Path path = PATHS.get(keyString);
+		if(path == null){
+			path = compile(keyString);
+			PATHS.putIfAbsent(keyString, path);
+		}
+		
+		return path;
+	}
+	
+	/**
+	 * A pre-parsed key string. Evaluation walks the maps in a plain loop.
+	 */
+	static final class Path {
+		
+		private static final int NO_INDEX = -1;
+		
+		private final String[] keys;
+		private final int[] indexes;
+
+		private Path(String[] keys, int[] indexes) {
+			super();
+			this.keys = keys;
+			this.indexes = indexes;
 		}
 		
-		return true;
+		/**
+		 * Gets the value at this path.
+		 *
+		 * @param map the map
+		 * @return the object
+		 * @throws KeyNotFoundException if a key along the path is missing
+		 */
+		Object get(Map<?,?> map){
+			Object current = map;
+			for(int i=0;i<this.keys.length;i++){
+				Map<?,?> currentMap = (Map<?,?>) current;
+				
+				String key = this.keys[i];
+				current = currentMap.get(key);
+				if(current == null && !currentMap.containsKey(key)){
+					throw getNotFoundException(key, currentMap);
+				}
+				
+				if(this.indexes[i] != NO_INDEX){
+					current = ((List<?>) current).get(this.indexes[i]);
+				}
+			}
+			
+			return current;
+		}
+		
+		/**
+		 * Checks if every key along the path is present. Unlike get, this
+		 * never throws -- a missing key or a non-Map along the way is false.
+		 *
+		 * @param map the map
+		 * @return true, if the path exists
+		 */
+		boolean exists(Map<?,?> map){
+			Object current = map;
+			for(int i=0;i<this.keys.length;i++){
+				if(! (current instanceof Map)){
+					return false;
+				}
+				Map<?,?> currentMap = (Map<?,?>) current;
+				
+				String key = this.keys[i];
+				current = currentMap.get(key);
+				if(current == null && !currentMap.containsKey(key)){
+					return false;
+				}
+				
+				if(this.indexes[i] != NO_INDEX){
+					if(! (current instanceof List) || ((List<?>) current).size() <= this.indexes[i]){
+						return false;
+					}
+					current = ((List<?>) current).get(this.indexes[i]);
+				}
+			}
+			
+			return true;
+		}
 	}
 	
 	/**
@@ -0,0 +1,153 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hands the pages of an {@link AbstractPageableIterator} to the workers of a
+ * {@link ForkJoinPool}. Each worker claims a whole page at a time with
+ * {@link AbstractPageableIterator#nextPage()}, decorates it, and passes its
+ * items to the handler -- so paging, decorating and the downstream work all
+ * spread over the pool instead of running on a single thread.
+ * 
+ * Items are handled in no particular order. If the handler throws, the
+ * workers stop claiming pages and the exception is rethrown from
+ * {@link #process(ForkJoinPool)}.
+ * 
+ * Pages that are Closeable are closed once handled, or abandoned.
+ * 
+ * Prefetching is turned off on the pages: a prefetch thread would fetch
+ * and decorate every page itself, with the workers queued behind it.
+ *
+ * @param <T> the generic type
+ */
+public class ParallelPageProcessor<T> {
+	
+	private AbstractPageableIterator<T,?> pages;
+	
+	private ItemHandler<T> handler;
+	
+	private volatile boolean isStopped = false;
+	
+	/**
+	 * Receives each item. Called concurrently from the workers of the pool.
+	 *
+	 * @param <T> the generic type
+	 */
+	public interface ItemHandler<T> {
+		
+		/**
+		 * Handle an item.
+		 *
+		 * @param item the item
+		 */
+		public void handle(T item);
+		
+	}
+
+	/**
+	 * Instantiates a new parallel page processor.
+	 *
+	 * @param pages the pages, which are closed once processing ends
+	 * @param handler the handler
+	 * @throws IllegalStateException if the pages have already started prefetching
+	 */
+	public ParallelPageProcessor(AbstractPageableIterator<T,?> pages, ItemHandler<T> handler) {
+		super();
+		pages.setPrefetchDepth(0);
+		this.pages = pages;
+		this.handler = handler;
+	}
+	
+	/**
+	 * Processes every item, using one worker per thread of the pool.
+	 * Blocks until all pages are handled.
+	 *
+	 * @param pool the pool
+	 */
+	public void process(ForkJoinPool pool) {
+		final int parallelism = pool.getParallelism();
+		
+		try {
+			pool.invoke(new RecursiveAction(){
+
+				private static final long serialVersionUID = 3046393425312316707L;
+
+				@Override
+				protected void compute() {
+					List<Worker> workers = new ArrayList<Worker>(parallelism);
+					for(int i=0;i<parallelism;i++){
+						workers.add(new Worker());
+					}
+					
+					invokeAll(workers);
+				}
+				
+			});
+		} finally {
+			this.pages.close();
+		}
+	}
+	
+	/**
+	 * Claims and handles pages until they are exhausted or a worker fails.
+	 */
+	private class Worker extends RecursiveAction {
+
+		private static final long serialVersionUID = -3316000947419463781L;
+
+		@Override
+		protected void compute() {
+			try {
+				Iterable<T> page;
+				while(! isStopped && AbstractPageableIterator.sizeOf(page = pages.nextPage()) > 0){
+					try {
+						for(T item : page){
+							if(isStopped){
+								return;
+							}
+							handler.handle(item);
+						}
+					} finally {
+						if(page instanceof Closeable){
+							CouchDbClient.closeQuietly((Closeable) page);
+						}
+					}
+				}
+			} catch (RuntimeException e) {
+				isStopped = true;
+				throw e;
+			} catch (Error e) {
+				isStopped = true;
+				throw e;
+			}
+		}
+	}
+
+}
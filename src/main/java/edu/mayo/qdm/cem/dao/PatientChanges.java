@@ -0,0 +1,102 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * The patients affected by the changes to the CEM databases since their
+ * last checkpoint. Once the patients have been re-extracted, call
+ * {@link #checkpoint()} so the next run starts where this one ended.
+ * Until then a failed run can simply be repeated.
+ */
+public class PatientChanges {
+	
+	private boolean isFullExtractionRequired;
+	private Set<String> patientIds;
+	private Map<String,String> lastSequences;
+	private CheckpointStore checkpointStore;
+
+	/**
+	 * Instantiates a new patient changes.
+	 *
+	 * @param isFullExtractionRequired true, if any database has no checkpoint yet, or reported a deletion
+	 * @param patientIds the affected patient ids
+	 * @param lastSequences the update sequence reached in each database
+	 * @param checkpointStore the checkpoint store
+	 */
+	protected PatientChanges(
+			boolean isFullExtractionRequired, 
+			Set<String> patientIds,
+			Map<String,String> lastSequences, 
+			CheckpointStore checkpointStore) {
+		super();
+		this.isFullExtractionRequired = isFullExtractionRequired;
+		this.patientIds = patientIds;
+		this.lastSequences = lastSequences;
+		this.checkpointStore = checkpointStore;
+	}
+	
+	/**
+	 * Checks if there is no checkpoint to start from, or documents were
+	 * deleted whose patients cannot be found -- every patient must be
+	 * extracted, and {@link #getPatientIds()} is empty.
+	 *
+	 * @return true, if a full extraction is required
+	 */
+	public boolean isFullExtractionRequired() {
+		return isFullExtractionRequired;
+	}
+
+	/**
+	 * Gets the ids of the patients with changed documents.
+	 *
+	 * @return the patient ids
+	 */
+	public Set<String> getPatientIds() {
+		return Collections.unmodifiableSet(patientIds);
+	}
+	
+	/**
+	 * Gets the update sequence reached in each database.
+	 *
+	 * @return the last sequences
+	 */
+	public Map<String,String> getLastSequences() {
+		return Collections.unmodifiableMap(lastSequences);
+	}
+
+	/**
+	 * Records the sequences reached, marking these changes as extracted.
+	 */
+	public void checkpoint() {
+		for(Entry<String,String> entry : this.lastSequences.entrySet()){
+			this.checkpointStore.setSequence(entry.getKey(), entry.getValue());
+		}
+	}
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonParser;
+
+/**
+ * Reads the changes feeds of the CEM databases for
+ * {@link CemdbCouchDbDao#getChangedPatients(CheckpointStore)}, collecting
+ * the ids of the patients whose documents changed since the checkpoint.
+ * <p>
+ * The patient id is read from the 'patientExternalId' of the CEM element
+ * of the document, as the '*_by_patient_id' views read it. A deleted document
+ * no longer carries it, so it is read from the revision before the deletion.
+ * A change whose patient cannot be found -- an unexpected document, or a
+ * deletion whose earlier revisions were compacted away -- requires a full
+ * extraction rather than being missed.
+ */
+class PatientChangesReader {
+	
+	protected final Logger log = Logger.getLogger(getClass());
+	
+	private final static String SINCE_NOW = "now";
+	private final static int CHANGES_PER_REQUEST = 1000;
+	
+	private final static String ID_FIELD = "id";
+	private final static String DOC_FIELD = "doc";
+	private final static String DELETED_FIELD = "deleted";
+	private final static String DESIGN_DOC_PREFIX = "_design/";
+	private final static String REV_PARAM = "rev";
+	private final static String REVS_PARAM = "revs";
+	
+	//relative to the CEM element -- SecondaryUsePatient, SecondaryUseNotedDrug...
+	private final static MapUtils.Path PATIENT_ID_PATH = MapUtils.compile("patientExternalId[0].ii.extension.value");
+	private final static MapUtils.Path DELETED_REV_PATH = MapUtils.compile("changes[0].rev");
+	private final static MapUtils.Path REVISIONS_START_PATH = MapUtils.compile("_revisions.start");
+	private final static MapUtils.Path REVISIONS_IDS_PATH = MapUtils.compile("_revisions.ids");
+	
+	private final CouchDbClient couchDbClient;
+	
+	private final String[] databases;
+	
+	/**
+	 * Instantiates a new patient changes reader.
+	 *
+	 * @param couchDbClient the couch db client
+	 * @param databases the databases whose changes are followed
+	 */
+	PatientChangesReader(CouchDbClient couchDbClient, String... databases) {
+		super();
+		this.couchDbClient = couchDbClient;
+		this.databases = databases;
+	}
+	
+	/**
+	 * Reads the changes since the checkpoints of the databases. A full
+	 * extraction is required if any database has no checkpoint yet, or
+	 * reports a change whose patient cannot be found.
+	 *
+	 * @param checkpointStore the checkpoint store
+	 * @return the patient changes
+	 */
+	PatientChanges read(CheckpointStore checkpointStore) {
+		boolean isFullExtractionRequired = false;
+		for(String database : this.databases){
+			if(checkpointStore.getSequence(database) == null){
+				log.info("No checkpoint for: " + database + ", a full extraction is required.");
+				isFullExtractionRequired = true;
+			}
+		}
+		
+		Set<String> patientIds = new HashSet<String>();
+		Map<String,String> lastSequences = new HashMap<String,String>();
+		int unresolved = 0;
+		for(String database : this.databases){
+			String since = isFullExtractionRequired ? SINCE_NOW : checkpointStore.getSequence(database);
+			
+			unresolved += this.readChanges(database, since, patientIds, lastSequences);
+		}
+		
+		if(unresolved > 0 && ! isFullExtractionRequired){
+			log.warn(unresolved + " changed documents, whose patients cannot be determined -- a full extraction is required.");
+			isFullExtractionRequired = true;
+			patientIds.clear();
+		}
+		
+		return new PatientChanges(isFullExtractionRequired, patientIds, lastSequences, checkpointStore);
+	}
+	
+	/**
+	 * Reads the changes feed of a database a page at a time, adding the id
+	 * of the patient of each changed document, and the last sequence of the feed.
+	 *
+	 * @param database the database
+	 * @param since the sequence to start after
+	 * @param patientIds the patient ids
+	 * @param lastSequences the last sequence of each database
+	 * @return the number of changed documents whose patient cannot be found
+	 */
+	private int readChanges(final String database, String since, final Set<String> patientIds, Map<String,String> lastSequences) {
+		final int[] counts = new int[4];
+		//id -> rev of the deleted documents of a page
+		final Map<String,String> deleted = new HashMap<String,String>();
+		
+		String sequence = since;
+		int read;
+		do {
+			read = counts[0];
+			deleted.clear();
+			
+			sequence = this.couchDbClient.queryChanges(database, sequence, CHANGES_PER_REQUEST,
+					new CouchDbClient.RowReader<Map<String,Object>>(){
+	
+						@SuppressWarnings("unchecked")
+						@Override
+						public Map<String, Object> read(JsonParser parser) throws IOException {
+							return couchDbClient.getObjectMapper().readValue(parser, HashMap.class);
+						}
+						
+					},
+					new CouchDbClient.RowHandler<Map<String,Object>>(){
+	
+						@SuppressWarnings("unchecked")
+						@Override
+						public void row(Map<String, Object> change) {
+							counts[0]++;
+							
+							String id = (String) change.get(ID_FIELD);
+							if(id == null || id.startsWith(DESIGN_DOC_PREFIX)){
+								return;
+							}
+							
+							if(Boolean.TRUE.equals(change.get(DELETED_FIELD))){
+								counts[2]++;
+								deleted.put(id, DELETED_REV_PATH.exists(change) ? DELETED_REV_PATH.get(change).toString() : null);
+								return;
+							}
+							
+							String patientId = getPatientId((Map<String,Object>) change.get(DOC_FIELD));
+							if(patientId != null){
+								patientIds.add(patientId);
+								counts[1]++;
+							} else {
+								log.warn("No patient id in changed document: " + id + " in: " + database);
+								counts[3]++;
+							}
+						}
+						
+					});
+			
+			//read after the page, rather than while its response is open
+			for(Map.Entry<String,String> entry : deleted.entrySet()){
+				String patientId = this.getDeletedPatientId(database, entry.getKey(), entry.getValue());
+				if(patientId != null){
+					patientIds.add(patientId);
+					counts[1]++;
+				} else {
+					counts[3]++;
+				}
+			}
+		} while(counts[0] - read == CHANGES_PER_REQUEST);
+		
+		log.info(database + ": " + counts[0] + " changes, " + counts[1] + " with a patient id, " + 
+				counts[2] + " deleted, " + counts[3] + " unresolved, since: " + since);
+		
+		lastSequences.put(database, sequence);
+		
+		return counts[3];
+	}
+	
+	/**
+	 * Gets the patient id of a document, from whichever CEM element it holds.
+	 *
+	 * @param doc the document
+	 * @return the patient id, or null if none is found
+	 */
+	private String getPatientId(Map<String,Object> doc) {
+		if(doc == null){
+			return null;
+		}
+		
+		for(Map.Entry<String,Object> entry : doc.entrySet()){
+			if(! entry.getKey().startsWith("_") && 
+					entry.getValue() instanceof Map &&
+					PATIENT_ID_PATH.exists((Map<?,?>) entry.getValue())){
+				Object patientId = PATIENT_ID_PATH.get((Map<?,?>) entry.getValue());
+				if(patientId != null){
+					return patientId.toString();
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Gets the patient id of a deleted document from the revision before its
+	 * deletion.
+	 *
+	 * @param database the database
+	 * @param id the document id
+	 * @param rev the revision that deleted the document
+	 * @return the patient id, or null if the revision is gone or has none
+	 */
+	private String getDeletedPatientId(String database, String id, String rev) {
+		if(rev == null){
+			return null;
+		}
+		
+		try {
+			Map<String,String> params = new HashMap<String,String>();
+			params.put(REV_PARAM, rev);
+			params.put(REVS_PARAM, "true");
+			
+			Map<String,Object> tombstone = this.couchDbClient.getDocument(database, id, params);
+			if(! REVISIONS_START_PATH.exists(tombstone) || ! REVISIONS_IDS_PATH.exists(tombstone)){
+				return null;
+			}
+			
+			int start = ((Number) REVISIONS_START_PATH.get(tombstone)).intValue();
+			List<?> revisions = (List<?>) REVISIONS_IDS_PATH.get(tombstone);
+			if(revisions.size() < 2){
+				return null;
+			}
+			
+			params.clear();
+			params.put(REV_PARAM, (start - 1) + "-" + revisions.get(1));
+			
+			return this.getPatientId(this.couchDbClient.getDocument(database, id, params));
+		} catch (RuntimeException e) {
+			log.warn("Cannot read the revision before the deletion of: " + id + " in: " + database + " -- " + e.getMessage());
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * A row of the 'all_patients' view.
+ */
+public class PatientRow extends ViewRow {
+	
+	private String patientId;
+	private String birthDate;
+	private String genderCode;
+	private String race;
+	
+	/** Reads the value fields 'id', 'birthDate', 'gender.code' and 'race'. */
+	static final ViewRowReader<PatientRow> READER = new ViewRowReader<PatientRow>(){
+
+		@Override
+		protected PatientRow readValue(JsonParser parser, Object key) throws IOException {
+			PatientRow row = new PatientRow();
+			
+			while(parser.nextToken() == JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				
+				if("id".equals(field)){
+					row.patientId = getText(parser, token);
+				} else if("birthDate".equals(field)){
+					row.birthDate = getText(parser, token);
+				} else if("gender".equals(field)){
+					row.genderCode = getCode(parser, token);
+				} else if("race".equals(field)){
+					row.race = getText(parser, token);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			
+			required(row.patientId, "value.id");
+			required(row.birthDate, "value.birthDate");
+			required(row.genderCode, "value.gender.code");
+			required(row.race, "value.race");
+			
+			return row;
+		}
+		
+	};
+
+	/**
+	 * Instantiates a new, empty patient row, to be filled by the reader.
+	 */
+	PatientRow() {
+		super();
+	}
+	
+	/**
+	 * Instantiates a new patient row.
+	 *
+	 * @param patientId the patient id
+	 * @param birthDate the birth date
+	 * @param genderCode the gender code
+	 * @param race the race
+	 */
+	PatientRow(String patientId, String birthDate, String genderCode, String race) {
+		super();
+		this.patientId = patientId;
+		this.birthDate = birthDate;
+		this.genderCode = genderCode;
+		this.race = race;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public String getBirthDate() {
+		return birthDate;
+	}
+
+	public String getGenderCode() {
+		return genderCode;
+	}
+
+	public String getRace() {
+		return race;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.ViewRow#getEstimatedSize()
+	 */
+	@Override
+	int getEstimatedSize() {
+		return super.getEstimatedSize() +
+				estimateSize(this.patientId) +
+				estimateSize(this.birthDate) +
+				estimateSize(this.genderCode) +
+				estimateSize(this.race);
+	}
+	
+}
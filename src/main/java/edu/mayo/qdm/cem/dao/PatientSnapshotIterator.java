@@ -0,0 +1,120 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mayo.qdm.patient.Patient;
+
+/**
+ * Iterates the patients of a snapshot file. Pages of records are decoded
+ * from the file and bound to Patients, so a snapshot supports prefetching
+ * and {@link ParallelPageProcessor} just as a CouchDB extraction does.
+ */
+public class PatientSnapshotIterator extends AbstractPageableIterator<Patient,PatientRecord> {
+
+	private static final long serialVersionUID = 3326521637712478512L;
+	
+	private File file;
+	
+	private transient CemdbCouchDbDao dao;
+	
+	private transient PatientSnapshotReader reader;
+	
+	private boolean isRead = false;
+
+	/**
+	 * Instantiates a new patient snapshot iterator.
+	 *
+	 * @param file the snapshot file
+	 * @param dao the dao, used to bind records to patients
+	 */
+	protected PatientSnapshotIterator(File file, CemdbCouchDbDao dao) {
+		super();
+		this.file = file;
+		this.dao = dao;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.AbstractPageableIterator#doPage(int, int)
+	 */
+	@Override
+	protected List<? extends PatientRecord> doPage(int currentPosition, int pageSize) {
+		List<PatientRecord> page = new ArrayList<PatientRecord>(pageSize);
+		if(this.isRead){
+			return page;
+		}
+		
+		try {
+			if(this.reader == null){
+				this.reader = new PatientSnapshotReader(this.file);
+			}
+			
+			PatientRecord record;
+			while(page.size() < pageSize && (record = this.reader.read()) != null){
+				page.add(record);
+			}
+			
+			if(page.size() < pageSize){
+				this.isRead = true;
+				this.closeReader();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		return page;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.AbstractPageableIterator#transform(java.lang.Object)
+	 */
+	@Override
+	protected Patient transform(PatientRecord inputItem) {
+		return this.dao.toPatient(inputItem);
+	}
+
+	/**
+	 * Stops iterating, and releases the file.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		
+		synchronized(this){
+			this.closeReader();
+		}
+	}
+	
+	private void closeReader() {
+		if(this.reader != null){
+			CouchDbClient.closeQuietly(this.reader);
+			this.reader = null;
+		}
+	}
+
+}
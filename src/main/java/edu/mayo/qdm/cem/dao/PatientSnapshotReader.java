@@ -0,0 +1,242 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the {@link PatientRecord}s of a snapshot written by
+ * {@link PatientSnapshotWriter}. The file is memory-mapped a window at a
+ * time, and records are decoded straight out of the mapped buffer; the
+ * window slides forward as records are read, so files larger than the
+ * address space limit of a single mapping are supported.
+ */
+public class PatientSnapshotReader implements Closeable {
+	
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	
+	private static final int HEADER_SIZE = 8;
+	private static final int INT_SIZE = 4;
+	
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long fileSize;
+	private int windowSize;
+	
+	private MappedByteBuffer window;
+	private long windowStart;
+	
+	private List<String> symbols = new ArrayList<String>();
+	private byte[] scratch = new byte[256];
+	
+	private boolean isEnded = false;
+
+	/**
+	 * Instantiates a new patient snapshot reader.
+	 *
+	 * @param file the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public PatientSnapshotReader(File file) throws IOException {
+		this(file, DEFAULT_WINDOW_SIZE);
+	}
+	
+	/**
+	 * Instantiates a new patient snapshot reader.
+	 *
+	 * @param file the file
+	 * @param windowSize the number of bytes mapped at a time
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public PatientSnapshotReader(File file, int windowSize) throws IOException {
+		super();
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		this.fileSize = this.channel.size();
+		this.windowSize = windowSize;
+		
+		try {
+			this.map(0, HEADER_SIZE);
+			
+			int magic = this.window.getInt();
+			if(magic != PatientSnapshotWriter.MAGIC){
+				throw new IllegalStateException(file + " is not a patient snapshot.");
+			}
+			int version = this.window.getInt();
+			if(version != PatientSnapshotWriter.VERSION){
+				throw new IllegalStateException("Unsupported patient snapshot version: " + version + " in: " + file);
+			}
+		} catch (RuntimeException e) {
+			this.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Reads the next record.
+	 *
+	 * @return the patient record, or null at the end of the snapshot
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public PatientRecord read() throws IOException {
+		if(this.isEnded){
+			return null;
+		}
+		
+		this.ensure(INT_SIZE);
+		int length = this.window.getInt();
+		if(length == PatientSnapshotWriter.END_OF_SNAPSHOT){
+			this.isEnded = true;
+			return null;
+		}
+		this.ensure(length);
+		
+		String patientId = this.readString();
+		PatientRecord record = new PatientRecord(new PatientRow(
+				patientId, 
+				this.readString(), 
+				this.readSymbol(), 
+				this.readSymbol()));
+		
+		int labs = this.window.getInt();
+		for(int i=0;i<labs;i++){
+			record.getLabs().add(new LabRow(
+					patientId, 
+					this.readSymbol(), 
+					this.readString(), 
+					this.readSymbol(), 
+					this.window.getDouble()));
+		}
+		
+		int drugs = this.window.getInt();
+		for(int i=0;i<drugs;i++){
+			record.getDrugs().add(new DrugRow(
+					patientId, 
+					this.readSymbol(), 
+					this.readString(), 
+					this.readString()));
+		}
+		
+		int diagnoses = this.window.getInt();
+		for(int i=0;i<diagnoses;i++){
+			record.getDiagnoses().add(new DiagnosisRow(
+					patientId, 
+					this.readSymbol()));
+		}
+		
+		return record;
+	}
+	
+	/**
+	 * Read a length-prefixed string.
+	 *
+	 * @return the string
+	 */
+	private String readString() {
+		int length = this.window.getInt();
+		if(length == PatientSnapshotWriter.NULL_STRING){
+			return null;
+		}
+		
+		if(length > this.scratch.length){
+			this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+		}
+		this.window.get(this.scratch, 0, length);
+		
+		return new String(this.scratch, 0, length, PatientSnapshotWriter.UTF_8);
+	}
+	
+	/**
+	 * Read a symbol, adding it to the table the first time it is seen.
+	 *
+	 * @return the string
+	 */
+	private String readSymbol() {
+		int index = this.window.getInt();
+		if(index == PatientSnapshotWriter.NULL_STRING){
+			return null;
+		}
+		
+		if(index < this.symbols.size()){
+			return this.symbols.get(index);
+		}
+		if(index != this.symbols.size()){
+			throw new IllegalStateException("Corrupt patient snapshot -- symbol " + index + " is out of order.");
+		}
+		
+		String symbol = this.readString();
+		this.symbols.add(symbol);
+		
+		return symbol;
+	}
+	
+	/**
+	 * Makes sure the next 'length' bytes are mapped, sliding the window forward if not.
+	 *
+	 * @param length the length
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void ensure(int length) throws IOException {
+		if(this.window.remaining() >= length){
+			return;
+		}
+		
+		this.map(this.windowStart + this.window.position(), length);
+	}
+	
+	/**
+	 * Maps a window of the file starting at the given offset.
+	 *
+	 * @param position the offset
+	 * @param minimum the number of bytes that must be mapped
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void map(long position, int minimum) throws IOException {
+		if(position + minimum > this.fileSize){
+			throw new IllegalStateException("Truncated patient snapshot -- the file ends at: " + this.fileSize);
+		}
+		
+		long size = Math.min(Math.max(this.windowSize, minimum), this.fileSize - position);
+		
+		this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		this.windowStart = position;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		this.window = null;
+		this.file.close();
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes {@link PatientRecord}s to a patient snapshot file, to be read back
+ * with {@link PatientSnapshotReader}.
+ * 
+ * The format is a header (magic number, version) followed by one
+ * length-prefixed record per patient and an end marker. Within a record,
+ * numbers are fixed width and free-text values (ids, dates) are
+ * length-prefixed UTF-8. Low-cardinality values (codes, units, race, gender)
+ * are symbols: written in full the first time, and as a table index after
+ * that, which keeps the file small and lets the reader share one String per
+ * distinct code.
+ */
+public class PatientSnapshotWriter implements Closeable {
+	
+	static final int MAGIC = 0x43454d53; // "CEMS"
+	static final int VERSION = 1;
+	
+	static final int END_OF_SNAPSHOT = -1;
+	static final int NULL_STRING = -1;
+	
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private DataOutputStream out;
+	
+	private ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+	private DataOutputStream record = new DataOutputStream(this.recordBytes);
+	
+	private Map<String,Integer> symbols = new HashMap<String,Integer>();
+	
+	private int count = 0;
+
+	/**
+	 * Instantiates a new patient snapshot writer, replacing the file if it exists.
+	 *
+	 * @param file the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public PatientSnapshotWriter(File file) throws IOException {
+		super();
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+	}
+	
+	/**
+	 * Writes a record.
+	 *
+	 * @param patientRecord the patient record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void write(PatientRecord patientRecord) throws IOException {
+		this.recordBytes.reset();
+		
+		PatientRow patient = patientRecord.getPatient();
+		this.writeString(patient.getPatientId());
+		this.writeString(patient.getBirthDate());
+		this.writeSymbol(patient.getGenderCode());
+		this.writeSymbol(patient.getRace());
+		
+		this.record.writeInt(patientRecord.getLabs().size());
+		for(LabRow lab : patientRecord.getLabs()){
+			this.writeSymbol(lab.getCode());
+			this.writeString(lab.getCollectionDate());
+			this.writeSymbol(lab.getUnit());
+			this.record.writeDouble(lab.getValue());
+		}
+		
+		this.record.writeInt(patientRecord.getDrugs().size());
+		for(DrugRow drug : patientRecord.getDrugs()){
+			this.writeSymbol(drug.getCode());
+			this.writeString(drug.getStartTime());
+			this.writeString(drug.getEndTime());
+		}
+		
+		this.record.writeInt(patientRecord.getDiagnoses().size());
+		for(DiagnosisRow diagnosis : patientRecord.getDiagnoses()){
+			this.writeSymbol(diagnosis.getCode());
+		}
+		
+		this.out.writeInt(this.recordBytes.size());
+		this.recordBytes.writeTo(this.out);
+		
+		this.count++;
+	}
+	
+	/**
+	 * Write a length-prefixed string.
+	 *
+	 * @param value the value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeString(String value) throws IOException {
+		if(value == null){
+			this.record.writeInt(NULL_STRING);
+		} else {
+			byte[] bytes = value.getBytes(UTF_8);
+			this.record.writeInt(bytes.length);
+			this.record.write(bytes);
+		}
+	}
+	
+	/**
+	 * Write a symbol -- its index, followed by the string itself if
+	 * this is the first time it is written.
+	 *
+	 * @param value the value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeSymbol(String value) throws IOException {
+		if(value == null){
+			this.record.writeInt(NULL_STRING);
+			return;
+		}
+		
+		Integer index = this.symbols.get(value);
+		if(index != null){
+			this.record.writeInt(index);
+		} else {
+			index = this.symbols.size();
+			this.symbols.put(value, index);
+			
+			this.record.writeInt(index);
+			this.writeString(value);
+		}
+	}
+	
+	/**
+	 * Gets the number of records written.
+	 *
+	 * @return the count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes the end marker and closes the file. A snapshot that was not
+	 * closed has no end marker, and is rejected by the reader.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.out.writeInt(END_OF_SNAPSHOT);
+		} finally {
+			this.out.close();
+		}
+	}
+
+}
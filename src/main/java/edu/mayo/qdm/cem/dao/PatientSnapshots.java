@@ -0,0 +1,223 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.mayo.qdm.patient.Patient;
+
+/**
+ * Writes the patient records of {@link CemdbCouchDbDao} to files in the
+ * {@link PatientSnapshotWriter} encoding: whole snapshots, and the pages
+ * spilled over the memory budget.
+ */
+class PatientSnapshots {
+	
+	protected final Logger log = Logger.getLogger(getClass());
+	
+	private final static int SPILL_WINDOW_SIZE = 4 * 1024 * 1024;
+	
+	private final CemdbCouchDbDao dao;
+	
+	/**
+	 * Instantiates a new patient snapshots.
+	 *
+	 * @param dao the dao that binds the spilled rows
+	 */
+	PatientSnapshots(CemdbCouchDbDao dao) {
+		super();
+		this.dao = dao;
+	}
+	
+	/**
+	 * Writes patient records to a snapshot file, closing the records once
+	 * written. If they fail, the partial file is deleted.
+	 *
+	 * @param records the records
+	 * @param file the snapshot file
+	 * @return the number of patients written
+	 */
+	int write(AbstractPageableIterator<PatientRecord,?> records, File file) {
+		PatientSnapshotWriter writer = null;
+		try {
+			writer = new PatientSnapshotWriter(file);
+			while(records.hasNext()){
+				writer.write(records.next());
+			}
+			writer.close();
+			
+			log.info("Wrote " + writer.getCount() + " patients to snapshot: " + file);
+			
+			int count = writer.getCount();
+			writer = null;
+			
+			return count;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			records.close();
+			
+			if(writer != null){
+				CouchDbClient.closeQuietly(writer);
+				if(! file.delete()){
+					log.warn("Could not delete partial snapshot: " + file);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Starts spilling a page over the memory budget to a temp file.
+	 *
+	 * @param directory the directory of the temp file, or null for the default
+	 * @return the spill, to be written in the order of the page
+	 */
+	Spill spill(File directory) {
+		try {
+			return new Spill(File.createTempFile("cemdb-page", ".spill", directory));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * The clinical rows of a page being written to a temp file, a sub-batch
+	 * of patients at a time, to be bound to each patient as the page is
+	 * consumed. Closing it before the page is replayed deletes the file.
+	 */
+	class Spill implements Closeable {
+		
+		private File file;
+		
+		private PatientSnapshotWriter writer;
+		
+		private int count = 0;
+		
+		private long size = 0;
+		
+		private Spill(File file) throws IOException {
+			super();
+			this.file = file;
+			try {
+				this.writer = new PatientSnapshotWriter(file);
+			} catch (IOException e) {
+				this.close();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Writes the rows of the next patients of the page, releasing the
+		 * rows of each patient as it is written.
+		 *
+		 * @param patients the patients
+		 * @param rows their clinical rows
+		 * @param size the estimated size of the rows
+		 */
+		void write(List<Patient> patients, ClinicalRows rows, long size) {
+			try {
+				for(Patient patient : patients){
+					String patientId = patient.getSourcePid();
+					
+					PatientRecord record = new PatientRecord(new PatientRow(patientId, null, null, null));
+					addRows(record.getLabs(), rows.labs.remove(patientId));
+					addRows(record.getDrugs(), rows.drugs.remove(patientId));
+					addRows(record.getDiagnoses(), rows.diagnoses.remove(patientId));
+					
+					this.writer.write(record);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			
+			this.count += patients.size();
+			this.size += size;
+		}
+		
+		/**
+		 * Finishes the file, and opens it to be replayed. The spill no
+		 * longer needs to be closed -- the page does.
+		 *
+		 * @param patients the patients of the page, all written
+		 * @return the spilled page
+		 */
+		SpilledPatientPage replay(List<Patient> patients) {
+			if(this.count != patients.size()){
+				throw new IllegalStateException("Spilled " + this.count + " of " + patients.size() + " patients.");
+			}
+			
+			PatientSnapshotReader reader = null;
+			try {
+				this.writer.close();
+				this.writer = null;
+				
+				log.info("Spilled the rows of " + this.count + " patients, estimated at " + 
+						this.size + " bytes, to: " + this.file);
+				
+				reader = new PatientSnapshotReader(this.file, SPILL_WINDOW_SIZE);
+				
+				//the open reader keeps the data where the platform allows the delete
+				File remaining = this.file.delete() ? null : this.file;
+				this.file = null;
+				
+				return new SpilledPatientPage(patients, reader, remaining, dao);
+			} catch (IOException e) {
+				if(reader != null){
+					CouchDbClient.closeQuietly(reader);
+				}
+				throw new RuntimeException(e);
+			}
+		}
+		
+		/**
+		 * Abandons the spill, deleting the file.
+		 */
+		@Override
+		public void close() {
+			if(this.writer != null){
+				CouchDbClient.closeQuietly(this.writer);
+				this.writer = null;
+			}
+			if(this.file != null){
+				if(! this.file.delete()){
+					log.warn("Could not delete spilled page: " + this.file);
+				}
+				this.file = null;
+			}
+		}
+		
+	}
+	
+	private static <R> void addRows(List<R> list, List<R> rows) {
+		if(rows != null){
+			list.addAll(rows);
+		}
+	}
+
+}
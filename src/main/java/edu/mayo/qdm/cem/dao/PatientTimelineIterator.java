@@ -0,0 +1,326 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonParser;
+
+import edu.mayo.qdm.patient.Diagnosis;
+import edu.mayo.qdm.patient.Medication;
+import edu.mayo.qdm.patient.Patient;
+
+/**
+ * Assembles patients from a single range scan of the 'patient_timeline' view.
+ * 
+ * The view collates every CEM document of a patient under keys of the form
+ * [patientId, category], so each patient's demographics row (category 0) is
+ * followed by its labs (1), drugs (2) and diagnoses (3). A patient is complete
+ * as soon as the patientId of the key changes. Rows are requested in pages of
+ * 'rowsPerRequest' using the last key and docid seen, and a patient split
+ * across two requests is carried over to the next page.
+ */
+public class PatientTimelineIterator extends AbstractPageableIterator<Patient,Patient> {
+
+	private static final long serialVersionUID = -1406893526262047411L;
+	
+	private static final Logger log = Logger.getLogger(PatientTimelineIterator.class);
+	
+	public final static int DEFAULT_ROWS_PER_REQUEST = 10000;
+
+	protected final static int PATIENT_CATEGORY = 0;
+	protected final static int LAB_CATEGORY = 1;
+	protected final static int DRUG_CATEGORY = 2;
+	protected final static int DIAGNOSIS_CATEGORY = 3;
+	
+	private final static String LIMIT_PARAM = "limit";
+	private final static String STARTKEY_PARAM = "startkey";
+	private final static String STARTKEY_DOCID_PARAM = "startkey_docid";
+	private final static String ENDKEY_PARAM = "endkey";
+	
+	/** Binds the value of each row according to the category of its key. */
+	static final ViewRowReader<ViewRow> TIMELINE_READER = new ViewRowReader<ViewRow>(){
+
+		@Override
+		protected ViewRow readValue(JsonParser parser, Object key) throws IOException {
+			int category = getCategory(key);
+			
+			switch (category) {
+				case PATIENT_CATEGORY: return PatientRow.READER.readValue(parser, key);
+				case LAB_CATEGORY: return LabRow.READER.readValue(parser, key);
+				case DRUG_CATEGORY: return DrugRow.READER.readValue(parser, key);
+				case DIAGNOSIS_CATEGORY: return DiagnosisRow.READER.readValue(parser, key);
+				default: {
+					throw new IllegalStateException("Unknown timeline category: " + category);
+				}
+			}
+		}
+		
+	};
+	
+	private transient CemdbCouchDbDao dao;
+	private transient CouchDbClient couchDbClient;
+	private transient CouchDbIterator.Transformer<Patient,PatientRow> patientTransformer;
+	private String view;
+	private int rowsPerRequest;
+	private KeyRange range;
+	private Set<DataCategory> categories;
+	private transient CodeFilter codeFilter;
+	private DateWindow dateWindow;
+	
+	private transient Object startKey;
+	private String startDocId;
+	private boolean isRowsExhausted = false;
+	
+	/** The patient being assembled, possibly carried over from the previous request. */
+	private transient Patient current;
+	private String currentId;
+	
+	/**
+	 * Instantiates a new patient timeline iterator.
+	 *
+	 * @param view the timeline view
+	 * @param rowsPerRequest the number of view rows to request at a time
+	 * @param patientTransformer the patient transformer
+	 * @param dao the dao, used to transform clinical data rows
+	 * @param couchDbClient the couch db client
+	 * @param range the range of patient ids to assemble
+	 * @param categories the categories of clinical data to add to the patients
+	 * @param codeFilter the code filter, or null
+	 * @param dateWindow the date window, or null
+	 */
+	protected PatientTimelineIterator(
+			String view,
+			int rowsPerRequest,
+			CouchDbIterator.Transformer<Patient,PatientRow> patientTransformer,
+			CemdbCouchDbDao dao,
+			CouchDbClient couchDbClient,
+			KeyRange range,
+			Collection<DataCategory> categories,
+			CodeFilter codeFilter,
+			DateWindow dateWindow) {
+		super();
+		this.view = view;
+		this.rowsPerRequest = rowsPerRequest;
+		this.patientTransformer = patientTransformer;
+		this.dao = dao;
+		this.couchDbClient = couchDbClient;
+		this.range = range;
+		this.categories = DataCategory.copyOf(categories);
+		this.codeFilter = codeFilter;
+		this.dateWindow = dateWindow;
+	}
+
+	/**
+	 * Returns the patients completed by the next request(s). Requests are
+	 * repeated until at least one patient is complete, so a patient with
+	 * more rows than 'rowsPerRequest' does not end the iteration.
+	 */
+	@Override
+	protected List<? extends Patient> doPage(int currentPosition, int pageSize) {
+		final List<Patient> completed = new ArrayList<Patient>();
+		
+		while(completed.isEmpty() && ! this.isRowsExhausted){
+			final int[] count = new int[1];
+			
+			this.couchDbClient.queryView(this.view, null, this.getParams(), TIMELINE_READER, new CouchDbClient.RowHandler<ViewRow>(){
+
+				@Override
+				public void row(ViewRow row) {
+					if(count[0]++ < rowsPerRequest){
+						assemble(row, completed);
+					} else {
+						startKey = row.getKey();
+						startDocId = row.getId();
+					}
+				}
+				
+			});
+			
+			if(count[0] <= this.rowsPerRequest){
+				this.isRowsExhausted = true;
+				
+				if(this.current != null){
+					completed.add(this.current);
+					this.current = null;
+				}
+			}
+		}
+		
+		return completed;
+	}
+	
+	/**
+	 * Adds a row to the patient being assembled, completing it
+	 * if the row belongs to the next patient.
+	 *
+	 * @param row the row
+	 * @param completed the completed patients
+	 */
+	private void assemble(ViewRow row, List<Patient> completed) {
+		String patientId = ((List<?>) row.getKey()).get(0).toString();
+		int category = getCategory(row.getKey());
+		
+		if(category == PATIENT_CATEGORY){
+			if(patientId.equals(this.currentId)){
+				return;
+			}
+			if(this.current != null){
+				completed.add(this.current);
+			}
+			this.current = this.patientTransformer.transform((PatientRow) row);
+			this.currentId = patientId;
+			
+			return;
+		}
+		
+		if(this.current == null || ! patientId.equals(this.currentId)){
+			log.debug("No patient row for clinical data of patient: " + patientId);
+			return;
+		}
+		
+		if(! this.categories.contains(getDataCategory(category))){
+			return;
+		}
+		
+		if(this.codeFilter != null && 
+				! this.codeFilter.accepts(getCodeSystem(category), ((ClinicalRow) row).getCode())){
+			return;
+		}
+		if(this.dateWindow != null && ! ((ClinicalRow) row).isWithin(this.dateWindow)){
+			return;
+		}
+		
+		switch (category) {
+			case LAB_CATEGORY: {
+				this.current.addLab(this.dao.toLab((LabRow) row));
+				break;
+			}
+			case DRUG_CATEGORY: {
+				Medication medication = this.dao.toMedication((DrugRow) row);
+				if(medication != null){
+					this.current.addMedication(medication);
+				}
+				break;
+			}
+			case DIAGNOSIS_CATEGORY: {
+				Diagnosis diagnosis = this.dao.toDiagnosis((DiagnosisRow) row);
+				if(diagnosis != null){
+					this.current.addDiagnosis(diagnosis);
+				}
+				break;
+			}
+			default: {
+				throw new IllegalStateException("Unknown timeline category: " + category);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the category of a [patientId, category] key.
+	 *
+	 * @param key the key
+	 * @return the category
+	 */
+	private static int getCategory(Object key) {
+		return ((Number) ((List<?>) key).get(1)).intValue();
+	}
+	
+	/**
+	 * Gets the data category of a clinical data category of the view.
+	 *
+	 * @param category the view category
+	 * @return the data category
+	 */
+	private static DataCategory getDataCategory(int category) {
+		switch (category) {
+			case LAB_CATEGORY: return DataCategory.LABS;
+			case DRUG_CATEGORY: return DataCategory.MEDICATIONS;
+			case DIAGNOSIS_CATEGORY: return DataCategory.DIAGNOSES;
+			default: {
+				throw new IllegalStateException("Unknown timeline category: " + category);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the code system of a clinical data category of the view.
+	 *
+	 * @param category the view category
+	 * @return the code system
+	 */
+	private static String getCodeSystem(int category) {
+		switch (category) {
+			case LAB_CATEGORY: return CemDbUtils.LOINC;
+			case DRUG_CATEGORY: return CemDbUtils.RXNORM;
+			case DIAGNOSIS_CATEGORY: return CemDbUtils.SNOMEDCT;
+			default: {
+				throw new IllegalStateException("Unknown timeline category: " + category);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the params for the next request.
+	 *
+	 * @return the params
+	 */
+	private Map<String,String> getParams() {
+		Map<String,String> params = new HashMap<String,String>();
+		params.put(LIMIT_PARAM, Integer.toString(this.rowsPerRequest + 1));
+		
+		if(this.startKey != null){
+			params.put(STARTKEY_PARAM, this.dao.toJson(this.startKey));
+			if(this.startDocId != null){
+				params.put(STARTKEY_DOCID_PARAM, this.startDocId);
+			}
+		} else if(this.range.getStartKey() != null){
+			//[id] collates before every [id, category] row of that patient
+			params.put(STARTKEY_PARAM, this.dao.toJson(Arrays.asList(this.range.getStartKey())));
+		}
+		
+		if(this.range.getEndKey() != null){
+			params.put(ENDKEY_PARAM, this.dao.toJson(Arrays.asList(this.range.getEndKey())));
+		}
+		
+		return params;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.AbstractPageableIterator#transform(java.lang.Object)
+	 */
+	@Override
+	protected Patient transform(Patient inputItem) {
+		return inputItem;
+	}
+
+}
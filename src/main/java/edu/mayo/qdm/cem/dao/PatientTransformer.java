@@ -27,9 +27,7 @@ import edu.mayo.qdm.patient.Gender;
 import edu.mayo.qdm.patient.Patient;
 import edu.mayo.qdm.patient.Race;
 
-import java.text.ParseException;
 import java.util.Date;
-import java.util.Map;
 
 
 /**
@@ -38,7 +36,7 @@ import java.util.Map;
  *
  * @author <a href="mailto:kevin.peterson@mayo.edu">Kevin Peterson</a>
  */
-public class PatientTransformer implements CouchDbIterator.Transformer<Patient> {
+public class PatientTransformer implements CouchDbIterator.Transformer<Patient,PatientRow> {
 	
 	private final static String BLACK = "Black or African American";
 	private final static String WHITE = "White";
@@ -50,23 +48,21 @@ public class PatientTransformer implements CouchDbIterator.Transformer<Patient>
 	private final static String NO_DISCLOSURE = "Choose Not to Disclose";
 	
 	/* (non-Javadoc)
-	 * @see edu.mayo.bmi.phenotyping.datasource.impl.cem.dao.CouchDbIterator.Transformer#transform(java.util.Map)
+	 * @see edu.mayo.bmi.phenotyping.datasource.impl.cem.dao.CouchDbIterator.Transformer#transform(java.lang.Object)
 	 */
 	@Override
-	public Patient transform(Map<String, Object> row) {
-		String patientId = MapUtils.get("value.id", row).toString();
+	public Patient transform(PatientRow row) {
+		String patientId = row.getPatientId();
 		Patient patient = new Patient(patientId);
 		
-		String birthDate = MapUtils.get("value.birthDate", row).toString();
-		try {
-			Date birth = CemDbUtils.CEMDB_DATE_FORMAT1.parse(birthDate);
-			
-			patient.setBirthdate(birth);
-		} catch (ParseException e) {
-			throw new RuntimeException(e);
+		String birthDate = row.getBirthDate();
+		Date birth = CemDbUtils.CEMDB_DATE_PARSER.parseDate(birthDate);
+		if(birth == null){
+			throw new IllegalStateException("Unparseable birth date: " + birthDate + " for patient: " + patientId);
 		}
+		patient.setBirthdate(birth);
 
-		String gender = MapUtils.get("value.gender.code", row).toString();
+		String gender = row.getGenderCode();
 		if(gender.equalsIgnoreCase("F")){
 			patient.setSex(Gender.FEMALE);
 		} else if(gender.equalsIgnoreCase("M")){
@@ -75,7 +71,7 @@ public class PatientTransformer implements CouchDbIterator.Transformer<Patient>
 			throw new IllegalStateException();
 		}
 		
-		String race = MapUtils.get("value.race", row).toString();
+		String race = row.getRace();
 		patient.setRace(this.parseRace(race));
 		
 		return patient;
@@ -0,0 +1,290 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * The default {@link CouchDbTransport}. Keeps a bounded pool of persistent
+ * (keep-alive) connections per host, so concurrent queries don't pay for
+ * TCP setup on every request.
+ */
+public class PooledHttpTransport implements CouchDbTransport {
+	
+	public final static int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+	
+	public final static int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+	
+	public final static int DEFAULT_SOCKET_TIMEOUT = 5 * 60 * 1000;
+	
+	private final static long IDLE_CONNECTION_TIMEOUT = 30;
+	
+	//read off on close, so a parsed response can still be reused -- any more and the request is aborted
+	private final static int MAX_UNREAD_CONTENT = 8 * 1024;
+	
+	private final PoolingHttpClientConnectionManager connectionManager;
+	
+	private final CloseableHttpClient httpClient;
+	
+	private final AtomicLong requestCount = new AtomicLong();
+	
+	/**
+	 * Instantiates a new pooled http transport with the default settings.
+	 */
+	public PooledHttpTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+	}
+
+	/**
+	 * Instantiates a new pooled http transport.
+	 *
+	 * @param maxConnectionsPerHost the max connections per host
+	 * @param connectTimeout the connect timeout, in milliseconds
+	 * @param socketTimeout the socket (read) timeout, in milliseconds. This is also
+	 * the longest a request will wait for a pooled connection to become available,
+	 * as pooled connections may be busy with long running view queries.
+	 */
+	public PooledHttpTransport(int maxConnectionsPerHost, int connectTimeout, int socketTimeout) {
+		super();
+		this.connectionManager = new PoolingHttpClientConnectionManager();
+		this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+		this.connectionManager.setMaxTotal(Math.max(maxConnectionsPerHost, this.connectionManager.getMaxTotal()));
+		
+		RequestConfig requestConfig = RequestConfig.custom().
+				setConnectTimeout(connectTimeout).
+				setConnectionRequestTimeout(socketTimeout).
+				setSocketTimeout(socketTimeout).
+				build();
+		
+		this.httpClient = HttpClients.custom().
+				setConnectionManager(this.connectionManager).
+				setDefaultRequestConfig(requestConfig).
+				disableContentCompression().
+				evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS).
+				build();
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.CouchDbTransport#execute(java.lang.String, java.util.Map, byte[])
+	 */
+	@Override
+	public Response execute(String url, Map<String, String> headers, byte[] body) throws IOException {
+		HttpRequestBase request;
+		if(body != null){
+			HttpPost post = new HttpPost(url);
+			post.setEntity(new ByteArrayEntity(body));
+			request = post;
+		} else {
+			request = new HttpGet(url);
+		}
+		
+		if(headers != null){
+			for(Entry<String, String> header : headers.entrySet()){
+				request.setHeader(header.getKey(), header.getValue());
+			}
+		}
+		
+		this.requestCount.incrementAndGet();
+		
+		return new PooledResponse(request, this.httpClient.execute(request));
+	}
+	
+	/**
+	 * Gets the statistics of the connection pool -- the number of leased,
+	 * available (idle) and pending connections, and the maximum.
+	 *
+	 * @return the pool stats
+	 */
+	public PoolStats getPoolStats() {
+		return this.connectionManager.getTotalStats();
+	}
+	
+	/**
+	 * Gets the number of requests executed.
+	 *
+	 * @return the request count
+	 */
+	public long getRequestCount() {
+		return this.requestCount.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		this.httpClient.close();
+	}
+	
+	/**
+	 * A response backed by a pooled connection. Once its body is read to the
+	 * end, the connection goes back to the pool. A body closed well short of
+	 * the end -- a query that failed or stopped early -- aborts the request,
+	 * closing the connection, rather than reading the rest off the wire.
+	 */
+	private static class PooledResponse implements Response {
+		
+		private HttpRequestBase request;
+		
+		private CloseableHttpResponse response;
+		
+		private Content body;
+
+		private PooledResponse(HttpRequestBase request, CloseableHttpResponse response) {
+			super();
+			this.request = request;
+			this.response = response;
+		}
+
+		@Override
+		public int getStatus() {
+			return this.response.getStatusLine().getStatusCode();
+		}
+
+		@Override
+		public String getHeader(String name) {
+			Header header = this.response.getFirstHeader(name);
+			
+			return header != null ? header.getValue() : null;
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			if(this.body == null){
+				HttpEntity entity = this.response.getEntity();
+				if(entity == null){
+					throw new IOException("Response has no body.");
+				}
+				
+				this.body = new Content(entity.getContent());
+			}
+			
+			return this.body;
+		}
+
+		/**
+		 * Closes the body, if any -- aborting the request if it was not read.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				HttpEntity entity = this.response.getEntity();
+				if(entity != null && entity.isStreaming()){
+					this.getBody().close();
+				}
+			} finally {
+				this.response.close();
+			}
+		}
+		
+		/**
+		 * The body of a response, which tracks whether it was read to the end.
+		 */
+		private class Content extends FilterInputStream {
+			
+			private boolean isEnded = false;
+			
+			private boolean isClosed = false;
+			
+			private Content(InputStream in) {
+				super(in);
+			}
+
+			@Override
+			public int read() throws IOException {
+				int read = super.read();
+				this.isEnded |= read == -1;
+				return read;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				this.isEnded |= read == -1;
+				return read;
+			}
+			
+			/**
+			 * Releases the connection if the rest of the body is short,
+			 * and aborts the request if not.
+			 */
+			@Override
+			public void close() throws IOException {
+				if(this.isClosed){
+					return;
+				}
+				this.isClosed = true;
+				
+				if(this.isEnded || this.skipToEnd()){
+					super.close();
+				} else {
+					request.abort();
+				}
+			}
+			
+			/**
+			 * Reads off what is left of the body, up to {@link PooledHttpTransport#MAX_UNREAD_CONTENT}.
+			 *
+			 * @return true, if the end was reached
+			 */
+			private boolean skipToEnd() {
+				byte[] buffer = new byte[1024];
+				try {
+					for(int unread=0;unread<=MAX_UNREAD_CONTENT;){
+						int read = this.read(buffer, 0, buffer.length);
+						if(read == -1){
+							return true;
+						}
+						unread += read;
+					}
+				} catch (IOException e) {
+					//the connection is not reusable
+				}
+				
+				return false;
+			}
+			
+		}
+	}
+
+}
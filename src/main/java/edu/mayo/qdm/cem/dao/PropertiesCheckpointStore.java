@@ -0,0 +1,103 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * A {@link CheckpointStore} kept in a properties file, one
+ * 'database=sequence' entry per database. The file is rewritten on every
+ * update: written to a temporary file, synced, and atomically moved over
+ * it, so a crash leaves either the old file or the new one.
+ */
+public class PropertiesCheckpointStore implements CheckpointStore {
+	
+	private File file;
+	
+	private Properties sequences = new Properties();
+
+	/**
+	 * Instantiates a new properties checkpoint store, loading the
+	 * file if it exists.
+	 *
+	 * @param file the file
+	 */
+	public PropertiesCheckpointStore(File file) {
+		super();
+		this.file = file;
+		
+		if(file.exists()){
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				this.sequences.load(in);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				CouchDbClient.closeQuietly(in);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.CheckpointStore#getSequence(java.lang.String)
+	 */
+	@Override
+	public synchronized String getSequence(String database) {
+		return this.sequences.getProperty(database);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.CheckpointStore#setSequence(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public synchronized void setSequence(String database, String sequence) {
+		this.sequences.setProperty(database, sequence);
+		
+		File tmp = new File(this.file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			this.sequences.store(out, "CouchDB update sequences");
+			out.getFD().sync();
+			out.close();
+			out = null;
+			
+			Files.move(tmp.toPath(), this.file.toPath(), 
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			CouchDbClient.closeQuietly(out);
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import edu.mayo.qdm.patient.Patient;
+
+/**
+ * A page of patients whose clinical rows were spilled to a temp file by
+ * {@link PatientSnapshots}, in the {@link PatientSnapshotWriter} encoding.
+ * Each patient is bound to its rows as it is reached, and released by the
+ * page once passed, so only the patient at hand holds its clinical data.
+ * <p>
+ * As a {@link AbstractPageableIterator.StreamedPage}, the page is read
+ * once, in order, by a single iterator -- as {@link AbstractPageableIterator}
+ * and {@link ParallelPageProcessor} read it.
+ * <p>
+ * The file is closed, and deleted, once the last patient is reached or
+ * the page is closed -- which the page iterator does when it moves on
+ * from the page or is itself closed.
+ */
+class SpilledPatientPage implements AbstractPageableIterator.StreamedPage<Patient> {
+
+	protected final Logger log = Logger.getLogger(getClass());
+	
+	//the unbound patients, each cleared as it is reached
+	private final List<Patient> patients;
+
+	private final CemdbCouchDbDao dao;
+
+	private PatientSnapshotReader reader;
+
+	//the file, if it could not be deleted while open
+	private File file;
+
+	private int position = -1;
+
+	private boolean isIterated = false;
+
+	/**
+	 * Instantiates a new spilled patient page.
+	 *
+	 * @param patients the unbound patients, in the order their rows were written
+	 * @param reader the reader of the spilled rows
+	 * @param file the spill file to delete once read, or null if already deleted
+	 * @param dao the dao that binds the rows
+	 */
+	SpilledPatientPage(List<Patient> patients, PatientSnapshotReader reader, File file, CemdbCouchDbDao dao) {
+		super();
+		this.patients = new ArrayList<Patient>(patients);
+		this.reader = reader;
+		this.file = file;
+		this.dao = dao;
+	}
+
+	/**
+	 * Returns the iterator that reads the page. It can be called once.
+	 *
+	 * @return the iterator
+	 * @throws IllegalStateException if the page has already been iterated
+	 */
+	@Override
+	public synchronized Iterator<Patient> iterator() {
+		if(this.isIterated){
+			throw new IllegalStateException("A spilled page is read once, by a single iterator.");
+		}
+		this.isIterated = true;
+		
+		return new Iterator<Patient>(){
+
+			@Override
+			public boolean hasNext() {
+				synchronized(SpilledPatientPage.this){
+					return position < patients.size() - 1;
+				}
+			}
+
+			@Override
+			public Patient next() {
+				return readNext();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+			
+		};
+	}
+
+	/**
+	 * Reads the rows of the next patient, and binds them.
+	 *
+	 * @return the patient
+	 */
+	private synchronized Patient readNext() {
+		if(this.position >= this.patients.size() - 1){
+			throw new NoSuchElementException();
+		}
+		if(this.reader == null){
+			throw new IllegalStateException("The spilled page is closed, and cannot be read further.");
+		}
+
+		Patient patient;
+		try {
+			PatientRecord record = this.reader.read();
+			if(record == null){
+				throw new IllegalStateException("The spilled page ended after " + (this.position + 1) +
+						" of " + this.patients.size() + " patients.");
+			}
+
+			this.position++;
+			patient = this.patients.set(this.position, null);
+			this.dao.addClinicalData(patient, record);
+		} catch (IOException e) {
+			this.close();
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			this.close();
+			throw e;
+		}
+
+		if(this.position == this.patients.size() - 1){
+			this.close();
+		}
+
+		return patient;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.AbstractPageableIterator.StreamedPage#size()
+	 */
+	@Override
+	public int size() {
+		return this.patients.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return "SpilledPatientPage [size=" + this.patients.size() + ", position=" + this.position + 
+				", isClosed=" + (this.reader == null) + "]";
+	}
+
+	/**
+	 * Closes and deletes the spill file. The patients not yet reached
+	 * can no longer be read.
+	 */
+	@Override
+	public synchronized void close() {
+		if(this.reader != null){
+			CouchDbClient.closeQuietly(this.reader);
+			this.reader = null;
+		}
+		if(this.file != null){
+			if(! this.file.delete()){
+				log.warn("Could not delete spilled page: " + this.file);
+			}
+			this.file = null;
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters and time histogram of one stage of an extraction -- the
+ * requests to one view, say, or the decoration of pages.
+ */
+public class StageMetrics implements StageMetricsMBean {
+	
+	private static final double NANOS_PER_MILLI = 1000000d;
+	private static final double NANOS_PER_SECOND = 1000000000d;
+	
+	private final String type;
+	private final String name;
+	
+	private final Histogram nanos = new Histogram();
+	
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong items = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	
+	/**
+	 * Instantiates a new stage metrics.
+	 *
+	 * @param type the type of stage
+	 * @param name the name of the stage
+	 */
+	public StageMetrics(String type, String name) {
+		super();
+		this.type = type;
+		this.name = name;
+	}
+	
+	/**
+	 * Records one run of the stage.
+	 *
+	 * @param items the rows or items handled
+	 * @param bytes the bytes read
+	 * @param nanos the time taken
+	 * @param isError true, if it failed
+	 */
+	public void record(long items, long bytes, long nanos, boolean isError) {
+		this.nanos.record(nanos);
+		this.items.addAndGet(items);
+		this.bytes.addAndGet(bytes);
+		if(isError){
+			this.errors.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Gets the histogram of the times taken, in nanoseconds.
+	 *
+	 * @return the histogram
+	 */
+	public Histogram getHistogram() {
+		return this.nanos;
+	}
+
+	@Override
+	public String getType() {
+		return type;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getCount() {
+		return this.nanos.getCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return this.errors.get();
+	}
+
+	@Override
+	public long getItems() {
+		return this.items.get();
+	}
+
+	@Override
+	public long getBytes() {
+		return this.bytes.get();
+	}
+
+	@Override
+	public double getTotalMillis() {
+		return this.nanos.getSum() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return this.nanos.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return this.nanos.getPercentile(50) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP90Millis() {
+		return this.nanos.getPercentile(90) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP99Millis() {
+		return this.nanos.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return this.nanos.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getItemsPerSecond() {
+		long nanos = this.nanos.getSum();
+		return nanos == 0 ? 0 : this.items.get() * NANOS_PER_SECOND / nanos;
+	}
+
+	@Override
+	public void reset() {
+		this.nanos.reset();
+		this.errors.set(0);
+		this.items.set(0);
+		this.bytes.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s: count=%d errors=%d items=%d bytes=%d mean=%.1fms p99=%.1fms max=%.1fms",
+				this.type, this.name, this.getCount(), this.getErrors(), this.getItems(), this.getBytes(),
+				this.getMeanMillis(), this.getP99Millis(), this.getMaxMillis());
+	}
+
+}
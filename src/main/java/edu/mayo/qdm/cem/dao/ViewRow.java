@@ -0,0 +1,94 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+/**
+ * A row of a CouchDB view result -- its key and the id of the
+ * document that emitted it. Subclasses hold the fields of the row value.
+ */
+public abstract class ViewRow {
+	
+	//header and field references of a row, and of a String with its char[]
+	private static final int OBJECT_SIZE = 48;
+	private static final int STRING_SIZE = 40;
+	//a guess for the List keys of reduced or collated views
+	private static final int KEY_SIZE = 96;
+	
+	private Object key;
+	private String id;
+
+	/**
+	 * Gets the key. Keys are Strings, Numbers or Lists, as emitted by the view.
+	 *
+	 * @return the key
+	 */
+	public Object getKey() {
+		return key;
+	}
+
+	void setKey(Object key) {
+		this.key = key;
+	}
+
+	/**
+	 * Gets the document id, or null for reduced rows.
+	 *
+	 * @return the id
+	 */
+	public String getId() {
+		return id;
+	}
+
+	void setId(String id) {
+		this.id = id;
+	}
+	
+	/**
+	 * Gets a rough estimate of the heap held by this row, for size-bounded
+	 * caches. Subclasses add their own fields.
+	 *
+	 * @return the estimated size, in bytes
+	 */
+	int getEstimatedSize() {
+		int size = OBJECT_SIZE + estimateSize(this.id);
+		if(this.key instanceof String){
+			size += estimateSize((String) this.key);
+		} else if(this.key != null){
+			size += KEY_SIZE;
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Gets a rough estimate of the heap held by a String.
+	 *
+	 * @param value the value
+	 * @return the estimated size, in bytes
+	 */
+	static int estimateSize(String value) {
+		return value == null ? 0 : STRING_SIZE + 2 * value.length();
+	}
+	
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright: (c) 2004-2012 Mayo Foundation for Medical Education and 
+ * Research (MFMER). All rights reserved. MAYO, MAYO CLINIC, and the
+ * triple-shield Mayo logo are trademarks and service marks of MFMER.
+ *
+ * Except as contained in the copyright notice above, or as used to identify 
+ * MFMER as the author of this software, the trade names, trademarks, service
+ * marks, or product names of the copyright holder shall not be used in
+ * advertising, promotion or otherwise in connection with this software without
+ * prior written authorization of the copyright holder.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mayo.qdm.cem.dao;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Binds a view row straight off of the JSON token stream into a {@link ViewRow},
+ * with no intermediate Map. The 'id' and 'key' of the row are handled here, and
+ * the 'value' object is handed to {@link #readValue(JsonParser, Object)}.
+ *
+ * @param <R> the row type
+ */
+abstract class ViewRowReader<R extends ViewRow> implements CouchDbClient.RowReader<R> {
+	
+	private final static String ID_FIELD = "id";
+	private final static String KEY_FIELD = "key";
+	private final static String VALUE_FIELD = "value";
+
+	/* (non-Javadoc)
+	 * @see edu.mayo.qdm.cem.dao.CouchDbClient.RowReader#read(org.codehaus.jackson.JsonParser)
+	 */
+	@Override
+	public R read(JsonParser parser) throws IOException {
+		String id = null;
+		Object key = null;
+		R row = null;
+		
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			
+			if(ID_FIELD.equals(field)){
+				id = getText(parser, token);
+			} else if(KEY_FIELD.equals(field)){
+				key = getKey(parser, token);
+			} else if(VALUE_FIELD.equals(field) && token == JsonToken.START_OBJECT){
+				row = this.readValue(parser, key);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		
+		if(row == null){
+			throw new IllegalStateException("View row has no value. Key: " + key + " Id: " + id);
+		}
+		
+		row.setKey(key);
+		row.setId(id);
+		
+		return row;
+	}
+	
+	/**
+	 * Reads the 'value' of a row. The parser is positioned on the START_OBJECT
+	 * of the value, and must be left on its END_OBJECT. CouchDB writes the key
+	 * before the value, so the key is already known.
+	 *
+	 * @param parser the parser
+	 * @param key the key of the row
+	 * @return the row
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected abstract R readValue(JsonParser parser, Object key) throws IOException;
+	
+	/**
+	 * Gets the key. Scalars are read directly, anything else is bound to Lists/Maps.
+	 *
+	 * @param parser the parser
+	 * @param token the current token
+	 * @return the key
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static Object getKey(JsonParser parser, JsonToken token) throws IOException {
+		switch (token) {
+			case VALUE_STRING: return parser.getText();
+			case VALUE_NUMBER_INT:
+			case VALUE_NUMBER_FLOAT: return parser.getNumberValue();
+			case VALUE_NULL: return null;
+			default: return parser.readValueAs(Object.class);
+		}
+	}
+	
+	/**
+	 * Gets the text of a scalar, or null if it is JSON null. Objects and arrays are skipped.
+	 *
+	 * @param parser the parser
+	 * @param token the current token
+	 * @return the text
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected static String getText(JsonParser parser, JsonToken token) throws IOException {
+		if(token == JsonToken.VALUE_NULL){
+			return null;
+		}
+		if(token.isScalarValue()){
+			return parser.getText();
+		}
+		
+		parser.skipChildren();
+		return null;
+	}
+	
+	/**
+	 * Gets a number, which may also be given as a String.
+	 *
+	 * @param parser the parser
+	 * @param token the current token
+	 * @param field the field name, for error reporting
+	 * @return the double
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected static double getDouble(JsonParser parser, JsonToken token, String field) throws IOException {
+		if(token.isNumeric()){
+			return parser.getDoubleValue();
+		}
+		
+		String text = getText(parser, token);
+		if(text == null){
+			throw new IllegalStateException("Field: " + field + " is not a number.");
+		}
+		
+		return Double.parseDouble(text);
+	}
+	
+	/**
+	 * Reads the 'code' field of a nested object, such as 'gender' or 'clinicalDrug'.
+	 *
+	 * @param parser the parser
+	 * @param token the current token
+	 * @return the code
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected static String getCode(JsonParser parser, JsonToken token) throws IOException {
+		if(token != JsonToken.START_OBJECT){
+			return getText(parser, token);
+		}
+		
+		String code = null;
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			String field = parser.getCurrentName();
+			JsonToken fieldToken = parser.nextToken();
+			
+			if("code".equals(field)){
+				code = getText(parser, fieldToken);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		
+		return code;
+	}
+	
+	/**
+	 * Checks that a required field was present.
+	 *
+	 * @param <V> the value type
+	 * @param value the value
+	 * @param field the field name
+	 * @return the value
+	 */
+	protected static <V> V required(V value, String field) {
+		if(value == null){
+			throw new IllegalStateException("Field: " + field + " not found in view row.");
+		}
+		
+		return value;
+	}
+	
+}
@@ -0,0 +1,84 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AbstractKeysetPageableIteratorTest {
+	
+	private static class TestIterator extends AbstractKeysetPageableIterator<String,Integer,Integer> {
+
+		private static final long serialVersionUID = 1L;
+		
+		private List<Integer> source;
+		
+		private List<Integer> startKeys = new ArrayList<Integer>();
+
+		private TestIterator(int pageSize, Integer... source) {
+			super(pageSize);
+			this.source = Arrays.asList(source);
+		}
+
+		@Override
+		protected List<? extends Integer> doKeysetPage(Integer startKey, int limit) {
+			startKeys.add(startKey);
+			
+			int start = startKey == null ? 0 : source.indexOf(startKey);
+			
+			return new ArrayList<Integer>(source.subList(start, Math.min(start + limit, source.size())));
+		}
+
+		@Override
+		protected Integer getKey(Integer item) {
+			return item;
+		}
+
+		@Override
+		protected String transform(Integer inputItem) {
+			return inputItem.toString();
+		}
+	}
+	
+	private List<String> drain(TestIterator itr){
+		List<String> list = new ArrayList<String>();
+		for(String item : itr){
+			list.add(item);
+		}
+		return list;
+	}
+	
+	@Test
+	public void TestAllItemsReturned() {
+		TestIterator itr = new TestIterator(2, 1, 2, 3, 4, 5);
+		
+		assertEquals(Arrays.asList("1", "2", "3", "4", "5"), drain(itr));
+	}
+	
+	@Test
+	public void TestStartKeysCarriedForward() {
+		TestIterator itr = new TestIterator(2, 1, 2, 3, 4, 5);
+		drain(itr);
+		
+		assertEquals(Arrays.asList(null, 3, 5), itr.startKeys);
+	}
+	
+	@Test
+	public void TestExactMultipleOfPageSize() {
+		TestIterator itr = new TestIterator(2, 1, 2, 3, 4);
+		
+		assertEquals(Arrays.asList("1", "2", "3", "4"), drain(itr));
+		assertEquals(Arrays.asList(null, 3), itr.startKeys);
+	}
+	
+	@Test
+	public void TestEmpty() {
+		TestIterator itr = new TestIterator(2);
+		
+		assertEquals(0, drain(itr).size());
+	}
+
+}
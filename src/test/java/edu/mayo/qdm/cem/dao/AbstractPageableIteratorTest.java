@@ -0,0 +1,320 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class AbstractPageableIteratorTest {
+	
+	private static class TestIterator extends AbstractPageableIterator<String,Integer> {
+
+		private static final long serialVersionUID = 1L;
+		
+		private List<Integer> source;
+		
+		private int failAt = -1;
+		
+		private List<Integer> pageSizes = new ArrayList<Integer>();
+
+		private TestIterator(int pageSize, Integer... source) {
+			super(pageSize);
+			this.source = Arrays.asList(source);
+		}
+
+		@Override
+		protected List<? extends Integer> doPage(int currentPosition, int pageSize) {
+			if(currentPosition == failAt){
+				throw new IllegalStateException("failed");
+			}
+			
+			pageSizes.add(pageSize);
+			
+			int start = Math.min(currentPosition, source.size());
+			
+			return new ArrayList<Integer>(source.subList(start, Math.min(start + pageSize, source.size())));
+		}
+
+		@Override
+		protected String transform(Integer inputItem) {
+			return inputItem.toString();
+		}
+	}
+	
+	private static class CloseablePage extends ArrayList<String> implements Closeable {
+
+		private static final long serialVersionUID = 1L;
+		
+		private boolean isClosed = false;
+
+		private CloseablePage(List<String> page) {
+			super(page);
+		}
+
+		@Override
+		public void close() {
+			this.isClosed = true;
+		}
+	}
+	
+	private static class CloseablePageIterator extends TestIterator {
+
+		private static final long serialVersionUID = 1L;
+		
+		private final List<CloseablePage> pages = Collections.synchronizedList(new ArrayList<CloseablePage>());
+
+		private CloseablePageIterator(int pageSize, Integer... source) {
+			super(pageSize, source);
+		}
+
+		@Override
+		protected List<String> decoratePage(List<String> page) {
+			CloseablePage closeable = new CloseablePage(page);
+			this.pages.add(closeable);
+			return closeable;
+		}
+	}
+	
+	private Thread getPrefetchThread(Set<Thread> existing) {
+		for(Thread thread : Thread.getAllStackTraces().keySet()){
+			if(thread.getName().endsWith("-prefetch") && 
+					thread.isAlive() && ! existing.contains(thread)){
+				return thread;
+			}
+		}
+		return null;
+	}
+	
+	private List<String> drain(TestIterator itr){
+		List<String> list = new ArrayList<String>();
+		for(String item : itr){
+			list.add(item);
+		}
+		return list;
+	}
+	
+	@Test
+	public void TestSynchronous() {
+		TestIterator itr = new TestIterator(2, 1, 2, 3, 4, 5);
+		
+		assertEquals(Arrays.asList("1", "2", "3", "4", "5"), drain(itr));
+	}
+	
+	@Test
+	public void TestPrefetch() {
+		TestIterator itr = new TestIterator(2, 1, 2, 3, 4, 5);
+		itr.setPrefetchDepth(1);
+		
+		assertEquals(Arrays.asList("1", "2", "3", "4", "5"), drain(itr));
+	}
+	
+	@Test
+	public void TestPrefetchEmpty() {
+		TestIterator itr = new TestIterator(2);
+		itr.setPrefetchDepth(3);
+		
+		assertEquals(0, drain(itr).size());
+	}
+	
+	@Test
+	public void TestPrefetchErrorPropagated() {
+		TestIterator itr = new TestIterator(2, 1, 2, 3, 4, 5);
+		itr.failAt = 2;
+		itr.setPrefetchDepth(2);
+		
+		assertEquals("1", itr.next());
+		assertEquals("2", itr.next());
+		try {
+			itr.hasNext();
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("failed", e.getCause().getMessage());
+		}
+	}
+	
+	private static class DroppingIterator extends TestIterator {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private DroppingIterator(int pageSize, Integer... source) {
+			super(pageSize, source);
+		}
+		
+		@Override
+		protected List<String> decoratePage(List<String> page) {
+			List<String> kept = new ArrayList<String>(page);
+			kept.removeAll(Arrays.asList("3", "4"));
+			return kept;
+		}
+	}
+	
+	@Test
+	public void TestEmptyDecoratedPageSkipped() {
+		assertEquals(Arrays.asList("1", "2", "5"), drain(new DroppingIterator(2, 1, 2, 3, 4, 5)));
+	}
+	
+	@Test
+	public void TestEmptyDecoratedPageSkippedWithPrefetch() {
+		TestIterator itr = new DroppingIterator(2, 1, 2, 3, 4, 5);
+		itr.setPrefetchDepth(1);
+		
+		assertEquals(Arrays.asList("1", "2", "5"), drain(itr));
+	}
+	
+	@Test
+	public void TestEmptyDecoratedNextPageSkippedWithPrefetch() {
+		TestIterator itr = new DroppingIterator(2, 1, 2, 3, 4, 5);
+		itr.setPrefetchDepth(1);
+		
+		assertEquals(Arrays.asList("1", "2"), itr.nextPage());
+		assertEquals(Arrays.asList("5"), itr.nextPage());
+		assertEquals(0, AbstractPageableIterator.sizeOf(itr.nextPage()));
+	}
+	
+	@Test
+	public void TestAdaptivePageSize() {
+		final AdaptivePageSize sizing = new AdaptivePageSize(1, 10, 0, 400);
+		
+		TestIterator itr = new TestIterator(1000, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15){
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<String> decoratePage(List<String> page) {
+				sizing.recordBytes(page.size(), page.size() * 100);
+				return page;
+			}
+			
+		};
+		itr.setAdaptivePageSize(sizing);
+		
+		assertEquals(15, drain(itr).size());
+		assertEquals(Arrays.asList(1, 2, 4, 4, 4, 4), itr.pageSizes);
+	}
+	
+	@Test
+	public void TestAbandonedPrefetchStops() throws InterruptedException {
+		Set<Thread> existing = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+		
+		TestIterator itr = new TestIterator(1, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+		itr.setPrefetchDepth(1);
+		assertEquals("1", itr.next());
+		
+		Thread thread = this.getPrefetchThread(existing);
+		assertNotNull(thread);
+		
+		itr = null;
+		for(int i=0;i<100 && thread.isAlive();i++){
+			System.gc();
+			thread.join(100);
+		}
+		
+		assertFalse(thread.isAlive());
+	}
+	
+	@Test
+	public void TestCloseableIterableStopsPrefetch() throws InterruptedException {
+		Set<Thread> existing = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+		
+		CloseableIterable<String> iterable = new CloseableIterable<String>(new Iterable<String>(){
+
+			@Override
+			public Iterator<String> iterator() {
+				TestIterator itr = new TestIterator(1, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+				itr.setPrefetchDepth(1);
+				return itr;
+			}
+			
+		});
+		
+		Iterator<String> itr = iterable.iterator();
+		assertEquals("1", itr.next());
+		
+		Thread thread = this.getPrefetchThread(existing);
+		assertNotNull(thread);
+		
+		iterable.close();
+		thread.join(5000);
+		
+		assertFalse(thread.isAlive());
+	}
+	
+	@Test
+	public void TestCloseablePagesClosed() {
+		CloseablePageIterator itr = new CloseablePageIterator(2, 1, 2, 3, 4, 5);
+		
+		assertEquals("1", itr.next());
+		assertEquals("2", itr.next());
+		assertEquals("3", itr.next());
+		
+		assertEquals(2, itr.pages.size());
+		assertTrue(itr.pages.get(0).isClosed);
+		assertFalse(itr.pages.get(1).isClosed);
+		
+		itr.close();
+		assertTrue(itr.pages.get(1).isClosed);
+	}
+	
+	@Test
+	public void TestPartlyReadPageHandedOver() {
+		CloseablePageIterator itr = new CloseablePageIterator(3, 1, 2, 3, 4, 5);
+		
+		assertEquals("1", itr.next());
+		
+		Iterable<String> rest = itr.nextPage();
+		assertEquals(2, AbstractPageableIterator.sizeOf(rest));
+		
+		List<String> items = new ArrayList<String>();
+		for(String item : rest){
+			items.add(item);
+		}
+		assertEquals(Arrays.asList("2", "3"), items);
+		assertFalse(itr.pages.get(0).isClosed);
+		
+		assertTrue(rest instanceof Closeable);
+		CouchDbClient.closeQuietly((Closeable) rest);
+		assertTrue(itr.pages.get(0).isClosed);
+		
+		assertEquals("4", itr.next());
+		itr.close();
+	}
+	
+	@Test
+	public void TestPrefetchedPagesClosed() throws InterruptedException {
+		Set<Thread> existing = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+		
+		CloseablePageIterator itr = new CloseablePageIterator(1, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+		itr.setPrefetchDepth(2);
+		assertEquals("1", itr.next());
+		
+		Thread thread = this.getPrefetchThread(existing);
+		assertNotNull(thread);
+		
+		//the current page, two read ahead, and one waiting to be queued
+		for(int i=0;i<100 && itr.pages.size() < 4;i++){
+			Thread.sleep(50);
+		}
+		assertEquals(4, itr.pages.size());
+		
+		itr.close();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		
+		for(CloseablePage page : itr.pages){
+			assertTrue(page.toString(), page.isClosed);
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AdaptivePageSizeTest {
+
+	@Test
+	public void TestGrowsWhenCheap() {
+		AdaptivePageSize sizing = new AdaptivePageSize(10, 1000, 1000, 0);
+		assertEquals(10, sizing.getPageSize());
+		
+		sizing.recordTime(10, 1000000);
+		assertEquals(20, sizing.getPageSize());
+		
+		for(int i=0;i<10;i++){
+			sizing.recordTime(sizing.getPageSize(), sizing.getPageSize() * 100000L);
+		}
+		assertEquals(1000, sizing.getPageSize());
+	}
+
+	@Test
+	public void TestShrinksWhenExpensive() {
+		AdaptivePageSize sizing = new AdaptivePageSize(10, 1000, 1000, 0);
+		for(int i=0;i<10;i++){
+			sizing.recordTime(sizing.getPageSize(), sizing.getPageSize() * 100000L);
+		}
+		
+		//a page at 100ms per item pulls the average to 30ms
+		sizing.recordTime(1000, 100000000000L);
+		assertEquals(33, sizing.getPageSize());
+		
+		sizing.recordTime(33, 33 * 1000000000L);
+		assertEquals(10, sizing.getPageSize());
+	}
+
+	@Test
+	public void TestSmallestBudgetWins() {
+		AdaptivePageSize sizing = new AdaptivePageSize(1, 1000, 1000, 1000000);
+		sizing.recordTime(500, 500 * 1000L);
+		sizing.recordBytes(500, 500 * 10000L);
+		
+		assertEquals(100, sizing.getPageSize());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void TestTargetRequired() {
+		new AdaptivePageSize(1, 1000, 0, 0);
+	}
+
+}
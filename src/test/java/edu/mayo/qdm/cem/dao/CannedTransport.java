@@ -0,0 +1,124 @@
+package edu.mayo.qdm.cem.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+public class CannedTransport implements CouchDbTransport {
+	
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public interface Handler {
+		
+		public CannedResponse respond(String url, String body) throws IOException;
+		
+	}
+	
+	private final Handler handler;
+	
+	private final List<String> urls = Collections.synchronizedList(new ArrayList<String>());
+	
+	private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+	
+	private volatile boolean isClosed = false;
+	
+	public CannedTransport(Handler handler) {
+		super();
+		this.handler = handler;
+	}
+
+	@Override
+	public Response execute(String url, Map<String, String> headers, byte[] body) throws IOException {
+		String text = body == null ? null : new String(body, UTF_8);
+		
+		this.urls.add(url);
+		this.bodies.add(text);
+		
+		return this.handler.respond(url, text);
+	}
+
+	@Override
+	public void close() {
+		this.isClosed = true;
+	}
+	
+	public List<String> getUrls() {
+		return urls;
+	}
+
+	public List<String> getBodies() {
+		return bodies;
+	}
+
+	public boolean isClosed() {
+		return isClosed;
+	}
+
+	public static CannedResponse json(String json) {
+		return new CannedResponse(200, json.getBytes(UTF_8), null);
+	}
+	
+	public static CannedResponse gzip(String json) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(json.getBytes(UTF_8));
+		out.close();
+		
+		return new CannedResponse(200, bytes.toByteArray(), "gzip");
+	}
+	
+	public static CannedResponse error(int status, String json) {
+		return new CannedResponse(status, json.getBytes(UTF_8), null);
+	}
+	
+	public static class CannedResponse implements Response {
+		
+		private final int status;
+		private final byte[] body;
+		private final Map<String,String> headers = new HashMap<String,String>();
+		
+		private volatile boolean isClosed = false;
+
+		public CannedResponse(int status, byte[] body, String contentEncoding) {
+			super();
+			this.status = status;
+			this.body = body;
+			if(contentEncoding != null){
+				this.headers.put("Content-Encoding", contentEncoding);
+			}
+		}
+
+		@Override
+		public int getStatus() {
+			return status;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return this.headers.get(name);
+		}
+
+		@Override
+		public InputStream getBody() {
+			return new ByteArrayInputStream(this.body);
+		}
+
+		@Override
+		public void close() {
+			this.isClosed = true;
+		}
+		
+		public boolean isClosed() {
+			return isClosed;
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class CemDbDateParserTest {
+	
+	private static final TimeZone CENTRAL = TimeZone.getTimeZone("America/Chicago");
+	
+	private CemDbDateParser parser = new CemDbDateParser(CENTRAL);
+	
+	private long expected(String pattern, String text) throws ParseException {
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(CENTRAL);
+		
+		return format.parse(text).getTime();
+	}
+	
+	@Test
+	public void TestDate() throws ParseException {
+		assertEquals(expected("yyyyMMdd", "20110224"), parser.parseDateMillis("20110224"));
+	}
+	
+	@Test
+	public void TestDateTime() throws ParseException {
+		assertEquals(expected("yyyyMMddhhmm", "201102241119"), parser.parseDateTimeMillis("201102241119"));
+	}
+	
+	@Test
+	public void TestTrailingSecondsIgnored() {
+		assertEquals(parser.parseDateTimeMillis("201102241119"), parser.parseDateTimeMillis("20110224111900"));
+		assertEquals(parser.parseDateMillis("20110224"), parser.parseDateMillis("20110224111900"));
+	}
+	
+	@Test
+	public void TestTwelveOClockIsMidnight() throws ParseException {
+		assertEquals(expected("yyyyMMddhhmm", "201102241230"), parser.parseDateTimeMillis("201102241230"));
+		assertEquals(expected("yyyyMMdd", "20110224") + 30 * 60 * 1000, parser.parseDateTimeMillis("201102241230"));
+	}
+	
+	@Test
+	public void TestAfternoonHoursRollForward() throws ParseException {
+		assertEquals(expected("yyyyMMddhhmm", "201102241830"), parser.parseDateTimeMillis("201102241830"));
+	}
+	
+	@Test
+	public void TestDaylightSavingTransitionDays() throws ParseException {
+		for(String text : new String[]{"201103130130", "201103130330", "201111060130", "201111060230"}){
+			assertEquals(text, expected("yyyyMMddhhmm", text), parser.parseDateTimeMillis(text));
+		}
+		for(String text : new String[]{"20110313", "20111106"}){
+			assertEquals(text, expected("yyyyMMdd", text), parser.parseDateMillis(text));
+		}
+	}
+	
+	@Test
+	public void TestMatchesSimpleDateFormat() throws ParseException {
+		Random random = new Random(42);
+		for(int i=0;i<10000;i++){
+			String date = String.format("%04d%02d%02d", 
+					1850 + random.nextInt(300), 
+					1 + random.nextInt(12), 
+					1 + random.nextInt(28));
+			String dateTime = date + String.format("%02d%02d", 
+					random.nextInt(24), 
+					random.nextInt(60));
+			
+			assertEquals(dateTime, expected("yyyyMMddhhmm", dateTime), parser.parseDateTimeMillis(dateTime));
+			assertEquals(date, expected("yyyyMMdd", date), parser.parseDateMillis(date));
+		}
+	}
+	
+	@Test
+	public void TestMalformed() {
+		assertEquals(CemDbDateParser.INVALID, parser.parseDateMillis("2011022"));
+		assertEquals(CemDbDateParser.INVALID, parser.parseDateMillis("2011O224"));
+		assertEquals(CemDbDateParser.INVALID, parser.parseDateTimeMillis("20110224"));
+		assertNull(parser.parseDate(null));
+		assertNull(parser.parseDateTime("not a date"));
+	}
+
+}
@@ -0,0 +1,684 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import edu.mayo.qdm.patient.Diagnosis;
+import edu.mayo.qdm.patient.Lab;
+import edu.mayo.qdm.patient.Medication;
+import edu.mayo.qdm.patient.Patient;
+
+public class CemdbCouchDbDaoTest {
+
+	//serves the patients, and the clinical rows of each view by patient id
+	public static class CemdbHandler implements CannedTransport.Handler {
+
+		private final ObjectMapper objectMapper = new ObjectMapper();
+
+		private final List<String> patientIds;
+
+		private final Map<String,Map<String,List<String>>> values = new LinkedHashMap<String,Map<String,List<String>>>();
+
+		private final Map<String,List<String>> changes = new LinkedHashMap<String,List<String>>();
+
+		private final Map<String,String> revisions = new HashMap<String,String>();
+
+		public CemdbHandler(String... patientIds) {
+			super();
+			this.patientIds = Arrays.asList(patientIds);
+		}
+
+		public CemdbHandler add(String view, String patientId, String value) {
+			if(! this.values.containsKey(view)){
+				this.values.put(view, new LinkedHashMap<String,List<String>>());
+			}
+			Map<String,List<String>> byPatient = this.values.get(view);
+			if(! byPatient.containsKey(patientId)){
+				byPatient.put(patientId, new ArrayList<String>());
+			}
+			byPatient.get(patientId).add(value);
+
+			return this;
+		}
+
+		public CemdbHandler addLab(String patientId, String code) {
+			return this.add("lab_by_patient_id", patientId,
+					"{\"patientId\":\"" + patientId + "\",\"labResultCode\":\"" + code +
+					"\",\"collectionDate\":\"20050101120000\",\"unit\":\"mg\",\"value\":1.5}");
+		}
+
+		public CemdbHandler addDrug(String patientId, String code) {
+			return this.add("drug_by_patient_id", patientId,
+					"{\"patientId\":\"" + patientId + "\",\"clinicalDrug\":{\"code\":\"" + code +
+					"\"},\"startTime\":\"20050101120000\",\"endTime\":\"20050201120000\"}");
+		}
+
+		public CemdbHandler addDiagnosis(String patientId, String code) {
+			return this.add("diagnosis_by_patient_id", patientId,
+					"{\"patientId\":\"" + patientId + "\",\"code\":\"" + code + "\"}");
+		}
+
+		public CemdbHandler addChange(String database, String change) {
+			if(! this.changes.containsKey(database)){
+				this.changes.put(database, new ArrayList<String>());
+			}
+			this.changes.get(database).add(change);
+
+			return this;
+		}
+
+		public CemdbHandler addRevision(String database, String id, String rev, String doc) {
+			this.revisions.put(database + "/" + id + "?rev=" + rev, doc);
+
+			return this;
+		}
+
+		@Override
+		public CannedTransport.CannedResponse respond(String url, String body) throws IOException {
+			if(url.contains("/_changes")){
+				String database = url.substring("http://couchdb/".length(), url.indexOf("/_changes"));
+				List<String> results = this.changes.containsKey(database) ?
+						this.changes.get(database) : Collections.<String>emptyList();
+
+				//sequence 10 + n follows the n-th change
+				String since = getParam(url, "since");
+				int from = since.equals("now") ? results.size() : Math.max(0, Integer.parseInt(since) - 10);
+				int to = Math.min(results.size(), from + Integer.parseInt(getParam(url, "limit")));
+
+				StringBuilder json = new StringBuilder("{\"results\":[");
+				for(int i=from;i<to;i++){
+					json.append(i > from ? "," : "").append(results.get(i));
+				}
+				return CannedTransport.json(json.append("],\"last_seq\":\"").
+						append(to + 10).append("\"}").toString());
+			}
+
+			if(url.contains("?rev=")){
+				String revision = url.substring("http://couchdb/".length());
+				for(Map.Entry<String,String> entry : this.revisions.entrySet()){
+					if(revision.startsWith(entry.getKey())){
+						return CannedTransport.json(entry.getValue());
+					}
+				}
+				return CannedTransport.error(404, "{\"error\":\"not_found\",\"reason\":\"missing\"}");
+			}
+
+			StringBuilder json = new StringBuilder("{\"rows\":[");
+
+			if(url.contains("/all_patients") && body != null){
+				@SuppressWarnings("unchecked")
+				Map<String,List<String>> request = this.objectMapper.readValue(body, Map.class);
+				for(String id : request.get("keys")){
+					if(this.patientIds.contains(id)){
+						append(json, id, getPatient(id));
+					}
+				}
+			} else if(url.contains("/all_patients")){
+				String startKey = getParam(url, "startkey");
+				int from = startKey == null ? 0 : this.patientIds.indexOf(this.objectMapper.readValue(startKey, String.class));
+				from += getParam(url, "skip") == null ? 0 : Integer.parseInt(getParam(url, "skip"));
+				int to = getParam(url, "limit") == null ? this.patientIds.size() : 
+					Math.min(this.patientIds.size(), from + Integer.parseInt(getParam(url, "limit")));
+				
+				for(String id : this.patientIds.subList(Math.min(from, to), to)){
+					append(json, id, getPatient(id));
+				}
+			} else {
+				for(Map.Entry<String,Map<String,List<String>>> entry : this.values.entrySet()){
+					if(! url.contains("/" + entry.getKey())){
+						continue;
+					}
+					List<String> ids;
+					if(body == null){
+						//a range of one patient's [patientId, date] keys
+						ids = Collections.singletonList((String) this.objectMapper.readValue(
+								getParam(url, "startkey"), List.class).get(0));
+					} else {
+						@SuppressWarnings("unchecked")
+						Map<String,List<String>> request = this.objectMapper.readValue(body, Map.class);
+						ids = request.get("keys");
+					}
+					for(String id : ids){
+						List<String> values = entry.getValue().get(id);
+						if(values != null){
+							for(String value : values){
+								append(json, id, value);
+							}
+						}
+					}
+				}
+			}
+
+			return CannedTransport.json(json.append("]}").toString());
+		}
+
+		private static String getPatient(String id) {
+			return "{\"id\":\"" + id + "\",\"birthDate\":\"19700101120000\"," +
+					"\"gender\":{\"code\":\"F\"},\"race\":\"White\"}";
+		}
+
+		private static String getParam(String url, String name) throws IOException {
+			if(url.indexOf('?') < 0){
+				return null;
+			}
+			for(String param : url.substring(url.indexOf('?') + 1).split("&")){
+				if(param.startsWith(name + "=")){
+					return URLDecoder.decode(param.substring(name.length() + 1), "UTF-8");
+				}
+			}
+			return null;
+		}
+
+		private static void append(StringBuilder json, String key, String value) {
+			if(json.charAt(json.length() - 1) != '['){
+				json.append(',');
+			}
+			json.append("{\"id\":\"").append(key).append("\",\"key\":\"").append(key).
+				append("\",\"value\":").append(value).append('}');
+		}
+
+	}
+
+	public static class RecordingDao extends CemdbCouchDbDao {
+
+		public final List<String> bound = Collections.synchronizedList(new ArrayList<String>());
+
+		public RecordingDao(CannedTransport transport) {
+			super("http://couchdb");
+			this.getCouchDbClient().setTransport(transport);
+		}
+
+		@Override
+		Lab toLab(LabRow row) {
+			this.bound.add(row.getPatientId() + " lab " + row.getCode());
+			return super.toLab(row);
+		}
+
+		@Override
+		Medication toMedication(DrugRow row) {
+			this.bound.add(row.getPatientId() + " drug " + row.getCode());
+			return super.toMedication(row);
+		}
+
+		@Override
+		Diagnosis toDiagnosis(DiagnosisRow row) {
+			this.bound.add(row.getPatientId() + " diagnosis " + row.getCode());
+			return super.toDiagnosis(row);
+		}
+
+	}
+
+	private static List<String> getIds(Iterable<Patient> patients) {
+		List<String> ids = new ArrayList<String>();
+		for(Patient patient : patients){
+			ids.add(patient.getSourcePid());
+		}
+		return ids;
+	}
+
+	private static CheckpointStore getCheckpointStore(final Map<String,String> sequences) {
+		return new CheckpointStore(){
+
+			@Override
+			public String getSequence(String database) {
+				return sequences.get(database);
+			}
+
+			@Override
+			public void setSequence(String database, String sequence) {
+				sequences.put(database, sequence);
+			}
+
+		};
+	}
+
+	private static Map<String,String> getSequences(String sequence) {
+		Map<String,String> sequences = new HashMap<String,String>();
+		for(String database : new String[]{"secondaryusepatient2", "secondaryusestandardlab",
+				"secondaryusenoteddrug", "administrativediagnosis"}){
+			sequences.put(database, sequence);
+		}
+		return sequences;
+	}
+
+	@Test
+	public void TestChangedPatients() {
+		CannedTransport transport = new CannedTransport(new CemdbHandler().
+				addChange("secondaryusestandardlab", "{\"seq\":\"2\",\"id\":\"a\",\"doc\":{\"SecondaryUseStandardLab\":" +
+						"{\"patientExternalId\":[{\"ii\":{\"extension\":{\"value\":\"p1\"}}}]}}}"));
+		RecordingDao dao = new RecordingDao(transport);
+
+		Map<String,String> sequences = getSequences("1");
+		PatientChanges changes = dao.getChangedPatients(getCheckpointStore(sequences));
+
+		assertFalse(changes.isFullExtractionRequired());
+		assertEquals(Collections.singleton("p1"), changes.getPatientIds());
+
+		changes.checkpoint();
+		assertEquals(getSequences("10").keySet(), sequences.keySet());
+		assertEquals("11", sequences.get("secondaryusestandardlab"));
+		assertEquals("10", sequences.get("administrativediagnosis"));
+
+		dao.close();
+	}
+
+	@Test
+	public void TestPatientIdsPagedOnClient() throws IOException {
+		CannedTransport transport = new CannedTransport(new CemdbHandler("p1", "p2", "p3", "p4").
+				addLab("p4", "L1"));
+		RecordingDao dao = new RecordingDao(transport);
+		dao.setAdaptivePageSize(new AdaptivePageSize(2, 2, 60 * 1000, 0));
+
+		//the second slice has no patients, which must not end the paging
+		assertEquals(Arrays.asList("p1", "p2", "p4"),
+				getIds(dao.getPatients(Arrays.asList("p1", "p2", "x1", "x2", "p4"))));
+		assertEquals(Arrays.asList("p4 lab L1"), dao.bound);
+
+		ObjectMapper objectMapper = new ObjectMapper();
+		List<List<String>> slices = new ArrayList<List<String>>();
+		for(int i=0;i<transport.getUrls().size();i++){
+			String url = transport.getUrls().get(i);
+			if(url.contains("/all_patients")){
+				assertFalse(url, url.contains("skip="));
+				assertFalse(url, url.contains("limit="));
+				@SuppressWarnings("unchecked")
+				Map<String,List<String>> request = objectMapper.readValue(transport.getBodies().get(i), Map.class);
+				slices.add(request.get("keys"));
+			}
+		}
+		assertEquals(Arrays.asList(Arrays.asList("p1", "p2"), Arrays.asList("x1", "x2"), Arrays.asList("p4")), slices);
+
+		dao.close();
+	}
+
+	private static String getChange(int seq, String id, String element, String patientId) {
+		return "{\"seq\":\"" + seq + "\",\"id\":\"" + id + "\",\"doc\":{\"_id\":\"" + id + "\",\"" + element + "\":" +
+				"{\"patientExternalId\":[{\"ii\":{\"extension\":{\"value\":\"" + patientId + "\"}}}]}}}";
+	}
+
+	private static String getDeletion(int seq, String id, String rev) {
+		return "{\"seq\":\"" + seq + "\",\"id\":\"" + id + "\",\"changes\":[{\"rev\":\"" + rev + "\"}]," +
+				"\"deleted\":true,\"doc\":{\"_id\":\"" + id + "\",\"_rev\":\"" + rev + "\",\"_deleted\":true}}";
+	}
+
+	@Test
+	public void TestChangedPatientIdOfEachDatabase() {
+		CannedTransport transport = new CannedTransport(new CemdbHandler().
+				addChange("secondaryusepatient2", getChange(2, "a", "SecondaryUsePatient", "p1")).
+				addChange("secondaryusestandardlab", getChange(2, "b", "SecondaryUseStandardLab", "p2")).
+				addChange("secondaryusenoteddrug", getChange(2, "c", "SecondaryUseNotedDrug", "p3")).
+				addChange("administrativediagnosis", getChange(2, "d", "AdministrativeDiagnosis", "p4")).
+				addChange("administrativediagnosis", "{\"seq\":\"3\",\"id\":\"_design/cem\",\"doc\":{\"_id\":\"_design/cem\"}}"));
+		RecordingDao dao = new RecordingDao(transport);
+
+		PatientChanges changes = dao.getChangedPatients(getCheckpointStore(getSequences("1")));
+
+		assertFalse(changes.isFullExtractionRequired());
+		assertEquals(new HashSet<String>(Arrays.asList("p1", "p2", "p3", "p4")), changes.getPatientIds());
+
+		dao.close();
+	}
+
+	@Test
+	public void TestChangesPaged() {
+		CemdbHandler handler = new CemdbHandler();
+		for(int i=0;i<2500;i++){
+			handler.addChange("secondaryusestandardlab", getChange(i + 11, "d" + i, "SecondaryUseStandardLab", "p" + (i % 1200)));
+		}
+		CannedTransport transport = new CannedTransport(handler);
+		RecordingDao dao = new RecordingDao(transport);
+
+		Map<String,String> sequences = getSequences("1");
+		PatientChanges changes = dao.getChangedPatients(getCheckpointStore(sequences));
+
+		assertFalse(changes.isFullExtractionRequired());
+		assertEquals(1200, changes.getPatientIds().size());
+
+		List<String> pages = new ArrayList<String>();
+		for(String url : transport.getUrls()){
+			if(url.contains("/secondaryusestandardlab/_changes")){
+				assertTrue(url, url.contains("limit=1000"));
+				pages.add(url.replaceAll(".*since=([^&]*).*", "$1"));
+			}
+		}
+		assertEquals(Arrays.asList("1", "1010", "2010"), pages);
+
+		changes.checkpoint();
+		assertEquals("2510", sequences.get("secondaryusestandardlab"));
+
+		dao.close();
+	}
+
+	@Test
+	public void TestDeletedPatientIdFromEarlierRevision() {
+		CannedTransport transport = new CannedTransport(new CemdbHandler().
+				addChange("secondaryusenoteddrug", getDeletion(2, "b", "3-ccc")).
+				addRevision("secondaryusenoteddrug", "b", "3-ccc",
+						"{\"_id\":\"b\",\"_rev\":\"3-ccc\",\"_deleted\":true," +
+						"\"_revisions\":{\"start\":3,\"ids\":[\"ccc\",\"bbb\",\"aaa\"]}}").
+				addRevision("secondaryusenoteddrug", "b", "2-bbb",
+						"{\"_id\":\"b\",\"_rev\":\"2-bbb\",\"SecondaryUseNotedDrug\":" +
+						"{\"patientExternalId\":[{\"ii\":{\"extension\":{\"value\":\"p2\"}}}]}}"));
+		RecordingDao dao = new RecordingDao(transport);
+
+		PatientChanges changes = dao.getChangedPatients(getCheckpointStore(getSequences("1")));
+
+		assertFalse(changes.isFullExtractionRequired());
+		assertEquals(Collections.singleton("p2"), changes.getPatientIds());
+
+		dao.close();
+	}
+
+	@Test
+	public void TestDeletionRequiresFullExtraction() {
+		//the revisions before the deletion were compacted away
+		CannedTransport transport = new CannedTransport(new CemdbHandler().
+				addChange("secondaryusestandardlab", getChange(2, "a", "SecondaryUseStandardLab", "p1")).
+				addChange("secondaryusenoteddrug", getDeletion(3, "b", "2-bbb")));
+		RecordingDao dao = new RecordingDao(transport);
+
+		PatientChanges changes = dao.getChangedPatients(getCheckpointStore(getSequences("1")));
+
+		assertTrue(changes.isFullExtractionRequired());
+		assertTrue(changes.getPatientIds().isEmpty());
+
+		dao.close();
+	}
+
+	@Test
+	public void TestChangeWithoutPatientIdRequiresFullExtraction() {
+		CannedTransport transport = new CannedTransport(new CemdbHandler().
+				addChange("secondaryusestandardlab", getChange(2, "a", "SecondaryUseStandardLab", "p1")).
+				addChange("administrativediagnosis", "{\"seq\":\"3\",\"id\":\"b\",\"doc\":{\"_id\":\"b\"," +
+						"\"AdministrativeDiagnosis\":{\"patient\":\"p2\"}}}"));
+		RecordingDao dao = new RecordingDao(transport);
+
+		PatientChanges changes = dao.getChangedPatients(getCheckpointStore(getSequences("1")));
+
+		assertTrue(changes.isFullExtractionRequired());
+		assertTrue(changes.getPatientIds().isEmpty());
+
+		dao.close();
+	}
+
+	private static boolean isQueried(CannedTransport transport, String view) {
+		for(String url : transport.getUrls()){
+			if(url.contains("/" + view + "?") || url.endsWith("/" + view)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void TestDateWindowPushdownPatientLimit() {
+		for(int maxPatients : new int[]{3, 2}){
+			CannedTransport transport = new CannedTransport(new CemdbHandler("p1", "p2", "p3").
+					addLab("p1", "L1").addLab("p3", "L2"));
+			RecordingDao dao = new RecordingDao(transport);
+			dao.setDateWindow(new DateWindow(new GregorianCalendar(2005, 0, 1).getTime(), 
+					new GregorianCalendar(2005, 11, 31).getTime(), true, maxPatients));
+
+			assertEquals(Arrays.asList("p1", "p2", "p3"),
+					getIds(dao.getPatients(KeyRange.ALL, EnumSet.of(DataCategory.LABS))));
+			assertEquals(Arrays.asList("p1 lab L1", "p3 lab L2"), dao.bound);
+
+			//a range request per patient, or one keyed request over the limit
+			int ranges = 0;
+			for(String url : transport.getUrls()){
+				if(url.contains("/lab_by_patient_id_and_date?")){
+					ranges++;
+				}
+			}
+			assertEquals(maxPatients == 3 ? 3 : 0, ranges);
+			assertEquals(maxPatients == 2, isQueried(transport, "lab_by_patient_id"));
+
+			dao.close();
+		}
+	}
+
+	@Test
+	public void TestCodeFilterPushdownKeyLimit() {
+		Map<String,List<String>> codes = new HashMap<String,List<String>>();
+		codes.put(CemDbUtils.LOINC, Arrays.asList("L1", "L2"));
+
+		for(int maxKeys : new int[]{6, 5}){
+			CannedTransport transport = new CannedTransport(new CemdbHandler("p1", "p2", "p3").
+					addLab("p1", "L1").addLab("p1", "L3").addLab("p3", "L2"));
+			RecordingDao dao = new RecordingDao(transport);
+			dao.setCodeFilter(new CodeFilter(codes, true, maxKeys));
+
+			assertEquals(Arrays.asList("p1", "p2", "p3"),
+					getIds(dao.getPatients(KeyRange.ALL, EnumSet.of(DataCategory.LABS))));
+
+			if(maxKeys == 6){
+				//2 codes x 3 patients, served by the [code, patientId] view
+				assertTrue(isQueried(transport, "lab_by_code_and_patient_id"));
+				assertFalse(isQueried(transport, "lab_by_patient_id"));
+			} else {
+				//over the limit, the rows are filtered as they are read
+				assertFalse(isQueried(transport, "lab_by_code_and_patient_id"));
+				assertTrue(isQueried(transport, "lab_by_patient_id"));
+				assertEquals(Arrays.asList("p1 lab L1", "p3 lab L2"), dao.bound);
+			}
+
+			dao.close();
+		}
+	}
+
+	@Test
+	public void TestAllCategories() {
+		CannedTransport transport = new CannedTransport(new CemdbHandler("p1", "p2").
+				addLab("p1", "L1").addLab("p1", "L2").
+				addDrug("p2", "D1").
+				addDiagnosis("p1", "X1"));
+		RecordingDao dao = new RecordingDao(transport);
+
+		assertEquals(Arrays.asList("p1", "p2"), getIds(dao.getPatients()));
+		assertEquals(Arrays.asList("p1 lab L1", "p1 lab L2", "p2 drug D1", "p1 diagnosis X1"), dao.bound);
+
+		dao.close();
+		assertTrue(transport.isClosed());
+	}
+
+	@Test
+	public void TestCategoriesOutsideProjectionNotQueried() {
+		CannedTransport transport = new CannedTransport(new CemdbHandler("p1", "p2").
+				addLab("p1", "L1").
+				addDrug("p1", "D1").
+				addDiagnosis("p2", "X1"));
+		RecordingDao dao = new RecordingDao(transport);
+
+		assertEquals(Arrays.asList("p1", "p2"),
+				getIds(dao.getPatients(KeyRange.ALL, EnumSet.of(DataCategory.LABS))));
+		assertEquals(Arrays.asList("p1 lab L1"), dao.bound);
+
+		for(String url : transport.getUrls()){
+			assertFalse(url, url.contains("drug"));
+			assertFalse(url, url.contains("diagnosis"));
+		}
+
+		dao.close();
+	}
+
+	private static CemdbHandler getHandler(int patients) {
+		List<String> ids = new ArrayList<String>();
+		for(int i=1;i<=patients;i++){
+			ids.add(String.format("p%02d", i));
+		}
+		
+		CemdbHandler handler = new CemdbHandler(ids.toArray(new String[ids.size()]));
+		for(String id : ids){
+			handler.addLab(id, "L1").addLab(id, "L2").addDrug(id, "D1").addDiagnosis(id, "X1");
+		}
+		return handler;
+	}
+
+	private static File getSpillDirectory() throws IOException {
+		File directory = File.createTempFile("cemdb-test", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	private static List<String> sort(List<String> list) {
+		List<String> sorted = new ArrayList<String>(list);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	private static int getQueries(CannedTransport transport, String view) {
+		int queries = 0;
+		for(String url : transport.getUrls()){
+			if(url.contains("/" + view)){
+				queries++;
+			}
+		}
+		return queries;
+	}
+
+	//checks that each patient is bound as it is reached, and that all match an extraction without a budget
+	private static void assertSpilled(RecordingDao dao, int patients) {
+		RecordingDao unbudgeted = new RecordingDao(new CannedTransport(getHandler(patients)));
+		List<String> ids = getIds(unbudgeted.getPatients());
+		unbudgeted.close();
+		assertEquals(patients, ids.size());
+
+		List<String> replayed = new ArrayList<String>();
+		for(Patient patient : dao.getPatients()){
+			replayed.add(patient.getSourcePid());
+			List<String> bound = dao.bound.subList(dao.bound.size() - 4, dao.bound.size());
+			assertEquals(Arrays.asList(patient.getSourcePid() + " lab L1", patient.getSourcePid() + " lab L2",
+					patient.getSourcePid() + " drug D1", patient.getSourcePid() + " diagnosis X1"), bound);
+		}
+
+		assertEquals(ids, replayed);
+		assertEquals(sort(unbudgeted.bound), sort(dao.bound));
+	}
+
+	@Test
+	public void TestSpilledPage() throws IOException {
+		File directory = getSpillDirectory();
+
+		CannedTransport transport = new CannedTransport(getHandler(25));
+		RecordingDao dao = new RecordingDao(transport);
+		dao.setPageMemoryBudget(1);
+		dao.setSpillDirectory(directory);
+
+		assertSpilled(dao, 25);
+		assertEquals(0, directory.list().length);
+
+		dao.close();
+	}
+
+	@Test
+	public void TestSpilledPageReadOnce() throws IOException {
+		File directory = getSpillDirectory();
+
+		RecordingDao dao = new RecordingDao(new CannedTransport(getHandler(5)));
+		dao.setPageMemoryBudget(1);
+		dao.setSpillDirectory(directory);
+
+		AbstractPageableIterator<Patient,?> itr = (AbstractPageableIterator<Patient,?>) dao.getPatients().iterator();
+		Iterable<Patient> page = itr.nextPage();
+		assertTrue(page instanceof AbstractPageableIterator.StreamedPage);
+		assertEquals(5, AbstractPageableIterator.sizeOf(page));
+
+		Iterator<Patient> patients = page.iterator();
+		assertEquals("p01", patients.next().getSourcePid());
+		try {
+			page.iterator();
+			fail();
+		} catch (IllegalStateException e) {
+			//read once
+		}
+
+		((AbstractPageableIterator.StreamedPage<Patient>) page).close();
+		assertEquals(0, directory.list().length);
+		try {
+			patients.next();
+			fail();
+		} catch (IllegalStateException e) {
+			//closed
+		}
+
+		itr.close();
+		dao.close();
+	}
+
+	private static long getEstimatedSize(Map<String, ? extends List<? extends ViewRow>> rowsByPatient) {
+		long size = 0;
+		for(List<? extends ViewRow> rows : rowsByPatient.values()){
+			for(ViewRow row : rows){
+				size += row.getEstimatedSize();
+			}
+		}
+		return size;
+	}
+
+	@Test
+	public void TestSpilledAfterSubBatches() throws IOException {
+		File directory = getSpillDirectory();
+
+		CannedTransport transport = new CannedTransport(getHandler(25));
+		RecordingDao dao = new RecordingDao(transport);
+
+		//the rows of 3 patients fit, so pages of 10 hold 3 and spill the rest
+		List<String> p01 = Collections.singletonList("p01");
+		long patientSize = getEstimatedSize(dao.getLabRows(p01)) + getEstimatedSize(dao.getDrugRows(p01)) +
+				getEstimatedSize(dao.getDiagnosisRows(p01));
+		assertTrue(patientSize > 0);
+		dao.setPageMemoryBudget(patientSize * 3 + patientSize / 2);
+		dao.setSpillDirectory(directory);
+
+		assertSpilled(dao, 25);
+		assertEquals(0, directory.list().length);
+
+		//queried a patient at a time, once the size of a patient was known
+		assertTrue(getQueries(transport, "lab_by_patient_id") > 10);
+
+		dao.close();
+	}
+
+	@Test
+	public void TestUnderBudgetNotSpilled() throws IOException {
+		File directory = getSpillDirectory();
+
+		CannedTransport transport = new CannedTransport(getHandler(25));
+		RecordingDao dao = new RecordingDao(transport);
+		dao.setPageMemoryBudget(1024 * 1024 * 1024);
+		dao.setSpillDirectory(directory);
+
+		List<String> ids = getIds(dao.getPatients());
+		assertEquals(25, ids.size());
+		assertEquals(100, dao.bound.size());
+		assertEquals(0, directory.list().length);
+
+		//a page of patients at a time
+		assertEquals(getQueries(transport, "all_patients"), getQueries(transport, "lab_by_patient_id"));
+
+		dao.close();
+	}
+
+}
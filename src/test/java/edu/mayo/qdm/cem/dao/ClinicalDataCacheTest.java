@@ -0,0 +1,86 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ClinicalDataCacheTest {
+
+	private List<DiagnosisRow> getRows(String patientId) {
+		return Arrays.asList(new DiagnosisRow(patientId, "44054006"), new DiagnosisRow(patientId, "38341003"));
+	}
+
+	@Test
+	public void TestHitAndMiss() {
+		ClinicalDataCache cache = new ClinicalDataCache();
+
+		assertNull(cache.get("v", "p1"));
+
+		cache.put("v", "p1", this.getRows("p1"));
+		cache.put("v", "p2", Collections.<DiagnosisRow>emptyList());
+
+		List<DiagnosisRow> rows = cache.get("v", "p1");
+		assertEquals(2, rows.size());
+		assertEquals("38341003", rows.get(1).getCode());
+
+		assertTrue(cache.get("v", "p2").isEmpty());
+		assertNull(cache.get("other", "p1"));
+
+		assertEquals(2, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertTrue(cache.getSize() > 0);
+	}
+
+	@Test
+	public void TestEvictLeastRecentlyUsed() {
+		ClinicalDataCache cache = new ClinicalDataCache(Long.MAX_VALUE);
+		cache.put("v", "p1", this.getRows("p1"));
+		long entrySize = cache.getSize();
+
+		cache = new ClinicalDataCache(entrySize * 2);
+		cache.put("v", "p1", this.getRows("p1"));
+		cache.put("v", "p2", this.getRows("p2"));
+		cache.get("v", "p1");
+		cache.put("v", "p3", this.getRows("p3"));
+
+		assertNotNull(cache.get("v", "p1"));
+		assertNull(cache.get("v", "p2"));
+		assertNotNull(cache.get("v", "p3"));
+
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(entrySize * 2, cache.getSize());
+	}
+
+	@Test
+	public void TestTooLarge() {
+		ClinicalDataCache cache = new ClinicalDataCache(10);
+		cache.put("v", "p1", this.getRows("p1"));
+
+		assertNull(cache.get("v", "p1"));
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void TestInvalidate() {
+		ClinicalDataCache cache = new ClinicalDataCache();
+		cache.put("v1", "p1", this.getRows("p1"));
+		cache.put("v2", "p1", this.getRows("p1"));
+		cache.put("v1", "p2", this.getRows("p2"));
+
+		cache.invalidate(Arrays.asList("p1"));
+
+		assertNull(cache.get("v1", "p1"));
+		assertNull(cache.get("v2", "p1"));
+		assertNotNull(cache.get("v1", "p2"));
+		assertEquals(1, cache.getEntryCount());
+	}
+
+}
@@ -0,0 +1,54 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CodeFilterTest {
+
+	@Test
+	public void TestAccepts() {
+		Map<String,List<String>> codes = new HashMap<String,List<String>>();
+		codes.put(CemDbUtils.LOINC, Arrays.asList("2345-7", "2339-0"));
+
+		CodeFilter filter = new CodeFilter(codes);
+
+		assertTrue(filter.accepts(CemDbUtils.LOINC, "2345-7"));
+		assertFalse(filter.accepts(CemDbUtils.LOINC, "1234-5"));
+		assertFalse(filter.isPushdown());
+	}
+
+	@Test
+	public void TestPushdownKeyLimit() {
+		Map<String,List<String>> codes = new HashMap<String,List<String>>();
+		codes.put(CemDbUtils.LOINC, Arrays.asList("2345-7", "2339-0"));
+
+		CodeFilter filter = new CodeFilter(codes, true, 100);
+
+		assertTrue(filter.isPushdown(2, 50));
+		assertFalse(filter.isPushdown(2, 51));
+		assertFalse(new CodeFilter(codes, false, 100).isPushdown(2, 1));
+		assertFalse(filter.isPushdown(100000, 100000));
+	}
+
+	@Test
+	public void TestUnrestrictedCodeSystem() {
+		Map<String,List<String>> codes = new HashMap<String,List<String>>();
+		codes.put(CemDbUtils.SNOMEDCT, Arrays.<String>asList());
+
+		CodeFilter filter = new CodeFilter(codes, true);
+
+		assertTrue(filter.accepts(CemDbUtils.RXNORM, "1191"));
+		assertNull(filter.getCodes(CemDbUtils.RXNORM));
+		assertTrue(filter.isRestricted(CemDbUtils.SNOMEDCT));
+		assertFalse(filter.accepts(CemDbUtils.SNOMEDCT, "44054006"));
+	}
+
+}
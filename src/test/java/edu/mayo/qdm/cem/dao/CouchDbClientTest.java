@@ -0,0 +1,221 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+public class CouchDbClientTest {
+	
+	private static final CannedTransport.Handler EMPTY = new CannedTransport.Handler(){
+
+		@Override
+		public CannedTransport.CannedResponse respond(String url, String body) {
+			return CannedTransport.json("{\"rows\":[]}");
+		}
+		
+	};
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	
+	private List<String> getKeys(String body) throws IOException {
+		@SuppressWarnings("unchecked")
+		Map<String,List<String>> map = objectMapper.readValue(body, Map.class);
+		return map.get("keys");
+	}
+	
+	private static String getRows(List<String> keys) {
+		StringBuilder json = new StringBuilder("{\"total_rows\":100,\"rows\":[");
+		for(int i=0;i<keys.size();i++){
+			json.append(i > 0 ? "," : "").
+				append("{\"id\":\"").append(keys.get(i)).
+				append("\",\"key\":\"").append(keys.get(i)).
+				append("\",\"value\":{\"n\":").append(i).append("}}");
+		}
+		return json.append("]}").toString();
+	}
+	
+	private static List<String> getKeys(int count) {
+		List<String> keys = new ArrayList<String>();
+		for(int i=0;i<count;i++){
+			keys.add(String.format("k%02d", i));
+		}
+		return keys;
+	}
+	
+	private static CouchDbClient.RowCallback collect(final List<String> keys) {
+		return new CouchDbClient.RowCallback(){
+
+			@Override
+			public void row(Map<String, Object> row) {
+				keys.add((String) row.get("key"));
+			}
+			
+		};
+	}
+	
+	@Test
+	public void TestChunksDeliveredInKeyOrder() {
+		CouchDbClient client = new CouchDbClient("http://couchdb");
+		client.setKeyChunkSize(3);
+		client.setMaxConcurrentRequests(4);
+		
+		CannedTransport transport = new CannedTransport(new CannedTransport.Handler(){
+
+			@Override
+			public CannedTransport.CannedResponse respond(String url, String body) throws IOException {
+				List<String> keys = getKeys(body);
+				
+				//the earlier chunks answer last
+				int chunk = Integer.parseInt(keys.get(0).substring(1)) / 3;
+				try {
+					Thread.sleep(10 * (10 - chunk));
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				
+				return CannedTransport.json(getRows(keys));
+			}
+			
+		});
+		client.setTransport(transport);
+		
+		List<String> keys = getKeys(25);
+		List<String> delivered = new ArrayList<String>();
+		client.queryView("db/_design/d/_view/v", keys, null, collect(delivered));
+		
+		assertEquals(keys, delivered);
+		assertEquals(9, transport.getUrls().size());
+		
+		client.close();
+	}
+	
+	@Test
+	public void TestFailedChunkCancelsTheRest() throws InterruptedException {
+		CouchDbClient client = new CouchDbClient("http://couchdb");
+		client.setKeyChunkSize(1);
+		client.setMaxConcurrentRequests(2);
+		
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		
+		CannedTransport transport = new CannedTransport(new CannedTransport.Handler(){
+
+			@Override
+			public CannedTransport.CannedResponse respond(String url, String body) throws IOException {
+				String key = getKeys(body).get(0);
+				if(key.equals("k01")){
+					//fail once the next chunk is in flight
+					try {
+						started.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					return CannedTransport.error(500, "{\"error\":\"failed\"}");
+				}
+				if(key.equals("k02")){
+					started.countDown();
+					try {
+						Thread.sleep(10000);
+					} catch (InterruptedException e) {
+						interrupted.countDown();
+						throw new IOException(e);
+					}
+				}
+				
+				return CannedTransport.json(getRows(getKeys(body)));
+			}
+			
+		});
+		client.setTransport(transport);
+		
+		List<String> delivered = new ArrayList<String>();
+		try {
+			client.queryView("db/_design/d/_view/v", getKeys(10), null, collect(delivered));
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("500"));
+		}
+		
+		//the chunk in flight is interrupted, and no more are sent
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertEquals(3, transport.getUrls().size());
+		assertEquals(1, delivered.size());
+		
+		client.close();
+	}
+	
+	@Test
+	public void TestGzipResponse() {
+		CouchDbClient client = new CouchDbClient("http://couchdb");
+		client.setTransport(new CannedTransport(new CannedTransport.Handler(){
+
+			@Override
+			public CannedTransport.CannedResponse respond(String url, String body) throws IOException {
+				return CannedTransport.gzip(getRows(getKeys(body)));
+			}
+			
+		}));
+		
+		List<String> delivered = new ArrayList<String>();
+		client.queryView("db/_design/d/_view/v", getKeys(2), null, collect(delivered));
+		
+		assertEquals(getKeys(2), delivered);
+		
+		client.close();
+	}
+
+	@Test
+	public void TestCloseReleasesOwnResources() throws IOException {
+		CouchDbClient client = new CouchDbClient("http://couchdb");
+		CouchDbTransport pooled = client.getTransport();
+		
+		CannedTransport transport = new CannedTransport(EMPTY);
+		client.setTransport(transport);
+		
+		ExecutorService executor = client.getExecutorService();
+		client.close();
+		
+		assertTrue(transport.isClosed());
+		assertTrue(executor.isShutdown());
+		
+		//the replaced default transport was closed too
+		try {
+			pooled.execute("http://localhost:1/db", null, null);
+		} catch (IllegalStateException e) {
+			return;
+		} catch (IOException e) {
+			throw new AssertionError("The replaced transport was not closed: " + e);
+		}
+		throw new AssertionError("The replaced transport was not closed.");
+	}
+
+	@Test
+	public void TestCloseLeavesSetExecutor() {
+		CouchDbClient client = new CouchDbClient("http://couchdb");
+		client.setTransport(new CannedTransport(EMPTY));
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			client.setExecutorService(executor);
+			client.close();
+			
+			assertFalse(executor.isShutdown());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
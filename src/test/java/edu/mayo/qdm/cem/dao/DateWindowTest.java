@@ -0,0 +1,94 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+public class DateWindowTest {
+
+	private Date getDate(int year, int month, int day, int hour) {
+		return new GregorianCalendar(year, month - 1, day, hour, 0).getTime();
+	}
+
+	private DateWindow getWindow() {
+		return new DateWindow(this.getDate(2011, 1, 1, 9), this.getDate(2011, 12, 31, 0));
+	}
+
+	@Test
+	public void TestDays() {
+		DateWindow window = this.getWindow();
+
+		assertEquals("20110101", window.getFirstDay());
+		assertEquals("20111231", window.getLastDay());
+	}
+
+	@Test
+	public void TestContains() {
+		DateWindow window = this.getWindow();
+
+		assertTrue(window.contains("20110101"));
+		assertTrue(window.contains("201101010000"));
+		assertTrue(window.contains("201112311159"));
+		assertTrue(window.contains("20111231235900"));
+		assertFalse(window.contains("201012312359"));
+		assertFalse(window.contains("20120101"));
+
+		//not CEMDB dates -- left for the parser to reject
+		assertTrue(window.contains(null));
+		assertTrue(window.contains("2011-13-01"));
+	}
+
+	@Test
+	public void TestOverlaps() {
+		DateWindow window = this.getWindow();
+
+		assertTrue(window.overlaps("200901011200", null));
+		assertTrue(window.overlaps("200901011200", "201101010800"));
+		assertFalse(window.overlaps("200901011200", "201012311200"));
+		assertFalse(window.overlaps("201201011200", null));
+	}
+
+	@Test
+	public void TestDrugWithoutEnd() {
+		DrugRow drug = new DrugRow("p1", "c1", "200901011200", null);
+
+		//taken to end on the day it is bound with, 2011-02-24
+		assertTrue(drug.isWithin(this.getWindow()));
+		assertTrue(drug.isWithin(new DateWindow(this.getDate(2011, 2, 24, 0), null)));
+		assertFalse(drug.isWithin(new DateWindow(this.getDate(2011, 2, 25, 0), null)));
+	}
+
+	@Test
+	public void TestPushdownPatientLimit() {
+		DateWindow window = new DateWindow(null, this.getDate(2011, 12, 31, 0), true, 2);
+
+		assertTrue(window.isPushdown(2));
+		assertFalse(window.isPushdown(3));
+		assertFalse(new DateWindow(null, this.getDate(2011, 12, 31, 0)).isPushdown(1));
+	}
+
+	@Test
+	public void TestOpen() {
+		DateWindow window = new DateWindow(null, this.getDate(2011, 12, 31, 0));
+
+		assertTrue(window.contains("18000101"));
+		assertFalse(window.contains("20120101"));
+		assertTrue(window.overlaps("20000101", "20000102"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void TestStartAfterEnd() {
+		Calendar calendar = new GregorianCalendar(2011, 0, 1);
+		Date end = calendar.getTime();
+		calendar.add(Calendar.DATE, 1);
+
+		new DateWindow(calendar.getTime(), end);
+	}
+
+}
@@ -0,0 +1,52 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void TestBucketBounds() {
+		for(long value : new long[]{0, 1, 3, 4, 5, 7, 8, 9, 1000, 123456789L, Long.MAX_VALUE}){
+			int bucket = Histogram.getBucket(value);
+
+			assertTrue(value <= Histogram.getUpperBound(bucket));
+			assertTrue(bucket == 0 || value > Histogram.getUpperBound(bucket - 1));
+		}
+	}
+
+	@Test
+	public void TestPercentiles() {
+		Histogram histogram = new Histogram();
+		for(int i=1;i<=1000;i++){
+			histogram.record(i);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500, histogram.getSum());
+		assertEquals(1000, histogram.getMax());
+		assertEquals(500.5, histogram.getMean(), 0);
+
+		long median = histogram.getPercentile(50);
+		assertTrue(median >= 500 && median <= 625);
+
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p99 >= 990 && p99 <= 1000);
+
+		assertEquals(1000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void TestReset() {
+		Histogram histogram = new Histogram();
+		histogram.record(42);
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+}
@@ -0,0 +1,54 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class JmxExtractionMetricsTest {
+
+	private MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+
+	@Test
+	public void TestViewStages() throws Exception {
+		JmxExtractionMetrics metrics = new JmxExtractionMetrics("test", this.mBeanServer);
+
+		String view = "secondaryusestandardlab/_design/lab_by_patient_id/_view/lab_by_patient_id";
+		metrics.viewQueried(null, view, 250, 200, 4096, 1200, 2000000);
+		metrics.viewQueried(null, view, 10, 500, 100, 0, 1000000);
+
+		ObjectName name = new ObjectName("test:type=View,name=lab_by_patient_id");
+		assertTrue(this.mBeanServer.isRegistered(name));
+		assertEquals(2L, this.mBeanServer.getAttribute(name, "Count"));
+		assertEquals(1L, this.mBeanServer.getAttribute(name, "Errors"));
+		assertEquals(1200L, this.mBeanServer.getAttribute(name, "Items"));
+		assertEquals(4196L, this.mBeanServer.getAttribute(name, "Bytes"));
+		assertEquals(3.0, (Double) this.mBeanServer.getAttribute(name, "TotalMillis"), 0);
+	}
+
+	@Test
+	public void TestPageAndBindingStages() throws Exception {
+		JmxExtractionMetrics metrics = new JmxExtractionMetrics("test", this.mBeanServer);
+
+		metrics.pageFetched(null, 0, 1000, 5000000);
+		metrics.pageProcessed(null, 0, 1000, 998, 1000000, 30000000);
+		metrics.rowsBound(DataCategory.LABS, 900, 45000, 2000000);
+
+		assertEquals(1000, metrics.getStage(JmxExtractionMetrics.PAGE_TYPE, "fetch").getItems());
+		assertEquals(998, metrics.getStage(JmxExtractionMetrics.PAGE_TYPE, "decorate").getItems());
+		assertEquals(30.0, metrics.getStage(JmxExtractionMetrics.PAGE_TYPE, "decorate").getMaxMillis(), 0);
+
+		ObjectName labs = new ObjectName("test:type=Binding,name=labs");
+		assertEquals(45000L, this.mBeanServer.getAttribute(labs, "Items"));
+		assertEquals(22500000.0, (Double) this.mBeanServer.getAttribute(labs, "ItemsPerSecond"), 0.001);
+
+		metrics.unregister();
+		assertFalse(this.mBeanServer.isRegistered(labs));
+	}
+
+}
@@ -0,0 +1,38 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class KeyRangeTest {
+
+	@Test
+	public void TestSplitNone() {
+		assertEquals(Arrays.asList(KeyRange.ALL), KeyRange.split(Collections.<String>emptyList()));
+	}
+	
+	@Test
+	public void TestSplit() {
+		List<KeyRange> ranges = KeyRange.split(Arrays.asList("b", "d"));
+		
+		assertEquals(Arrays.asList(
+				new KeyRange(null, "b"),
+				new KeyRange("b", "d"),
+				new KeyRange("d", null)), ranges);
+	}
+	
+	@Test
+	public void TestSplitRepeatedKeys() {
+		List<KeyRange> ranges = KeyRange.split(Arrays.asList("b", "b", "d", "d"));
+		
+		assertEquals(Arrays.asList(
+				new KeyRange(null, "b"),
+				new KeyRange("b", "d"),
+				new KeyRange("d", null)), ranges);
+	}
+
+}
@@ -4,6 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 
 import org.junit.Test;
@@ -38,5 +41,52 @@ public class MapUtilsTest {
 		assertTrue(m.find());
 		assertEquals("1",m.group(2));
 	}
+	
+	@Test
+	public void TestCompiledPathGet() {
+		assertEquals("1234", MapUtils.compile("value.clinicalDrug.code").get(this.getDrugRow()));
+	}
+	
+	@Test
+	public void TestCompiledPathGetIndex() {
+		assertEquals("b", MapUtils.compile("value.codes[1]").get(this.getDrugRow()));
+	}
+	
+	@Test(expected=MapUtils.KeyNotFoundException.class)
+	public void TestCompiledPathGetMissing() {
+		MapUtils.compile("value.startTime").get(this.getDrugRow());
+	}
+	
+	@Test
+	public void TestCompiledPathExists() {
+		Map<String,Object> row = this.getDrugRow();
+		
+		assertTrue(MapUtils.compile("value.clinicalDrug.code").exists(row));
+		assertTrue(MapUtils.compile("value.endTime").exists(row));
+		assertFalse(MapUtils.compile("value.startTime").exists(row));
+		assertFalse(MapUtils.compile("value.endTime.code").exists(row));
+		assertFalse(MapUtils.compile("value.codes[2]").exists(row));
+	}
+	
+	@Test
+	public void TestKeyExists() {
+		assertTrue(MapUtils.keyExists("value.clinicalDrug.code", this.getDrugRow()));
+		assertFalse(MapUtils.keyExists("value.clinicalDrug.name", this.getDrugRow()));
+	}
+	
+	private Map<String,Object> getDrugRow() {
+		Map<String,Object> clinicalDrug = new HashMap<String,Object>();
+		clinicalDrug.put("code", "1234");
+		
+		Map<String,Object> value = new HashMap<String,Object>();
+		value.put("clinicalDrug", clinicalDrug);
+		value.put("endTime", null);
+		value.put("codes", Arrays.asList("a", "b"));
+		
+		Map<String,Object> row = new HashMap<String,Object>();
+		row.put("value", value);
+		
+		return row;
+	}
 
 }
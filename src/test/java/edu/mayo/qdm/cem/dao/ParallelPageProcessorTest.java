@@ -0,0 +1,146 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ParallelPageProcessorTest {
+	
+	private ForkJoinPool pool = new ForkJoinPool(4);
+	
+	private static class TestIterator extends AbstractPageableIterator<Integer,Integer> {
+
+		private static final long serialVersionUID = 1L;
+		
+		private int size;
+		
+		private Set<String> decoratingThreads = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+		private TestIterator(int pageSize, int size) {
+			super(pageSize);
+			this.size = size;
+		}
+
+		@Override
+		protected List<? extends Integer> doPage(int currentPosition, int pageSize) {
+			List<Integer> page = new ArrayList<Integer>();
+			for(int i=currentPosition;i<Math.min(currentPosition + pageSize, size);i++){
+				page.add(i);
+			}
+			return page;
+		}
+
+		@Override
+		protected Integer transform(Integer inputItem) {
+			return inputItem;
+		}
+		
+		private long decorateMillis = 0;
+
+		@Override
+		protected List<Integer> decoratePage(List<Integer> page) {
+			this.decoratingThreads.add(Thread.currentThread().getName());
+			if(this.decorateMillis > 0){
+				try {
+					Thread.sleep(this.decorateMillis);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return page;
+		}
+	}
+	
+	@After
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+	
+	@Test
+	public void TestAllItemsHandledOnce() {
+		TestIterator itr = new TestIterator(7, 1000);
+		
+		final Set<Integer> seen = Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
+		final AtomicInteger count = new AtomicInteger();
+		
+		new ParallelPageProcessor<Integer>(itr, new ParallelPageProcessor.ItemHandler<Integer>(){
+			@Override
+			public void handle(Integer item) {
+				seen.add(item);
+				count.incrementAndGet();
+			}
+		}).process(this.pool);
+		
+		assertEquals(1000, count.get());
+		assertEquals(1000, seen.size());
+		assertTrue(itr.decoratingThreads.size() >= 1);
+	}
+	
+	@Test
+	public void TestPrefetchTurnedOff() {
+		TestIterator itr = new TestIterator(7, 1000);
+		itr.setPrefetchDepth(2);
+		itr.decorateMillis = 5;
+		
+		final AtomicInteger count = new AtomicInteger();
+		
+		new ParallelPageProcessor<Integer>(itr, new ParallelPageProcessor.ItemHandler<Integer>(){
+			@Override
+			public void handle(Integer item) {
+				count.incrementAndGet();
+			}
+		}).process(this.pool);
+		
+		assertEquals(1000, count.get());
+		assertEquals(0, itr.getPrefetchDepth());
+		
+		//the pages are decorated by the workers, not a prefetch thread
+		assertTrue(itr.decoratingThreads.size() > 1);
+		for(String thread : itr.decoratingThreads){
+			assertFalse(thread, thread.endsWith("-prefetch"));
+		}
+	}
+	
+	@Test
+	public void TestHandlerErrorPropagated() {
+		TestIterator itr = new TestIterator(7, 1000);
+		
+		try {
+			new ParallelPageProcessor<Integer>(itr, new ParallelPageProcessor.ItemHandler<Integer>(){
+				@Override
+				public void handle(Integer item) {
+					if(item == 500){
+						throw new IllegalStateException("failed");
+					}
+				}
+			}).process(this.pool);
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("failed"));
+		}
+	}
+	
+	@Test
+	public void TestNextPageAfterNext() {
+		TestIterator itr = new TestIterator(3, 5);
+		
+		assertEquals(Integer.valueOf(0), itr.next());
+		assertEquals(2, AbstractPageableIterator.sizeOf(itr.nextPage()));
+		assertEquals(2, AbstractPageableIterator.sizeOf(itr.nextPage()));
+		assertEquals(0, AbstractPageableIterator.sizeOf(itr.nextPage()));
+		assertEquals(0, AbstractPageableIterator.sizeOf(itr.nextPage()));
+	}
+
+}
@@ -0,0 +1,154 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PatientSnapshotTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		this.file = File.createTempFile("snapshot", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	private PatientRecord getRecord(int i) {
+		PatientRecord record = new PatientRecord(new PatientRow("p" + i, "19700101", "F", "Asian"));
+		record.getLabs().add(new LabRow("p" + i, "2345-7", "200901011200", "mg/dL", i + 0.5));
+		record.getLabs().add(new LabRow("p" + i, "2345-7", "200902011200", "mg/dL", i));
+		record.getDrugs().add(new DrugRow("p" + i, "1191", "200901011200", null));
+		record.getDiagnoses().add(new DiagnosisRow("p" + i, "44054006"));
+
+		return record;
+	}
+
+	private void write(int count) throws IOException {
+		PatientSnapshotWriter writer = new PatientSnapshotWriter(this.file);
+		try {
+			for(int i=0;i<count;i++){
+				writer.write(this.getRecord(i));
+			}
+		} finally {
+			writer.close();
+		}
+		assertEquals(count, writer.getCount());
+	}
+
+	@Test
+	public void TestRoundTrip() throws IOException {
+		this.write(1);
+
+		PatientSnapshotReader reader = new PatientSnapshotReader(this.file);
+		try {
+			PatientRecord record = reader.read();
+
+			assertEquals("p0", record.getPatient().getPatientId());
+			assertEquals("19700101", record.getPatient().getBirthDate());
+			assertEquals("F", record.getPatient().getGenderCode());
+			assertEquals("Asian", record.getPatient().getRace());
+
+			assertEquals(2, record.getLabs().size());
+			assertEquals("2345-7", record.getLabs().get(1).getCode());
+			assertEquals("200902011200", record.getLabs().get(1).getCollectionDate());
+			assertEquals(0.5, record.getLabs().get(0).getValue(), 0);
+
+			assertEquals(1, record.getDrugs().size());
+			assertEquals("1191", record.getDrugs().get(0).getCode());
+			assertNull(record.getDrugs().get(0).getEndTime());
+
+			assertEquals("44054006", record.getDiagnoses().get(0).getCode());
+
+			assertNull(reader.read());
+			assertNull(reader.read());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void TestUnicode() throws IOException {
+		PatientSnapshotWriter writer = new PatientSnapshotWriter(this.file);
+		try {
+			writer.write(new PatientRecord(new PatientRow("p\u00e9\u4e2d", "19700101", "F", "\u00c5sian")));
+		} finally {
+			writer.close();
+		}
+
+		PatientSnapshotReader reader = new PatientSnapshotReader(this.file);
+		try {
+			PatientRecord record = reader.read();
+
+			assertEquals("p\u00e9\u4e2d", record.getPatient().getPatientId());
+			assertEquals("\u00c5sian", record.getPatient().getRace());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void TestRemap() throws IOException {
+		this.write(500);
+
+		PatientSnapshotReader reader = new PatientSnapshotReader(this.file, 256);
+		try {
+			for(int i=0;i<500;i++){
+				PatientRecord record = reader.read();
+				assertEquals("p" + i, record.getPatient().getPatientId());
+				assertEquals(i, record.getLabs().get(1).getValue(), 0);
+			}
+			assertNull(reader.read());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void TestBadMagic() throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(this.file));
+		try {
+			out.writeInt(0x12345678);
+			out.writeInt(PatientSnapshotWriter.VERSION);
+		} finally {
+			out.close();
+		}
+
+		new PatientSnapshotReader(this.file).close();
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void TestTruncated() throws IOException {
+		this.write(10);
+
+		RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+		try {
+			raf.setLength(raf.length() / 2);
+		} finally {
+			raf.close();
+		}
+
+		PatientSnapshotReader reader = new PatientSnapshotReader(this.file);
+		try {
+			while(reader.read() != null){
+				//
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+}
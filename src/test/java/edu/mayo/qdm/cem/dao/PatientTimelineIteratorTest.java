@@ -0,0 +1,228 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import edu.mayo.qdm.patient.Patient;
+
+public class PatientTimelineIteratorTest {
+
+	private static final String VIEW = "patienttimeline/_design/patient_timeline/_view/patient_timeline";
+
+	private static class TimelineRow {
+
+		private final List<Object> key;
+		private final String id;
+		private final String value;
+
+		private TimelineRow(String patientId, int category, String id, String value) {
+			super();
+			this.key = Arrays.<Object>asList(patientId, category);
+			this.id = id;
+			this.value = value;
+		}
+
+	}
+
+	//compares [patientId, category] keys as the view collates them -- a shorter key before its extensions
+	private static int compareKeys(List<?> key1, List<?> key2) {
+		for(int i=0;i<Math.min(key1.size(), key2.size());i++){
+			Object part1 = key1.get(i);
+			Object part2 = key2.get(i);
+			int diff = part1 instanceof Number ?
+					Integer.compare(((Number) part1).intValue(), ((Number) part2).intValue()) :
+					part1.toString().compareTo(part2.toString());
+			if(diff != 0){
+				return diff;
+			}
+		}
+		return key1.size() - key2.size();
+	}
+
+	//serves the rows of the view between 'startkey'/'startkey_docid' and the inclusive 'endkey', up to 'limit'
+	private static class TimelineHandler implements CannedTransport.Handler {
+
+		private final ObjectMapper objectMapper = new ObjectMapper();
+
+		private final List<TimelineRow> rows = new ArrayList<TimelineRow>();
+
+		private TimelineHandler add(String patientId, int category, String id, String value) {
+			this.rows.add(new TimelineRow(patientId, category, id, value));
+			Collections.sort(this.rows, new Comparator<TimelineRow>(){
+
+				@Override
+				public int compare(TimelineRow row1, TimelineRow row2) {
+					int diff = compareKeys(row1.key, row2.key);
+					return diff != 0 ? diff : row1.id.compareTo(row2.id);
+				}
+
+			});
+			return this;
+		}
+
+		private TimelineHandler addPatient(String patientId) {
+			return this.add(patientId, 0, "pat-" + patientId, "{\"id\":\"" + patientId +
+					"\",\"birthDate\":\"19700101120000\",\"gender\":{\"code\":\"F\"},\"race\":\"White\"}");
+		}
+
+		private TimelineHandler addLab(String patientId, String id, String code) {
+			return this.add(patientId, 1, id, "{\"patientId\":\"" + patientId + "\",\"labResultCode\":\"" + code +
+					"\",\"collectionDate\":\"20050101120000\",\"unit\":\"mg\",\"value\":1.5}");
+		}
+
+		private TimelineHandler addDrug(String patientId, String id, String code) {
+			return this.add(patientId, 2, id, "{\"patientId\":\"" + patientId + "\",\"clinicalDrug\":{\"code\":\"" + code +
+					"\"},\"startTime\":\"20050101120000\",\"endTime\":\"20050201120000\"}");
+		}
+
+		private TimelineHandler addDiagnosis(String patientId, String id, String code) {
+			return this.add(patientId, 3, id, "{\"patientId\":\"" + patientId + "\",\"code\":\"" + code + "\"}");
+		}
+
+		@Override
+		public CannedTransport.CannedResponse respond(String url, String body) throws IOException {
+			String startKey = getParam(url, "startkey");
+			String startDocId = getParam(url, "startkey_docid");
+			String endKey = getParam(url, "endkey");
+			int limit = Integer.parseInt(getParam(url, "limit"));
+
+			StringBuilder json = new StringBuilder("{\"rows\":[");
+			int count = 0;
+			for(TimelineRow row : this.rows){
+				if(startKey != null){
+					int diff = compareKeys(row.key, this.objectMapper.readValue(startKey, List.class));
+					if(diff < 0 || (diff == 0 && startDocId != null && row.id.compareTo(startDocId) < 0)){
+						continue;
+					}
+				}
+				if(endKey != null && compareKeys(row.key, this.objectMapper.readValue(endKey, List.class)) > 0){
+					break;
+				}
+				if(count++ == limit){
+					break;
+				}
+				json.append(count > 1 ? "," : "").append("{\"id\":\"").append(row.id).append("\",\"key\":").
+					append(this.objectMapper.writeValueAsString(row.key)).append(",\"value\":").append(row.value).append('}');
+			}
+
+			return CannedTransport.json(json.append("]}").toString());
+		}
+
+	}
+
+	private static String getParam(String url, String name) throws IOException {
+		if(url.indexOf('?') < 0){
+			return null;
+		}
+		for(String param : url.substring(url.indexOf('?') + 1).split("&")){
+			if(param.startsWith(name + "=")){
+				return URLDecoder.decode(param.substring(name.length() + 1), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	private static CemdbCouchDbDaoTest.RecordingDao getDao(CannedTransport transport, int rowsPerRequest) {
+		CemdbCouchDbDaoTest.RecordingDao dao = new CemdbCouchDbDaoTest.RecordingDao(transport);
+		dao.setExtractionMode(CemdbCouchDbDao.ExtractionMode.PATIENT_TIMELINE);
+		dao.setTimelineRowsPerRequest(rowsPerRequest);
+
+		return dao;
+	}
+
+	private static List<String> getIds(Iterable<Patient> patients) {
+		List<String> ids = new ArrayList<String>();
+		for(Patient patient : patients){
+			ids.add(patient.getSourcePid());
+		}
+		return ids;
+	}
+
+	@Test
+	public void TestPatientSplitAcrossRequests() {
+		CannedTransport transport = new CannedTransport(new TimelineHandler().
+				addPatient("p1").addLab("p1", "l1", "L1").addLab("p1", "l2", "L2").addDrug("p1", "d1", "D1").
+				addPatient("p2").addDiagnosis("p2", "x1", "X1"));
+		CemdbCouchDbDaoTest.RecordingDao dao = getDao(transport, 2);
+
+		assertEquals(Arrays.asList("p1", "p2"), getIds(dao.getPatients(KeyRange.ALL, EnumSet.allOf(DataCategory.class))));
+		assertEquals(Arrays.asList("p1 lab L1", "p1 lab L2", "p1 drug D1", "p2 diagnosis X1"), dao.bound);
+		assertEquals(3, transport.getUrls().size());
+
+		dao.close();
+	}
+
+	@Test
+	public void TestLimitPlusOneHandoff() throws IOException {
+		//three labs under the same key, so the next request must also start at the docid
+		CannedTransport transport = new CannedTransport(new TimelineHandler().
+				addPatient("p1").addLab("p1", "l1", "L1").addLab("p1", "l2", "L2").addLab("p1", "l3", "L3").
+				addPatient("p2"));
+		CemdbCouchDbDaoTest.RecordingDao dao = getDao(transport, 2);
+
+		assertEquals(Arrays.asList("p1", "p2"), getIds(dao.getPatients(KeyRange.ALL, EnumSet.of(DataCategory.LABS))));
+		assertEquals(Arrays.asList("p1 lab L1", "p1 lab L2", "p1 lab L3"), dao.bound);
+
+		List<String> urls = transport.getUrls();
+		assertEquals("3", getParam(urls.get(0), "limit"));
+		assertNull(getParam(urls.get(0), "startkey"));
+
+		//the extra row of a request starts the next one
+		assertEquals("[\"p1\",1]", getParam(urls.get(1), "startkey"));
+		assertEquals("l2", getParam(urls.get(1), "startkey_docid"));
+		assertEquals("[\"p2\",0]", getParam(urls.get(2), "startkey"));
+		assertEquals("pat-p2", getParam(urls.get(2), "startkey_docid"));
+		assertEquals(3, urls.size());
+
+		dao.close();
+	}
+
+	@Test
+	public void TestExclusiveEndKey() throws IOException {
+		CannedTransport transport = new CannedTransport(new TimelineHandler().
+				addPatient("p1").addLab("p1", "l1", "L1").
+				addPatient("p2").addLab("p2", "l2", "L2").
+				addPatient("p3").addLab("p3", "l3", "L3"));
+		CemdbCouchDbDaoTest.RecordingDao dao = getDao(transport, 10);
+
+		assertEquals(Arrays.asList("p2"), getIds(dao.getPatients(new KeyRange("p2", "p3"), EnumSet.of(DataCategory.LABS))));
+		assertEquals(Arrays.asList("p2 lab L2"), dao.bound);
+
+		//[id] collates before every [id, category] row, so p3 is excluded and p2 included
+		String url = transport.getUrls().get(0);
+		assertEquals("[\"p2\"]", getParam(url, "startkey"));
+		assertEquals("[\"p3\"]", getParam(url, "endkey"));
+		assertFalse(url, url.contains("inclusive_end"));
+
+		dao.close();
+	}
+
+	@Test
+	public void TestOrphanRowsSkipped() {
+		CannedTransport transport = new CannedTransport(new TimelineHandler().
+				addLab("p0", "l0", "L0").
+				addPatient("p1").addLab("p1", "l1", "L1").
+				addDiagnosis("p2", "x2", "X2").addDrug("p2", "d2", "D2").
+				addPatient("p3").addDrug("p3", "d3", "D3"));
+		CemdbCouchDbDaoTest.RecordingDao dao = getDao(transport, 2);
+
+		assertEquals(Arrays.asList("p1", "p3"), getIds(dao.getPatients(KeyRange.ALL, EnumSet.allOf(DataCategory.class))));
+		assertEquals(Arrays.asList("p1 lab L1", "p3 drug D3"), dao.bound);
+
+		dao.close();
+	}
+
+}
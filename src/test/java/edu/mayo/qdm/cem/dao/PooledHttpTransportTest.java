@@ -0,0 +1,132 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PooledHttpTransportTest {
+
+	private static final byte[] SMALL = "{\"rows\":[]}\n".getBytes();
+
+	private HttpServer server;
+
+	private PooledHttpTransport transport;
+
+	private final CountDownLatch released = new CountDownLatch(1);
+
+	@Before
+	public void start() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.server.createContext("/small", new HttpHandler(){
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, SMALL.length);
+				exchange.getResponseBody().write(SMALL);
+				exchange.close();
+			}
+
+		});
+		//a large body, the rest of which is held back until the test is done
+		this.server.createContext("/large", new HttpHandler(){
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(new byte[64 * 1024]);
+					out.flush();
+					released.await(10, TimeUnit.SECONDS);
+					out.write(new byte[64 * 1024]);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (IOException e) {
+					//the client went away
+				} finally {
+					exchange.close();
+				}
+			}
+
+		});
+		this.server.start();
+
+		this.transport = new PooledHttpTransport();
+	}
+
+	@After
+	public void stop() throws IOException {
+		this.released.countDown();
+		this.transport.close();
+		this.server.stop(0);
+	}
+
+	private String getUrl(String path) {
+		return "http://localhost:" + this.server.getAddress().getPort() + path;
+	}
+
+	private static int read(InputStream in, int length) throws IOException {
+		byte[] buffer = new byte[length];
+		int total = 0;
+		int read;
+		while(total < length && (read = in.read(buffer, total, length - total)) != -1){
+			total += read;
+		}
+		return total;
+	}
+
+	@Test
+	public void TestReadBodyReusesConnection() throws IOException {
+		CouchDbTransport.Response response = this.transport.execute(getUrl("/small"), null, null);
+		InputStream body = response.getBody();
+		assertEquals(SMALL.length, read(body, SMALL.length + 1));
+		body.close();
+		response.close();
+
+		assertEquals(0, this.transport.getPoolStats().getLeased());
+		assertEquals(1, this.transport.getPoolStats().getAvailable());
+	}
+
+	@Test
+	public void TestParsedBodyReusesConnection() throws IOException {
+		CouchDbTransport.Response response = this.transport.execute(getUrl("/small"), null, null);
+
+		//a parser stops at the end of the JSON, before the trailing newline
+		assertEquals(SMALL.length - 1, read(response.getBody(), SMALL.length - 1));
+		response.close();
+
+		assertEquals(0, this.transport.getPoolStats().getLeased());
+		assertEquals(1, this.transport.getPoolStats().getAvailable());
+	}
+
+	@Test
+	public void TestUnreadBodyAborts() throws IOException {
+		CouchDbTransport.Response response = this.transport.execute(getUrl("/large"), null, null);
+		InputStream body = response.getBody();
+		assertEquals(10, read(body, 10));
+
+		//draining would wait for the rest of the body
+		long start = System.nanoTime();
+		body.close();
+		response.close();
+		assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+
+		assertEquals(0, this.transport.getPoolStats().getLeased());
+		assertEquals(0, this.transport.getPoolStats().getAvailable());
+	}
+
+}
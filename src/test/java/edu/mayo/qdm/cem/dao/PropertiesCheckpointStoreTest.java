@@ -0,0 +1,47 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropertiesCheckpointStoreTest {
+	
+	private File file;
+	
+	@Before
+	public void createFile() throws IOException {
+		this.file = File.createTempFile("checkpoints", ".properties");
+		this.file.delete();
+	}
+	
+	@After
+	public void deleteFile() {
+		this.file.delete();
+	}
+
+	@Test
+	public void TestNoCheckpoint() {
+		assertNull(new PropertiesCheckpointStore(this.file).getSequence("db"));
+	}
+	
+	@Test
+	public void TestCheckpointReloaded() {
+		PropertiesCheckpointStore store = new PropertiesCheckpointStore(this.file);
+		store.setSequence("db1", "12");
+		store.setSequence("db2", "34-g1AAAAEzeJzLYWBg");
+		store.setSequence("db1", "13");
+		
+		PropertiesCheckpointStore reloaded = new PropertiesCheckpointStore(this.file);
+		assertEquals("13", reloaded.getSequence("db1"));
+		assertEquals("34-g1AAAAEzeJzLYWBg", reloaded.getSequence("db2"));
+		assertFalse(new File(this.file.getPath() + ".tmp").exists());
+	}
+
+}
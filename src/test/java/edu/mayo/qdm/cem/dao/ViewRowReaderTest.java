@@ -0,0 +1,92 @@
+package edu.mayo.qdm.cem.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+public class ViewRowReaderTest {
+
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	private <R> R read(CouchDbClient.RowReader<R> reader, String json) throws IOException {
+		JsonParser parser = this.objectMapper.getJsonFactory().createJsonParser(json.replace('\'', '"'));
+		assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+
+		R row = reader.read(parser);
+
+		assertEquals(JsonToken.END_OBJECT, parser.getCurrentToken());
+		assertNull(parser.nextToken());
+
+		return row;
+	}
+
+	@Test
+	public void TestPatientRow() throws IOException {
+		PatientRow row = this.read(PatientRow.READER,
+				"{'key':'123','value':{'id':'123','race':'Asian','gender':{'code':'F','codeSystem':'x'},'birthDate':'19700101'}}");
+
+		assertEquals("123", row.getKey());
+		assertNull(row.getId());
+		assertEquals("123", row.getPatientId());
+		assertEquals("Asian", row.getRace());
+		assertEquals("F", row.getGenderCode());
+		assertEquals("19700101", row.getBirthDate());
+	}
+
+	@Test
+	public void TestLabRow() throws IOException {
+		LabRow row = this.read(LabRow.READER,
+				"{'id':'doc1','key':'123','value':{'patientId':'123','labResultCode':'2345-7'," +
+				"'collectionDate':'200901011200','unit':'mg/dL','value':5.25,'extra':[1,{'a':2}]}}");
+
+		assertEquals("doc1", row.getId());
+		assertEquals("123", row.getPatientId());
+		assertEquals("2345-7", row.getCode());
+		assertEquals("200901011200", row.getCollectionDate());
+		assertEquals(5.25, row.getValue(), 0);
+	}
+
+	@Test
+	public void TestLabRowStringValue() throws IOException {
+		LabRow row = this.read(LabRow.READER,
+				"{'id':'doc1','key':'123','value':{'patientId':'123','labResultCode':'2345-7'," +
+				"'collectionDate':'200901011200','unit':'mg/dL','value':'98'}}");
+
+		assertEquals(98, row.getValue(), 0);
+	}
+
+	@Test
+	public void TestDrugRowNullEndTime() throws IOException {
+		DrugRow row = this.read(DrugRow.READER,
+				"{'id':'doc1','key':'123','value':{'patientId':'123','clinicalDrug':{'code':'1191','codeSystem':'RxNorm'}," +
+				"'startTime':'200901011200','endTime':null}}");
+
+		assertEquals("1191", row.getCode());
+		assertEquals("200901011200", row.getStartTime());
+		assertNull(row.getEndTime());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void TestMissingRequiredField() throws IOException {
+		this.read(DiagnosisRow.READER, "{'id':'doc1','key':'123','value':{'patientId':'123'}}");
+	}
+
+	@Test
+	public void TestTimelineRow() throws IOException {
+		ViewRow row = this.read(PatientTimelineIterator.TIMELINE_READER,
+				"{'id':'doc1','key':['123',3],'value':{'patientId':'123','code':'44054006'}}");
+
+		assertTrue(row instanceof DiagnosisRow);
+		assertEquals(Arrays.asList("123", 3), row.getKey());
+		assertEquals("44054006", ((DiagnosisRow) row).getCode());
+	}
+
+}